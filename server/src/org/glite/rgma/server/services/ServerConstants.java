@@ -217,6 +217,9 @@ public class ServerConstants {
 	/** The width of the security log produced of database accesses */
 	public static final String DATABASE_LOG_WIDTH = "database.log.width";
 
+	/** The maximum number of prepared statements kept for each database connection */
+	public static final String DATABASE_MAX_PREPARED_STATEMENTS = "database.maxPreparedStatements";
+
 	// Memory Database Properties - Configuration Parameters
 
 	/** The name of the property which will define the URL location of the database. */
@@ -247,9 +250,12 @@ public class ServerConstants {
 
 	// Producer Properties - Configuration Parameters
 
-	/** Maximum number of tuples to send in each streaming chunk. */
+	/** Number of tuples to send in the first streaming chunk of a query - later chunks are sized to suit the query. */
 	public static final String PRODUCER_MAX_TUPLE_COUNT_PER_STREAMED_CHUNK = "producer.maxTupleCountPerStreamedChunk";
 
+	/** Maximum size in bytes of an encoded streaming chunk. */
+	public static final String PRODUCER_MAX_BYTES_PER_STREAMED_CHUNK = "producer.maxBytesPerStreamedChunk";
+
 	// Registry Properties - Configuration Parameters
 
 	/** Registry cleanup thread interval time to wait in seconds. */
@@ -356,6 +362,12 @@ public class ServerConstants {
 	/** Port number for the streaming receiver to listen on. */
 	public static final String STREAMING_RECEIVER_PORT = "streamingreceiver.port";
 
+	/** Number of threads decoding streamed results and pushing them to replies. */
+	public static final String STREAMING_RECEIVER_DECODE_THREADS = "streamingreceiver.decodeThreads";
+
+	/** Number of bytes waiting to be decoded above which the streaming receiver stops reading. */
+	public static final String STREAMING_RECEIVER_MAX_QUEUED_BYTES = "streamingreceiver.maxQueuedBytes";
+
 	// StreamingSender Properties - Configuration Parameters
 
 	/** The frequency to check for and cleanup StreamingSources. */
@@ -367,11 +379,47 @@ public class ServerConstants {
 	/** How long to keep a source alive when it has no queries (seconds as integer). */
 	public static final String STREAMING_SENDER_PERIOD_TO_KEEP_REDUNDANT_SOURCE_SECS = "streamingsender.periodToKeepRedundantSource";
 
+	/** Maximum number of free write buffers to keep for reuse. */
+	public static final String STREAMING_SENDER_MAX_POOLED_BUFFERS = "streamingsender.maxPooledBuffers";
+
+	/** Number of streaming sender threads, each with its own selector - 0 for one per processor. */
+	public static final String STREAMING_SENDER_SHARDS = "streamingsender.shards";
+
+	/** Number of threads reading results from tuple stores for the streaming sender. */
+	public static final String STREAMING_SENDER_PREFETCH_THREADS = "streamingsender.prefetchThreads";
+
+	/** Maximum number of chunks of results to read ahead for each query. */
+	public static final String STREAMING_SENDER_PREFETCH_QUEUE_SIZE = "streamingsender.prefetchQueueSize";
+
+	/** Deflate compression level (1 to 9) for connections to receivers which accept compression - 0 to disable. */
+	public static final String STREAMING_SENDER_COMPRESSION_LEVEL = "streamingsender.compressionLevel";
+
+	/** Share of a streaming connection given to each continuous query relative to each one-time query. */
+	public static final String STREAMING_SENDER_CONTINUOUS_QUERY_WEIGHT = "streamingsender.continuousQueryWeight";
+
+	/** Longest time in milliseconds to hold back less than a packet of data in the hope of filling it - 0 to send at once. */
+	public static final String STREAMING_SENDER_COALESCE_MILLIS = "streamingsender.coalesceMillis";
+
+	/** Whether results for consumers in the same server are delivered directly rather than by a streaming connection. */
+	public static final String STREAMING_SENDER_LOOPBACK = "streamingsender.loopback";
+
+	/** Delay before the first attempt to reconnect a failed streaming connection (milliseconds). */
+	public static final String STREAMING_SENDER_RECONNECT_MIN_DELAY_MILLIS = "streamingsender.reconnectMinDelayMillis";
+
+	/** Longest delay between attempts to reconnect a failed streaming connection (seconds). */
+	public static final String STREAMING_SENDER_RECONNECT_MAX_DELAY_SECS = "streamingsender.reconnectMaxDelaySecs";
+
 	// Streaming Properties
 
 	/** Set True to use direct buffers for I/O' */
 	public static final String STREAMING_ALLOCATE_DIRECT = "streaming.allocateDirect";
 
+	/** Number of SSL sessions to cache for resumption by streaming connections - 0 for no limit. */
+	public static final String STREAMING_SSL_SESSION_CACHE_SIZE = "streaming.sslSessionCacheSize";
+
+	/** How long a cached SSL session may be resumed by streaming connections (seconds) - 0 for no limit. */
+	public static final String STREAMING_SSL_SESSION_TIMEOUT_SECS = "streaming.sslSessionTimeoutSecs";
+
 	// TaskManager Properties - Configuration Parameters
 
 	/** The number TaskInvocators, one TaskInvocators per thread. */
@@ -405,6 +453,13 @@ public class ServerConstants {
 	/** Maximum number of tuples to he held in a history tuple store for MEM storage */
 	public static final String TUPLESTOREMANAGER_MEM_MAX_HISTORY_TUPLES = "tuplestoremanager.mem.maxHistoryTuples";
 
+	/**
+	 * Maximum number of tuples pushed to a continuous query as they are inserted and not yet streamed. If more arrive
+	 * the query reads them from the history tuple store instead. Zero stops tuples being pushed. Tuples are only pushed
+	 * for memory tuple stores.
+	 */
+	public static final String TUPLESTOREMANAGER_MAX_PUSHED_TUPLES = "tuplestoremanager.maxPushedTuples";
+
 	// VDB Properties - Configuration Parameters
 
 	/** Directory with VDB definition files */
@@ -448,6 +448,14 @@ public abstract class Service {
 			}
 			b.append("/>\n");
 		}
+		List<Map<String, String>> queries = s_streamingSender.queryInfo(100);
+		for (Map<String, String> map : queries) {
+			b.append("<RunningQuery");
+			for (String key : map.keySet()) {
+				b.append(" ").append(key).append("=\"").append(map.get(key)).append("\"");
+			}
+			b.append("/>\n");
+		}
 		b.append("</StreamingSender>\n");
 		b.append("</Streaming>\n");
 		return b.toString();
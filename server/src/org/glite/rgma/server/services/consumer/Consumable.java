@@ -25,6 +25,12 @@ public interface Consumable {
 	 */
 	public ResourceEndpoint getEndpoint();
 
+	/**
+	 * Get the number of tuples which may be pushed before the consumer-type object is under pressure, or -1 if there
+	 * is no limit. This is used to grant credit to the producers streaming to it.
+	 */
+	public int getFreeCapacity();
+
 	/**
 	 * Remove a producer from the consumer's plan
 	 */
@@ -36,6 +36,7 @@ import org.glite.rgma.server.services.sql.TableNameAndAlias;
 import org.glite.rgma.server.services.sql.TableReference;
 import org.glite.rgma.server.services.sql.Validator;
 import org.glite.rgma.server.services.sql.parser.ParseException;
+import org.glite.rgma.server.services.streaming.StreamingConstants;
 import org.glite.rgma.server.services.streaming.StreamingReceiver;
 import org.glite.rgma.server.services.tasks.Task;
 import org.glite.rgma.server.services.tasks.TaskManager;
@@ -334,7 +335,7 @@ public class ConsumerResource extends Resource implements Consumable, Observer {
 	private class TimerClosedException extends Exception {}
 
 	/** Current best streaming protocol version. */
-	private static final int CURRENT_STREAMING_PROTOCOL_VERSION = 1;
+	private static final int CURRENT_STREAMING_PROTOCOL_VERSION = StreamingConstants.COMPRESSED_STREAMING_PROTOCOL;
 
 	/** Server configuration parameters. */
 	private static ServerConfig s_config;
@@ -643,6 +644,7 @@ public class ConsumerResource extends Resource implements Consumable, Observer {
 				s_taskInvocationQueue.add(new ClosePlanTask());
 			}
 			m_tupleQueue.close();
+			s_streamingReceiver.removeConsumer(m_endpoint);
 		} catch (Exception e) {
 			m_logger.warn("Error destroying consumer resource", e);
 		} finally {
@@ -703,6 +705,9 @@ public class ConsumerResource extends Resource implements Consumable, Observer {
 
 		TupleSet rs = m_tupleQueue.pop(count);
 		m_lastPopTime = System.currentTimeMillis();
+		if (rs.size() > 0) {
+			s_streamingReceiver.capacityFreed(this);
+		}
 
 		StringBuilder warning = new StringBuilder();
 		if (m_plan != null) {
@@ -742,6 +747,14 @@ public class ConsumerResource extends Resource implements Consumable, Observer {
 		}
 	}
 
+	/**
+	 * Returns the space in the TupleQueue. This is not synchronized on the consumer as it is called when results are
+	 * streamed in.
+	 */
+	public int getFreeCapacity() {
+		return m_tupleQueue.getFreeCapacity();
+	}
+
 	/**
 	 * Handle a removeProducer message.
 	 */
@@ -244,6 +244,15 @@ public class TupleQueue {
 		}
 	}
 
+	/**
+	 * Returns the number of tuples which can be pushed before the queue has to be saved in the database.
+	 */
+	public int getFreeCapacity() {
+		synchronized (this) {
+			return Math.max(0, m_maxTuplesMem - m_queue.size() - (m_write - m_read));
+		}
+	}
+
 	public void close() throws RGMAPermanentException {
 		synchronized (this) {
 			try {
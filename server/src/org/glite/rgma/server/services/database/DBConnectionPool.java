@@ -23,6 +23,7 @@ class DBConnectionPool {
 	 * Using this constructor creates a database pool using details that will be obtained from the generic configuration
 	 * parameters: database.location.url database.username database.password database.jdbc.driver
 	 * database.connection.pool.maxActive database.connection.pool.maxIdle database.connection.pool.maxWait
+	 * database.maxPreparedStatements
 	 * 
 	 * @throws ConfigurationException
 	 */
@@ -37,6 +38,8 @@ class DBConnectionPool {
 		cpds.setUrl(config.getString(ServerConstants.DATABASE_LOCATION_URL));
 		cpds.setUser(config.getString(ServerConstants.DATABASE_USERNAME));
 		cpds.setPassword(config.getString(ServerConstants.DATABASE_PASSWORD));
+		cpds.setPoolPreparedStatements(true);
+		cpds.setMaxPreparedStatements(config.getInt(ServerConstants.DATABASE_MAX_PREPARED_STATEMENTS));
 		m_dataSource = new SharedPoolDataSource();
 		m_dataSource.setConnectionPoolDataSource(cpds);
 		m_dataSource.setMaxActive(config.getInt(ServerConstants.DATABASE_CONNECTION_POOL_MAX_ACTIVE));
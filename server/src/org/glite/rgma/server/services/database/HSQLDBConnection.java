@@ -8,9 +8,12 @@ package org.glite.rgma.server.services.database;
 
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import org.apache.log4j.Logger;
 import org.glite.rgma.server.services.ServerConfig;
@@ -29,6 +32,8 @@ public class HSQLDBConnection {
 
 	private static int s_logWidth;
 
+	private static int s_maxPreparedStatements;
+
 	/** JDBC connection to HSQLDB DB. */
 	private Connection m_connection;
 
@@ -41,6 +46,20 @@ public class HSQLDBConnection {
 	/** Database password. */
 	private String m_password;
 
+	/** Prepared statements by SQL, least recently used first */
+	private final Map<String, PreparedStatement> m_preparedStatements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+			if (size() > s_maxPreparedStatements) {
+				synchronized (eldest.getValue()) {
+					closeStatement(eldest.getValue());
+				}
+				return true;
+			}
+			return false;
+		}
+	};
+
 	/**
 	 * Creates a new HSQLDB connection to the specified database. Does not yet establish connection, just instantiates
 	 * driver.
@@ -58,6 +77,7 @@ public class HSQLDBConnection {
 		try {
 			ServerConfig config = ServerConfig.getInstance();
 			s_logWidth = config.getInt(ServerConstants.DATABASE_LOG_WIDTH);
+			s_maxPreparedStatements = config.getInt(ServerConstants.DATABASE_MAX_PREPARED_STATEMENTS);
 			Class.forName(JDBC_DRIVER);
 			m_url = url;
 			m_user = user;
@@ -100,10 +120,66 @@ public class HSQLDBConnection {
 		}
 	}
 
+	/**
+	 * Returns a prepared statement for the SQL, which is kept to be returned by later calls with the same SQL. The least
+	 * recently used statements are closed when more than the configured number are kept. As a statement may be shared
+	 * between threads, the caller must hold its lock from setting its parameters until it has finished with any results.
+	 * The caller must not close the statement.
+	 * 
+	 * @param sql
+	 *            SQL statement with parameters.
+	 * @return The prepared statement.
+	 * @throws SQLException
+	 *             If the statement cannot be prepared.
+	 */
+	public PreparedStatement prepareStatement(String sql) throws SQLException {
+		synchronized (m_preparedStatements) {
+			PreparedStatement statement = m_preparedStatements.get(sql);
+			if (statement == null) {
+				if (LOG.isDebugEnabled()) {
+					int n = Math.min(s_logWidth, sql.length());
+					LOG.debug("Preparing statement: " + sql.substring(0, n));
+				}
+				if (m_connection == null) {
+					m_connection = DriverManager.getConnection(m_url, m_user, m_password);
+				}
+				statement = m_connection.prepareStatement(sql);
+				m_preparedStatements.put(sql, statement);
+			}
+			return statement;
+		}
+	}
+
+	/**
+	 * Closes a prepared statement returned by {@link #prepareStatement(String)} so that the next call with the same SQL
+	 * prepares it again. HSQLDB makes a prepared statement invalid when a table it uses is dropped.
+	 * 
+	 * @param sql
+	 *            SQL statement with parameters.
+	 */
+	public void discardStatement(String sql) {
+		synchronized (m_preparedStatements) {
+			PreparedStatement statement = m_preparedStatements.remove(sql);
+			if (statement != null) {
+				synchronized (statement) {
+					closeStatement(statement);
+				}
+			}
+		}
+	}
+
 	/**
 	 * Closes this HSQLDB connection.
 	 */
 	public void close() {
+		synchronized (m_preparedStatements) {
+			for (PreparedStatement statement : m_preparedStatements.values()) {
+				synchronized (statement) {
+					closeStatement(statement);
+				}
+			}
+			m_preparedStatements.clear();
+		}
 		if (m_connection != null) {
 			try {
 				m_connection.close();
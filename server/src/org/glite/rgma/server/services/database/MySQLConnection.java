@@ -7,6 +7,7 @@
 package org.glite.rgma.server.services.database;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
@@ -178,6 +179,38 @@ public class MySQLConnection {
 		return updateCount;
 	}
 
+	/**
+	 * Prepares a statement on this MySQL database. The connection pool keeps the statements prepared on each
+	 * connection, so preparing the same SQL again on the same connection is cheap. The statement is closed, returning
+	 * it to the pool, when this connection is closed.
+	 * 
+	 * @param sql
+	 *            SQL statement with parameters.
+	 * @return The prepared statement.
+	 * @throws SQLException
+	 * @throws RGMAPermanentException
+	 */
+	public PreparedStatement prepareStatement(String sql) throws RGMAPermanentException, SQLException {
+		if (m_connection == null) {
+			getConnection();
+		}
+		try {
+			if (LOG.isDebugEnabled()) {
+				int n = Math.min(s_logWidth, sql.length());
+				LOG.debug("Preparing statement: " + sql.substring(0, n));
+			}
+			PreparedStatement statement = m_connection.prepareStatement(sql);
+			m_statements.add(statement);
+			return statement;
+		} catch (SQLException e) {
+			String sqlState = e.getSQLState();
+			if (MySQLConstants.MYSQL_COMMUNICATION_ERROR_STATE.equals(sqlState) || MySQLConstants.MYSQL_DEADLOCK_ERROR_STATE.equals(sqlState)) {
+				close();
+			}
+			throw e;
+		}
+	}
+
 	@Override
 	protected void finalize() {
 		close();
@@ -74,6 +74,8 @@ public abstract class ProducerResource extends Resource {
 	/** Number of tuples in a streamed result set */
 	protected static int s_streamingChunkSize;
 
+	protected static int s_streamingChunkBytes;
+
 	/** Queue for asynchronous messaging */
 	protected static TaskManager s_taskInvocationQueue;
 
@@ -110,6 +112,7 @@ public abstract class ProducerResource extends Resource {
 		s_taskInvocationQueue = TaskManager.getInstance();
 		ServerConfig config = ServerConfig.getInstance();
 		s_streamingChunkSize = config.getInt(ServerConstants.PRODUCER_MAX_TUPLE_COUNT_PER_STREAMED_CHUNK);
+		s_streamingChunkBytes = config.getInt(ServerConstants.PRODUCER_MAX_BYTES_PER_STREAMED_CHUNK);
 		s_maximumTaskTimeMillis = config.getInt(ServerConstants.CONSUMER_MAXIMUM_TASK_TIME_SECS) * 1000;
 		s_maximumTaskAttemptCount = config.getInt(ServerConstants.RESOURCE_MAXIMUM_TASK_ATTEMPT_COUNT);
 		/* TODO This consumer parameter is shared - ugh */
@@ -312,7 +315,7 @@ public abstract class ProducerResource extends Resource {
 					cursor = new OnDemandCursor(select, (OnDemandProducerResource) this, context, consumerEp, timeout, table.m_vdbTableName);
 				}
 				int streamingChunkSize = Math.min(streamingProps.getChunkSize(), s_streamingChunkSize);
-				runningQuery = new RunningQuery(streamingProps, cursor, m_tupleStore, streamingChunkSize, m_endpoint, consumerEp, selectString, queryProps
+				runningQuery = new RunningQuery(streamingProps, cursor, m_tupleStore, streamingChunkSize, s_streamingChunkBytes, m_endpoint, consumerEp, selectString, queryProps
 						.isContinuous(), s_streamingSender, firstVdbTableName);
 				s_streamingSender.addQuery(runningQuery);
 				if (timeout != null) {
@@ -6,6 +6,9 @@
 
 package org.glite.rgma.server.services.producer;
 
+import java.util.LinkedList;
+
+import org.glite.rgma.server.services.producer.store.ContinuousTupleCursor;
 import org.glite.rgma.server.services.producer.store.TupleCursor;
 import org.glite.rgma.server.services.producer.store.TupleStore;
 import org.glite.rgma.server.services.streaming.StreamingSender;
@@ -26,11 +29,30 @@ public class RunningQuery {
 	/** Tuple cursor for accessing the results of the query */
 	private final TupleCursor m_cursor;
 
-	/** Number of tuples to aim for in each result set. */
-	private final int m_chunkSize;
+	/**
+	 * Number of tuples to aim for in each result set. This is adjusted by {@link #chunkEncoded(int, int, long, boolean)}
+	 * and read without a lock by the prefetch thread.
+	 */
+	private volatile int m_chunkSize;
+
+	/** Maximum size in bytes of an encoded result set */
+	private final int m_maxChunkBytes;
+
+	/** Maximum number of tuples in a result set, as configured by the consumer and the producer */
+	private final int m_maxChunkSize;
+
+	/** Recent mean of the encoded size of a tuple - zero until a chunk has been encoded */
+	private double m_bytesPerTuple;
+
+	/** Recent mean of the time to encode a tuple - zero until a chunk has been encoded */
+	private double m_nanosPerTuple;
 
-	/** If <code>true</code>, query is active. */
-	private boolean m_active;
+	private long m_chunkGrowCount;
+
+	private long m_chunkShrinkCount;
+
+	/** If <code>true</code>, query is active. Not synchronized so that it can be checked while a pop is running. */
+	private volatile boolean m_active;
 
 	private ResourceEndpoint m_producer;
 
@@ -46,6 +68,10 @@ public class RunningQuery {
 		return m_producer;
 	}
 
+	public ResourceEndpoint getConsumer() {
+		return m_consumer;
+	}
+
 	public String toString() {
 		return "RQ <" + m_query + "> " + m_producer + "->" + m_consumer;
 	}
@@ -58,11 +84,52 @@ public class RunningQuery {
 
 	private String m_firstVdbTableName;
 
-	public RunningQuery(StreamingProperties streamingProps, TupleCursor cursor, TupleStore tuplestore, int chunkSize, ResourceEndpoint producer,
-			ResourceEndpoint consumer, String query, boolean iscontinuous, StreamingSender sender, String firstVdbTableName) {
+	/** For synchronization of the prefetch state below - never held while the cursor is being read */
+	private final Object m_readyLock = new Object();
+
+	/** Chunks of results fetched by a prefetch thread and not yet taken by the streaming sender */
+	private final LinkedList<TupleSetEnvelope> m_ready = new LinkedList<TupleSetEnvelope>();
+
+	/** Time at which each chunk of m_ready was fetched */
+	private final LinkedList<Long> m_readyTimes = new LinkedList<Long>();
+
+	/** If <code>true</code>, a prefetch thread is reading the cursor or is about to */
+	private boolean m_fetching;
+
+	/** If <code>true</code>, more data was wanted while a fetch was running */
+	private boolean m_fetchWanted;
+
+	/** If <code>true</code>, the last chunk has been fetched */
+	private boolean m_fetchedEnd;
+
+	/** Error from the last fetch, to be reported by the streaming sender */
+	private RGMAPermanentException m_fetchException;
+
+	private long m_fetchCount;
+
+	private long m_lastFetchMillis;
+
+	private long m_maxFetchMillis;
+
+	private long m_totalFetchMillis;
+
+	/** Number of chunks taken by the streaming sender */
+	private long m_takenCount;
+
+	/** Time that the last chunk taken waited after being fetched */
+	private long m_lastQueueMillis;
+
+	private long m_maxQueueMillis;
+
+	private long m_totalQueueMillis;
+
+	public RunningQuery(StreamingProperties streamingProps, TupleCursor cursor, TupleStore tuplestore, int chunkSize, int maxChunkBytes,
+			ResourceEndpoint producer, ResourceEndpoint consumer, String query, boolean iscontinuous, StreamingSender sender, String firstVdbTableName) {
 		m_streamingProps = streamingProps;
 		m_cursor = cursor;
-		m_chunkSize = chunkSize;
+		m_chunkSize = Math.max(1, chunkSize);
+		m_maxChunkSize = m_chunkSize;
+		m_maxChunkBytes = maxChunkBytes;
 		m_producer = producer;
 		m_consumer = consumer;
 		m_query = query;
@@ -90,14 +157,39 @@ public class RunningQuery {
 		return m_tupleStore;
 	}
 
-	public synchronized void abort() {
+	public boolean isContinuous() {
+		return m_iscontinuous;
+	}
+
+	public void abort() {
 		m_active = false;
+		synchronized (m_readyLock) {
+			m_ready.clear();
+			m_readyTimes.clear();
+		}
+		if (m_cursor instanceof ContinuousTupleCursor) {
+			/* Stop tuples being pushed to the cursor as it may never be popped again */
+			((ContinuousTupleCursor) m_cursor).close();
+		}
 	}
 
-	public synchronized boolean isActive() {
+	public boolean isActive() {
 		return m_active;
 	}
 
+	/**
+	 * Returns <code>true</code> while there may be results to take with {@link #pollReady()}. This remains true after
+	 * the last chunk has been fetched until it has been taken, but not after the query is aborted.
+	 */
+	public boolean hasResultsToSend() {
+		if (m_active) {
+			return true;
+		}
+		synchronized (m_readyLock) {
+			return m_ready.size() > 0;
+		}
+	}
+
 	/** Get a chunk of results for the query */
 	public synchronized TupleSetEnvelope pop() throws RGMAPermanentException {
 		TupleSet ts;
@@ -128,6 +220,220 @@ public class RunningQuery {
 		return new TupleSetEnvelope(ts, m_producer, m_consumer, m_query);
 	}
 
+	/**
+	 * Reserve a fetch of the next chunk of results by a prefetch thread. If a fetch is already running, a note is made
+	 * that more data is wanted so that the streaming sender is told when it finishes.
+	 * 
+	 * @param maxReady
+	 *            Maximum number of chunks to hold waiting to be sent
+	 * @return <code>true</code> if the caller must arrange for {@link #prefetch()} to be called
+	 */
+	public boolean startPrefetch(int maxReady) {
+		synchronized (m_readyLock) {
+			if (m_fetching) {
+				m_fetchWanted = true;
+				return false;
+			}
+			if (m_fetchedEnd || m_fetchException != null || m_ready.size() >= maxReady || !m_active) {
+				return false;
+			}
+			m_fetching = true;
+			return true;
+		}
+	}
+
+	/**
+	 * Fetch the next chunk of results from the cursor and hold it until it is taken by {@link #pollReady()}. This is
+	 * called by a prefetch thread after {@link #startPrefetch(int)} has returned <code>true</code>. The streaming sender
+	 * is told if there is something new to send.
+	 */
+	public void prefetch() {
+		TupleSetEnvelope results = null;
+		RGMAPermanentException exception = null;
+		long start = System.currentTimeMillis();
+		try {
+			results = pop();
+		} catch (RGMAPermanentException e) {
+			exception = e;
+		}
+		long millis = System.currentTimeMillis() - start;
+		boolean notify;
+		synchronized (m_readyLock) {
+			m_fetching = false;
+			m_fetchCount++;
+			m_lastFetchMillis = millis;
+			m_totalFetchMillis += millis;
+			if (millis > m_maxFetchMillis) {
+				m_maxFetchMillis = millis;
+			}
+			notify = m_fetchWanted;
+			m_fetchWanted = false;
+			if (exception != null) {
+				m_fetchException = exception;
+				notify = true;
+			} else {
+				TupleSet ts = results.getTupleSet();
+				if (ts.size() != 0 || ts.isEndOfResults()) {
+					m_ready.add(results);
+					m_readyTimes.add(System.currentTimeMillis());
+					m_fetchedEnd = ts.isEndOfResults();
+					notify = true;
+				}
+			}
+		}
+		if (notify) {
+			m_streamingSender.dataAddedToTupleStore(m_tupleStore);
+		}
+	}
+
+	/**
+	 * Take the next prefetched chunk of results without waiting.
+	 * 
+	 * @return The oldest chunk not yet taken or <code>null</code> if none is ready
+	 * @throws RGMAPermanentException
+	 *             if the last fetch failed
+	 */
+	public TupleSetEnvelope pollReady() throws RGMAPermanentException {
+		synchronized (m_readyLock) {
+			if (m_ready.size() > 0) {
+				long millis = System.currentTimeMillis() - m_readyTimes.removeFirst();
+				m_takenCount++;
+				m_lastQueueMillis = millis;
+				m_totalQueueMillis += millis;
+				if (millis > m_maxQueueMillis) {
+					m_maxQueueMillis = millis;
+				}
+				return m_ready.removeFirst();
+			}
+			if (m_fetchException != null) {
+				throw m_fetchException;
+			}
+			return null;
+		}
+	}
+
+	/** Number of chunks fetched and waiting to be sent */
+	public int getReadyCount() {
+		synchronized (m_readyLock) {
+			return m_ready.size();
+		}
+	}
+
+	public boolean isFetching() {
+		synchronized (m_readyLock) {
+			return m_fetching;
+		}
+	}
+
+	public long getFetchCount() {
+		synchronized (m_readyLock) {
+			return m_fetchCount;
+		}
+	}
+
+	/** Time taken by the most recent fetch from the cursor */
+	public long getLastFetchMillis() {
+		synchronized (m_readyLock) {
+			return m_lastFetchMillis;
+		}
+	}
+
+	public long getMaxFetchMillis() {
+		synchronized (m_readyLock) {
+			return m_maxFetchMillis;
+		}
+	}
+
+	public long getMeanFetchMillis() {
+		synchronized (m_readyLock) {
+			return m_fetchCount == 0 ? 0 : m_totalFetchMillis / m_fetchCount;
+		}
+	}
+
+	/** Time that the most recently taken chunk waited between being fetched and being taken */
+	public long getLastQueueMillis() {
+		synchronized (m_readyLock) {
+			return m_lastQueueMillis;
+		}
+	}
+
+	public long getMaxQueueMillis() {
+		synchronized (m_readyLock) {
+			return m_maxQueueMillis;
+		}
+	}
+
+	public long getMeanQueueMillis() {
+		synchronized (m_readyLock) {
+			return m_takenCount == 0 ? 0 : m_totalQueueMillis / m_takenCount;
+		}
+	}
+
+	/**
+	 * Adjust the chunk size after a chunk of results has been encoded for sending. The chunk size starts at the
+	 * configured maximum number of tuples per chunk with which the query was created and never exceeds it. It is halved
+	 * when the connection is backed up or the time to encode a tuple is more than twice its recent mean, so that one
+	 * query does not hold up the others on a slow connection, and is doubled again when a full chunk was sent without
+	 * difficulty. Chunks which were not full, as is usual for a continuous query, leave the size alone. The size is
+	 * always kept small enough that a chunk of tuples of the recent mean size fits in the byte target.
+	 * 
+	 * @param tupleCount
+	 *            Number of tuples in the chunk
+	 * @param bytes
+	 *            Size of the encoded chunk
+	 * @param encodeNanos
+	 *            Time taken to encode the chunk
+	 * @param backedUp
+	 *            <code>true</code> if data from earlier chunks has been waiting to be written to the socket for some time.
+	 *            The caller passes this at most once for each time it writes.
+	 */
+	public void chunkEncoded(int tupleCount, int bytes, long encodeNanos, boolean backedUp) {
+		if (tupleCount == 0) {
+			return;
+		}
+		synchronized (m_readyLock) {
+			double bytesPerTuple = (double) bytes / tupleCount;
+			double nanosPerTuple = (double) encodeNanos / tupleCount;
+			boolean slow = m_nanosPerTuple > 0 && nanosPerTuple > 2 * m_nanosPerTuple;
+			if (m_bytesPerTuple == 0) {
+				m_bytesPerTuple = bytesPerTuple;
+				m_nanosPerTuple = nanosPerTuple;
+			} else {
+				m_bytesPerTuple = (3 * m_bytesPerTuple + bytesPerTuple) / 4;
+				m_nanosPerTuple = (3 * m_nanosPerTuple + nanosPerTuple) / 4;
+			}
+			int maxChunkSize = (int) Math.max(1, Math.min(m_maxChunkSize, m_maxChunkBytes / m_bytesPerTuple));
+			int chunkSize = m_chunkSize;
+			if (backedUp || slow) {
+				if (chunkSize > 1) {
+					chunkSize = chunkSize / 2;
+					m_chunkShrinkCount++;
+				}
+			} else if (tupleCount >= chunkSize && chunkSize < maxChunkSize) {
+				chunkSize = chunkSize * 2;
+				m_chunkGrowCount++;
+			}
+			m_chunkSize = Math.min(chunkSize, maxChunkSize);
+		}
+	}
+
+	/** Number of tuples currently asked for in each chunk */
+	public int getChunkSize() {
+		return m_chunkSize;
+	}
+
+	public long getChunkGrowCount() {
+		synchronized (m_readyLock) {
+			return m_chunkGrowCount;
+		}
+	}
+
+	public long getChunkShrinkCount() {
+		synchronized (m_readyLock) {
+			return m_chunkShrinkCount;
+		}
+	}
+
 	/**
 	 * This returns true while there is more data to extract from the continuous cursor and pass on to the
 	 * StreamingSender. At its first call it will return false, but will set the m_closingDown flag. Subsequently when
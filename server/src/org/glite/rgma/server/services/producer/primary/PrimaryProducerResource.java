@@ -147,7 +147,10 @@ public class PrimaryProducerResource extends ProducerResource {
 		long now = System.currentTimeMillis();
 		String date = new Date(now).toString();
 		String time = new Time(now).toString();
-		insert(context, insertString, 0, 1, lrpSec, now, date, time);
+		List<InsertStatement> inserts = new ArrayList<InsertStatement>(1);
+		List<PrimaryProducerTable> tables = new ArrayList<PrimaryProducerTable>(1);
+		inserts.add(prepareInsert(context, insertString, 0, lrpSec, now, date, time, tables));
+		storeInserts(context, inserts, tables);
 	}
 
 	private static Tuple buildTupleFromInsert(InsertStatement insertStatement) throws RGMAPermanentException {
@@ -178,8 +181,16 @@ public class PrimaryProducerResource extends ProducerResource {
 		return tuple;
 	}
 
-	private void insert(UserContext context, String insertString, int n, int ntotal, int lrpSec, long now, String date, String time)
-			throws RGMAPermanentException, RGMAPermanentException, RGMAPermanentException, RGMATemporaryException {
+	/**
+	 * Parses and checks a tuple and completes its insert statement ready for the tuple store.
+	 * 
+	 * @param n
+	 *            Number of tuples of the list before this one, which are reported as successful if it is rejected
+	 * @param tables
+	 *            List to which the table of the tuple is added
+	 */
+	private InsertStatement prepareInsert(UserContext context, String insertString, int n, int lrpSec, long now, String date, String time,
+			List<PrimaryProducerTable> tables) throws RGMAPermanentException {
 		InsertStatement insertStmt = null;
 		PrimaryProducerTable table = null;
 		try {
@@ -231,20 +242,12 @@ public class PrimaryProducerResource extends ProducerResource {
 				throw new RGMAPermanentException("Unknown attribute noted when checking authz rules");
 			}
 
-			m_tupleStore.insert(context, insertStmt);
-			synchronized (table) {
-				table.m_lastInsertTime = System.currentTimeMillis();
-				table.m_totalInsertedTuples++;
-			}
+			tables.add(table);
+			return insertStmt;
 		} catch (RGMAPermanentException e) {
 			e.setNumSuccessfulOps(n);
 			logReject(table, e);
 			throw e;
-		} catch (BufferFullException e) {
-			RGMATemporaryException re = new RGMATemporaryException(e.getMessage());
-			re.setNumSuccessfulOps(n);
-			logReject(table, re);
-			throw re;
 		} catch (ParseException e) {
 			RGMAPermanentException re = new RGMAPermanentException("Parsing error: " + e.getMessage());
 			re.setNumSuccessfulOps(n);
@@ -258,6 +261,40 @@ public class PrimaryProducerResource extends ProducerResource {
 		}
 	}
 
+	/**
+	 * Inserts prepared tuples into the tuple store as one batch.
+	 */
+	private void storeInserts(UserContext context, List<InsertStatement> inserts, List<PrimaryProducerTable> tables) throws RGMAPermanentException,
+			RGMATemporaryException {
+		try {
+			m_tupleStore.insert(context, inserts);
+			recordInserts(tables, inserts.size());
+		} catch (RGMAPermanentException e) {
+			int n = e.getNumSuccessfulOps();
+			recordInserts(tables, n);
+			logReject(tables.get(n), e);
+			throw e;
+		} catch (BufferFullException e) {
+			int n = e.getNumSuccessfulOps();
+			recordInserts(tables, n);
+			RGMATemporaryException re = new RGMATemporaryException(e.getMessage());
+			re.setNumSuccessfulOps(n);
+			logReject(tables.get(n), re);
+			throw re;
+		}
+	}
+
+	private void recordInserts(List<PrimaryProducerTable> tables, int count) {
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < count; i++) {
+			PrimaryProducerTable table = tables.get(i);
+			synchronized (table) {
+				table.m_lastInsertTime = now;
+				table.m_totalInsertedTuples++;
+			}
+		}
+	}
+
 	private void badType(String col, String value, Type actualValueType, String type) throws RGMAPermanentException {
 		if (actualValueType == Type.STRING) {
 			value = "'" + value + "'";
@@ -405,10 +442,23 @@ public class PrimaryProducerResource extends ProducerResource {
 		long now = System.currentTimeMillis();
 		String date = new java.sql.Date(now).toString();
 		String time = new java.sql.Time(now).toString();
-		int count = 0;
+		List<InsertStatement> inserts = new ArrayList<InsertStatement>(insertStrings.size());
+		List<PrimaryProducerTable> tables = new ArrayList<PrimaryProducerTable>(insertStrings.size());
+		RGMAPermanentException rejected = null;
 		for (String insertString : insertStrings) {
-			insert(userContext, insertString, count, insertStrings.size(), lrpSec, now, date, time);
-			count++;
+			try {
+				inserts.add(prepareInsert(userContext, insertString, inserts.size(), lrpSec, now, date, time, tables));
+			} catch (RGMAPermanentException e) {
+				/* Insert the tuples before the one rejected */
+				rejected = e;
+				break;
+			}
+		}
+		if (inserts.size() > 0) {
+			storeInserts(userContext, inserts, tables);
+		}
+		if (rejected != null) {
+			throw rejected;
 		}
 	}
 
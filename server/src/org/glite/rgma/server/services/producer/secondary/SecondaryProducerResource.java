@@ -33,6 +33,7 @@ import org.glite.rgma.server.services.sql.SelectStatement;
 import org.glite.rgma.server.services.sql.TableName;
 import org.glite.rgma.server.services.sql.DataType.Type;
 import org.glite.rgma.server.services.sql.parser.ParseException;
+import org.glite.rgma.server.services.streaming.StreamingConstants;
 import org.glite.rgma.server.services.streaming.StreamingReceiver;
 import org.glite.rgma.server.services.tasks.Task;
 import org.glite.rgma.server.services.tasks.TaskManager;
@@ -61,7 +62,7 @@ public class SecondaryProducerResource extends ProducerResource implements Consu
 	static StreamingProperties s_streamingProps;
 
 	/** Current best streaming protocol version. */
-	private static final int CURRENT_STREAMING_PROTOCOL_VERSION = 1;
+	private static final int CURRENT_STREAMING_PROTOCOL_VERSION = StreamingConstants.COMPRESSED_STREAMING_PROTOCOL;
 
 	/** Server configuration parameters. */
 	private static ServerConfig s_config;
@@ -190,6 +191,14 @@ public class SecondaryProducerResource extends ProducerResource implements Consu
 		}
 	}
 
+	/**
+	 * Returns -1 as tuples pushed are inserted directly into the TupleStore, so there is no limit on the credit granted
+	 * to the producers streaming to this secondary producer.
+	 */
+	public int getFreeCapacity() {
+		return -1;
+	}
+
 	/**
 	 * Add tuples to the TupleStore.
 	 */
@@ -205,6 +214,8 @@ public class SecondaryProducerResource extends ProducerResource implements Consu
 			}
 			String insertStringPrefix = spt.m_insertStringPrefix;
 			List<String[]> data = rs.getData();
+			List<InsertStatement> tuples = new ArrayList<InsertStatement>(data.size());
+			boolean closeDown = false;
 			for (String[] row : data) {
 				try {
 					StringBuffer sb = new StringBuffer(insertStringPrefix);
@@ -243,36 +254,50 @@ public class SecondaryProducerResource extends ProducerResource implements Consu
 						} catch (RGMATemporaryException e) {
 							logReject(spt, e);
 							m_logger.error("Memory is low for secondary producer " + m_endpoint + ". Closing it down");
-							try {
-								close();
-							} catch (RGMAPermanentException e1) {
-								m_logger.error("Failed to close secondary producer " + m_endpoint + "!");
-							}
-							return;
+							closeDown = true;
+							break;
 						}
 					}
-					InsertStatement tuple = InsertStatement.parse(sb.toString());
-					m_tupleStore.insert(m_context, tuple);
-					synchronized (spt) {
-						spt.m_lastInsertTime = System.currentTimeMillis();
-						spt.m_totalInsertedTuples++;
-					}
+					tuples.add(InsertStatement.parse(sb.toString()));
 					/* Can only log exceptions as nobody is listening */
 				} catch (RGMAPermanentException e) {
 					logReject(spt, e);
 					m_logger.error("Something went wrong ", e);
+				} catch (ParseException e) {
+					logReject(spt, e);
+					m_logger.error(e);
+				}
+			}
+			/* Store the tuples as one batch, skipping any rejected by the tuple store */
+			while (tuples.size() > 0) {
+				int inserted = tuples.size();
+				try {
+					m_tupleStore.insert(m_context, tuples);
+					tuples.clear();
+				} catch (RGMAPermanentException e) {
+					inserted = e.getNumSuccessfulOps();
+					logReject(spt, e);
+					m_logger.error("Something went wrong ", e);
+					tuples = tuples.subList(inserted + 1, tuples.size());
 				} catch (BufferFullException e) {
+					inserted = e.getNumSuccessfulOps();
 					logReject(spt, e);
 					m_logger.error("Buffer is full for secondary producer " + m_endpoint + ". Closing it down");
-					try {
-						close();
-					} catch (RGMAPermanentException e1) {
-						m_logger.error("Failed to close secondary producer " + m_endpoint + "!");
+					closeDown = true;
+					tuples.clear();
+				}
+				if (inserted > 0) {
+					synchronized (spt) {
+						spt.m_lastInsertTime = System.currentTimeMillis();
+						spt.m_totalInsertedTuples += inserted;
 					}
-					return;
-				} catch (ParseException e) {
-					logReject(spt, e);
-					m_logger.error(e);
+				}
+			}
+			if (closeDown) {
+				try {
+					close();
+				} catch (RGMAPermanentException e1) {
+					m_logger.error("Failed to close secondary producer " + m_endpoint + "!");
 				}
 			}
 			/* Can only log exceptions as nobody is listening */
@@ -0,0 +1,442 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2004.
+ * See http://eu-egee.org/partners/ for details on the copyright holders.
+ * For license conditions see the license file or http://eu-egee.org/license.html
+ */
+
+package org.glite.rgma.server.services.producer.store;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.glite.rgma.server.services.sql.DataType.Type;
+import org.glite.rgma.server.system.RGMAPermanentException;
+
+/**
+ * Finds the continuous cursors on a history table whose queries an inserted tuple may satisfy, without trying every
+ * query. Each query is filed under one conjunct of its WHERE clause: a query requiring a column to equal a constant is
+ * put in a hash bucket for that column and value, a query requiring a range of values of a column is put in an interval
+ * tree for that column and any other query is put in a residual list which is tried for every tuple. The time to find
+ * the cursors for a tuple depends on the number found rather than the number of cursors. Each cursor must still
+ * evaluate its whole query. This class is thread safe.
+ */
+class ContinuousQueryIndex {
+
+	/** Where a cursor is filed */
+	private static class Entry {
+
+		private final ContinuousTupleCursor m_cursor;
+
+		/** Column of the bucket or interval tree, or -1 for the residual list */
+		private final int m_column;
+
+		/** Key of the bucket or null for an interval */
+		private final Object m_key;
+
+		/** Lower end of the interval or null if there is none */
+		private final MemoryQuery.Bound m_lower;
+
+		/** Upper end of the interval or null if there is none */
+		private final MemoryQuery.Bound m_upper;
+
+		private Entry(ContinuousTupleCursor cursor, int column, Object key, MemoryQuery.Bound lower, MemoryQuery.Bound upper) {
+			m_cursor = cursor;
+			m_column = column;
+			m_key = key;
+			m_lower = lower;
+			m_upper = upper;
+		}
+
+		private boolean admitsLower(Object value) {
+			if (m_lower == null) {
+				return true;
+			}
+			int c = MemoryQuery.compareValues(value, m_lower.getValue());
+			return c > 0 || (c == 0 && m_lower.isInclusive());
+		}
+
+		private boolean admitsUpper(Object value) {
+			if (m_upper == null) {
+				return true;
+			}
+			int c = MemoryQuery.compareValues(value, m_upper.getValue());
+			return c < 0 || (c == 0 && m_upper.isInclusive());
+		}
+	}
+
+	/** Orders intervals by lower end, with an inclusive end before an exclusive one at the same value */
+	private static final Comparator<Entry> s_byLower = new Comparator<Entry>() {
+		public int compare(Entry e1, Entry e2) {
+			return compareEnds(e1.m_lower, e2.m_lower, -1);
+		}
+	};
+
+	/** Orders intervals by upper end, highest first, with an inclusive end before an exclusive one at the same value */
+	private static final Comparator<Entry> s_byUpper = new Comparator<Entry>() {
+		public int compare(Entry e1, Entry e2) {
+			return compareEnds(e2.m_upper, e1.m_upper, 1);
+		}
+	};
+
+	/** Orders the ends of intervals for sorting by the value at which they are found */
+	private static final Comparator<Object> s_values = new Comparator<Object>() {
+		public int compare(Object v1, Object v2) {
+			return MemoryQuery.compareValues(v1, v2);
+		}
+	};
+
+	/**
+	 * A centred interval tree. Each node holds the intervals containing its centre, sorted by each end, with those
+	 * entirely below the centre to the left and those entirely above to the right. It is rebuilt when next searched
+	 * after a change, as cursors come and go far less often than tuples are inserted.
+	 */
+	private static class IntervalTree {
+
+		private final List<Entry> m_entries = new ArrayList<Entry>();
+
+		private IntervalNode m_root;
+
+		private boolean m_built;
+
+		private void add(Entry entry) {
+			m_entries.add(entry);
+			m_built = false;
+		}
+
+		private void remove(Entry entry) {
+			m_entries.remove(entry);
+			m_built = false;
+		}
+
+		private boolean isEmpty() {
+			return m_entries.size() == 0;
+		}
+
+		/**
+		 * Adds the cursors of the intervals containing a value to the results.
+		 */
+		private void find(Object value, Set<ContinuousTupleCursor> results) {
+			if (!m_built) {
+				m_root = build(m_entries);
+				m_built = true;
+			}
+			IntervalNode node = m_root;
+			while (node != null) {
+				if (node.m_centre == null) {
+					for (Entry entry : node.m_byLower) {
+						if (entry.admitsLower(value) && entry.admitsUpper(value)) {
+							results.add(entry.m_cursor);
+						}
+					}
+					return;
+				}
+				int c = MemoryQuery.compareValues(value, node.m_centre);
+				if (c == 0) {
+					for (Entry entry : node.m_byLower) {
+						results.add(entry.m_cursor);
+					}
+					return;
+				} else if (c < 0) {
+					for (Entry entry : node.m_byLower) {
+						if (!entry.admitsLower(value)) {
+							break;
+						}
+						results.add(entry.m_cursor);
+					}
+					node = node.m_left;
+				} else {
+					for (Entry entry : node.m_byUpper) {
+						if (!entry.admitsUpper(value)) {
+							break;
+						}
+						results.add(entry.m_cursor);
+					}
+					node = node.m_right;
+				}
+			}
+		}
+
+		private static IntervalNode build(List<Entry> entries) {
+			if (entries.size() == 0) {
+				return null;
+			}
+			List<Object> ends = new ArrayList<Object>();
+			for (Entry entry : entries) {
+				if (entry.m_lower != null) {
+					ends.add(entry.m_lower.getValue());
+				}
+				if (entry.m_upper != null) {
+					ends.add(entry.m_upper.getValue());
+				}
+			}
+			Collections.sort(ends, s_values);
+			Object centre = ends.get(ends.size() / 2);
+			List<Entry> here = new ArrayList<Entry>();
+			List<Entry> left = new ArrayList<Entry>();
+			List<Entry> right = new ArrayList<Entry>();
+			for (Entry entry : entries) {
+				if (!entry.admitsUpper(centre)) {
+					left.add(entry);
+				} else if (!entry.admitsLower(centre)) {
+					right.add(entry);
+				} else {
+					here.add(entry);
+				}
+			}
+			IntervalNode node = new IntervalNode();
+			if (here.size() == 0 && (left.size() == 0 || right.size() == 0)) {
+				/* All the intervals exclude the centre at the same end, so the tree cannot be split here */
+				node.m_byLower = new ArrayList<Entry>(entries);
+				return node;
+			}
+			node.m_centre = centre;
+			node.m_byLower = here;
+			Collections.sort(node.m_byLower, s_byLower);
+			node.m_byUpper = new ArrayList<Entry>(here);
+			Collections.sort(node.m_byUpper, s_byUpper);
+			node.m_left = build(left);
+			node.m_right = build(right);
+			return node;
+		}
+	}
+
+	private static class IntervalNode {
+
+		/** Value contained by each interval at this node, or null for a leaf of intervals to be tried one by one */
+		private Object m_centre;
+
+		private List<Entry> m_byLower;
+
+		private List<Entry> m_byUpper;
+
+		private IntervalNode m_left;
+
+		private IntervalNode m_right;
+	}
+
+	/** Empty table with the columns of the history table */
+	private final MemoryTable m_table;
+
+	/** Where each cursor is filed */
+	private final Map<ContinuousTupleCursor, Entry> m_entries = new HashMap<ContinuousTupleCursor, Entry>();
+
+	/** Cursors by value for each column, or null for a column with no buckets */
+	private final List<Map<Object, List<ContinuousTupleCursor>>> m_buckets;
+
+	/** Interval tree for each column, or null for a column with no intervals */
+	private final IntervalTree[] m_trees;
+
+	/** Cursors which are tried for every tuple */
+	private final List<ContinuousTupleCursor> m_residual = new ArrayList<ContinuousTupleCursor>();
+
+	ContinuousQueryIndex(MemoryTable table) {
+		m_table = table;
+		m_buckets = new ArrayList<Map<Object, List<ContinuousTupleCursor>>>(table.getColumnCount());
+		for (int i = 0; i < table.getColumnCount(); i++) {
+			m_buckets.add(null);
+		}
+		m_trees = new IntervalTree[table.getColumnCount()];
+	}
+
+	/**
+	 * Returns the empty table with the columns of the history table, used to compile the queries and to make rows of
+	 * inserted tuples.
+	 */
+	MemoryTable getTable() {
+		return m_table;
+	}
+
+	/**
+	 * Files a cursor by the query pushed tuples must satisfy. An equality is preferred to a range, and a range of a
+	 * column of the table to one of RgmaTimestamp as every continuous query has a lower bound on RgmaTimestamp.
+	 */
+	synchronized void add(ContinuousTupleCursor cursor) {
+		MemoryQuery query = cursor.getPushQuery();
+		Entry entry = null;
+		for (int i = 0; i < m_table.getColumnCount() && entry == null; i++) {
+			Object key = key(m_table.getType(i), query.getEquality(i));
+			if (key != null) {
+				entry = new Entry(cursor, i, key, null, null);
+				Map<Object, List<ContinuousTupleCursor>> buckets = m_buckets.get(i);
+				if (buckets == null) {
+					buckets = new HashMap<Object, List<ContinuousTupleCursor>>();
+					m_buckets.set(i, buckets);
+				}
+				List<ContinuousTupleCursor> bucket = buckets.get(key);
+				if (bucket == null) {
+					bucket = new ArrayList<ContinuousTupleCursor>(1);
+					buckets.put(key, bucket);
+				}
+				bucket.add(cursor);
+			}
+		}
+		int rangeColumn = -1;
+		for (int i = 0; i < m_table.getColumnCount() && entry == null; i++) {
+			if (isRange(query, i)) {
+				rangeColumn = i;
+				if (!m_table.getColumnName(i).equalsIgnoreCase(ReservedColumns.RGMA_TIMESTAMP_COLUMN_NAME)) {
+					break;
+				}
+			}
+		}
+		if (entry == null && rangeColumn >= 0) {
+			entry = new Entry(cursor, rangeColumn, null, usable(rangeColumn, query.getLowerBound(rangeColumn)), usable(rangeColumn, query
+					.getUpperBound(rangeColumn)));
+			if (m_trees[rangeColumn] == null) {
+				m_trees[rangeColumn] = new IntervalTree();
+			}
+			m_trees[rangeColumn].add(entry);
+		}
+		if (entry == null) {
+			entry = new Entry(cursor, -1, null, null, null);
+			m_residual.add(cursor);
+		}
+		m_entries.put(cursor, entry);
+	}
+
+	synchronized void remove(ContinuousTupleCursor cursor) {
+		Entry entry = m_entries.remove(cursor);
+		if (entry == null) {
+			return;
+		}
+		if (entry.m_column < 0) {
+			m_residual.remove(cursor);
+		} else if (entry.m_key != null) {
+			Map<Object, List<ContinuousTupleCursor>> buckets = m_buckets.get(entry.m_column);
+			List<ContinuousTupleCursor> bucket = buckets.get(entry.m_key);
+			bucket.remove(cursor);
+			if (bucket.size() == 0) {
+				buckets.remove(entry.m_key);
+				if (buckets.size() == 0) {
+					m_buckets.set(entry.m_column, null);
+				}
+			}
+		} else {
+			m_trees[entry.m_column].remove(entry);
+			if (m_trees[entry.m_column].isEmpty()) {
+				m_trees[entry.m_column] = null;
+			}
+		}
+	}
+
+	synchronized boolean isEmpty() {
+		return m_entries.size() == 0;
+	}
+
+	/**
+	 * Returns all the cursors.
+	 */
+	synchronized List<ContinuousTupleCursor> getCursors() {
+		return new ArrayList<ContinuousTupleCursor>(m_entries.keySet());
+	}
+
+	/**
+	 * Returns the cursors whose queries a row of the history table may satisfy.
+	 */
+	synchronized List<ContinuousTupleCursor> find(Object[] row) {
+		Set<ContinuousTupleCursor> results = new LinkedHashSet<ContinuousTupleCursor>(m_residual);
+		for (int i = 0; i < row.length; i++) {
+			if (row[i] == null) {
+				/* NULL satisfies no comparison */
+				continue;
+			}
+			Map<Object, List<ContinuousTupleCursor>> buckets = m_buckets.get(i);
+			if (buckets != null) {
+				List<ContinuousTupleCursor> bucket = buckets.get(normalize(row[i]));
+				if (bucket != null) {
+					results.addAll(bucket);
+				}
+			}
+			if (m_trees[i] != null) {
+				m_trees[i].find(row[i], results);
+			}
+		}
+		return new ArrayList<ContinuousTupleCursor>(results);
+	}
+
+	/**
+	 * Returns the key of the bucket for a value which a query requires a column to equal, or <code>null</code> if
+	 * the value cannot be used as a key because it is not held exactly by a column of that type.
+	 */
+	private static Object key(Type type, Object value) {
+		if (value == null) {
+			return null;
+		}
+		try {
+			Object converted = MemoryTable.convert(type, value);
+			if (MemoryQuery.compareValues(converted, value) != 0) {
+				return null;
+			}
+			return normalize(converted);
+		} catch (RGMAPermanentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns a value with minus zero replaced by zero, which it equals in SQL but not in Java.
+	 */
+	private static Object normalize(Object value) {
+		if (value instanceof Double && ((Double) value).doubleValue() == 0) {
+			return 0.0;
+		}
+		return value;
+	}
+
+	/**
+	 * Returns <code>true</code> if the query sets a bound on a column which can be compared with its values.
+	 */
+	private boolean isRange(MemoryQuery query, int column) {
+		return usable(column, query.getLowerBound(column)) != null || usable(column, query.getUpperBound(column)) != null;
+	}
+
+	/**
+	 * Returns a bound if its value is of the same kind as the values of the column, or <code>null</code> otherwise, so
+	 * that all the ends of the intervals of a column are in one order.
+	 */
+	private MemoryQuery.Bound usable(int column, MemoryQuery.Bound bound) {
+		if (bound == null) {
+			return null;
+		}
+		Object value = bound.getValue();
+		switch (m_table.getType(column)) {
+		case INTEGER:
+		case BIGINT:
+		case REAL:
+		case DOUBLE_PRECISION:
+			return value instanceof Number ? bound : null;
+		case DATE:
+		case TIME:
+		case TIMESTAMP:
+			return value instanceof java.util.Date ? bound : null;
+		default:
+			return value instanceof String ? bound : null;
+		}
+	}
+
+	/**
+	 * Compares two lower or two upper ends of intervals.
+	 *
+	 * @param direction
+	 *            -1 for lower ends, which are missing or inclusive below other ends at the same value, or 1 for upper
+	 *            ends, which are then above
+	 */
+	private static int compareEnds(MemoryQuery.Bound b1, MemoryQuery.Bound b2, int direction) {
+		if (b1 == null) {
+			return b2 == null ? 0 : direction;
+		} else if (b2 == null) {
+			return -direction;
+		}
+		int c = MemoryQuery.compareValues(b1.getValue(), b2.getValue());
+		if (c != 0) {
+			return c;
+		}
+		return b1.isInclusive() == b2.isInclusive() ? 0 : (b1.isInclusive() ? direction : -direction);
+	}
+}
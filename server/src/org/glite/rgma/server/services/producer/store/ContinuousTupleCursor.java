@@ -8,6 +8,8 @@ package org.glite.rgma.server.services.producer.store;
 
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 
 import org.apache.log4j.Logger;
@@ -22,7 +24,10 @@ import org.glite.rgma.server.system.TupleSet;
 import org.glite.rgma.server.system.TupleSetWithLastTUID;
 
 /**
- * Keeps track of tuples to be streamed for a continuous query.
+ * Keeps track of tuples to be streamed for a continuous query. Where the query can be evaluated in Java, the tuple store
+ * pushes each tuple to the cursor as it is inserted and the cursor keeps those satisfying the query until they are
+ * popped. The history table is only queried to catch up: at the start, to find the tuples already in the store, and
+ * after too many tuples have been pushed without being popped.
  */
 public class ContinuousTupleCursor implements TupleCursor {
 	/** Reference to logging utility. */
@@ -36,13 +41,40 @@ public class ContinuousTupleCursor implements TupleCursor {
 	/** Reference to database containing tuples. */
 	private TupleStoreDatabase m_databaseInstance;
 
-	/** SQL SELECT statement. */
+	/**
+	 * SQL SELECT statement, selecting RgmaTUID, ordered by it and restricted to tuples from the start time. The same
+	 * statement is passed to the database for each pop so that the database can keep its prepared form.
+	 */
 	private SelectStatement m_query;
 
 	private String m_vdbTableName;
 
-	/** Expression to represent time being at least that from which tuples should be returned */
-	private ExpressionOrConstant m_timeStampComparison;
+	/** Query evaluated on each tuple pushed by the tuple store or <code>null</code> if tuples are not pushed */
+	private final MemoryQuery m_pushQuery;
+
+	/** Maximum number of pushed tuples to hold */
+	private final int m_maxPushed;
+
+	/** Tuples satisfying the query, in RgmaTUID order, pushed by the tuple store and not yet popped */
+	private final LinkedList<PushedTuple> m_pushed = new LinkedList<PushedTuple>();
+
+	/**
+	 * If <code>true</code>, m_pushed holds every tuple satisfying the query from m_nextTupleID onwards so the history
+	 * table need not be queried.
+	 */
+	private boolean m_pushing;
+
+	/** If <code>true</code>, a pushed tuple has been discarded since the last query of the history table started */
+	private boolean m_lost;
+
+	/**
+	 * Largest RgmaTUID returned by a query of the history table. A tuple is appended to the history table before it is
+	 * pushed, so a query may return it first; it is then dropped when pushed.
+	 */
+	private int m_queriedTUID;
+
+	/** Index of the cursors to which the tuple store pushes tuples */
+	private final ContinuousQueryIndex m_index;
 
 	private static List<OrderBy> s_orderByTUID = new ArrayList<OrderBy>(0);
 
@@ -59,11 +91,15 @@ public class ContinuousTupleCursor implements TupleCursor {
 	 *            Start time in millis (see System#currentTimeMillis())
 	 * @param databaseInstance
 	 *            Reference to database containing tuples.
+	 * @param index
+	 *            Index of the cursors to which tuples are pushed, giving the columns of the history table
+	 * @param maxPushed
+	 *            Maximum number of pushed tuples to hold - zero if tuples are not to be pushed
 	 * @throws RGMAPermanentException
 	 * @throws DatabaseException
 	 */
-	public ContinuousTupleCursor(SelectStatement query, long startTimeMS, TupleStoreDatabase databaseInstance, String vdbTableName, int lastTUID)
-			throws RGMAPermanentException {
+	public ContinuousTupleCursor(SelectStatement query, long startTimeMS, TupleStoreDatabase databaseInstance, String vdbTableName, int lastTUID,
+			ContinuousQueryIndex index, int maxPushed) throws RGMAPermanentException {
 		m_databaseInstance = databaseInstance;
 		m_query = new SelectStatement(query);
 
@@ -78,10 +114,24 @@ public class ContinuousTupleCursor implements TupleCursor {
 		if (lastTUID + 1 > m_nextTupleID) {
 			m_nextTupleID = lastTUID + 1;
 		}
+		/* Only return tuples with a timestamp at least the start time */
 		String startTimeStampString = new Timestamp(startTimeMS).toString();
-		m_timeStampComparison = new Expression(">=", ReservedColumns.RGMA_TIMESTAMP_COLUMN_CONSTANT, new Constant(startTimeStampString, Constant.Type.STRING));
+		ExpressionOrConstant timeStampComparison = new Expression(">=", ReservedColumns.RGMA_TIMESTAMP_COLUMN_CONSTANT, new Constant(startTimeStampString,
+				Constant.Type.STRING));
+		if (m_query.getWhere() != null) {
+			m_query.addWhere(new Expression("AND", m_query.getWhere(), timeStampComparison));
+		} else {
+			m_query.addWhere(timeStampComparison);
+		}
 
 		m_vdbTableName = vdbTableName;
+		m_maxPushed = maxPushed;
+		m_index = index;
+		MemoryQuery pushQuery = null;
+		if (maxPushed > 0 && !query.isDistinct() && (query.getOrderBy() == null || query.getOrderBy().size() == 0)) {
+			pushQuery = MemoryQuery.compile(m_query, index.getTable());
+		}
+		m_pushQuery = pushQuery;
 		if (s_securitylogger.isDebugEnabled()) {
 			s_securitylogger.debug("ContinuousTupleCursor created for " + query);
 		}
@@ -94,33 +144,116 @@ public class ContinuousTupleCursor implements TupleCursor {
 				s.append(" No tuples in requested time frame in store.");
 			}
 			s.append(" Start from " + m_nextTupleID);
+			if (m_pushQuery == null) {
+				s.append(" Tuples will not be pushed.");
+			}
 			LOG.info(s);
 		}
 	}
 
+	/**
+	 * Returns <code>true</code> if tuples are to be pushed to this cursor by {@link #push(Object[], int)}.
+	 */
+	boolean isPushed() {
+		return m_pushQuery != null;
+	}
+
+	/**
+	 * Returns the query evaluated on each pushed tuple, which the index uses to file the cursor.
+	 */
+	MemoryQuery getPushQuery() {
+		return m_pushQuery;
+	}
+
+	/**
+	 * Offers a tuple which has just been inserted into the history table. It is kept if it satisfies the query. If too
+	 * many tuples are held the cursor returns to querying the history table.
+	 * 
+	 * @param row
+	 *            Values of the tuple, as held by a memory history table
+	 * @param tupleID
+	 *            RgmaTUID of the tuple
+	 */
+	void push(Object[] row, int tupleID) {
+		String[] data = m_pushQuery.evaluate(row);
+		if (data == null) {
+			return;
+		}
+		synchronized (this) {
+			if (tupleID <= m_queriedTUID) {
+				return;
+			}
+			if (m_pushed.size() >= m_maxPushed) {
+				discardPushed();
+				return;
+			}
+			/* Tuples normally arrive in RgmaTUID order */
+			PushedTuple tuple = new PushedTuple(data, tupleID);
+			int pos = m_pushed.size();
+			while (pos > 0 && m_pushed.get(pos - 1).m_tupleID > tupleID) {
+				pos--;
+			}
+			m_pushed.add(pos, tuple);
+		}
+	}
+
+	/**
+	 * Discards the pushed tuples so that the history table is queried again. This is done when too many tuples are held
+	 * or a tuple could not be evaluated.
+	 */
+	synchronized void discardPushed() {
+		if (m_pushing && LOG.isDebugEnabled()) {
+			LOG.debug("ContinuousTupleCursor " + hashCode() + " discarded " + m_pushed.size() + " pushed tuples. Next TUID to seek is " + m_nextTupleID);
+		}
+		m_pushed.clear();
+		m_pushing = false;
+		m_lost = true;
+	}
+
 	/**
 	 * @throws RGMAPermanentException
 	 * @see TupleCursor#pop(int)
 	 */
 	public TupleSetWithLastTUID pop(int maxCount) throws RGMAPermanentException {
-		SelectStatement select = new SelectStatement(m_query);
-		/* Add to where clause to be greater than tupleID and greater than or equal to the timestamp */
-		ExpressionOrConstant tupleIDPredicate = new Expression("AND", new Expression(">=", ReservedColumns.RGMA_TUID_COLUMN_CONSTANT, new Constant(
-				m_nextTupleID + "", Constant.Type.NUMBER)), m_timeStampComparison);
-
-		if (select.getWhere() != null) {
-			select.addWhere(new Expression("AND", select.getWhere(), tupleIDPredicate));
-		} else {
-			select.addWhere(tupleIDPredicate);
+		int nextTupleID;
+		synchronized (this) {
+			if (m_pushing) {
+				return popPushed(maxCount);
+			}
+			/* Tuples pushed from now on are kept until the cursor knows whether it has caught up */
+			m_lost = false;
+			nextTupleID = m_nextTupleID;
 		}
 
-		TupleSetWithLastTUID poppedTuples = m_databaseInstance.getContinuous(select, maxCount);
+		TupleSetWithLastTUID poppedTuples = m_databaseInstance.getContinuous(m_query, nextTupleID, maxCount);
 
 		/* get ID of last tuple read. It may be zero if ResultSet is empty */
 		int n = poppedTuples.getLastTUID();
 		TupleSet ts = poppedTuples.getTupleSet();
-		if (n != 0) {
-			m_nextTupleID = n + 1;
+		synchronized (this) {
+			if (n != 0) {
+				m_nextTupleID = n + 1;
+				if (n > m_queriedTUID) {
+					m_queriedTUID = n;
+				}
+			}
+			/*
+			 * If the history table had no more tuples then every later tuple has been pushed since the query started,
+			 * along with some which it found.
+			 */
+			if (m_pushQuery != null && !m_lost && ts.size() < maxCount) {
+				Iterator<PushedTuple> iter = m_pushed.iterator();
+				while (iter.hasNext()) {
+					if (iter.next().m_tupleID < m_nextTupleID) {
+						iter.remove();
+					}
+				}
+				m_pushing = true;
+				if (LOG.isDebugEnabled()) {
+					LOG.debug("ContinuousTupleCursor " + hashCode() + " has caught up. Next TUID is " + m_nextTupleID + " and " + m_pushed.size()
+							+ " tuples have been pushed");
+				}
+			}
 		}
 		if (LOG.isInfoEnabled()) {
 			if (ts.size() > 0) {
@@ -131,13 +264,44 @@ public class ContinuousTupleCursor implements TupleCursor {
 	}
 
 	/**
-	 * close
+	 * Stops tuples being pushed to this cursor. As each pop results in a call to get the next set of tuples from the
+	 * history tuple store knowing the next tuple id to start from, or takes tuples already pushed, nothing else needs
+	 * cleaning up.
 	 */
 	public void close() {
-	/*
-	 * This function exists because of the interface. However it has nothing to do as the constructor created nothing
-	 * that needs cleaning up and each pop results in a call to get the next set of tuples from the history tuple store
-	 * knowing the next tuple id to start from.
-	 */
+		if (m_pushQuery != null) {
+			m_index.remove(this);
+		}
+		synchronized (this) {
+			m_pushed.clear();
+		}
+	}
+
+	private TupleSetWithLastTUID popPushed(int maxCount) {
+		TupleSet ts = new TupleSet();
+		int lastTupleID = 0;
+		while (ts.size() < maxCount && m_pushed.size() > 0) {
+			PushedTuple tuple = m_pushed.removeFirst();
+			ts.addRow(tuple.m_data);
+			lastTupleID = tuple.m_tupleID;
+			if (lastTupleID >= m_nextTupleID) {
+				m_nextTupleID = lastTupleID + 1;
+			}
+		}
+		if (LOG.isDebugEnabled() && ts.size() > 0) {
+			LOG.debug("ContinuousTupleCursor " + hashCode() + " popped " + ts.size() + " pushed tuples. Next TUID is " + m_nextTupleID);
+		}
+		return new TupleSetWithLastTUID(ts, lastTupleID);
+	}
+
+	private static class PushedTuple {
+		private final String[] m_data;
+
+		private final int m_tupleID;
+
+		private PushedTuple(String[] data, int tupleID) {
+			m_data = data;
+			m_tupleID = tupleID;
+		}
 	}
 }
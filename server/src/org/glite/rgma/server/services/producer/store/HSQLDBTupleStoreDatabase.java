@@ -6,6 +6,8 @@
 
 package org.glite.rgma.server.services.producer.store;
 
+import java.sql.BatchUpdateException;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.util.ArrayList;
@@ -19,12 +21,14 @@ import org.glite.rgma.server.services.ServerConfig;
 import org.glite.rgma.server.services.ServerConstants;
 import org.glite.rgma.server.services.database.HSQLDBConnection;
 import org.glite.rgma.server.services.sql.ColumnDefinition;
+import org.glite.rgma.server.services.sql.Constant;
 import org.glite.rgma.server.services.sql.CreateIndexStatement;
 import org.glite.rgma.server.services.sql.CreateTableStatement;
 import org.glite.rgma.server.services.sql.InsertStatement;
 import org.glite.rgma.server.services.sql.OrderBy;
 import org.glite.rgma.server.services.sql.SelectItem;
 import org.glite.rgma.server.services.sql.SelectStatement;
+import org.glite.rgma.server.services.sql.TableName;
 import org.glite.rgma.server.services.sql.TableReference;
 import org.glite.rgma.server.services.sql.UpdateStatement;
 import org.glite.rgma.server.system.NumericException;
@@ -34,7 +38,9 @@ import org.glite.rgma.server.system.TupleSet;
 import org.glite.rgma.server.system.TupleSetWithLastTUID;
 
 /**
- * HSQLDB implementation of DatabaseInstance.
+ * HSQLDB implementation of DatabaseInstance. It is no longer used as a tuple store in its own right, only by
+ * MemoryTupleStoreDatabase to run the queries which it cannot evaluate itself on copies of its tables. The methods
+ * which write to the tables are kept so that it remains a complete TupleStoreDatabase.
  */
 
 public class HSQLDBTupleStoreDatabase extends TupleStoreDatabaseBase implements TupleStoreDatabase {
@@ -46,6 +52,9 @@ public class HSQLDBTupleStoreDatabase extends TupleStoreDatabaseBase implements
 		/** Index of next tuple to return. */
 		private int m_currentIndex;
 
+		/** RgmaOneOffTUID of the last tuple returned, set by convertResultSet */
+		private final int[] m_lastOneOffTUID = { -1 };
+
 		/** Cursor ID. */
 		private int m_id;
 
@@ -58,6 +67,12 @@ public class HSQLDBTupleStoreDatabase extends TupleStoreDatabaseBase implements
 		/** Temporary table name. */
 		private String m_tableName;;
 
+		/**
+		 * Result of a query read a chunk at a time rather than copied into the temporary table, or <code>null</code>.
+		 * HSQLDB builds the whole result when the query is run, so it does not change as the tables do.
+		 */
+		private java.sql.ResultSet m_resultSet;
+
 		/**
 		 * Creates a new Cursor.
 		 * 
@@ -76,9 +91,13 @@ public class HSQLDBTupleStoreDatabase extends TupleStoreDatabaseBase implements
 			m_currentIndex = 0;
 			m_tableName = CURSOR_TABLE_PREFIX + m_id;
 			try {
-				m_numTuples = m_connection.executeUpdate(getCreateStatement());
-				m_connection.executeQuery("ALTER TABLE " + m_tableName + " ADD COLUMN " + ReservedColumns.RGMA_TUID_ONE_OFF_COLUMN_NAME
-						+ " INTEGER GENERATED BY DEFAULT AS IDENTITY");
+				if (isLazyQuery(selectStatement)) {
+					m_resultSet = m_connection.executeQuery(selectStatement.toString());
+				} else {
+					m_numTuples = m_connection.executeUpdate(getCreateStatement());
+					m_connection.executeQuery("ALTER TABLE " + m_tableName + " ADD COLUMN " + ReservedColumns.RGMA_TUID_ONE_OFF_COLUMN_NAME
+							+ " INTEGER GENERATED BY DEFAULT AS IDENTITY");
+				}
 			} catch (SQLException e) {
 				if (e.getErrorCode() == -45) { /* label required */
 					throw new NumericException(id, e.getMessage());
@@ -92,11 +111,16 @@ public class HSQLDBTupleStoreDatabase extends TupleStoreDatabaseBase implements
 		 */
 		synchronized private void close() {
 			if (m_active) {
-				try {
-					m_connection.executeUpdate("DROP TABLE " + m_tableName);
+				if (m_resultSet != null) {
+					HSQLDBConnection.closeStatementFromResultSet(m_resultSet);
 					m_active = false;
-				} catch (SQLException e) {
-					// Do nothing.
+				} else {
+					try {
+						m_connection.executeUpdate("DROP TABLE " + m_tableName);
+						m_active = false;
+					} catch (SQLException e) {
+						// Do nothing.
+					}
 				}
 				if (LOG.isDebugEnabled()) {
 					LOG.debug("Cursor " + m_tableName + " closed.");
@@ -109,7 +133,9 @@ public class HSQLDBTupleStoreDatabase extends TupleStoreDatabaseBase implements
 		}
 
 		/**
-		 * Fetches at most <code>maxRows</code> rows from this cursor.
+		 * Fetches at most <code>maxRows</code> rows from this cursor. From a temporary table the rows are found from the
+		 * last RgmaOneOffTUID returned using the index of the identity column, so each chunk costs the same however far
+		 * into the results it is.
 		 * 
 		 * @param maxRows
 		 *            Maximum number of rows to return.
@@ -117,16 +143,32 @@ public class HSQLDBTupleStoreDatabase extends TupleStoreDatabaseBase implements
 		 * @throws SQLException
 		 * @throws RGMAPermanentException
 		 */
-		private TupleSetWithLastTUID fetch(int maxRows) throws SQLException, RGMAPermanentException {
+		private synchronized TupleSetWithLastTUID fetch(int maxRows) throws SQLException, RGMAPermanentException {
+			if (m_resultSet != null) {
+				TupleSetWithLastTUID rs = convertResultSet(m_resultSet, maxRows);
+				TupleSet ts = rs.getTupleSet();
+				ts.setEndOfResults(ts.size() < maxRows || m_resultSet.isLast());
+				if (LOG.isDebugEnabled()) {
+					LOG.debug("Fetched " + ts.size() + " tuples from the result of " + m_selectStatement);
+				}
+				return rs;
+			}
 			int tuplesLeft = m_numTuples - m_currentIndex;
 			boolean endOfResults = maxRows >= tuplesLeft;
 			maxRows = Math.min(maxRows, tuplesLeft);
-			String selectStr = "SELECT LIMIT " + m_currentIndex + " " + maxRows + " * FROM " + m_tableName + " ORDER BY "
-					+ ReservedColumns.RGMA_TUID_ONE_OFF_COLUMN_NAME;
+			/*
+			 * HSQLDB sorts all the rows found before applying the LIMIT, so the rows are bounded by RgmaOneOffTUID as
+			 * well. The identity column numbers the rows consecutively from 0, so the bound selects exactly the next
+			 * chunk.
+			 */
+			String tuid = ReservedColumns.RGMA_TUID_ONE_OFF_COLUMN_NAME;
+			int lastOneOffTUID = m_lastOneOffTUID[0];
+			String selectStr = "SELECT LIMIT 0 " + maxRows + " * FROM " + m_tableName + " WHERE " + tuid + " > " + lastOneOffTUID + " AND " + tuid
+					+ " <= " + (lastOneOffTUID + maxRows) + " ORDER BY " + tuid;
 			java.sql.ResultSet jrs = m_connection.executeQuery(selectStr);
 			m_currentIndex += maxRows;
 			try {
-				TupleSetWithLastTUID rs = convertResultSet(jrs);
+				TupleSetWithLastTUID rs = convertResultSet(jrs, m_lastOneOffTUID);
 				TupleSet ts = rs.getTupleSet();
 				ts.setEndOfResults(endOfResults);
 				if (LOG.isDebugEnabled()) {
@@ -210,10 +252,16 @@ public class HSQLDBTupleStoreDatabase extends TupleStoreDatabaseBase implements
 		}
 	}
 
+	/** Error code of HSQLDB for an INSERT with the same primary key as an existing row */
+	private static final int DUPLICATE_KEY_ERROR = -104;
+
 	/**
 	 * Translates a CreateTableStatement into a HSQLDB compatible String.
+	 * 
+	 * @param primaryKey
+	 *            If <code>true</code>, the primary key of the statement is declared
 	 */
-	private static String translateCreateTable(CreateTableStatement createTable) {
+	private static String translateCreateTable(CreateTableStatement createTable, boolean primaryKey) {
 		StringBuilder buf = new StringBuilder("CREATE TABLE " + createTable.getTableName() + " (");
 		boolean firstCol = true;
 
@@ -228,6 +276,27 @@ public class HSQLDBTupleStoreDatabase extends TupleStoreDatabaseBase implements
 				buf.append(" NOT NULL");
 			}
 		}
+		if (primaryKey) {
+			List<String> keyColumns = new ArrayList<String>();
+			for (ColumnDefinition cd : createTable.getColumns()) {
+				if (cd.isPrimaryKey()) {
+					keyColumns.add(cd.getName());
+				}
+			}
+			if (keyColumns.size() > 0) {
+				buf.append(", PRIMARY KEY (");
+				boolean firstKey = true;
+				for (String name : keyColumns) {
+					if (firstKey) {
+						firstKey = false;
+					} else {
+						buf.append(", ");
+					}
+					buf.append(name);
+				}
+				buf.append(")");
+			}
+		}
 		buf.append(")");
 		return buf.toString();
 	}
@@ -284,6 +353,28 @@ public class HSQLDBTupleStoreDatabase extends TupleStoreDatabaseBase implements
 		}
 	}
 
+	/**
+	 * Creates a table holding the given rows, so that a query the memory tuple store cannot evaluate itself may be run
+	 * here. The table is dropped with {@link #closeTupleStore(List, boolean)}.
+	 */
+	void createSnapshot(CreateTableStatement cts, List<List<Constant>> rows) throws RGMAPermanentException {
+		List<String> names = new ArrayList<String>();
+		for (ColumnDefinition cd : cts.getColumns()) {
+			names.add(cd.getName());
+		}
+		try {
+			m_connection.executeUpdate(translateCreateTable(cts, false));
+			for (List<Constant> row : rows) {
+				InsertStatement insert = new InsertStatement(new TableName(cts.getTableName()));
+				insert.setColumnNames(names);
+				insert.setColumnValues(row);
+				m_connection.executeUpdate(insert.toString());
+			}
+		} catch (SQLException e) {
+			throw new RGMAPermanentException(e);
+		}
+	}
+
 	/**
 	 * @see HSQLDBTupleStoreDatabase#count(String)
 	 */
@@ -385,8 +476,14 @@ public class HSQLDBTupleStoreDatabase extends TupleStoreDatabaseBase implements
 				pcts.getColumns().add(ReservedColumns.RGMA_TUID_COLUMN);
 			}
 
-			String ctsStr = translateCreateTable(pcts);
+			/* The primary key of a LATEST table lets upsertLatest detect an existing tuple from a failed INSERT */
+			String ctsStr = translateCreateTable(pcts, tableType.equals("L"));
 			m_connection.executeUpdate(ctsStr);
+			if (tableType.equals("H")) {
+				/* For continuous queries and for deleting expired partitions of the table */
+				m_connection.executeUpdate("CREATE INDEX " + physicalTableName + "HTUIDIndex ON " + physicalTableName + "("
+						+ ReservedColumns.RGMA_TUID_COLUMN_NAME + ")");
+			}
 			if (LOG.isDebugEnabled()) {
 				LOG.debug("Physical table '" + physicalTableName + "' created for " + tableType + " '" + vdbTableName + "' " + logicalName + "/[" + ownerDN
 						+ ']');
@@ -430,6 +527,23 @@ public class HSQLDBTupleStoreDatabase extends TupleStoreDatabaseBase implements
 		}
 	}
 
+	/**
+	 * Uses the index on RgmaTUID of the history table.
+	 * 
+	 * @see TupleStoreDatabase#deleteByTUID(String, int, int)
+	 */
+	public int deleteByTUID(String tableName, int minTUID, int maxTUID) throws RGMAPermanentException {
+		try {
+			return m_connection.executeUpdate("DELETE FROM " + tableName + " WHERE " + ReservedColumns.RGMA_TUID_COLUMN_NAME + " BETWEEN " + minTUID + " AND " + maxTUID);
+		} catch (SQLException e) {
+			if (e.getErrorCode() == -22) {
+				LOG.debug("Unable to delete from table " + tableName + " as it no longer exists");
+				return 0;
+			}
+			throw new RGMAPermanentException(e);
+		}
+	}
+
 	/**
 	 * @throws RGMAPermanentException
 	 * @see HSQLDBTupleStoreDatabase#deleteByLRP(String)
@@ -478,27 +592,19 @@ public class HSQLDBTupleStoreDatabase extends TupleStoreDatabaseBase implements
 	 * @see HSQLDBTupleStoreDatabase#findFirstTupleID(String, long)
 	 */
 	public int findFirstTupleID(String physicalTableName, long startTimeMS) throws RGMAPermanentException {
-		java.sql.ResultSet rs = null;
+		String findFirstQuery = "SELECT " + ReservedColumns.RGMA_TUID_COLUMN_NAME + " FROM " + physicalTableName + " WHERE "
+				+ ReservedColumns.RGMA_TIMESTAMP_COLUMN_NAME + " >= ? ORDER BY " + ReservedColumns.RGMA_TUID_COLUMN_NAME + " LIMIT 1";
+		List<Object> parameters = new ArrayList<Object>(1);
+		parameters.add(new Timestamp(startTimeMS));
 		try {
-			String timestampString = new Timestamp(startTimeMS).toString();
-			String findFirstQuery = "SELECT " + ReservedColumns.RGMA_TUID_COLUMN_NAME + " FROM " + physicalTableName + " WHERE "
-					+ ReservedColumns.RGMA_TIMESTAMP_COLUMN_NAME + " >= '" + timestampString + "' ORDER BY " + ReservedColumns.RGMA_TUID_COLUMN_NAME
-					+ " LIMIT 1";
-			int firstTupleID = 0; // First tuple ID is 0 if there are no tuples
-			rs = m_connection.executeQuery(findFirstQuery);
-			if (rs.next()) {
-				firstTupleID = rs.getInt(1);
-				if (LOG.isDebugEnabled()) {
-					LOG.debug("Found first tuple ID in database: " + firstTupleID);
-				}
+			/* First tuple ID is 0 if there are no tuples */
+			int firstTupleID = executeQuery(findFirstQuery, parameters).getLastTUID();
+			if (LOG.isDebugEnabled() && firstTupleID != 0) {
+				LOG.debug("Found first tuple ID in database: " + firstTupleID);
 			}
 			return firstTupleID;
 		} catch (SQLException e) {
 			throw new RGMAPermanentException(e);
-		} finally {
-			if (rs != null) {
-				HSQLDBConnection.closeStatementFromResultSet(rs);
-			}
 		}
 	}
 
@@ -506,19 +612,15 @@ public class HSQLDBTupleStoreDatabase extends TupleStoreDatabaseBase implements
 		return new HashMap<ResourceEndpoint, Integer>();
 	}
 
-	public TupleSetWithLastTUID getContinuous(SelectStatement select, int maxCount) throws RGMAPermanentException {
-		String selectStr = select + " LIMIT " + maxCount;
-		java.sql.ResultSet jrs = null;
+	public TupleSetWithLastTUID getContinuous(SelectStatement select, int nextTupleID, int maxCount) throws RGMAPermanentException {
+		PreparedSQL prepared = prepareContinuous(select);
+		List<Object> parameters = new ArrayList<Object>(prepared.getParameters());
+		parameters.add(nextTupleID);
+		parameters.add(maxCount);
 		try {
-			jrs = m_connection.executeQuery(selectStr);
-			TupleSetWithLastTUID rs = convertResultSet(jrs);
-			return rs;
+			return executeQuery(prepared.getSQL(), parameters);
 		} catch (SQLException e) {
 			throw new RGMAPermanentException(e);
-		} finally {
-			if (jrs != null) {
-				HSQLDBConnection.closeStatementFromResultSet(jrs);
-			}
 		}
 	}
 
@@ -543,13 +645,50 @@ public class HSQLDBTupleStoreDatabase extends TupleStoreDatabaseBase implements
 	 *      java.util.List)
 	 */
 	public void insert(InsertStatement insertStatement) throws RGMAPermanentException {
+		PreparedSQL prepared = PreparedSQL.insert(insertStatement);
 		try {
-			m_connection.executeUpdate(insertStatement.toString());
+			executeUpdate(prepared.getSQL(), prepared.getParameters());
 		} catch (SQLException e) {
 			throw new RGMAPermanentException(e);
 		}
 	}
 
+	/**
+	 * Executes the INSERTs as a JDBC batch for each run of statements for the same table and columns. HSQLDB stops at
+	 * the first statement which fails, which is then run on its own to report why it failed.
+	 */
+	public void insert(List<InsertStatement> insertStatements) throws RGMAPermanentException {
+		List<PreparedSQL> inserts = new ArrayList<PreparedSQL>(insertStatements.size());
+		for (InsertStatement insertStatement : insertStatements) {
+			inserts.add(PreparedSQL.insert(insertStatement));
+		}
+		int executed = 0;
+		try {
+			while (executed < inserts.size()) {
+				String sql = inserts.get(executed).getSQL();
+				List<List<Object>> rows = new ArrayList<List<Object>>();
+				for (int i = executed; i < inserts.size() && inserts.get(i).getSQL().equals(sql); i++) {
+					rows.add(inserts.get(i).getParameters());
+				}
+				executeBatch(sql, rows);
+				executed += rows.size();
+			}
+		} catch (SQLException e) {
+			if (e instanceof BatchUpdateException && ((BatchUpdateException) e).getUpdateCounts() != null) {
+				executed += ((BatchUpdateException) e).getUpdateCounts().length;
+			}
+			/* Nothing is stored after the row which failed, or at all if a value could not be bound, so find it */
+			for (; executed < insertStatements.size(); executed++) {
+				try {
+					insert(insertStatements.get(executed));
+				} catch (RGMAPermanentException re) {
+					re.setNumSuccessfulOps(executed);
+					throw re;
+				}
+			}
+		}
+	}
+
 	/**
 	 * @throws RGMAPermanentException
 	 * @see org.glite.rgma.server.services.producer.store.TupleStoreList#listTupleStores(String)
@@ -577,18 +716,11 @@ public class HSQLDBTupleStoreDatabase extends TupleStoreDatabaseBase implements
 	 * @see org.glite.rgma.server.services.database.TupleStoreDatabase#select(org.glite.rgma.server.services.sql.SelectStatement)
 	 */
 	public TupleSetWithLastTUID select(SelectStatement selectStatement) throws RGMAPermanentException {
-		String select = selectStatement.toString();
-		java.sql.ResultSet jrs = null;
+		PreparedSQL prepared = PreparedSQL.select(selectStatement);
 		try {
-			jrs = m_connection.executeQuery(select);
-			TupleSetWithLastTUID resultSet = convertResultSet(jrs);
-			return resultSet;
+			return executeQuery(prepared.getSQL(), prepared.getParameters());
 		} catch (SQLException e) {
 			throw new RGMAPermanentException(e);
-		} finally {
-			if (jrs != null) {
-				HSQLDBConnection.closeStatementFromResultSet(jrs);
-			}
 		}
 	}
 
@@ -604,6 +736,30 @@ public class HSQLDBTupleStoreDatabase extends TupleStoreDatabaseBase implements
 		throw new RGMAPermanentException("storeConsumerTUIDs should not be called");
 	}
 
+	/**
+	 * Runs an UPDATE of the tuple with the same primary key, which is all that is needed once the key is in the table.
+	 * HSQLDB has no MERGE, so if nothing is updated the tuple is inserted. As LATEST tables are created with a primary
+	 * key, a duplicate key error shows that the stored tuple is newer and is left alone. The memory tuple store does not
+	 * call this as it upserts its own latest tables.
+	 */
+	public void upsertLatest(InsertStatement insert, List<ColumnDefinition> columns) throws RGMAPermanentException {
+		PreparedSQL update = PreparedSQL.update(createLatestUpdate(columns, insert));
+		try {
+			if (executeUpdate(update.getSQL(), update.getParameters()) == 0) {
+				PreparedSQL prepared = PreparedSQL.insert(insert);
+				try {
+					executeUpdate(prepared.getSQL(), prepared.getParameters());
+				} catch (SQLException e) {
+					if (e.getErrorCode() != DUPLICATE_KEY_ERROR) {
+						throw e;
+					}
+				}
+			}
+		} catch (SQLException e) {
+			throw new RGMAPermanentException(e);
+		}
+	}
+
 	/**
 	 * Executes the given update statement on the database.
 	 * 
@@ -611,10 +767,90 @@ public class HSQLDBTupleStoreDatabase extends TupleStoreDatabaseBase implements
 	 * @see org.glite.rgma.server.services.database.TupleStoreDatabase#update(org.glite.rgma.server.services.sql.UpdateStatement)
 	 */
 	public int update(UpdateStatement updateStatement) throws RGMAPermanentException {
+		PreparedSQL prepared = PreparedSQL.update(updateStatement);
 		try {
-			return m_connection.executeUpdate(updateStatement.toString());
+			return executeUpdate(prepared.getSQL(), prepared.getParameters());
 		} catch (SQLException e) {
 			throw new RGMAPermanentException(e);
 		}
 	}
+
+	/**
+	 * Runs a query as a prepared statement and converts its results. If the statement fails it is prepared again and
+	 * run once more, as it is no longer valid if a table it uses has been dropped and created again.
+	 */
+	private TupleSetWithLastTUID executeQuery(String sql, List<Object> parameters) throws SQLException, RGMAPermanentException {
+		try {
+			return executeQuery(m_connection.prepareStatement(sql), parameters);
+		} catch (SQLException e) {
+			m_connection.discardStatement(sql);
+			return executeQuery(m_connection.prepareStatement(sql), parameters);
+		}
+	}
+
+	private static TupleSetWithLastTUID executeQuery(PreparedStatement statement, List<Object> parameters) throws SQLException,
+			RGMAPermanentException {
+		synchronized (statement) {
+			PreparedSQL.bind(statement, parameters);
+			java.sql.ResultSet jrs = statement.executeQuery();
+			try {
+				return convertResultSet(jrs);
+			} finally {
+				jrs.close();
+			}
+		}
+	}
+
+	/**
+	 * Runs an update as a prepared statement, preparing it again if it fails as for {@link #executeQuery(String, List)}.
+	 */
+	private int executeUpdate(String sql, List<Object> parameters) throws SQLException {
+		try {
+			return executeUpdate(m_connection.prepareStatement(sql), parameters);
+		} catch (SQLException e) {
+			m_connection.discardStatement(sql);
+			return executeUpdate(m_connection.prepareStatement(sql), parameters);
+		}
+	}
+
+	private static int executeUpdate(PreparedStatement statement, List<Object> parameters) throws SQLException {
+		synchronized (statement) {
+			PreparedSQL.bind(statement, parameters);
+			return statement.executeUpdate();
+		}
+	}
+
+	/**
+	 * Runs a prepared statement as a batch, once with each list of parameters. If nothing is executed, the statement is
+	 * prepared again and the batch run once more as for {@link #executeQuery(String, List)}.
+	 * 
+	 * @throws BatchUpdateException
+	 *             If a statement fails, giving the number of statements executed before it
+	 */
+	private void executeBatch(String sql, List<List<Object>> rows) throws SQLException {
+		try {
+			executeBatch(m_connection.prepareStatement(sql), rows);
+		} catch (SQLException e) {
+			if (e instanceof BatchUpdateException && ((BatchUpdateException) e).getUpdateCounts() != null
+					&& ((BatchUpdateException) e).getUpdateCounts().length > 0) {
+				throw e;
+			}
+			m_connection.discardStatement(sql);
+			executeBatch(m_connection.prepareStatement(sql), rows);
+		}
+	}
+
+	private static void executeBatch(PreparedStatement statement, List<List<Object>> rows) throws SQLException {
+		synchronized (statement) {
+			try {
+				for (List<Object> row : rows) {
+					PreparedSQL.bind(statement, row);
+					statement.addBatch();
+				}
+				statement.executeBatch();
+			} finally {
+				statement.clearBatch();
+			}
+		}
+	}
 }
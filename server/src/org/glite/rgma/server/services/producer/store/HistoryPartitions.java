@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2004.
+ * See http://eu-egee.org/partners/ for details on the copyright holders.
+ * For license conditions see the license file or http://eu-egee.org/license.html
+ */
+
+package org.glite.rgma.server.services.producer.store;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * The partitions of a history table by insert time. Each partition covers the tuples inserted during one slice of the
+ * history retention period and records the range of their RgmaTUIDs. Once the retention period of the last tuple of a
+ * partition has expired, the whole partition can be deleted by RgmaTUID with one statement using the index of the
+ * table, rather than by looking for expired tuples. This class is thread safe.
+ */
+class HistoryPartitions {
+
+	/** Number of partitions into which the history retention period is divided */
+	static final int PARTITIONS_PER_HRP = 20;
+
+	/** Tuples inserted during one slice of time */
+	private static class Partition {
+
+		/** Start of the slice */
+		private final long m_startMS;
+
+		/** Smallest RgmaTUID of the tuples still in the partition */
+		private int m_firstTUID;
+
+		/** Largest RgmaTUID in the partition */
+		private int m_lastTUID;
+
+		/** True for the tuples found in the table when it was opened, whose insert times are not known */
+		private final boolean m_untimed;
+
+		private Partition(long startMS, int firstTUID, int lastTUID, boolean untimed) {
+			m_startMS = startMS;
+			m_firstTUID = firstTUID;
+			m_lastTUID = lastTUID;
+			m_untimed = untimed;
+		}
+	}
+
+	/** Partitions, oldest first */
+	private final LinkedList<Partition> m_partitions = new LinkedList<Partition>();
+
+	/** Length of the slice of time covered by each partition */
+	private final long m_spanMS;
+
+	/**
+	 * Creates the partitions of a history table.
+	 *
+	 * @param hrpSecs
+	 *            History retention period of the table
+	 * @param maxTUID
+	 *            Largest RgmaTUID already in the table, or 0 if it is empty. These tuples are put in a partition of their
+	 *            own which starts now.
+	 * @param nowMS
+	 *            Current time
+	 */
+	HistoryPartitions(int hrpSecs, int maxTUID, long nowMS) {
+		m_spanMS = Math.max(1000L, hrpSecs * 1000L / PARTITIONS_PER_HRP);
+		if (maxTUID > 0) {
+			m_partitions.add(new Partition(nowMS - nowMS % m_spanMS, 1, maxTUID, true));
+		}
+	}
+
+	/**
+	 * Records tuples inserted at the same time. Tuples which arrive late, with a time before that of the newest
+	 * partition, are put in that partition so that a partition never holds tuples older than those of the partitions
+	 * before it.
+	 */
+	synchronized void add(long insertTimeMS, int firstTUID, int lastTUID) {
+		long startMS = insertTimeMS - insertTimeMS % m_spanMS;
+		Partition newest = m_partitions.isEmpty() ? null : m_partitions.getLast();
+		if (newest == null || startMS > newest.m_startMS) {
+			m_partitions.add(new Partition(startMS, firstTUID, lastTUID, false));
+		} else {
+			newest.m_firstTUID = Math.min(newest.m_firstTUID, firstTUID);
+			newest.m_lastTUID = Math.max(newest.m_lastTUID, lastTUID);
+		}
+	}
+
+	/**
+	 * Returns the largest RgmaTUID up to which the tuples can be deleted because they are all in expired partitions,
+	 * taking as few partitions as possible from the oldest, or 0 if there are none. RgmaTUIDs are assigned before
+	 * tuples are timed, so the ranges of neighbouring partitions may overlap a little; the tuples of an overlap are
+	 * deleted with the later partition.
+	 *
+	 * @param cutOffMS
+	 *            Tuples inserted before this time have expired
+	 * @param lastReadTUID
+	 *            Last RgmaTUID streamed to all consumers or -1 if there are no consumers. No tuple after it is deleted.
+	 */
+	synchronized int getExpiredTUID(long cutOffMS, int lastReadTUID) {
+		Partition[] partitions = m_partitions.toArray(new Partition[m_partitions.size()]);
+		int[] minFirstAfter = new int[partitions.length];
+		int minFirst = Integer.MAX_VALUE;
+		for (int i = partitions.length - 1; i >= 0; i--) {
+			minFirstAfter[i] = minFirst;
+			minFirst = Math.min(minFirst, partitions[i].m_firstTUID);
+		}
+		int maxLast = 0;
+		minFirst = Integer.MAX_VALUE;
+		for (int i = 0; i < partitions.length && partitions[i].m_startMS + m_spanMS <= cutOffMS; i++) {
+			minFirst = Math.min(minFirst, partitions[i].m_firstTUID);
+			maxLast = Math.max(maxLast, partitions[i].m_lastTUID);
+			int maxTUID = Math.min(maxLast, minFirstAfter[i] - 1);
+			if (lastReadTUID >= 0) {
+				maxTUID = Math.min(maxTUID, lastReadTUID);
+			}
+			if (maxTUID >= minFirst) {
+				return maxTUID;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Returns the largest RgmaTUID of the tuples found in the table when it was opened, if they have not all been
+	 * deleted, or 0. As their insert times are not known they must be checked tuple by tuple until their partition
+	 * expires.
+	 */
+	synchronized int getUntimedTUID() {
+		if (m_partitions.isEmpty() || !m_partitions.getFirst().m_untimed) {
+			return 0;
+		}
+		return m_partitions.getFirst().m_lastTUID;
+	}
+
+	/**
+	 * Forgets the tuples which have been deleted, removing the partitions left empty.
+	 *
+	 * @param maxTUID
+	 *            Largest RgmaTUID deleted
+	 */
+	synchronized void deleted(int maxTUID) {
+		Iterator<Partition> iter = m_partitions.iterator();
+		while (iter.hasNext()) {
+			Partition partition = iter.next();
+			if (partition.m_lastTUID <= maxTUID) {
+				iter.remove();
+			} else {
+				partition.m_firstTUID = Math.max(partition.m_firstTUID, maxTUID + 1);
+			}
+		}
+	}
+
+	synchronized int size() {
+		return m_partitions.size();
+	}
+}
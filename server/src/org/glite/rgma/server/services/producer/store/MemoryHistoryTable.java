@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2004.
+ * See http://eu-egee.org/partners/ for details on the copyright holders.
+ * For license conditions see the license file or http://eu-egee.org/license.html
+ */
+
+package org.glite.rgma.server.services.producer.store;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.glite.rgma.server.services.sql.CreateTableStatement;
+
+/**
+ * A history table of a memory tuple store. The rows are held in a ring buffer in RgmaTUID order, which is the order in
+ * which they are inserted apart from the odd race between producer threads, so a continuous query finds its next tuple
+ * by a binary search and the tuples which have passed their history retention period are removed by advancing the head
+ * of the ring. The last two columns are RgmaInsertTime and RgmaTUID. This class is thread safe.
+ */
+class MemoryHistoryTable extends MemoryTable {
+
+	private static final int MIN_CAPACITY = 16;
+
+	/** Rows, with a power of two length */
+	private Object[][] m_ring = new Object[MIN_CAPACITY][];
+
+	/** Position of the oldest row */
+	private int m_head;
+
+	private int m_size;
+
+	private final int m_insertTimeColumn;
+
+	private final int m_tuidColumn;
+
+	private final int m_timestampColumn;
+
+	MemoryHistoryTable(CreateTableStatement definition) {
+		super(definition);
+		m_insertTimeColumn = getColumnIndex(ReservedColumns.RGMA_INSERT_TIME_COLUMN_NAME);
+		m_tuidColumn = getColumnIndex(ReservedColumns.RGMA_TUID_COLUMN_NAME);
+		m_timestampColumn = getColumnIndex(ReservedColumns.RGMA_TIMESTAMP_COLUMN_NAME);
+	}
+
+	int getTUIDColumn() {
+		return m_tuidColumn;
+	}
+
+	@Override
+	synchronized void insert(Object[] row) {
+		if (m_size == m_ring.length) {
+			resize(m_ring.length * 2);
+		}
+		/* Insert from the tail, usually without moving anything */
+		long tuid = tuid(row);
+		int pos = m_size;
+		while (pos > 0 && tuid(get(pos - 1)) > tuid) {
+			set(pos, get(pos - 1));
+			pos--;
+		}
+		set(pos, row);
+		m_size++;
+	}
+
+	@Override
+	synchronized int size() {
+		return m_size;
+	}
+
+	@Override
+	synchronized List<Object[]> getRows() {
+		List<Object[]> rows = new ArrayList<Object[]>(m_size);
+		for (int i = 0; i < m_size; i++) {
+			rows.add(get(i));
+		}
+		return rows;
+	}
+
+	@Override
+	synchronized void scan(MemoryQuery query) {
+		for (int i = firstIndex(query.getMinTUID()); i < m_size; i++) {
+			if (!query.offer(get(i))) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Removes the rows inserted before the cut off time, stopping at the first row which is too new or which has not
+	 * yet been streamed to all consumers.
+	 *
+	 * @param lastReadTUID
+	 *            Last RgmaTUID streamed to all consumers or -1 if there are no consumers
+	 * @return The number of rows removed
+	 */
+	synchronized int deleteByHRP(Timestamp cutOff, int lastReadTUID) {
+		int count = 0;
+		while (m_size > 0) {
+			Object[] row = get(0);
+			Timestamp insertTime = (Timestamp) row[m_insertTimeColumn];
+			if (!insertTime.before(cutOff) || (lastReadTUID >= 0 && tuid(row) > lastReadTUID)) {
+				break;
+			}
+			removeHead();
+			count++;
+		}
+		shrink();
+		return count;
+	}
+
+	/**
+	 * Removes the rows with an RgmaTUID from <code>minTUID</code> to <code>maxTUID</code>.
+	 *
+	 * @return The number of rows removed
+	 */
+	synchronized int deleteByTUID(int minTUID, int maxTUID) {
+		int first = firstIndex(minTUID);
+		int end = firstIndex(maxTUID + 1L);
+		int count = end - first;
+		if (first == 0) {
+			for (int i = 0; i < count; i++) {
+				removeHead();
+			}
+		} else if (count > 0) {
+			for (int i = end; i < m_size; i++) {
+				set(i - count, get(i));
+			}
+			for (int i = m_size - count; i < m_size; i++) {
+				set(i, null);
+			}
+			m_size -= count;
+		}
+		shrink();
+		return count;
+	}
+
+	private void removeHead() {
+		m_ring[m_head] = null;
+		m_head = (m_head + 1) & (m_ring.length - 1);
+		m_size--;
+	}
+
+	private void shrink() {
+		if (m_ring.length > MIN_CAPACITY && m_size < m_ring.length / 4) {
+			resize(Math.max(MIN_CAPACITY, m_ring.length / 2));
+		}
+	}
+
+	/**
+	 * Returns the RgmaTUID of the first row with an RgmaTimestamp at or after the start time, or 0 if there is none.
+	 */
+	synchronized int findFirstTupleID(Timestamp start) {
+		for (int i = 0; i < m_size; i++) {
+			Object[] row = get(i);
+			Object timestamp = row[m_timestampColumn];
+			if (timestamp != null && !((Timestamp) timestamp).before(start)) {
+				return (int) tuid(row);
+			}
+		}
+		return 0;
+	}
+
+	synchronized int getMaxTUID() {
+		return m_size == 0 ? 0 : (int) tuid(get(m_size - 1));
+	}
+
+	/**
+	 * Returns the index of the first row with an RgmaTUID of at least <code>minTUID</code>.
+	 */
+	private int firstIndex(long minTUID) {
+		int low = 0;
+		int high = m_size;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (tuid(get(mid)) < minTUID) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	private long tuid(Object[] row) {
+		return (Long) row[m_tuidColumn];
+	}
+
+	private Object[] get(int i) {
+		return m_ring[(m_head + i) & (m_ring.length - 1)];
+	}
+
+	private void set(int i, Object[] row) {
+		m_ring[(m_head + i) & (m_ring.length - 1)] = row;
+	}
+
+	private void resize(int capacity) {
+		Object[][] ring = new Object[capacity][];
+		for (int i = 0; i < m_size; i++) {
+			ring[i] = get(i);
+		}
+		m_ring = ring;
+		m_head = 0;
+	}
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2004.
+ * See http://eu-egee.org/partners/ for details on the copyright holders.
+ * For license conditions see the license file or http://eu-egee.org/license.html
+ */
+
+package org.glite.rgma.server.services.producer.store;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.glite.rgma.server.services.sql.ColumnDefinition;
+import org.glite.rgma.server.services.sql.CreateTableStatement;
+import org.glite.rgma.server.system.RGMAPermanentException;
+
+/**
+ * A latest table of a memory tuple store. The rows are held in a hash map by primary key so that the update made for
+ * each insert finds the row it replaces directly. A row is never changed once stored; an update stores a new copy. This
+ * class is thread safe.
+ */
+class MemoryLatestTable extends MemoryTable {
+
+	/** Rows by primary key */
+	private final Map<List<Object>, Object[]> m_rows = new LinkedHashMap<List<Object>, Object[]>();
+
+	/** Primary key columns */
+	private final int[] m_keyColumns;
+
+	/** Column holding the time at which a row is no longer the latest, or -1 */
+	private final int m_lrtColumn;
+
+	/** Column holding the time of the tuple, or -1 */
+	private final int m_timestampColumn;
+
+	/** Used as the key of each row of a table without a primary key */
+	private long m_rowCount;
+
+	MemoryLatestTable(CreateTableStatement definition) {
+		super(definition);
+		List<Integer> keyColumns = new ArrayList<Integer>();
+		List<ColumnDefinition> columns = definition.getColumns();
+		for (int i = 0; i < columns.size(); i++) {
+			if (columns.get(i).isPrimaryKey()) {
+				keyColumns.add(i);
+			}
+		}
+		m_keyColumns = new int[keyColumns.size()];
+		for (int i = 0; i < m_keyColumns.length; i++) {
+			m_keyColumns[i] = keyColumns.get(i);
+		}
+		m_lrtColumn = getColumnIndex(ReservedColumns.RGMA_LRT_COLUMN_NAME);
+		m_timestampColumn = getColumnIndex(ReservedColumns.RGMA_TIMESTAMP_COLUMN_NAME);
+	}
+
+	@Override
+	synchronized void insert(Object[] row) {
+		m_rows.put(key(row), row);
+	}
+
+	@Override
+	synchronized int size() {
+		return m_rows.size();
+	}
+
+	@Override
+	synchronized List<Object[]> getRows() {
+		return new ArrayList<Object[]>(m_rows.values());
+	}
+
+	@Override
+	synchronized void scan(MemoryQuery query) {
+		List<Object> key = lookupKey(query);
+		if (key != null) {
+			Object[] row = m_rows.get(key);
+			if (row != null) {
+				query.offer(row);
+			}
+		} else {
+			for (Object[] row : m_rows.values()) {
+				if (!query.offer(row)) {
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sets columns of the rows satisfying the WHERE clause of a query.
+	 *
+	 * @param columns
+	 *            Columns to set
+	 * @param values
+	 *            New values, already converted to the types of the columns
+	 * @return The number of rows updated
+	 */
+	synchronized int update(MemoryQuery where, int[] columns, Object[] values) {
+		List<List<Object>> matches = new ArrayList<List<Object>>();
+		List<Object> key = lookupKey(where);
+		if (key != null) {
+			Object[] row = m_rows.get(key);
+			if (row != null && where.matches(row)) {
+				matches.add(key);
+			}
+		} else {
+			for (Map.Entry<List<Object>, Object[]> entry : m_rows.entrySet()) {
+				if (where.matches(entry.getValue())) {
+					matches.add(entry.getKey());
+				}
+			}
+		}
+		for (List<Object> oldKey : matches) {
+			Object[] row = m_rows.get(oldKey);
+			Object[] newRow = new Object[row.length];
+			System.arraycopy(row, 0, newRow, 0, row.length);
+			for (int i = 0; i < columns.length; i++) {
+				newRow[columns[i]] = values[i];
+			}
+			/* An updated row moves to the end, as in HSQLDB */
+			m_rows.remove(oldKey);
+			m_rows.put(m_keyColumns.length == 0 ? oldKey : key(newRow), newRow);
+		}
+		return matches.size();
+	}
+
+	/**
+	 * Stores a row in place of the row with the same primary key, unless that one has a newer timestamp. As with an
+	 * update, a row with a NULL timestamp is neither replaced nor replaces another.
+	 */
+	synchronized void upsert(Object[] row) {
+		List<Object> key = key(row);
+		Object[] old = m_rows.get(key);
+		if (old != null && m_timestampColumn >= 0) {
+			Timestamp newTime = (Timestamp) row[m_timestampColumn];
+			Timestamp oldTime = (Timestamp) old[m_timestampColumn];
+			if (newTime == null || oldTime == null || newTime.before(oldTime)) {
+				return;
+			}
+		}
+		m_rows.put(key, row);
+	}
+
+	/**
+	 * Removes the rows whose latest retention period has expired.
+	 *
+	 * @return The number of rows removed
+	 */
+	synchronized int deleteByLRP(Timestamp now) {
+		if (m_lrtColumn < 0) {
+			return 0;
+		}
+		int count = 0;
+		Iterator<Object[]> iter = m_rows.values().iterator();
+		while (iter.hasNext()) {
+			Object lrt = iter.next()[m_lrtColumn];
+			if (lrt != null && ((Timestamp) lrt).before(now)) {
+				iter.remove();
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the primary key of the only row which can satisfy the query, or <code>null</code> if the WHERE clause
+	 * does not give a value for each key column.
+	 */
+	private List<Object> lookupKey(MemoryQuery query) {
+		if (m_keyColumns.length == 0) {
+			return null;
+		}
+		Object[] key = new Object[m_keyColumns.length];
+		for (int i = 0; i < key.length; i++) {
+			Object value = query.getEquality(m_keyColumns[i]);
+			if (value == null) {
+				return null;
+			}
+			/* The value must have the stored type to find the row */
+			try {
+				if (!value.equals(convert(getType(m_keyColumns[i]), value))) {
+					return null;
+				}
+			} catch (RGMAPermanentException e) {
+				return null;
+			}
+			key[i] = value;
+		}
+		return Arrays.asList(key);
+	}
+
+	private List<Object> key(Object[] row) {
+		if (m_keyColumns.length == 0) {
+			List<Object> key = new ArrayList<Object>(1);
+			key.add(m_rowCount++);
+			return key;
+		}
+		Object[] key = new Object[m_keyColumns.length];
+		for (int i = 0; i < key.length; i++) {
+			key[i] = row[m_keyColumns[i]];
+		}
+		return Arrays.asList(key);
+	}
+}
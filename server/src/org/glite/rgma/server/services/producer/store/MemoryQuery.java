@@ -0,0 +1,1015 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2004.
+ * See http://eu-egee.org/partners/ for details on the copyright holders.
+ * For license conditions see the license file or http://eu-egee.org/license.html
+ */
+
+package org.glite.rgma.server.services.producer.store;
+
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.glite.rgma.server.services.sql.Constant;
+import org.glite.rgma.server.services.sql.Expression;
+import org.glite.rgma.server.services.sql.ExpressionOrConstant;
+import org.glite.rgma.server.services.sql.OrderBy;
+import org.glite.rgma.server.services.sql.SelectItem;
+import org.glite.rgma.server.services.sql.SelectStatement;
+import org.glite.rgma.server.services.sql.DataType.Type;
+import org.glite.rgma.server.system.RGMAPermanentException;
+
+/**
+ * A query on one memory table evaluated in Java. Only queries on a single table without GROUP BY or aggregates are
+ * compiled; anything else is left to an SQL engine. SQL three-valued logic is followed, with a <code>null</code>
+ * Boolean standing for unknown. The rows satisfying the WHERE clause are passed to the query by the table through
+ * {@link #offer(Object[])}.
+ */
+class MemoryQuery {
+
+	/**
+	 * The rows returned by a query, with the RgmaTUID of each row if it was selected and 0 otherwise.
+	 */
+	static class Rows {
+
+		private final List<String[]> m_data = new ArrayList<String[]>();
+
+		private int[] m_tuids = new int[16];
+
+		private void add(String[] data, int tuid) {
+			if (m_data.size() == m_tuids.length) {
+				int[] tuids = new int[m_tuids.length * 2];
+				System.arraycopy(m_tuids, 0, tuids, 0, m_tuids.length);
+				m_tuids = tuids;
+			}
+			m_tuids[m_data.size()] = tuid;
+			m_data.add(data);
+		}
+
+		int size() {
+			return m_data.size();
+		}
+
+		String[] getData(int row) {
+			return m_data.get(row);
+		}
+
+		int getTUID(int row) {
+			return m_tuids[row];
+		}
+	}
+
+	/**
+	 * A limit on the values of a column set by the WHERE clause.
+	 */
+	static class Bound {
+
+		private final Object m_value;
+
+		private final boolean m_inclusive;
+
+		private Bound(Object value, boolean inclusive) {
+			m_value = value;
+			m_inclusive = inclusive;
+		}
+
+		Object getValue() {
+			return m_value;
+		}
+
+		boolean isInclusive() {
+			return m_inclusive;
+		}
+	}
+
+	/** Thrown while compiling a query which cannot be evaluated in Java */
+	@SuppressWarnings("serial")
+	private static class UnsupportedException extends Exception {}
+
+	private static final String RGMA_TUID_COLUMN_NAME = ReservedColumns.RGMA_TUID_COLUMN_NAME.toUpperCase();
+
+	private static final String RGMA_TUID_ONE_OFF_COLUMN_NAME = ReservedColumns.RGMA_TUID_ONE_OFF_COLUMN_NAME.toUpperCase();
+
+	private static final String RGMA_INSERT_TIME_COLUMN_NAME = ReservedColumns.RGMA_INSERT_TIME_COLUMN_NAME.toUpperCase();
+
+	/** Role of each selected value in the results */
+	private static final int OUTPUT = 0, TUID = 1, HIDDEN = 2;
+
+	private final MemoryTable m_table;
+
+	private Node m_where;
+
+	/** Selected values */
+	private final List<Node> m_select = new ArrayList<Node>();
+
+	/** Role of each selected value */
+	private int[] m_roles;
+
+	/** Number of selected values returned in each row */
+	private int m_outputCount;
+
+	private boolean m_distinct;
+
+	/** Sort keys, or null if the rows are returned in table order */
+	private Node[] m_orderBy;
+
+	private boolean[] m_ascending;
+
+	/** Lowest RgmaTUID allowed by the WHERE clause */
+	private long m_minTUID;
+
+	/** Values required by the WHERE clause for each column, or null where there is no such equality */
+	private Object[] m_equalities;
+
+	/** Lowest value allowed by the WHERE clause for each column, or null where there is no such bound */
+	private Bound[] m_lowerBounds;
+
+	/** Highest value allowed by the WHERE clause for each column, or null where there is no such bound */
+	private Bound[] m_upperBounds;
+
+	/** Maximum number of rows to return */
+	private int m_maxRows;
+
+	/** Rows to be sorted, when there is an ORDER BY */
+	private List<Object[]> m_matches;
+
+	private Rows m_rows;
+
+	/** Projected rows already returned, for DISTINCT */
+	private Set<List<Object>> m_seen;
+
+	private MemoryQuery(MemoryTable table) {
+		m_table = table;
+		m_equalities = new Object[table.getColumnCount()];
+		m_lowerBounds = new Bound[table.getColumnCount()];
+		m_upperBounds = new Bound[table.getColumnCount()];
+	}
+
+	/**
+	 * Compiles a SELECT statement on a table.
+	 *
+	 * @return The query or <code>null</code> if it cannot be evaluated in Java
+	 */
+	static MemoryQuery compile(SelectStatement select, MemoryTable table) {
+		if (select.getFrom().size() != 1 || select.getFrom().get(0).isJoin() || select.getTables().size() != 1 || select.getGroupBy() != null) {
+			return null;
+		}
+		MemoryQuery query = new MemoryQuery(table);
+		try {
+			query.compileWhere(select.getWhere());
+			List<Integer> roles = new ArrayList<Integer>();
+			for (SelectItem item : select.getSelect()) {
+				if (item.getAggregate() != null || item.isCountDistinct()) {
+					return null;
+				}
+				ExpressionOrConstant e = item.getExpression();
+				if (e instanceof Constant && ((Constant) e).getType() == Constant.Type.COLUMN_NAME) {
+					String name = ((Constant) e).getValue();
+					if (name.equals("*") || name.endsWith(".*")) {
+						for (int i = 0; i < table.getColumnCount(); i++) {
+							query.m_select.add(new Column(table, i));
+							roles.add(role(table.getColumnName(i)));
+						}
+						continue;
+					}
+				}
+				Node node = query.compile(e);
+				query.m_select.add(node);
+				roles.add(node instanceof Column ? role(table.getColumnName(((Column) node).m_index)) : OUTPUT);
+			}
+			query.m_roles = new int[roles.size()];
+			for (int i = 0; i < query.m_roles.length; i++) {
+				query.m_roles[i] = roles.get(i);
+				if (query.m_roles[i] == OUTPUT) {
+					query.m_outputCount++;
+				}
+			}
+			query.m_distinct = select.isDistinct();
+			List<OrderBy> orderBy = select.getOrderBy();
+			if (orderBy != null && orderBy.size() > 0) {
+				query.m_orderBy = new Node[orderBy.size()];
+				query.m_ascending = new boolean[orderBy.size()];
+				for (int i = 0; i < query.m_orderBy.length; i++) {
+					ExpressionOrConstant e = orderBy.get(i).getExpression();
+					if (e instanceof Constant && ((Constant) e).getType() == Constant.Type.NUMBER) {
+						/* Ordinal position */
+						return null;
+					}
+					query.m_orderBy[i] = query.compile(e);
+					query.m_ascending[i] = orderBy.get(i).getAscOrder();
+				}
+				/* A history table is already in TUID order */
+				if (query.m_orderBy.length == 1 && query.m_ascending[0] && table instanceof MemoryHistoryTable && query.m_orderBy[0] instanceof Column
+						&& ((Column) query.m_orderBy[0]).m_index == ((MemoryHistoryTable) table).getTUIDColumn()) {
+					query.m_orderBy = null;
+				}
+			}
+		} catch (UnsupportedException e) {
+			return null;
+		}
+		return query;
+	}
+
+	/**
+	 * Compiles a WHERE clause on a table, to select rows to be updated.
+	 *
+	 * @return The query or <code>null</code> if it cannot be evaluated in Java
+	 */
+	static MemoryQuery compileWhere(ExpressionOrConstant where, MemoryTable table) {
+		MemoryQuery query = new MemoryQuery(table);
+		try {
+			query.compileWhere(where);
+		} catch (UnsupportedException e) {
+			return null;
+		}
+		return query;
+	}
+
+	private static int role(String columnName) {
+		String name = columnName.toUpperCase();
+		if (name.endsWith(RGMA_TUID_COLUMN_NAME)) {
+			return TUID;
+		} else if (name.endsWith(RGMA_INSERT_TIME_COLUMN_NAME) || name.endsWith(RGMA_TUID_ONE_OFF_COLUMN_NAME)) {
+			return HIDDEN;
+		} else {
+			return OUTPUT;
+		}
+	}
+
+	/**
+	 * Runs the query on its table.
+	 *
+	 * @param maxRows
+	 *            Maximum number of rows to return
+	 */
+	Rows execute(int maxRows) {
+		m_maxRows = maxRows;
+		m_rows = new Rows();
+		m_seen = m_distinct ? new HashSet<List<Object>>() : null;
+		if (m_orderBy != null) {
+			m_matches = new ArrayList<Object[]>();
+		}
+		if (maxRows > 0) {
+			m_table.scan(this);
+		}
+		if (m_orderBy != null) {
+			Collections.sort(m_matches, new Comparator<Object[]>() {
+				public int compare(Object[] row1, Object[] row2) {
+					for (int i = 0; i < m_orderBy.length; i++) {
+						int c = compareForSort(m_orderBy[i].eval(row1), m_orderBy[i].eval(row2));
+						if (c != 0) {
+							return m_ascending[i] ? c : -c;
+						}
+					}
+					return 0;
+				}
+			});
+			for (Object[] row : m_matches) {
+				if (!project(row)) {
+					break;
+				}
+			}
+			m_matches = null;
+		}
+		Rows rows = m_rows;
+		m_rows = null;
+		m_seen = null;
+		return rows;
+	}
+
+	/**
+	 * Called by the table with each row which may satisfy the query, in TUID order for a history table.
+	 *
+	 * @return <code>false</code> if no more rows are wanted
+	 */
+	boolean offer(Object[] row) {
+		if (!matches(row)) {
+			return true;
+		}
+		if (m_orderBy != null) {
+			m_matches.add(row);
+			return true;
+		}
+		return project(row);
+	}
+
+	/**
+	 * Returns <code>true</code> if the row satisfies the WHERE clause.
+	 */
+	boolean matches(Object[] row) {
+		return m_where == null || Boolean.TRUE.equals(m_where.eval(row));
+	}
+
+	/**
+	 * Returns the selected values of a single row in the form returned by {@link #execute(int)}, or <code>null</code>
+	 * if the row does not satisfy the WHERE clause. DISTINCT and ORDER BY have no effect on one row. This may be
+	 * called by several threads at once.
+	 */
+	String[] evaluate(Object[] row) {
+		if (!matches(row)) {
+			return null;
+		}
+		return output(select(row));
+	}
+
+	/**
+	 * Returns the lowest RgmaTUID a row may have to satisfy the WHERE clause.
+	 */
+	long getMinTUID() {
+		return m_minTUID;
+	}
+
+	/**
+	 * Returns the value the WHERE clause requires a column to have, or <code>null</code> if it does not require a
+	 * single value.
+	 */
+	Object getEquality(int column) {
+		return m_equalities[column];
+	}
+
+	/**
+	 * Returns the lowest value the WHERE clause allows a column to have, or <code>null</code> if it sets no such bound.
+	 */
+	Bound getLowerBound(int column) {
+		return m_lowerBounds[column];
+	}
+
+	/**
+	 * Returns the highest value the WHERE clause allows a column to have, or <code>null</code> if it sets no such bound.
+	 */
+	Bound getUpperBound(int column) {
+		return m_upperBounds[column];
+	}
+
+	/**
+	 * Adds the selected values of a row to the results.
+	 *
+	 * @return <code>false</code> if no more rows are wanted
+	 */
+	private boolean project(Object[] row) {
+		Object[] values = select(row);
+		if (m_seen != null && !m_seen.add(Arrays.asList(values))) {
+			return true;
+		}
+		int tuid = 0;
+		for (int i = 0; i < values.length; i++) {
+			if (m_roles[i] == TUID && values[i] instanceof Number) {
+				tuid = ((Number) values[i]).intValue();
+			}
+		}
+		m_rows.add(output(values), tuid);
+		return m_rows.size() < m_maxRows;
+	}
+
+	private Object[] select(Object[] row) {
+		Object[] values = new Object[m_select.size()];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = m_select.get(i).eval(row);
+		}
+		return values;
+	}
+
+	/**
+	 * Returns the selected values which are returned to the caller, as strings.
+	 */
+	private String[] output(Object[] values) {
+		String[] data = new String[m_outputCount];
+		int n = 0;
+		for (int i = 0; i < values.length; i++) {
+			if (m_roles[i] == OUTPUT) {
+				data[n++] = MemoryTable.format(values[i]);
+			}
+		}
+		return data;
+	}
+
+	/**
+	 * Compiles the WHERE clause, noting the lowest RgmaTUID and any column values or ranges of values it requires.
+	 */
+	private void compileWhere(ExpressionOrConstant where) throws UnsupportedException {
+		if (where == null) {
+			return;
+		}
+		m_where = compile(where);
+		List<Node> conjuncts = new ArrayList<Node>();
+		addConjuncts(m_where, conjuncts);
+		int tuidColumn = m_table instanceof MemoryHistoryTable ? ((MemoryHistoryTable) m_table).getTUIDColumn() : -1;
+		for (Node node : conjuncts) {
+			if (node instanceof Between) {
+				Between b = (Between) node;
+				if (b.m_value instanceof Column && b.m_low instanceof Literal && b.m_high instanceof Literal && ((Literal) b.m_low).m_value != null
+						&& ((Literal) b.m_high).m_value != null) {
+					int index = ((Column) b.m_value).m_index;
+					addBound(m_lowerBounds, index, new Bound(((Literal) b.m_low).m_value, true), 1);
+					addBound(m_upperBounds, index, new Bound(((Literal) b.m_high).m_value, true), -1);
+				}
+				continue;
+			}
+			if (!(node instanceof Compare)) {
+				continue;
+			}
+			Compare c = (Compare) node;
+			String op = c.m_op;
+			Node column = c.m_left;
+			Node value = c.m_right;
+			if (!(column instanceof Column)) {
+				column = c.m_right;
+				value = c.m_left;
+				op = reverse(op);
+			}
+			if (!(column instanceof Column) || !(value instanceof Literal) || ((Literal) value).m_value == null) {
+				continue;
+			}
+			int index = ((Column) column).m_index;
+			Object v = ((Literal) value).m_value;
+			if (op.equals("=")) {
+				m_equalities[index] = v;
+			} else if (op.equals(">") || op.equals(">=")) {
+				addBound(m_lowerBounds, index, new Bound(v, op.equals(">=")), 1);
+			} else if (op.equals("<") || op.equals("<=")) {
+				addBound(m_upperBounds, index, new Bound(v, op.equals("<=")), -1);
+			}
+			if (index == tuidColumn && v instanceof Number) {
+				long min;
+				if (op.equals("=") || op.equals(">=")) {
+					min = (long) Math.ceil(((Number) v).doubleValue());
+				} else if (op.equals(">")) {
+					min = (long) Math.floor(((Number) v).doubleValue()) + 1;
+				} else {
+					continue;
+				}
+				m_minTUID = Math.max(m_minTUID, min);
+			}
+		}
+	}
+
+	/**
+	 * Keeps the tighter of two bounds on a column.
+	 *
+	 * @param direction
+	 *            1 for a lower bound and -1 for an upper bound
+	 */
+	private static void addBound(Bound[] bounds, int column, Bound bound, int direction) {
+		Bound old = bounds[column];
+		if (old != null) {
+			int c = compareValues(bound.m_value, old.m_value) * direction;
+			if (c < 0 || (c == 0 && !old.m_inclusive)) {
+				return;
+			}
+		}
+		bounds[column] = bound;
+	}
+
+	private static void addConjuncts(Node node, List<Node> conjuncts) {
+		if (node instanceof And) {
+			for (Node n : ((And) node).m_operands) {
+				addConjuncts(n, conjuncts);
+			}
+		} else {
+			conjuncts.add(node);
+		}
+	}
+
+	private static String reverse(String op) {
+		if (op.equals("<")) {
+			return ">";
+		} else if (op.equals(">")) {
+			return "<";
+		} else if (op.equals("<=")) {
+			return ">=";
+		} else if (op.equals(">=")) {
+			return "<=";
+		} else {
+			return op;
+		}
+	}
+
+	private Node compile(ExpressionOrConstant e) throws UnsupportedException {
+		if (e instanceof Constant) {
+			Constant c = (Constant) e;
+			if (c.getType() == Constant.Type.COLUMN_NAME || c.getType() == Constant.Type.UNKNOWN) {
+				int index = m_table.getColumnIndex(c.getValue());
+				if (index >= 0) {
+					return new Column(m_table, index);
+				} else if (c.getType() == Constant.Type.COLUMN_NAME) {
+					throw new UnsupportedException();
+				}
+			}
+			return new Literal(MemoryTable.literal(c));
+		} else if (!(e instanceof Expression)) {
+			throw new UnsupportedException();
+		}
+		Expression x = (Expression) e;
+		String op = x.getOperator().toUpperCase();
+		int n = x.nbOperands();
+		Node[] operands = new Node[n];
+		for (int i = 0; i < n; i++) {
+			operands[i] = compile(x.getOperand(i));
+		}
+		if ((op.equals("AND") || op.equals("OR")) && n > 0) {
+			return op.equals("AND") ? new And(operands) : new Or(operands);
+		} else if (op.equals("NOT") && n == 1) {
+			return new Not(operands[0]);
+		} else if (isRelop(op) && n == 2) {
+			return new Compare(op.equals("!=") || op.equals("#") ? "<>" : op, coerce(operands[0], operands[1]), coerce(operands[1], operands[0]));
+		} else if ((op.equals("BETWEEN") || op.equals("NOT BETWEEN")) && n == 3) {
+			Node between = new Between(operands[0], coerce(operands[1], operands[0]), coerce(operands[2], operands[0]));
+			return op.equals("BETWEEN") ? between : new Not(between);
+		} else if ((op.equals("IN") || op.equals("NOT IN")) && n > 1) {
+			for (int i = 1; i < n; i++) {
+				operands[i] = coerce(operands[i], operands[0]);
+			}
+			Node in = new In(operands);
+			return op.equals("IN") ? in : new Not(in);
+		} else if ((op.equals("LIKE") || op.equals("NOT LIKE")) && n == 2) {
+			Node like = new Like(operands[0], operands[1]);
+			return op.equals("LIKE") ? like : new Not(like);
+		} else if ((op.equals("IS NULL") || op.equals("IS NOT NULL")) && n == 1) {
+			return new IsNull(operands[0], op.equals("IS NULL"));
+		} else if ((op.equals("+") || op.equals("-")) && n == 1) {
+			return op.equals("+") ? operands[0] : new Negate(operands[0]);
+		} else if ((op.equals("+") || op.equals("-") || op.equals("*") || op.equals("/")) && n == 2) {
+			return new Arith(op.charAt(0), operands[0], operands[1]);
+		} else if (op.equals("**") && n > 1) {
+			Node node = operands[0];
+			for (int i = 1; i < n; i++) {
+				node = new Arith('^', node, operands[i]);
+			}
+			return node;
+		} else if (op.equals("||") && n == 2) {
+			return new Concat(operands[0], operands[1]);
+		}
+		throw new UnsupportedException();
+	}
+
+	private static boolean isRelop(String op) {
+		return op.equals("=") || op.equals("<>") || op.equals("!=") || op.equals("#") || op.equals("<") || op.equals(">") || op.equals("<=")
+				|| op.equals(">=");
+	}
+
+	/**
+	 * Converts a string literal compared with a column to the type of the column, so that it is converted once rather
+	 * than for each row.
+	 */
+	private static Node coerce(Node node, Node other) {
+		if (node instanceof Literal && other instanceof Column && ((Literal) node).m_value instanceof String) {
+			try {
+				return new Literal(MemoryTable.convert(((Column) other).m_type, ((Literal) node).m_value));
+			} catch (RGMAPermanentException e) {
+				// Leave it to be compared as a string
+			}
+		}
+		return node;
+	}
+
+	/**
+	 * Compares two values which may be of different types.
+	 *
+	 * @return The comparison or <code>null</code> if either value is NULL
+	 */
+	static Integer compareValues(Object a, Object b) {
+		if (a == null || b == null) {
+			return null;
+		}
+		if (a instanceof Number && b instanceof Number) {
+			if (a instanceof Long && b instanceof Long) {
+				long x = (Long) a;
+				long y = (Long) b;
+				return x < y ? -1 : (x == y ? 0 : 1);
+			}
+			return compareDoubles(((Number) a).doubleValue(), ((Number) b).doubleValue());
+		}
+		if (a instanceof java.util.Date && b instanceof java.util.Date) {
+			if (a instanceof Timestamp && b instanceof Timestamp) {
+				return ((Timestamp) a).compareTo((Timestamp) b);
+			}
+			long x = ((java.util.Date) a).getTime();
+			long y = ((java.util.Date) b).getTime();
+			return x < y ? -1 : (x == y ? 0 : 1);
+		}
+		if (a instanceof String && !(b instanceof String)) {
+			Integer c = compareValues(b, a);
+			return -c;
+		}
+		if (b instanceof String) {
+			if (a instanceof java.util.Date) {
+				try {
+					return compareValues(a, MemoryTable.convert(dateType(a), b));
+				} catch (RGMAPermanentException e) {
+					// Compare as strings
+				}
+			} else if (a instanceof Number) {
+				try {
+					return compareDoubles(((Number) a).doubleValue(), Double.parseDouble(((String) b).trim()));
+				} catch (NumberFormatException e) {
+					// Compare as strings
+				}
+			}
+		}
+		int c = a.toString().compareTo(b.toString());
+		return c < 0 ? -1 : (c == 0 ? 0 : 1);
+	}
+
+	private static int compareDoubles(double x, double y) {
+		return x < y ? -1 : (x == y ? 0 : 1);
+	}
+
+	private static Type dateType(Object value) {
+		if (value instanceof Timestamp) {
+			return Type.TIMESTAMP;
+		} else if (value instanceof Time) {
+			return Type.TIME;
+		} else {
+			return Type.DATE;
+		}
+	}
+
+	/**
+	 * Compares values for ORDER BY, with NULL before any other value.
+	 */
+	private static int compareForSort(Object a, Object b) {
+		if (a == null) {
+			return b == null ? 0 : -1;
+		} else if (b == null) {
+			return 1;
+		}
+		return compareValues(a, b);
+	}
+
+	private static Object toNumber(Object value) {
+		if (value instanceof String) {
+			String s = ((String) value).trim();
+			try {
+				return Long.valueOf(s);
+			} catch (NumberFormatException e) {
+				try {
+					return Double.valueOf(s);
+				} catch (NumberFormatException e1) {
+					return null;
+				}
+			}
+		}
+		return value instanceof Number ? value : null;
+	}
+
+	/** A compiled expression */
+	private static abstract class Node {
+		abstract Object eval(Object[] row);
+	}
+
+	private static class Column extends Node {
+
+		private final int m_index;
+
+		private final Type m_type;
+
+		Column(MemoryTable table, int index) {
+			m_index = index;
+			m_type = table.getType(index);
+		}
+
+		@Override
+		Object eval(Object[] row) {
+			return row[m_index];
+		}
+	}
+
+	private static class Literal extends Node {
+
+		private final Object m_value;
+
+		Literal(Object value) {
+			m_value = value;
+		}
+
+		@Override
+		Object eval(Object[] row) {
+			return m_value;
+		}
+	}
+
+	private static class And extends Node {
+
+		private final Node[] m_operands;
+
+		And(Node[] operands) {
+			m_operands = operands;
+		}
+
+		@Override
+		Object eval(Object[] row) {
+			Boolean result = Boolean.TRUE;
+			for (Node operand : m_operands) {
+				Object v = operand.eval(row);
+				if (Boolean.FALSE.equals(v)) {
+					return Boolean.FALSE;
+				} else if (v == null) {
+					result = null;
+				}
+			}
+			return result;
+		}
+	}
+
+	private static class Or extends Node {
+
+		private final Node[] m_operands;
+
+		Or(Node[] operands) {
+			m_operands = operands;
+		}
+
+		@Override
+		Object eval(Object[] row) {
+			Boolean result = Boolean.FALSE;
+			for (Node operand : m_operands) {
+				Object v = operand.eval(row);
+				if (Boolean.TRUE.equals(v)) {
+					return Boolean.TRUE;
+				} else if (v == null) {
+					result = null;
+				}
+			}
+			return result;
+		}
+	}
+
+	private static class Not extends Node {
+
+		private final Node m_operand;
+
+		Not(Node operand) {
+			m_operand = operand;
+		}
+
+		@Override
+		Object eval(Object[] row) {
+			Object v = m_operand.eval(row);
+			return v == null ? null : Boolean.valueOf(!Boolean.TRUE.equals(v));
+		}
+	}
+
+	private static class Compare extends Node {
+
+		private final String m_op;
+
+		private final Node m_left;
+
+		private final Node m_right;
+
+		Compare(String op, Node left, Node right) {
+			m_op = op;
+			m_left = left;
+			m_right = right;
+		}
+
+		@Override
+		Object eval(Object[] row) {
+			Integer c = compareValues(m_left.eval(row), m_right.eval(row));
+			if (c == null) {
+				return null;
+			} else if (m_op.equals("=")) {
+				return c == 0;
+			} else if (m_op.equals("<>")) {
+				return c != 0;
+			} else if (m_op.equals("<")) {
+				return c < 0;
+			} else if (m_op.equals(">")) {
+				return c > 0;
+			} else if (m_op.equals("<=")) {
+				return c <= 0;
+			} else {
+				return c >= 0;
+			}
+		}
+	}
+
+	private static class Between extends Node {
+
+		private final Node m_value;
+
+		private final Node m_low;
+
+		private final Node m_high;
+
+		Between(Node value, Node low, Node high) {
+			m_value = value;
+			m_low = low;
+			m_high = high;
+		}
+
+		@Override
+		Object eval(Object[] row) {
+			Object v = m_value.eval(row);
+			Integer low = compareValues(v, m_low.eval(row));
+			Integer high = compareValues(v, m_high.eval(row));
+			if ((low != null && low < 0) || (high != null && high > 0)) {
+				return Boolean.FALSE;
+			} else if (low == null || high == null) {
+				return null;
+			}
+			return Boolean.TRUE;
+		}
+	}
+
+	private static class In extends Node {
+
+		/** The value followed by the list */
+		private final Node[] m_operands;
+
+		In(Node[] operands) {
+			m_operands = operands;
+		}
+
+		@Override
+		Object eval(Object[] row) {
+			Object v = m_operands[0].eval(row);
+			if (v == null) {
+				return null;
+			}
+			Boolean result = Boolean.FALSE;
+			for (int i = 1; i < m_operands.length; i++) {
+				Integer c = compareValues(v, m_operands[i].eval(row));
+				if (c == null) {
+					result = null;
+				} else if (c == 0) {
+					return Boolean.TRUE;
+				}
+			}
+			return result;
+		}
+	}
+
+	private static class Like extends Node {
+
+		private final Node m_value;
+
+		private final Node m_pattern;
+
+		/** Compiled pattern if it is a constant */
+		private final Pattern m_regex;
+
+		Like(Node value, Node pattern) {
+			m_value = value;
+			m_pattern = pattern;
+			m_regex = pattern instanceof Literal && ((Literal) pattern).m_value != null ? toRegex(((Literal) pattern).m_value.toString()) : null;
+		}
+
+		private static Pattern toRegex(String pattern) {
+			StringBuilder regex = new StringBuilder();
+			StringBuilder literal = new StringBuilder();
+			for (int i = 0; i < pattern.length(); i++) {
+				char c = pattern.charAt(i);
+				if (c == '%' || c == '_') {
+					if (literal.length() > 0) {
+						regex.append(Pattern.quote(literal.toString()));
+						literal.setLength(0);
+					}
+					regex.append(c == '%' ? ".*" : ".");
+				} else {
+					literal.append(c);
+				}
+			}
+			if (literal.length() > 0) {
+				regex.append(Pattern.quote(literal.toString()));
+			}
+			return Pattern.compile(regex.toString(), Pattern.DOTALL);
+		}
+
+		@Override
+		Object eval(Object[] row) {
+			Object v = m_value.eval(row);
+			if (v == null) {
+				return null;
+			}
+			Pattern regex = m_regex;
+			if (regex == null) {
+				Object p = m_pattern.eval(row);
+				if (p == null) {
+					return null;
+				}
+				regex = toRegex(p.toString());
+			}
+			return regex.matcher(v.toString()).matches();
+		}
+	}
+
+	private static class IsNull extends Node {
+
+		private final Node m_operand;
+
+		private final boolean m_null;
+
+		IsNull(Node operand, boolean isNull) {
+			m_operand = operand;
+			m_null = isNull;
+		}
+
+		@Override
+		Object eval(Object[] row) {
+			return (m_operand.eval(row) == null) == m_null;
+		}
+	}
+
+	private static class Negate extends Node {
+
+		private final Node m_operand;
+
+		Negate(Node operand) {
+			m_operand = operand;
+		}
+
+		@Override
+		Object eval(Object[] row) {
+			Object v = toNumber(m_operand.eval(row));
+			if (v instanceof Long) {
+				return -(Long) v;
+			} else if (v instanceof Number) {
+				return -((Number) v).doubleValue();
+			}
+			return null;
+		}
+	}
+
+	private static class Arith extends Node {
+
+		/** One of + - * / or ^ for ** */
+		private final char m_op;
+
+		private final Node m_left;
+
+		private final Node m_right;
+
+		Arith(char op, Node left, Node right) {
+			m_op = op;
+			m_left = left;
+			m_right = right;
+		}
+
+		@Override
+		Object eval(Object[] row) {
+			Object a = toNumber(m_left.eval(row));
+			Object b = toNumber(m_right.eval(row));
+			if (a == null || b == null) {
+				return null;
+			}
+			if (a instanceof Long && b instanceof Long && m_op != '^') {
+				long x = (Long) a;
+				long y = (Long) b;
+				switch (m_op) {
+				case '+':
+					return x + y;
+				case '-':
+					return x - y;
+				case '*':
+					return x * y;
+				default:
+					return y == 0 ? null : Long.valueOf(x / y);
+				}
+			}
+			double x = ((Number) a).doubleValue();
+			double y = ((Number) b).doubleValue();
+			switch (m_op) {
+			case '+':
+				return x + y;
+			case '-':
+				return x - y;
+			case '*':
+				return x * y;
+			case '/':
+				return y == 0 ? null : Double.valueOf(x / y);
+			default:
+				return Math.pow(x, y);
+			}
+		}
+	}
+
+	private static class Concat extends Node {
+
+		private final Node m_left;
+
+		private final Node m_right;
+
+		Concat(Node left, Node right) {
+			m_left = left;
+			m_right = right;
+		}
+
+		@Override
+		Object eval(Object[] row) {
+			Object a = m_left.eval(row);
+			Object b = m_right.eval(row);
+			if (a == null || b == null) {
+				return null;
+			}
+			return a.toString() + b.toString();
+		}
+	}
+}
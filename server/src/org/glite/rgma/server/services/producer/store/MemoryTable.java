@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2004.
+ * See http://eu-egee.org/partners/ for details on the copyright holders.
+ * For license conditions see the license file or http://eu-egee.org/license.html
+ */
+
+package org.glite.rgma.server.services.producer.store;
+
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.glite.rgma.server.services.sql.ColumnDefinition;
+import org.glite.rgma.server.services.sql.Constant;
+import org.glite.rgma.server.services.sql.CreateTableStatement;
+import org.glite.rgma.server.services.sql.InsertStatement;
+import org.glite.rgma.server.services.sql.DataType.Type;
+import org.glite.rgma.server.system.RGMAPermanentException;
+
+/**
+ * A physical table of a memory tuple store held as Java objects. Each row is an array of values in column order: Long
+ * for INTEGER, Double for REAL and DOUBLE PRECISION, java.sql.Date, Time or Timestamp for the date and time types and
+ * String for CHAR and VARCHAR, with null for NULL.
+ */
+abstract class MemoryTable {
+
+	/** Definition of the table with its physical name */
+	private final CreateTableStatement m_definition;
+
+	/** Type of each column */
+	private final Type[] m_types;
+
+	/** Column number by upper case column name */
+	private final Map<String, Integer> m_columnIndexes = new HashMap<String, Integer>();
+
+	MemoryTable(CreateTableStatement definition) {
+		m_definition = definition;
+		List<ColumnDefinition> columns = definition.getColumns();
+		m_types = new Type[columns.size()];
+		for (int i = 0; i < m_types.length; i++) {
+			ColumnDefinition column = columns.get(i);
+			m_types[i] = column.getType().getType();
+			m_columnIndexes.put(column.getName().toUpperCase(), i);
+		}
+	}
+
+	/**
+	 * Converts a value to the Java object stored for a column of the given type.
+	 *
+	 * @return The converted value or <code>null</code> for NULL
+	 * @throws RGMAPermanentException
+	 *             if the value cannot be converted
+	 */
+	static Object convert(Type type, Object value) throws RGMAPermanentException {
+		if (value == null) {
+			return null;
+		}
+		try {
+			switch (type) {
+			case INTEGER:
+			case BIGINT:
+				if (value instanceof Long) {
+					return value;
+				} else if (value instanceof Number) {
+					return Math.round(((Number) value).doubleValue());
+				}
+				String s = value.toString().trim();
+				try {
+					return Long.valueOf(s);
+				} catch (NumberFormatException e) {
+					return Math.round(Double.parseDouble(s));
+				}
+			case REAL:
+			case DOUBLE_PRECISION:
+				if (value instanceof Double) {
+					return value;
+				} else if (value instanceof Number) {
+					return ((Number) value).doubleValue();
+				}
+				return Double.valueOf(value.toString().trim());
+			case DATE:
+				if (value instanceof java.util.Date) {
+					return new java.sql.Date(((java.util.Date) value).getTime());
+				}
+				return java.sql.Date.valueOf(value.toString().trim());
+			case TIME:
+				if (value instanceof java.util.Date) {
+					return new Time(((java.util.Date) value).getTime());
+				}
+				return Time.valueOf(value.toString().trim());
+			case TIMESTAMP:
+				if (value instanceof Timestamp) {
+					return value;
+				} else if (value instanceof java.util.Date) {
+					return new Timestamp(((java.util.Date) value).getTime());
+				}
+				String t = value.toString().trim();
+				if (t.indexOf(' ') < 0) {
+					t = t + " 00:00:00";
+				}
+				return Timestamp.valueOf(t);
+			default:
+				return value.toString();
+			}
+		} catch (IllegalArgumentException e) {
+			throw new RGMAPermanentException("Invalid " + type + " value '" + value + "'");
+		}
+	}
+
+	/**
+	 * Returns the value of a constant from a parsed statement: a Long or Double for a number, a String for a string
+	 * and <code>null</code> for NULL. A constant of unknown type, such as a quoted timestamp added by the tuple store,
+	 * is returned as a String without the quotes.
+	 */
+	static Object literal(Constant constant) {
+		if (constant.isNull()) {
+			return null;
+		}
+		String value = constant.getValue();
+		switch (constant.getType()) {
+		case NUMBER:
+			if (value.indexOf('.') < 0 && value.indexOf('e') < 0 && value.indexOf('E') < 0) {
+				try {
+					return Long.valueOf(value);
+				} catch (NumberFormatException e) {
+					// Too big for a long
+				}
+			}
+			return Double.valueOf(value);
+		case UNKNOWN:
+			if (value.length() >= 2 && value.charAt(0) == '\'' && value.charAt(value.length() - 1) == '\'') {
+				return value.substring(1, value.length() - 1).replace("''", "'");
+			}
+			return value;
+		default:
+			return value;
+		}
+	}
+
+	/**
+	 * Returns the string form of a stored value, as HSQLDB would return it, or <code>null</code> for NULL.
+	 */
+	static String format(Object value) {
+		if (value instanceof Timestamp) {
+			/* With all nine digits of the nanoseconds */
+			String s = value.toString();
+			int dot = s.lastIndexOf('.');
+			String nanos = Integer.toString(1000000000 + ((Timestamp) value).getNanos());
+			return s.substring(0, dot + 1) + nanos.substring(1);
+		}
+		return value == null ? null : value.toString();
+	}
+
+	/**
+	 * Returns a stored value as an SQL constant.
+	 */
+	static Constant toConstant(Object value) {
+		if (value == null) {
+			return new Constant("NULL", Constant.Type.NULL);
+		} else if (value instanceof Number) {
+			return new Constant(value.toString(), Constant.Type.NUMBER);
+		} else {
+			return new Constant(value.toString(), Constant.Type.STRING);
+		}
+	}
+
+	String getName() {
+		return m_definition.getTableName();
+	}
+
+	CreateTableStatement getDefinition() {
+		return m_definition;
+	}
+
+	int getColumnCount() {
+		return m_types.length;
+	}
+
+	Type getType(int column) {
+		return m_types[column];
+	}
+
+	String getColumnName(int column) {
+		return m_definition.getColumns().get(column).getName();
+	}
+
+	/**
+	 * Returns the number of a column from its name, which may be qualified by a table name or alias.
+	 *
+	 * @return The column number or -1 if there is no such column
+	 */
+	int getColumnIndex(String name) {
+		int dot = name.lastIndexOf('.');
+		if (dot >= 0) {
+			name = name.substring(dot + 1);
+		}
+		Integer i = m_columnIndexes.get(name.toUpperCase());
+		return i == null ? -1 : i;
+	}
+
+	/**
+	 * Makes a row from an insert statement. Columns not named by the insert are NULL.
+	 */
+	Object[] makeRow(InsertStatement insert) throws RGMAPermanentException {
+		Object[] row = new Object[m_types.length];
+		Iterator<Constant> values = insert.getColumnValues().iterator();
+		for (String name : insert.getColumnNames()) {
+			int i = getColumnIndex(name);
+			if (i < 0) {
+				throw new RGMAPermanentException("Column '" + name + "' is not defined in table " + getName());
+			}
+			row[i] = convert(m_types[i], literal(values.next()));
+		}
+		return row;
+	}
+
+	/**
+	 * Returns a copy of the rows as lists of SQL constants, to load the table into an SQL engine.
+	 */
+	List<List<Constant>> getConstants() {
+		List<Object[]> rows = getRows();
+		List<List<Constant>> result = new ArrayList<List<Constant>>(rows.size());
+		for (Object[] row : rows) {
+			List<Constant> values = new ArrayList<Constant>(row.length);
+			for (Object value : row) {
+				values.add(toConstant(value));
+			}
+			result.add(values);
+		}
+		return result;
+	}
+
+	/**
+	 * Adds a row to the table.
+	 */
+	abstract void insert(Object[] row);
+
+	/**
+	 * Returns the number of rows in the table.
+	 */
+	abstract int size();
+
+	/**
+	 * Returns a snapshot of the rows of the table.
+	 */
+	abstract List<Object[]> getRows();
+
+	/**
+	 * Passes the rows which may satisfy a query, in TUID order for a history table, to the query until it has enough.
+	 */
+	abstract void scan(MemoryQuery query);
+}
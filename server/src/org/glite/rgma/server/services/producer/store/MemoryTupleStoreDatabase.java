@@ -0,0 +1,475 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2004.
+ * See http://eu-egee.org/partners/ for details on the copyright holders.
+ * For license conditions see the license file or http://eu-egee.org/license.html
+ */
+
+package org.glite.rgma.server.services.producer.store;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.glite.rgma.server.services.sql.ColumnDefinition;
+import org.glite.rgma.server.services.sql.Constant;
+import org.glite.rgma.server.services.sql.CreateIndexStatement;
+import org.glite.rgma.server.services.sql.CreateTableStatement;
+import org.glite.rgma.server.services.sql.Expression;
+import org.glite.rgma.server.services.sql.ExpressionOrConstant;
+import org.glite.rgma.server.services.sql.InsertStatement;
+import org.glite.rgma.server.services.sql.SelectStatement;
+import org.glite.rgma.server.services.sql.TableNameAndAlias;
+import org.glite.rgma.server.services.sql.TableReference;
+import org.glite.rgma.server.services.sql.UpdateStatement;
+import org.glite.rgma.server.system.NumericException;
+import org.glite.rgma.server.system.RGMAPermanentException;
+import org.glite.rgma.server.system.ResourceEndpoint;
+import org.glite.rgma.server.system.TupleSet;
+import org.glite.rgma.server.system.TupleSetWithLastTUID;
+
+/**
+ * Memory implementation of TupleStoreDatabase which holds the tuples as Java objects rather than in an SQL database.
+ * History tables are ring buffers in RgmaTUID order and latest tables are hash maps keyed by primary key. Queries on a
+ * single table without GROUP BY or aggregates, which includes all continuous queries and the statements issued for each
+ * insert, are evaluated in Java. Any other query is run by HSQLDB on a copy of the tables it uses, so it costs a full
+ * copy of those tables each time and such queries are run one at a time.
+ */
+public class MemoryTupleStoreDatabase extends TupleStoreDatabaseBase implements TupleStoreDatabase {
+
+	/**
+	 * Results of a one-time query, either held here or in a cursor of the HSQLDB database.
+	 */
+	private static class MemoryOneTimeCursor {
+
+		/** Results, or null if they are held by HSQLDB */
+		private MemoryQuery.Rows m_rows;
+
+		/** Index of next tuple to return. */
+		private int m_currentIndex;
+
+		/** Cursor of the HSQLDB database holding the results */
+		private int m_hsqldbCursorID;
+
+		private synchronized TupleSetWithLastTUID fetch(int maxRows) {
+			int tuplesLeft = m_rows.size() - m_currentIndex;
+			boolean endOfResults = maxRows >= tuplesLeft;
+			maxRows = Math.min(maxRows, tuplesLeft);
+			TupleSet ts = new TupleSet();
+			int lastTUID = 0;
+			for (int i = m_currentIndex; i < m_currentIndex + maxRows; i++) {
+				ts.addRow(m_rows.getData(i));
+				lastTUID = m_rows.getTUID(i);
+			}
+			m_currentIndex += maxRows;
+			ts.setEndOfResults(endOfResults);
+			return new TupleSetWithLastTUID(ts, lastTUID);
+		}
+	}
+
+	/** Tables by physical name */
+	private final Map<String, MemoryTable> m_tables = new HashMap<String, MemoryTable>();
+
+	/** Mapping from cursor ID to Cursor objects. */
+	private final Map<Integer, MemoryOneTimeCursor> m_cursors = new HashMap<Integer, MemoryOneTimeCursor>();
+
+	/** PT number to allocate next */
+	private int m_ptn;
+
+	/** Runs the queries which are not evaluated here - created when first needed */
+	private HSQLDBTupleStoreDatabase m_hsqldb;
+
+	/** Held while tables are copied into HSQLDB and queried there, and guarding m_hsqldb */
+	private final Object m_hsqldbLock = new Object();
+
+	private final AtomicLong m_nativeQueryCount = new AtomicLong();
+
+	private final AtomicLong m_hsqldbQueryCount = new AtomicLong();
+
+	public MemoryTupleStoreDatabase() {
+		m_currentCursorID = 0;
+	}
+
+	/**
+	 * Removes the cursor from the list of cursors and closes it.
+	 */
+	public void closeCursor(int cursorID) throws RGMAPermanentException {
+		MemoryOneTimeCursor cursor;
+		synchronized (m_cursors) {
+			cursor = m_cursors.remove(cursorID);
+		}
+		if (cursor != null && cursor.m_rows == null) {
+			getHSQLDB().closeCursor(cursor.m_hsqldbCursorID);
+		}
+	}
+
+	public void closeTupleStore(List<String> physicalTableNames, boolean permanent) {
+		synchronized (m_tables) {
+			for (String ptn : physicalTableNames) {
+				m_tables.remove(ptn.toUpperCase());
+			}
+		}
+	}
+
+	public int count(String tableName) {
+		MemoryTable table = findTable(tableName);
+		return table == null ? 0 : table.size();
+	}
+
+	/**
+	 * No index is needed as rows are found by RgmaTUID in history tables and by primary key in latest tables.
+	 */
+	public void createIndex(CreateIndexStatement cis) {}
+
+	public String createTable(String ownerDN, String logicalName, String vdbTableName, String tableType, CreateTableStatement cts) {
+		String physicalTableName;
+		synchronized (m_tables) {
+			physicalTableName = "PT" + m_ptn++;
+			CreateTableStatement pcts = new CreateTableStatement(physicalTableName);
+			pcts.setColumns(new ArrayList<ColumnDefinition>(cts.getColumns()));
+			MemoryTable table;
+			if (tableType.equals("H")) {
+				pcts.getColumns().add(ReservedColumns.RGMA_INSERT_TIME_COLUMN);
+				pcts.getColumns().add(ReservedColumns.RGMA_TUID_COLUMN);
+				table = new MemoryHistoryTable(pcts);
+			} else {
+				table = new MemoryLatestTable(pcts);
+			}
+			m_tables.put(physicalTableName, table);
+		}
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("Physical table '" + physicalTableName + "' created for " + tableType + " '" + vdbTableName + "' " + logicalName + "/[" + ownerDN + ']');
+		}
+		return physicalTableName;
+	}
+
+	/**
+	 * Deletes all tuples older than maxAgeSecs that have been streamed to all known consumers, by advancing the head of
+	 * the ring buffer. The lastReadTUID may be -1 if there are no consumers or > 0 to indicate the last tupleID
+	 * streamed to all known consumers. It will not be called if has the value 0
+	 */
+	public int deleteByHRP(String tableName, int maxAgeSecs, int lastReadTUID) throws RGMAPermanentException {
+		if (lastReadTUID == 0) {
+			throw new RGMAPermanentException("deleteByHRP does not accept 0 for lastReadTUID");
+		}
+		MemoryTable table = findTable(tableName);
+		if (table == null) {
+			LOG.debug("Unable to delete from table " + tableName + " as it no longer exists");
+			return 0;
+		}
+		return getHistoryTable(tableName, table).deleteByHRP(new Timestamp(System.currentTimeMillis() - maxAgeSecs * 1000L), lastReadTUID);
+	}
+
+	/**
+	 * Advances the head of the ring buffer past the rows with an RgmaTUID from minTUID to maxTUID, or closes the gap
+	 * they leave if there are older rows.
+	 */
+	public int deleteByTUID(String tableName, int minTUID, int maxTUID) throws RGMAPermanentException {
+		MemoryTable table = findTable(tableName);
+		if (table == null) {
+			LOG.debug("Unable to delete from table " + tableName + " as it no longer exists");
+			return 0;
+		}
+		return getHistoryTable(tableName, table).deleteByTUID(minTUID, maxTUID);
+	}
+
+	public int deleteByLRP(String tableName) throws RGMAPermanentException {
+		MemoryTable table = findTable(tableName);
+		if (table == null) {
+			LOG.debug("Unable to delete from table " + tableName + " as it no longer exists");
+			return 0;
+		}
+		return getLatestTable(tableName, table).deleteByLRP(new Timestamp(System.currentTimeMillis()));
+	}
+
+	public void dropTupleStore(String ownerDN, String logicalName) throws RGMAPermanentException {
+		throw new RGMAPermanentException("dropTupleStore should not be called");
+	}
+
+	public TupleSetWithLastTUID fetch(int cursorID, int maxRows) throws RGMAPermanentException {
+		MemoryOneTimeCursor cursor;
+		synchronized (m_cursors) {
+			cursor = m_cursors.get(cursorID);
+		}
+		if (cursor == null) {
+			throw new RGMAPermanentException("Cursor " + cursorID + " does not exist.");
+		}
+		if (cursor.m_rows == null) {
+			return getHSQLDB().fetch(cursor.m_hsqldbCursorID, maxRows);
+		}
+		TupleSetWithLastTUID rs = cursor.fetch(maxRows);
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("Fetched " + rs.getTupleSet().size() + " tuples from cursor " + cursorID);
+		}
+		return rs;
+	}
+
+	public int findFirstTupleID(String physicalTableName, long startTimeMS) throws RGMAPermanentException {
+		int firstTupleID = getHistoryTable(physicalTableName, getTable(physicalTableName)).findFirstTupleID(new Timestamp(startTimeMS));
+		if (firstTupleID != 0 && LOG.isDebugEnabled()) {
+			LOG.debug("Found first tuple ID in database: " + firstTupleID);
+		}
+		return firstTupleID;
+	}
+
+	public Map<ResourceEndpoint, Integer> getConsumerTUIDs(String physicalTableName) {
+		return new HashMap<ResourceEndpoint, Integer>();
+	}
+
+	public TupleSetWithLastTUID getContinuous(SelectStatement select, int nextTupleID, int maxCount) throws RGMAPermanentException {
+		SelectStatement continuous = new SelectStatement(select);
+		ExpressionOrConstant tupleIDPredicate = new Expression(">=", ReservedColumns.RGMA_TUID_COLUMN_CONSTANT, new Constant(nextTupleID + "",
+				Constant.Type.NUMBER));
+		if (select.getWhere() != null) {
+			continuous.addWhere(new Expression("AND", select.getWhere(), tupleIDPredicate));
+		} else {
+			continuous.addWhere(tupleIDPredicate);
+		}
+		MemoryQuery query = compile(continuous);
+		if (query == null) {
+			synchronized (m_hsqldbLock) {
+				createSnapshots(select);
+				try {
+					return getHSQLDB().getContinuous(select, nextTupleID, maxCount);
+				} finally {
+					dropSnapshots(select);
+				}
+			}
+		}
+		return toTupleSet(query.execute(maxCount));
+	}
+
+	public int getMaxTUID(String physicalTableName) throws RGMAPermanentException {
+		return getHistoryTable(physicalTableName, getTable(physicalTableName)).getMaxTUID();
+	}
+
+	public void insert(InsertStatement insertStatement) throws RGMAPermanentException {
+		MemoryTable table = getTable(insertStatement.getTableName().getTableName());
+		table.insert(table.makeRow(insertStatement));
+	}
+
+	public void insert(List<InsertStatement> insertStatements) throws RGMAPermanentException {
+		int executed = 0;
+		try {
+			for (InsertStatement insertStatement : insertStatements) {
+				insert(insertStatement);
+				executed++;
+			}
+		} catch (RGMAPermanentException e) {
+			e.setNumSuccessfulOps(executed);
+			throw e;
+		}
+	}
+
+	public List<TupleStoreDetails> listTupleStores(String userDN) {
+		return new ArrayList<TupleStoreDetails>();
+	}
+
+	/**
+	 * Runs the query and keeps the results to be fetched in chunks.
+	 */
+	public int openCursor(SelectStatement selectStatement) throws RGMAPermanentException, NumericException {
+		int cursorID = nextCursorID();
+		MemoryOneTimeCursor cursor = new MemoryOneTimeCursor();
+		MemoryQuery query = compile(selectStatement);
+		if (query == null) {
+			synchronized (m_hsqldbLock) {
+				createSnapshots(selectStatement);
+				try {
+					cursor.m_hsqldbCursorID = getHSQLDB().openCursor(selectStatement);
+				} finally {
+					dropSnapshots(selectStatement);
+				}
+			}
+		} else {
+			cursor.m_rows = query.execute(Integer.MAX_VALUE);
+		}
+		synchronized (m_cursors) {
+			m_cursors.put(cursorID, cursor);
+		}
+		return cursorID;
+	}
+
+	public TupleSetWithLastTUID select(SelectStatement selectStatement) throws RGMAPermanentException {
+		MemoryQuery query = compile(selectStatement);
+		if (query == null) {
+			synchronized (m_hsqldbLock) {
+				createSnapshots(selectStatement);
+				try {
+					return getHSQLDB().select(selectStatement);
+				} finally {
+					dropSnapshots(selectStatement);
+				}
+			}
+		}
+		return toTupleSet(query.execute(Integer.MAX_VALUE));
+	}
+
+	public void shutdown() throws RGMAPermanentException {
+		synchronized (m_tables) {
+			m_tables.clear();
+		}
+		synchronized (m_cursors) {
+			m_cursors.clear();
+		}
+		synchronized (m_hsqldbLock) {
+			if (m_hsqldb != null) {
+				m_hsqldb.shutdown();
+				m_hsqldb = null;
+			}
+		}
+		if (LOG.isInfoEnabled()) {
+			LOG.info("Memory tuple store database shut down having evaluated " + m_nativeQueryCount + " queries itself and " + m_hsqldbQueryCount
+					+ " with HSQLDB");
+		}
+	}
+
+	public void storeConsumerTUIDs(String physicalTableName, Map<ResourceEndpoint, Integer> consumerTUID) throws RGMAPermanentException {
+		throw new RGMAPermanentException("storeConsumerTUIDs should not be called");
+	}
+
+	/**
+	 * Replaces the row with the same primary key directly in the hash map of the latest table.
+	 */
+	public void upsertLatest(InsertStatement insert, List<ColumnDefinition> columns) throws RGMAPermanentException {
+		String tableName = insert.getTableName().getTableName();
+		MemoryLatestTable table = getLatestTable(tableName, getTable(tableName));
+		table.upsert(table.makeRow(insert));
+	}
+
+	/**
+	 * Sets columns of a latest table. The values must be constants.
+	 */
+	public int update(UpdateStatement updateStatement) throws RGMAPermanentException {
+		String tableName = updateStatement.getTableName().getTableName();
+		MemoryLatestTable table = getLatestTable(tableName, getTable(tableName));
+		Map<String, ExpressionOrConstant> set = updateStatement.getSet();
+		int[] columns = new int[set.size()];
+		Object[] values = new Object[set.size()];
+		int i = 0;
+		for (Map.Entry<String, ExpressionOrConstant> entry : set.entrySet()) {
+			columns[i] = table.getColumnIndex(entry.getKey());
+			if (columns[i] < 0) {
+				throw new RGMAPermanentException("Column '" + entry.getKey() + "' is not defined in table " + tableName);
+			}
+			if (!(entry.getValue() instanceof Constant)) {
+				throw new RGMAPermanentException("Only constant values may be set in a memory tuple store: " + updateStatement);
+			}
+			values[i] = MemoryTable.convert(table.getType(columns[i]), MemoryTable.literal((Constant) entry.getValue()));
+			i++;
+		}
+		MemoryQuery where = MemoryQuery.compileWhere(updateStatement.getWhere(), table);
+		if (where == null) {
+			throw new RGMAPermanentException("WHERE clause not supported by a memory tuple store: " + updateStatement);
+		}
+		return table.update(where, columns, values);
+	}
+
+	/**
+	 * Returns the query compiled for evaluation in Java, or <code>null</code> if it must be run by HSQLDB.
+	 */
+	private MemoryQuery compile(SelectStatement select) throws RGMAPermanentException {
+		MemoryQuery query = null;
+		List<TableReference> from = select.getFrom();
+		if (from.size() == 1 && !from.get(0).isJoin()) {
+			query = MemoryQuery.compile(select, getTable(from.get(0).getTable().getTableName()));
+		}
+		if (query == null) {
+			m_hsqldbQueryCount.incrementAndGet();
+		} else {
+			m_nativeQueryCount.incrementAndGet();
+		}
+		if (query == null && LOG.isDebugEnabled()) {
+			LOG.debug("Query will be run by HSQLDB: " + select);
+		}
+		return query;
+	}
+
+	/**
+	 * Copies the tables used by a query into HSQLDB, under the same names. Must be called holding m_hsqldbLock until the
+	 * copies are dropped.
+	 */
+	private void createSnapshots(SelectStatement select) throws RGMAPermanentException {
+		List<String> created = new ArrayList<String>();
+		try {
+			for (String name : getTableNames(select)) {
+				MemoryTable table = findTable(name);
+				if (table != null) {
+					getHSQLDB().createSnapshot(table.getDefinition(), table.getConstants());
+					created.add(name);
+				}
+			}
+		} catch (RGMAPermanentException e) {
+			getHSQLDB().closeTupleStore(created, false);
+			throw e;
+		}
+	}
+
+	private void dropSnapshots(SelectStatement select) throws RGMAPermanentException {
+		List<String> names = new ArrayList<String>();
+		for (String name : getTableNames(select)) {
+			if (findTable(name) != null) {
+				names.add(name);
+			}
+		}
+		getHSQLDB().closeTupleStore(names, false);
+	}
+
+	private static List<String> getTableNames(SelectStatement select) {
+		List<String> names = new ArrayList<String>();
+		for (TableNameAndAlias table : select.getTables()) {
+			String name = table.getTableName().toUpperCase();
+			if (!names.contains(name)) {
+				names.add(name);
+			}
+		}
+		return names;
+	}
+
+	private HSQLDBTupleStoreDatabase getHSQLDB() throws RGMAPermanentException {
+		synchronized (m_hsqldbLock) {
+			if (m_hsqldb == null) {
+				m_hsqldb = new HSQLDBTupleStoreDatabase();
+			}
+			return m_hsqldb;
+		}
+	}
+
+	private static TupleSetWithLastTUID toTupleSet(MemoryQuery.Rows rows) {
+		TupleSet ts = new TupleSet();
+		for (int i = 0; i < rows.size(); i++) {
+			ts.addRow(rows.getData(i));
+		}
+		return new TupleSetWithLastTUID(ts, rows.size() == 0 ? 0 : rows.getTUID(rows.size() - 1));
+	}
+
+	private MemoryTable findTable(String tableName) {
+		synchronized (m_tables) {
+			return m_tables.get(tableName.toUpperCase());
+		}
+	}
+
+	private MemoryTable getTable(String tableName) throws RGMAPermanentException {
+		MemoryTable table = findTable(tableName);
+		if (table == null) {
+			throw new RGMAPermanentException("Table " + tableName + " does not exist");
+		}
+		return table;
+	}
+
+	private static MemoryHistoryTable getHistoryTable(String tableName, MemoryTable table) throws RGMAPermanentException {
+		if (!(table instanceof MemoryHistoryTable)) {
+			throw new RGMAPermanentException("Table " + tableName + " is not a history table");
+		}
+		return (MemoryHistoryTable) table;
+	}
+
+	private static MemoryLatestTable getLatestTable(String tableName, MemoryTable table) throws RGMAPermanentException {
+		if (!(table instanceof MemoryLatestTable)) {
+			throw new RGMAPermanentException("Table " + tableName + " is not a latest table");
+		}
+		return (MemoryLatestTable) table;
+	}
+}
@@ -8,9 +8,11 @@ package org.glite.rgma.server.services.producer.store;
 
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -24,10 +26,14 @@ import javax.naming.ConfigurationException;
 
 import org.glite.rgma.server.services.database.MySQLConnection;
 import org.glite.rgma.server.services.sql.ColumnDefinition;
+import org.glite.rgma.server.services.sql.Constant;
 import org.glite.rgma.server.services.sql.CreateIndexStatement;
 import org.glite.rgma.server.services.sql.CreateTableStatement;
 import org.glite.rgma.server.services.sql.DataType;
+import org.glite.rgma.server.services.sql.Expression;
 import org.glite.rgma.server.services.sql.InsertStatement;
+import org.glite.rgma.server.services.sql.OrderBy;
+import org.glite.rgma.server.services.sql.SelectItem;
 import org.glite.rgma.server.services.sql.SelectStatement;
 import org.glite.rgma.server.services.sql.UpdateStatement;
 import org.glite.rgma.server.services.sql.DataType.Type;
@@ -42,14 +48,22 @@ import org.glite.rgma.server.system.Storage.StorageType;
  */
 public class MySQLTupleStoreDatabase extends TupleStoreDatabaseBase implements TupleStoreDatabase {
 
+	/** Maximum length of a multi-row INSERT, well below the default max_allowed_packet of MySQL */
+	private static final int MAX_INSERT_CHARS = 512 * 1024;
+
 	/**
-	 * Database cursor in MySQL, implemented using a DB table.
+	 * Database cursor in MySQL, implemented using a DB table. The result of a simple query on a history table is
+	 * instead read from that table a chunk at a time in RgmaTUID order. Tuples inserted after the cursor is opened are
+	 * not returned, but tuples removed by the history retention period before they are read are lost.
 	 */
 	private class MySQLOneTimeCursor {
 
 		/** Index of next tuple to return. */
 		private int m_currentIndex;
 
+		/** RgmaOneOffTUID of the last tuple returned, set by convertResultSet */
+		private final int[] m_lastOneOffTUID = { Integer.MIN_VALUE };
+
 		/** Cursor ID. */
 		private int m_id;
 
@@ -63,6 +77,18 @@ public class MySQLTupleStoreDatabase extends TupleStoreDatabaseBase implements T
 		/** Temporary table name. */
 		private String m_tableName;
 
+		/** Query read a chunk at a time, selecting RgmaTUID, or <code>null</code> if the temporary table is used */
+		private SelectStatement m_lazyQuery;
+
+		/** Highest RgmaTUID of the history table when the cursor was opened */
+		private int m_maxTUID;
+
+		/** RgmaTUID of the last tuple returned by the lazy query */
+		private int m_lastTUID;
+
+		/** Set once the lazy query has returned its last tuple */
+		private boolean m_endOfResults;
+
 		/**
 		 * Creates a new Cursor.
 		 * 
@@ -79,6 +105,16 @@ public class MySQLTupleStoreDatabase extends TupleStoreDatabaseBase implements T
 				m_selectStatement = selectStatement;
 				m_currentIndex = 0;
 				m_tableName = CURSOR_TABLE_PREFIX + m_id;
+				m_lazyQuery = getLazyQuery(selectStatement);
+				if (m_lazyQuery != null) {
+					String maxQuery = "SELECT " + ReservedColumns.RGMA_TUID_COLUMN_NAME + " FROM " + selectStatement.getFrom().get(0).getTable().getTableName()
+							+ " ORDER BY " + ReservedColumns.RGMA_TUID_COLUMN_NAME + " DESC LIMIT 1";
+					m_maxTUID = executeQuery(maxQuery, new ArrayList<Object>(0)).getLastTUID();
+					if (LOG.isDebugEnabled()) {
+						LOG.debug("Create cursor " + m_id + " reading up to RgmaTUID " + m_maxTUID + " with " + m_lazyQuery);
+					}
+					return;
+				}
 				m_numTuples = MySQLConnection.executeSimpleUpdate("CREATE TABLE " + m_tableName + " (" + ReservedColumns.RGMA_TUID_ONE_OFF_COLUMN_NAME
 						+ " integer auto_increment primary key) " + m_selectStatement);
 			} catch (SQLException e) {
@@ -103,11 +139,15 @@ public class MySQLTupleStoreDatabase extends TupleStoreDatabaseBase implements T
 		 */
 		synchronized void close() throws RGMAPermanentException {
 			if (m_active) {
-				try {
-					MySQLConnection.executeSimpleUpdate("DROP TABLE " + m_tableName);
+				if (m_lazyQuery != null) {
 					m_active = false;
-				} catch (SQLException e) {
-					// Ignore the error
+				} else {
+					try {
+						MySQLConnection.executeSimpleUpdate("DROP TABLE " + m_tableName);
+						m_active = false;
+					} catch (SQLException e) {
+						// Ignore the error
+					}
 				}
 				if (LOG.isDebugEnabled()) {
 					LOG.debug("Cursor " + m_tableName + " closed.");
@@ -120,7 +160,8 @@ public class MySQLTupleStoreDatabase extends TupleStoreDatabaseBase implements T
 		}
 
 		/**
-		 * Fetches at most <code>maxRows</code> rows from this cursor.
+		 * Fetches at most <code>maxRows</code> rows from this cursor. The rows are found from the last RgmaOneOffTUID
+		 * returned using the primary key of the table, so each chunk costs the same however far into the results it is.
 		 * 
 		 * @param maxRows
 		 *            Maximum number of rows to return.
@@ -128,18 +169,21 @@ public class MySQLTupleStoreDatabase extends TupleStoreDatabaseBase implements T
 		 * @throws SQLException
 		 * @throws RGMAPermanentException
 		 */
-		TupleSetWithLastTUID fetch(int maxRows) throws SQLException, RGMAPermanentException {
+		synchronized TupleSetWithLastTUID fetch(int maxRows) throws SQLException, RGMAPermanentException {
+			if (m_lazyQuery != null) {
+				return fetchLazy(maxRows);
+			}
 			int tuplesLeft = m_numTuples - m_currentIndex;
 			boolean endOfResults = maxRows >= tuplesLeft;
 			maxRows = Math.min(maxRows, tuplesLeft);
 			MySQLConnection con = new MySQLConnection();
 
 			try {
-				String select = "SELECT * FROM " + m_tableName + " ORDER BY " + ReservedColumns.RGMA_TUID_ONE_OFF_COLUMN_NAME + " LIMIT " + m_currentIndex
-						+ ", " + maxRows;
+				String select = "SELECT * FROM " + m_tableName + " WHERE " + ReservedColumns.RGMA_TUID_ONE_OFF_COLUMN_NAME + " > " + m_lastOneOffTUID[0]
+						+ " ORDER BY " + ReservedColumns.RGMA_TUID_ONE_OFF_COLUMN_NAME + " LIMIT " + maxRows;
 				java.sql.ResultSet resultSet = con.executeQuery(select);
 				m_currentIndex += maxRows;
-				TupleSetWithLastTUID rs = convertResultSet(resultSet);
+				TupleSetWithLastTUID rs = convertResultSet(resultSet, m_lastOneOffTUID);
 				TupleSet ts = rs.getTupleSet();
 				ts.setEndOfResults(endOfResults);
 				if (LOG.isDebugEnabled()) {
@@ -152,12 +196,97 @@ public class MySQLTupleStoreDatabase extends TupleStoreDatabaseBase implements T
 				}
 			}
 		}
+
+		/**
+		 * Fetches the next chunk of the result of the lazy query, using the index on RgmaTUID. One more row than is
+		 * wanted is asked for to find out whether this is the last chunk.
+		 */
+		private TupleSetWithLastTUID fetchLazy(int maxRows) throws SQLException, RGMAPermanentException {
+			if (m_endOfResults) {
+				TupleSet ts = new TupleSet();
+				ts.setEndOfResults(true);
+				return new TupleSetWithLastTUID(ts, m_lastTUID);
+			}
+			SelectStatement chunk = new SelectStatement(m_lazyQuery);
+			Expression range = new Expression("AND", new Expression(">", ReservedColumns.RGMA_TUID_COLUMN_CONSTANT, new Constant(Integer
+					.toString(m_lastTUID), Constant.Type.NUMBER)), new Expression("<=", ReservedColumns.RGMA_TUID_COLUMN_CONSTANT, new Constant(Integer
+					.toString(m_maxTUID), Constant.Type.NUMBER)));
+			if (chunk.getWhere() != null) {
+				chunk.addWhere(new Expression("AND", chunk.getWhere(), range));
+			} else {
+				chunk.addWhere(range);
+			}
+			List<OrderBy> orderBy = new ArrayList<OrderBy>(1);
+			orderBy.add(new OrderBy(ReservedColumns.RGMA_TUID_COLUMN_CONSTANT));
+			chunk.addOrderBy(orderBy);
+			MySQLConnection con = new MySQLConnection();
+			try {
+				java.sql.ResultSet resultSet = con.executeQuery(chunk + " LIMIT " + (maxRows + 1));
+				TupleSetWithLastTUID rs = convertResultSet(resultSet, maxRows);
+				TupleSet ts = rs.getTupleSet();
+				m_endOfResults = !resultSet.next();
+				ts.setEndOfResults(m_endOfResults);
+				if (ts.size() > 0) {
+					m_lastTUID = rs.getLastTUID();
+				}
+				if (LOG.isDebugEnabled()) {
+					LOG.debug("Fetched " + ts.size() + " tuples up to RgmaTUID " + m_lastTUID + " for cursor " + m_id);
+				}
+				return rs;
+			} finally {
+				con.close();
+			}
+		}
+	}
+
+	/**
+	 * Returns the query to read a chunk at a time for a one-time cursor, with RgmaTUID added to the columns selected
+	 * if need be, or <code>null</code> if the result must be copied into a temporary table. Only history tables can be
+	 * read in RgmaTUID order, which must not be renamed by the query.
+	 */
+	private SelectStatement getLazyQuery(SelectStatement select) {
+		if (!isLazyQuery(select) || !m_historyTables.contains(select.getFrom().get(0).getTable().getTableName())) {
+			return null;
+		}
+		boolean selectsTUID = false;
+		for (SelectItem item : select.getSelect()) {
+			String name = item.getExpression().toString();
+			int dot = name.lastIndexOf('.');
+			name = name.substring(dot + 1);
+			if (name.equals("*") || name.equalsIgnoreCase(ReservedColumns.RGMA_TUID_COLUMN_NAME)) {
+				if (item.getAlias() != null) {
+					return null;
+				}
+				selectsTUID = true;
+			}
+		}
+		SelectStatement lazy = new SelectStatement(select);
+		if (!selectsTUID) {
+			lazy.getSelect().add(new SelectItem(ReservedColumns.RGMA_TUID_COLUMN_NAME));
+		}
+		return lazy;
+	}
+
+	/**
+	 * Returns the names of the primary key columns.
+	 */
+	private static List<String> getKeyColumns(List<ColumnDefinition> columns) {
+		List<String> keyColumns = new ArrayList<String>();
+		for (ColumnDefinition cd : columns) {
+			if (cd.isPrimaryKey()) {
+				keyColumns.add(cd.getName());
+			}
+		}
+		return keyColumns;
 	}
 
 	/**
 	 * Translates a CreateTableStatement into a MySQL compatible String.
+	 * 
+	 * @param primaryKey
+	 *            If <code>true</code>, the primary key of the statement is declared
 	 */
-	private static String translateCreateTable(CreateTableStatement createTable) {
+	private static String translateCreateTable(CreateTableStatement createTable, boolean primaryKey) {
 
 		StringBuilder buf = new StringBuilder("CREATE TABLE " + createTable.getTableName() + " (");
 		boolean firstCol = true;
@@ -173,6 +302,22 @@ public class MySQLTupleStoreDatabase extends TupleStoreDatabaseBase implements T
 				buf.append(" NOT NULL");
 			}
 		}
+		if (primaryKey) {
+			List<String> keyColumns = getKeyColumns(createTable.getColumns());
+			if (keyColumns.size() > 0) {
+				buf.append(", PRIMARY KEY (");
+				boolean firstKey = true;
+				for (String name : keyColumns) {
+					if (firstKey) {
+						firstKey = false;
+					} else {
+						buf.append(", ");
+					}
+					buf.append(name);
+				}
+				buf.append(")");
+			}
+		}
 		buf.append(") CHARACTER SET latin1 COLLATE latin1_general_cs");
 		return buf.toString();
 	}
@@ -208,6 +353,12 @@ public class MySQLTupleStoreDatabase extends TupleStoreDatabaseBase implements T
 
 	private Random m_random;
 
+	/** History tables, which a one-time cursor can read in RgmaTUID order */
+	private final Set<String> m_historyTables = Collections.synchronizedSet(new HashSet<String>());
+
+	/** LATEST tables with a primary key, for which upsertLatest can use INSERT ... ON DUPLICATE KEY UPDATE */
+	private final Set<String> m_keyedLatestTables = Collections.synchronizedSet(new HashSet<String>());
+
 	public MySQLTupleStoreDatabase() throws RGMAPermanentException {
 		MySQLConnection con = null;
 		try {
@@ -440,13 +591,23 @@ public class MySQLTupleStoreDatabase extends TupleStoreDatabaseBase implements T
 					fixTable(con, existingTable, pcts, tableType);
 				}
 			} else {
-				con.executeUpdate(translateCreateTable(pcts));
+				createPhysicalTable(con, pcts, tableType);
 				addIndices(con, physicalTableName, tableType);
 				if (LOG.isDebugEnabled()) {
 					LOG.debug("Physical table '" + physicalTableName + "' created for " + tableType + " '" + vdbTableName + "' " + logicalName + "/[" + ownerDN
 							+ ']');
 				}
 			}
+			if (tableType.equals("H")) {
+				ensureTUIDIndex(con, physicalTableName);
+				m_historyTables.add(physicalTableName);
+			} else if (tableType.equals("L")) {
+				if (ensurePrimaryKey(con, pcts)) {
+					m_keyedLatestTables.add(physicalTableName);
+				} else {
+					m_keyedLatestTables.remove(physicalTableName);
+				}
+			}
 			return physicalTableName;
 		} catch (SQLException e) {
 			throw new RGMAPermanentException(e);
@@ -457,6 +618,70 @@ public class MySQLTupleStoreDatabase extends TupleStoreDatabaseBase implements T
 		}
 	}
 
+	/**
+	 * Creates a physical table. A LATEST table is given the primary key of the R-GMA table, if MySQL accepts it, so
+	 * that upsertLatest can bring it up to date with one statement.
+	 */
+	private void createPhysicalTable(MySQLConnection con, CreateTableStatement pcts, String tableType) throws SQLException, RGMAPermanentException {
+		if (tableType.equals("L")) {
+			try {
+				con.executeUpdate(translateCreateTable(pcts, true));
+				return;
+			} catch (SQLException e) {
+				LOG.warn("LATEST table " + pcts.getTableName() + " created without a primary key: " + e.getMessage());
+			}
+		}
+		con.executeUpdate(translateCreateTable(pcts, false));
+	}
+
+	/**
+	 * Adds an index on RgmaTUID to a history table if it does not have one, for continuous queries and for one-time
+	 * cursors which read the table in RgmaTUID order.
+	 */
+	private void ensureTUIDIndex(MySQLConnection con, String physicalTableName) throws SQLException, RGMAPermanentException {
+		String indexName = physicalTableName + "HTUIDIndex";
+		if (!con.executeQuery("SHOW INDEX FROM " + physicalTableName + " WHERE key_name='" + indexName + "'").next()) {
+			con.executeUpdate("CREATE INDEX " + indexName + " ON " + physicalTableName + "(" + ReservedColumns.RGMA_TUID_COLUMN_NAME + ")");
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("Index '" + indexName + "' created for " + physicalTableName + "(" + ReservedColumns.RGMA_TUID_COLUMN_NAME + ")");
+			}
+		}
+	}
+
+	/**
+	 * Adds the primary key of the R-GMA table to a LATEST table made before they were given one.
+	 * 
+	 * @return <code>true</code> if the table has a primary key
+	 */
+	private boolean ensurePrimaryKey(MySQLConnection con, CreateTableStatement pcts) throws SQLException, RGMAPermanentException {
+		String tableName = pcts.getTableName();
+		if (con.executeQuery("SHOW INDEX FROM " + tableName + " WHERE key_name='PRIMARY'").next()) {
+			return true;
+		}
+		List<String> keyColumns = getKeyColumns(pcts.getColumns());
+		if (keyColumns.size() == 0) {
+			return false;
+		}
+		StringBuilder alter = new StringBuilder("ALTER TABLE " + tableName + " ADD PRIMARY KEY (");
+		boolean first = true;
+		for (String name : keyColumns) {
+			if (first) {
+				first = false;
+			} else {
+				alter.append(", ");
+			}
+			alter.append(name);
+		}
+		alter.append(")");
+		try {
+			con.executeUpdate(alter.toString());
+			return true;
+		} catch (SQLException e) {
+			LOG.warn("Primary key not added to LATEST table " + tableName + ": " + e.getMessage());
+			return false;
+		}
+	}
+
 	private void addIndices(MySQLConnection con, String physicalTableName, String tableType) throws RGMAPermanentException, SQLException {
 		if (tableType.equals("H")) {
 			// create an index on RgmaInsertTime to aid cleanup
@@ -568,7 +793,7 @@ public class MySQLTupleStoreDatabase extends TupleStoreDatabaseBase implements T
 				sb.append(c);
 			}
 			needed.setTableName("TEMP");
-			con.executeUpdate(translateCreateTable(needed));
+			createPhysicalTable(con, needed, tableType);
 			needed.setTableName(tableName); /* Not really necessary - however the cts is passed into the method */
 			con.executeUpdate("INSERT INTO TEMP (" + sb + ") SELECT " + sb + " FROM " + tableName);
 			con.executeUpdate("DROP TABLE " + tableName);
@@ -576,7 +801,7 @@ public class MySQLTupleStoreDatabase extends TupleStoreDatabaseBase implements T
 			LOG.info("Table structure changed succesfully");
 		} else {
 			con.executeUpdate("DROP TABLE " + existingTable.getTableName());
-			con.executeUpdate(translateCreateTable(needed));
+			createPhysicalTable(con, needed, tableType);
 			LOG.info("Changes cannot be made - table dropped and recreated");
 		}
 
@@ -616,6 +841,23 @@ public class MySQLTupleStoreDatabase extends TupleStoreDatabaseBase implements T
 		}
 	}
 
+	/**
+	 * Uses the index on RgmaTUID of the history table.
+	 * 
+	 * @see TupleStoreDatabase#deleteByTUID(String, int, int)
+	 */
+	public int deleteByTUID(String tableName, int minTUID, int maxTUID) throws RGMAPermanentException {
+		try {
+			return MySQLConnection.executeSimpleUpdate("DELETE FROM " + tableName + " WHERE " + ReservedColumns.RGMA_TUID_COLUMN_NAME + " BETWEEN " + minTUID + " AND " + maxTUID);
+		} catch (SQLException e) {
+			if (e.getErrorCode() == 1146) {
+				LOG.debug("Unable to delete from table " + tableName + " as it no longer exists");
+				return 0;
+			}
+			throw new RGMAPermanentException(e);
+		}
+	}
+
 	/**
 	 * @throws RGMAPermanentException
 	 * @throws ConfigurationException
@@ -687,26 +929,16 @@ public class MySQLTupleStoreDatabase extends TupleStoreDatabaseBase implements T
 	 * @see TupleStoreDatabase#findFirstTupleID(String, long)
 	 */
 	public int findFirstTupleID(String physicalTableName, long startTimeMS) throws RGMAPermanentException {
-		String timestampString = new Timestamp(startTimeMS).toString();
 		String findFirstQuery = "SELECT " + ReservedColumns.RGMA_TUID_COLUMN_NAME + " FROM " + physicalTableName + " WHERE "
-				+ ReservedColumns.RGMA_TIMESTAMP_COLUMN_NAME + " >= '" + timestampString + "' ORDER BY " + ReservedColumns.RGMA_TUID_COLUMN_NAME + " LIMIT 1";
-		int firstTupleID = 0; /* First tuple ID is 0 if there are no tuples */
-		MySQLConnection con = null;
-		java.sql.ResultSet findFirstResult = null;
+				+ ReservedColumns.RGMA_TIMESTAMP_COLUMN_NAME + " >= ? ORDER BY " + ReservedColumns.RGMA_TUID_COLUMN_NAME + " LIMIT 1";
+		List<Object> parameters = new ArrayList<Object>(1);
+		parameters.add(new Timestamp(startTimeMS));
 		try {
-			con = new MySQLConnection();
-			findFirstResult = con.executeQuery(findFirstQuery);
-			if (findFirstResult.next()) {
-				firstTupleID = findFirstResult.getInt(1);
-			}
+			/* First tuple ID is 0 if there are no tuples */
+			return executeQuery(findFirstQuery, parameters).getLastTUID();
 		} catch (SQLException e) {
 			throw new RGMAPermanentException(e);
-		} finally {
-			if (con != null) {
-				con.close();
-			}
 		}
-		return firstTupleID;
 	}
 
 	public Map<ResourceEndpoint, Integer> getConsumerTUIDs(String physicalTableName) throws RGMAPermanentException {
@@ -732,19 +964,15 @@ public class MySQLTupleStoreDatabase extends TupleStoreDatabaseBase implements T
 		}
 	}
 
-	public TupleSetWithLastTUID getContinuous(SelectStatement select, int maxCount) throws RGMAPermanentException {
-		MySQLConnection con = new MySQLConnection();
-		String selectString = select + " LIMIT " + maxCount;
+	public TupleSetWithLastTUID getContinuous(SelectStatement select, int nextTupleID, int maxCount) throws RGMAPermanentException {
+		PreparedSQL prepared = prepareContinuous(select);
+		List<Object> parameters = new ArrayList<Object>(prepared.getParameters());
+		parameters.add(nextTupleID);
+		parameters.add(maxCount);
 		try {
-			java.sql.ResultSet resultSet = con.executeQuery(selectString);
-			TupleSetWithLastTUID rs = convertResultSet(resultSet);
-			return rs;
+			return executeQuery(prepared.getSQL(), parameters);
 		} catch (SQLException e) {
 			throw new RGMAPermanentException(e);
-		} finally {
-			if (con != null) {
-				con.close();
-			}
 		}
 	}
 
@@ -771,14 +999,102 @@ public class MySQLTupleStoreDatabase extends TupleStoreDatabaseBase implements T
 	 *      java.util.List)
 	 */
 	public void insert(InsertStatement insertStatement) throws RGMAPermanentException {
+		PreparedSQL prepared = PreparedSQL.insert(insertStatement);
 		try {
-			MySQLConnection.executeSimpleUpdate(insertStatement.toString());
+			executeUpdate(prepared.getSQL(), prepared.getParameters());
 		} catch (SQLException e) {
 			LOG.error(insertStatement.toString());
 			throw new RGMAPermanentException(e);
 		}
 	}
 
+	/**
+	 * Executes the INSERTs on one connection, combining each run of statements for the same table and columns into a
+	 * multi-row INSERT of at most MAX_INSERT_CHARS characters. If a multi-row INSERT fails, its rows are executed again
+	 * one at a time to find the row which fails, so that the number of successful operations is exact.
+	 */
+	public void insert(List<InsertStatement> insertStatements) throws RGMAPermanentException {
+		MySQLConnection con = null;
+		int[] executed = { 0 };
+		try {
+			con = new MySQLConnection();
+			StringBuffer sql = null;
+			String prefix = null;
+			List<InsertStatement> rows = new ArrayList<InsertStatement>();
+			List<String> rowValues = new ArrayList<String>();
+			for (InsertStatement insertStatement : insertStatements) {
+				String s = insertStatement.toString();
+				int values = s.indexOf(" VALUES ") + 8;
+				if (sql != null && (!s.regionMatches(0, prefix, 0, values) || sql.length() + s.length() - values > MAX_INSERT_CHARS)) {
+					executeRows(con, sql.toString(), prefix, rows, rowValues, executed);
+					sql = null;
+				}
+				if (sql == null) {
+					prefix = s.substring(0, values);
+					sql = new StringBuffer(prefix);
+					rows.clear();
+					rowValues.clear();
+				} else {
+					sql.append(',');
+				}
+				/* Drop the terminating semicolon */
+				String value = s.substring(values, s.endsWith(";") ? s.length() - 1 : s.length());
+				sql.append(value);
+				rows.add(insertStatement);
+				rowValues.add(value);
+			}
+			if (sql != null) {
+				executeRows(con, sql.toString(), prefix, rows, rowValues, executed);
+			}
+		} catch (SQLException e) {
+			RGMAPermanentException re = new RGMAPermanentException(e);
+			re.setNumSuccessfulOps(executed[0]);
+			throw re;
+		} finally {
+			if (con != null) {
+				con.close();
+			}
+		}
+	}
+
+	/**
+	 * Executes a multi-row INSERT, adding the number of rows stored to <code>executed[0]</code>. If it fails, any of
+	 * its rows which were stored are deleted by RgmaTUID, as a MyISAM table keeps the rows before the one which failed,
+	 * and the rows are executed one at a time until one fails.
+	 */
+	private static void executeRows(MySQLConnection con, String sql, String prefix, List<InsertStatement> rows, List<String> rowValues, int[] executed)
+			throws SQLException, RGMAPermanentException {
+		try {
+			con.executeUpdate(sql);
+			executed[0] += rows.size();
+			return;
+		} catch (SQLException e) {
+			if (rows.size() == 1) {
+				throw e;
+			}
+			LOG.debug("Multi-row INSERT failed, executing its rows one at a time: " + e.getMessage());
+		}
+		StringBuilder tuids = new StringBuilder();
+		for (InsertStatement row : rows) {
+			int tuidColumn = row.getColumnNames().indexOf(ReservedColumns.RGMA_TUID_COLUMN_NAME);
+			if (tuidColumn < 0) {
+				tuids = null;
+				break;
+			}
+			if (tuids.length() > 0) {
+				tuids.append(',');
+			}
+			tuids.append(row.getColumnValues().get(tuidColumn).getValue());
+		}
+		if (tuids != null) {
+			con.executeUpdate("DELETE FROM " + rows.get(0).getTableName() + " WHERE " + ReservedColumns.RGMA_TUID_COLUMN_NAME + " IN (" + tuids + ")");
+		}
+		for (String value : rowValues) {
+			con.executeUpdate(prefix + value);
+			executed[0]++;
+		}
+	}
+
 	/**
 	 * @throws RGMAPermanentException
 	 * @throws ConfigurationException
@@ -842,19 +1158,11 @@ public class MySQLTupleStoreDatabase extends TupleStoreDatabaseBase implements T
 	 * @see org.glite.rgma.server.services.database.TupleStoreDatabase#select(org.glite.rgma.server.services.sql.SelectStatement)
 	 */
 	public TupleSetWithLastTUID select(SelectStatement selectStatement) throws RGMAPermanentException {
-		String select = selectStatement.toString();
-		MySQLConnection con = null;
+		PreparedSQL prepared = PreparedSQL.select(selectStatement);
 		try {
-			con = new MySQLConnection();
-			java.sql.ResultSet jdbcResultSet = con.executeQuery(select);
-			TupleSetWithLastTUID resultSet = convertResultSet(jdbcResultSet);
-			return resultSet;
+			return executeQuery(prepared.getSQL(), prepared.getParameters());
 		} catch (SQLException e) {
 			throw new RGMAPermanentException(e);
-		} finally {
-			if (con != null) {
-				con.close();
-			}
 		}
 	}
 
@@ -890,6 +1198,35 @@ public class MySQLTupleStoreDatabase extends TupleStoreDatabaseBase implements T
 		}
 	}
 
+	/**
+	 * Brings a LATEST table up to date with one INSERT ... ON DUPLICATE KEY UPDATE, which only takes the new values if
+	 * the new RgmaTimestamp is no older than the stored one. MySQL makes the assignments in order, so RgmaTimestamp must
+	 * be set last for the other assignments to compare with the stored value. A table without a primary key is brought
+	 * up to date in steps.
+	 */
+	public void upsertLatest(InsertStatement insert, List<ColumnDefinition> columns) throws RGMAPermanentException {
+		if (!m_keyedLatestTables.contains(insert.getTableName().getTableName())) {
+			upsertLatestInSteps(this, insert, columns);
+			return;
+		}
+		PreparedSQL prepared = PreparedSQL.insert(insert);
+		String newer = "VALUES(" + ReservedColumns.RGMA_TIMESTAMP_COLUMN_NAME + ") >= " + ReservedColumns.RGMA_TIMESTAMP_COLUMN_NAME;
+		StringBuilder sql = new StringBuilder(prepared.getSQL()).append(" ON DUPLICATE KEY UPDATE ");
+		for (ColumnDefinition cd : columns) {
+			if (!cd.isPrimaryKey() && !cd.getName().equalsIgnoreCase(ReservedColumns.RGMA_TIMESTAMP_COLUMN_NAME)) {
+				String name = cd.getName();
+				sql.append(name).append(" = IF(").append(newer).append(", VALUES(").append(name).append("), ").append(name).append("), ");
+			}
+		}
+		String timestamp = ReservedColumns.RGMA_TIMESTAMP_COLUMN_NAME;
+		sql.append(timestamp).append(" = IF(").append(newer).append(", VALUES(").append(timestamp).append("), ").append(timestamp).append(")");
+		try {
+			executeUpdate(sql.toString(), prepared.getParameters());
+		} catch (SQLException e) {
+			throw new RGMAPermanentException(e);
+		}
+	}
+
 	/**
 	 * Executes the given update statement on the database.
 	 * 
@@ -897,14 +1234,50 @@ public class MySQLTupleStoreDatabase extends TupleStoreDatabaseBase implements T
 	 * @see org.glite.rgma.server.services.database.TupleStoreDatabase#update(org.glite.rgma.server.services.sql.UpdateStatement)
 	 */
 	public int update(UpdateStatement updateStatement) throws RGMAPermanentException {
+		PreparedSQL prepared = PreparedSQL.update(updateStatement);
 		try {
-			return MySQLConnection.executeSimpleUpdate(updateStatement.toString());
+			return executeUpdate(prepared.getSQL(), prepared.getParameters());
 		} catch (SQLException e) {
 			LOG.error(updateStatement.toString());
 			throw new RGMAPermanentException(e);
 		}
 	}
 
+	/**
+	 * Runs a query as a prepared statement, which the connection pool keeps for the next query with the same SQL on the
+	 * same connection, and converts its results.
+	 */
+	private static TupleSetWithLastTUID executeQuery(String sql, List<Object> parameters) throws SQLException, RGMAPermanentException {
+		MySQLConnection con = null;
+		try {
+			con = new MySQLConnection();
+			PreparedStatement statement = con.prepareStatement(sql);
+			PreparedSQL.bind(statement, parameters);
+			return convertResultSet(statement.executeQuery());
+		} finally {
+			if (con != null) {
+				con.close();
+			}
+		}
+	}
+
+	/**
+	 * Runs an update as a prepared statement, as for {@link #executeQuery(String, List)}.
+	 */
+	private static int executeUpdate(String sql, List<Object> parameters) throws SQLException, RGMAPermanentException {
+		MySQLConnection con = null;
+		try {
+			con = new MySQLConnection();
+			PreparedStatement statement = con.prepareStatement(sql);
+			PreparedSQL.bind(statement, parameters);
+			return statement.executeUpdate();
+		} finally {
+			if (con != null) {
+				con.close();
+			}
+		}
+	}
+
 	/**
 	 * Gets a description of the given table using "DESCRIBE tableName".
 	 * 
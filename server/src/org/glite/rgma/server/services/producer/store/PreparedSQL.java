@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2004.
+ * See http://eu-egee.org/partners/ for details on the copyright holders.
+ * For license conditions see the license file or http://eu-egee.org/license.html
+ */
+
+package org.glite.rgma.server.services.producer.store;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.glite.rgma.server.services.sql.Constant;
+import org.glite.rgma.server.services.sql.Expression;
+import org.glite.rgma.server.services.sql.ExpressionOrConstant;
+import org.glite.rgma.server.services.sql.InsertStatement;
+import org.glite.rgma.server.services.sql.SelectStatement;
+import org.glite.rgma.server.services.sql.UpdateStatement;
+
+/**
+ * The text of an SQL statement for a JDBC PreparedStatement with the values to bind to its parameters. The values of an
+ * INSERT or of the SET clause of an UPDATE, and values compared with a column in a WHERE clause, become parameters so
+ * that the text only depends on the table and the shape of the statement. The database can then reuse the statement
+ * prepared for the last one of the same shape.
+ */
+class PreparedSQL {
+
+	/** Comparison operators for which a value compared with a column becomes a parameter */
+	private static final Set<String> s_comparisons = new HashSet<String>();
+
+	static {
+		s_comparisons.add("=");
+		s_comparisons.add("<>");
+		s_comparisons.add("!=");
+		s_comparisons.add("<");
+		s_comparisons.add(">");
+		s_comparisons.add("<=");
+		s_comparisons.add(">=");
+	}
+
+	/** Stands for a parameter in a statement */
+	private static final Constant PARAMETER = new Constant("?", Constant.Type.UNKNOWN);
+
+	/**
+	 * Returns an INSERT with a parameter for each value.
+	 */
+	static PreparedSQL insert(InsertStatement insert) {
+		List<Object> parameters = new ArrayList<Object>();
+		StringBuilder sql = new StringBuilder("INSERT INTO ").append(insert.getTableName()).append("(");
+		boolean first = true;
+		for (String name : insert.getColumnNames()) {
+			if (!first) {
+				sql.append(",");
+			}
+			sql.append(name);
+			first = false;
+		}
+		sql.append(") VALUES (");
+		first = true;
+		for (Constant value : insert.getColumnValues()) {
+			if (!first) {
+				sql.append(",");
+			}
+			sql.append(parameter(value, true, parameters));
+			first = false;
+		}
+		sql.append(")");
+		return new PreparedSQL(sql.toString(), parameters);
+	}
+
+	/**
+	 * Returns an UPDATE with a parameter for each value set and for each value compared with a column in the WHERE
+	 * clause.
+	 */
+	static PreparedSQL update(UpdateStatement update) {
+		List<Object> parameters = new ArrayList<Object>();
+		StringBuilder sql = new StringBuilder("UPDATE ").append(update.getTableName()).append(" SET ");
+		boolean first = true;
+		for (Map.Entry<String, ExpressionOrConstant> set : update.getSet().entrySet()) {
+			if (!first) {
+				sql.append(", ");
+			}
+			sql.append(set.getKey()).append(" = ");
+			if (set.getValue() instanceof Constant) {
+				sql.append(parameter((Constant) set.getValue(), true, parameters));
+			} else {
+				sql.append(parameterize(set.getValue(), parameters));
+			}
+			first = false;
+		}
+		if (update.getWhere() != null) {
+			sql.append(" WHERE ").append(parameterize(update.getWhere(), parameters));
+		}
+		return new PreparedSQL(sql.toString(), parameters);
+	}
+
+	/**
+	 * Returns a SELECT with a parameter for each value compared with a column in the WHERE clause.
+	 */
+	static PreparedSQL select(SelectStatement select) {
+		List<Object> parameters = new ArrayList<Object>();
+		SelectStatement prepared = new SelectStatement(select);
+		if (select.getWhere() != null) {
+			prepared.addWhere(parameterize(select.getWhere(), parameters));
+		}
+		return new PreparedSQL(prepared.toString(), parameters);
+	}
+
+	/**
+	 * Returns the query of a continuous cursor, which must select RgmaTUID and be ordered by it. It has two more
+	 * parameters, which are not included in the parameters returned: the first RgmaTUID to return and the maximum
+	 * number of tuples to return.
+	 */
+	static PreparedSQL continuous(SelectStatement select) {
+		List<Object> parameters = new ArrayList<Object>();
+		SelectStatement prepared = new SelectStatement(select);
+		ExpressionOrConstant tupleIDPredicate = new Expression(">=", ReservedColumns.RGMA_TUID_COLUMN_CONSTANT, PARAMETER);
+		if (select.getWhere() != null) {
+			prepared.addWhere(new Expression("AND", parameterize(select.getWhere(), parameters), tupleIDPredicate));
+		} else {
+			prepared.addWhere(tupleIDPredicate);
+		}
+		return new PreparedSQL(prepared + " LIMIT ?", parameters);
+	}
+
+	/**
+	 * Sets the parameters of a prepared statement, in order.
+	 */
+	static void bind(PreparedStatement statement, List<Object> parameters) throws SQLException {
+		int i = 1;
+		for (Object parameter : parameters) {
+			if (parameter == null) {
+				statement.setNull(i, Types.NULL);
+			} else {
+				statement.setObject(i, parameter);
+			}
+			i++;
+		}
+	}
+
+	/**
+	 * Returns a copy of an expression with a parameter for each value compared with a column. As an expression is
+	 * written out with its operands in order, the parameters are added to the list in the order in which they appear
+	 * in the SQL.
+	 */
+	private static ExpressionOrConstant parameterize(ExpressionOrConstant e, List<Object> parameters) {
+		if (!(e instanceof Expression)) {
+			return e;
+		}
+		Expression expression = (Expression) e;
+		if (expression.getOperands() == null) {
+			return e;
+		}
+		Expression result = new Expression(expression.getOperator());
+		boolean comparison = s_comparisons.contains(expression.getOperator()) && expression.nbOperands() == 2
+				&& (isColumn(expression.getOperand(0)) || isColumn(expression.getOperand(1)));
+		for (ExpressionOrConstant operand : expression.getOperands()) {
+			if (comparison && operand instanceof Constant) {
+				result.addOperand(parameter((Constant) operand, false, parameters));
+			} else {
+				result.addOperand(parameterize(operand, parameters));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns a parameter standing for a constant and adds its value to the list, or the constant itself if it is not a
+	 * value which can be passed as a parameter.
+	 *
+	 * @param allowNull
+	 *            If <code>true</code>, NULL is passed as a parameter
+	 */
+	private static Constant parameter(Constant constant, boolean allowNull, List<Object> parameters) {
+		Constant.Type type = constant.getType();
+		if (type == Constant.Type.NUMBER || type == Constant.Type.STRING || (allowNull && constant.isNull()) || isQuoted(constant)) {
+			parameters.add(MemoryTable.literal(constant));
+			return PARAMETER;
+		}
+		return constant;
+	}
+
+	private static boolean isColumn(ExpressionOrConstant e) {
+		return e instanceof Constant && ((Constant) e).getType() == Constant.Type.COLUMN_NAME;
+	}
+
+	/**
+	 * Returns <code>true</code> for a quoted string of unknown type, such as a timestamp added by the tuple store.
+	 */
+	private static boolean isQuoted(Constant constant) {
+		String value = constant.getValue();
+		return constant.getType() == Constant.Type.UNKNOWN && value != null && value.length() >= 2 && value.charAt(0) == '\''
+				&& value.charAt(value.length() - 1) == '\'';
+	}
+
+	/** Text of the statement */
+	private final String m_sql;
+
+	/** Values of the parameters in order */
+	private final List<Object> m_parameters;
+
+	private PreparedSQL(String sql, List<Object> parameters) {
+		m_sql = sql;
+		m_parameters = parameters;
+	}
+
+	String getSQL() {
+		return m_sql;
+	}
+
+	List<Object> getParameters() {
+		return m_parameters;
+	}
+
+	@Override
+	public String toString() {
+		return m_sql + " " + m_parameters;
+	}
+}
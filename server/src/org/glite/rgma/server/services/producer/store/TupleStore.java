@@ -10,11 +10,12 @@ import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 import org.glite.rgma.server.services.schema.Authz;
@@ -32,17 +33,13 @@ import org.glite.rgma.server.services.sql.SelectStatement;
 import org.glite.rgma.server.services.sql.TableName;
 import org.glite.rgma.server.services.sql.TableNameAndAlias;
 import org.glite.rgma.server.services.sql.TableReference;
-import org.glite.rgma.server.services.sql.UpdateStatement;
 import org.glite.rgma.server.services.sql.WhereClause;
-import org.glite.rgma.server.services.sql.Constant.Type;
 import org.glite.rgma.server.services.sql.parser.ParseException;
 import org.glite.rgma.server.services.streaming.StreamingSender;
 import org.glite.rgma.server.system.NumericException;
 import org.glite.rgma.server.system.QueryProperties;
 import org.glite.rgma.server.system.RGMAPermanentException;
 import org.glite.rgma.server.system.ResourceEndpoint;
-import org.glite.rgma.server.system.TupleSet;
-import org.glite.rgma.server.system.TupleSetWithLastTUID;
 import org.glite.rgma.server.system.UserContext;
 import org.glite.rgma.server.system.UserSystemContext;
 
@@ -57,65 +54,21 @@ import org.glite.rgma.server.system.UserSystemContext;
 public class TupleStore {
 	@SuppressWarnings("serial")
 	public class BufferFullException extends Exception {
+		/** Number of tuples inserted before the buffer was found to be full */
+		private int m_numSuccessfulOps;
+
 		private BufferFullException(String message) {
 			super(message);
 		}
+
+		public int getNumSuccessfulOps() {
+			return m_numSuccessfulOps;
+		}
 	}
 
 	/** Reference to logging utility. */
 	private static final Logger LOG = Logger.getLogger(TupleStoreConstants.TUPLE_STORE_LOGGER);
 
-	/**
-	 * Creates a LATEST update statement from the given insert.
-	 * 
-	 * @param insert
-	 *            SQL INSERT statement.
-	 * @return An SQL UPDATE statement.
-	 */
-	private static UpdateStatement createLatestUpdate(List<ColumnDefinition> columns, InsertStatement insert) {
-		Map<String, Constant> insertMap = null;
-
-		// Set up map
-		insertMap = new HashMap<String, Constant>();
-		Iterator<Constant> valueIter = insert.getColumnValues().iterator();
-		for (String colName : insert.getColumnNames()) {
-			insertMap.put(colName.toUpperCase(), valueIter.next());
-		}
-
-		Map<String, ExpressionOrConstant> set = new HashMap<String, ExpressionOrConstant>();
-		Expression where = null;
-		int colNum = 0;
-
-		for (ColumnDefinition def : columns) {
-			String colName = def.getName().toUpperCase();
-			Constant colValue = insertMap.get(colName);
-			if (colValue == null) {
-				colValue = new Constant("", Type.NULL);
-			}
-			if (def.isPrimaryKey()) {
-				Expression equalsOp = new Expression("=", new Constant(def.getName(), Constant.Type.COLUMN_NAME), colValue);
-				if (where == null) {
-					where = equalsOp;
-				} else {
-					where = new Expression("AND", where, equalsOp);
-				}
-			} else {
-				set.put(def.getName(), colValue);
-			}
-			colNum++;
-		}
-
-		UpdateStatement update = new UpdateStatement(insert.getTableName());
-		update.setSet(set);
-
-		Constant newTupleTimestamp = insertMap.get(ReservedColumns.RGMA_TIMESTAMP_COLUMN_NAME.toUpperCase());
-
-		Expression timestampPredicate = new Expression(">=", newTupleTimestamp, new Constant(ReservedColumns.RGMA_TIMESTAMP_COLUMN_NAME,
-				Constant.Type.COLUMN_NAME));
-		update.setWhere(new Expression("AND", where, timestampPredicate));
-		return update;
-	}
-
 	private static SelectStatement getLatestSelectStatement(SelectStatement select) throws ParseException {
 		List<TableReference> fromTables = select.getFrom();
 		String timestampString = new Timestamp(System.currentTimeMillis()).toString();
@@ -349,11 +302,14 @@ public class TupleStore {
 	/** When this is exceeded an error is thrown */
 	private long m_maxHistoryTuples;
 
-	/** Mapping from vdbTableName to VdbTable */
+	/** Mapping from vdbTableName to VdbTable, which is read without locking for each insert */
 	private Map<String, VdbTable> m_vdbTables;
 
 	private StreamingSender m_streamingSender;
 
+	/** Maximum number of tuples pushed to each continuous cursor and not yet popped - zero if tuples are not pushed */
+	private int m_maxPushedTuples;
+
 	/**
 	 * Creates a new TupleStore.
 	 * 
@@ -364,21 +320,27 @@ public class TupleStore {
 	 * @param details
 	 *            Details of this tuple store.
 	 * @param sender
+	 * @param maxPushedTuples
+	 *            Maximum number of tuples pushed to each continuous cursor and not yet popped
 	 */
-	public TupleStore(TupleStoreDatabase databaseInstance, TupleStoreDetails details, long maxHistoryTuples, StreamingSender streamingSender) {
+	public TupleStore(TupleStoreDatabase databaseInstance, TupleStoreDetails details, long maxHistoryTuples, StreamingSender streamingSender,
+			int maxPushedTuples) {
 		m_databaseInstance = databaseInstance;
 		m_details = details;
 		m_maxHistoryTuples = maxHistoryTuples;
-		m_vdbTables = new HashMap<String, VdbTable>();
+		m_vdbTables = new ConcurrentHashMap<String, VdbTable>();
 		m_streamingSender = streamingSender;
+		m_maxPushedTuples = maxPushedTuples;
 		if (LOG.isInfoEnabled()) {
 			LOG.info("TupleStore created: " + m_details);
 		}
 	}
 
 	/**
-	 * Deletes Tuples by HRP & last read Tuple ID for the given table. The value returned is the number of tuples
-	 * deleted.
+	 * Deletes Tuples by HRP & last read Tuple ID for the given table. Each expired partition of the history table is
+	 * deleted by RgmaTUID with a statement of its own, up to the last tuple streamed to all consumers, so the table is
+	 * never scanned or locked for long and the count of tuples is kept up to date without counting them. The value
+	 * returned is the number of tuples deleted.
 	 */
 	public int cleanUpHRP(String vdbTableName) throws RGMAPermanentException {
 		VdbTable vdbTable = getVdbTable(vdbTableName);
@@ -394,17 +356,25 @@ public class TupleStore {
 				}
 			}
 		}
-		int nDel;
-		if (tupleUID == 0) {
-			/** Consumer known which has not yet received any tuples */
-			nDel = 0;
-		} else {
-			nDel = m_databaseInstance.deleteByHRP(physicalTableName, vdbTable.m_hrpSecs, tupleUID);
-		}
-		int currentNooftuples = m_databaseInstance.count(physicalTableName);
-		synchronized (vdbTable) {
-			vdbTable.m_historyCount = currentNooftuples;
+		int nDel = 0;
+		if (tupleUID != 0) {
+			/* Otherwise a consumer is known which has not yet received any tuples */
+			HistoryPartitions partitions = vdbTable.m_partitions;
+			int untimedTUID = partitions.getUntimedTUID();
+			if (untimedTUID > 0) {
+				nDel += m_databaseInstance.deleteByHRP(physicalTableName, vdbTable.m_hrpSecs, tupleUID < 0 ? untimedTUID : Math.min(tupleUID, untimedTUID));
+			}
+			long cutOffMS = System.currentTimeMillis() - vdbTable.m_hrpSecs * 1000L;
+			int maxTUID;
+			while ((maxTUID = partitions.getExpiredTUID(cutOffMS, tupleUID)) > 0) {
+				nDel += m_databaseInstance.deleteByTUID(physicalTableName, 1, maxTUID);
+				partitions.deleted(maxTUID);
+			}
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("History table " + physicalTableName + " has " + partitions.size() + " partitions after deleting " + nDel + " tuples");
+			}
 		}
+		vdbTable.m_historyCount.addAndGet(-nDel);
 		return nDel;
 	}
 
@@ -429,10 +399,8 @@ public class TupleStore {
 	public void createTable(String vdbName, CreateTableStatement createTableStmt, int hrpSecs, List<String> authorizationList) throws RGMAPermanentException,
 			RGMAPermanentException, RGMAPermanentException {
 		String vdbTableName = (vdbName + "." + createTableStmt.getTableName()).toUpperCase();
-		synchronized (m_vdbTables) {
-			if (m_vdbTables.containsKey(vdbTableName)) {
-				throw new RGMAPermanentException("createTable already called for " + vdbName + " " + createTableStmt);
-			}
+		if (m_vdbTables.containsKey(vdbTableName)) {
+			throw new RGMAPermanentException("createTable already called for " + vdbName + " " + createTableStmt);
 		}
 
 		/* Build a CreateIndexStatement */
@@ -465,94 +433,170 @@ public class TupleStore {
 		}
 		vdbTable.m_consumerTUIDs = m_databaseInstance.getConsumerTUIDs(histContTableName);
 		vdbTable.m_authz = authorizationList;
-		vdbTable.m_TUID = m_databaseInstance.getMaxTUID(histContTableName);
+		int maxTUID = m_databaseInstance.getMaxTUID(histContTableName);
+		vdbTable.m_TUID.set(maxTUID);
 		vdbTable.m_hrpSecs = hrpSecs;
-		vdbTable.m_columns = createTableStmt.getColumns();
-		synchronized (m_vdbTables) {
-			m_vdbTables.put(vdbTableName, vdbTable);
+		vdbTable.m_partitions = new HistoryPartitions(hrpSecs, maxTUID, System.currentTimeMillis());
+		if (maxTUID > 0) {
+			vdbTable.m_historyCount.set(m_databaseInstance.count(histContTableName));
 		}
+		vdbTable.m_columns = createTableStmt.getColumns();
+		CreateTableStatement historyDefinition = new CreateTableStatement(histContTableName);
+		historyDefinition.setColumns(new ArrayList<ColumnDefinition>(createTableStmt.getColumns()));
+		historyDefinition.getColumns().add(ReservedColumns.RGMA_INSERT_TIME_COLUMN);
+		historyDefinition.getColumns().add(ReservedColumns.RGMA_TUID_COLUMN);
+		vdbTable.m_cursorIndex = new ContinuousQueryIndex(new MemoryHistoryTable(historyDefinition));
+		m_vdbTables.put(vdbTableName, vdbTable);
 		if (LOG.isInfoEnabled()) {
 			LOG.info("Table created in [" + m_details + "] " + createTableStmt);
 		}
 	}
 
 	public long getHistoryCount(String vdbTableName) throws RGMAPermanentException {
-		VdbTable vdbTable = getVdbTable(vdbTableName);
-		synchronized (vdbTable) {
-			return vdbTable.m_historyCount;
-		}
+		return getVdbTable(vdbTableName).m_historyCount.get();
 	}
 
 	/**
 	 * Inserts a tuple into this tuple store. At this stage the insert statements have already been checked against the
 	 * table schema.
 	 * 
-	 * @param tuples
-	 *            List of insert statements (NB: for performance reasons, the InsertStatement objects may be changed by
-	 *            this method).
-	 * @param lrpSec
-	 *            Latest retention period (in seconds).
+	 * @param insert
+	 *            Insert statement, which is not changed.
 	 */
 	public void insert(UserContext context, final InsertStatement insert) throws RGMAPermanentException, BufferFullException {
+		List<InsertStatement> inserts = new ArrayList<InsertStatement>(1);
+		inserts.add(insert);
+		insert(context, inserts);
+	}
 
-		TableName ctn = insert.getTableName();
-		String vdbTableName = ctn.getVdbTableName();
-		VdbTable vdbTable = getVdbTable(vdbTableName);
-
-		synchronized (vdbTable) {
-			if (m_details.isMemory() && vdbTable.m_historyCount >= m_maxHistoryTuples) {
-				throw new BufferFullException("Buffer is full. Please try again after a suitable delay.");
+	/**
+	 * Inserts tuples, which may be for different tables, into this tuple store in order. The RgmaTUIDs of each table
+	 * are assigned as a block without locking and the history tuples are appended with one call to the database, which
+	 * may run alongside appends to the same table by other threads. The LATEST tables are then brought up to date with
+	 * the tuples stored in the history tables, holding the lock of each table in turn, so inserts to different tables
+	 * do not wait for each other and a tuple which fails never reaches a LATEST table. Finally the streaming sender is
+	 * told once. At this stage the insert statements have already been checked against
+	 * the table schema.
+	 * 
+	 * @param inserts
+	 *            List of insert statements, which are not changed, so the caller may submit again those after a
+	 *            tuple which fails.
+	 * @throws RGMAPermanentException
+	 *             If a tuple could not be inserted. The tuples before it have been inserted and their number is set as
+	 *             the number of successful operations.
+	 * @throws BufferFullException
+	 *             If there is no room for a tuple. The tuples before it have been inserted.
+	 */
+	public void insert(UserContext context, List<InsertStatement> inserts) throws RGMAPermanentException, BufferFullException {
+		RGMAPermanentException rejected = null;
+		BufferFullException full = null;
+
+		/* Find the table of each tuple, stopping at the first for which there is no room */
+		List<VdbTable> vdbTables = new ArrayList<VdbTable>(inserts.size());
+		Map<VdbTable, Integer> counts = new HashMap<VdbTable, Integer>();
+		for (InsertStatement insert : inserts) {
+			VdbTable vdbTable;
+			try {
+				vdbTable = getVdbTable(insert.getTableName().getVdbTableName());
+			} catch (RGMAPermanentException e) {
+				rejected = e;
+				break;
+			}
+			Integer count = counts.get(vdbTable);
+			int n = count == null ? 0 : count;
+			if (m_details.isMemory() && vdbTable.m_historyCount.get() + n >= m_maxHistoryTuples) {
+				full = new BufferFullException("Buffer is full. Please try again after a suitable delay.");
+				break;
+			}
+			counts.put(vdbTable, n + 1);
+			vdbTables.add(vdbTable);
+		}
+
+		/* Assign a block of RgmaTUIDs for each table */
+		Map<VdbTable, Long> nextTUIDs = new HashMap<VdbTable, Long>();
+		for (Entry<VdbTable, Integer> count : counts.entrySet()) {
+			VdbTable vdbTable = count.getKey();
+			nextTUIDs.put(vdbTable, vdbTable.m_TUID.getAndAdd(count.getValue()) + 1);
+		}
+
+		long insertTimeMS = System.currentTimeMillis();
+		String dateString = new Timestamp(insertTimeMS).toString();
+		List<InsertStatement> historyInserts = new ArrayList<InsertStatement>(vdbTables.size());
+		int[] tupleIDs = new int[vdbTables.size()];
+		for (int i = 0; i < vdbTables.size(); i++) {
+			InsertStatement insert = inserts.get(i);
+			VdbTable vdbTable = vdbTables.get(i);
+
+			/* Add extra columns to a copy for the history table */
+			long uniqueID = nextTUIDs.get(vdbTable);
+			nextTUIDs.put(vdbTable, uniqueID + 1);
+			InsertStatement historyInsert = copyInsert(insert, vdbTable.m_historyTableName);
+			historyInsert.getColumnNames().add(ReservedColumns.RGMA_INSERT_TIME_COLUMN_NAME);
+			historyInsert.getColumnNames().add(ReservedColumns.RGMA_TUID_COLUMN_NAME);
+			historyInsert.getColumnValues().add(new Constant("'" + dateString + "'", Constant.Type.UNKNOWN));
+			historyInsert.getColumnValues().add(new Constant(uniqueID + "", Constant.Type.NUMBER));
+			historyInserts.add(historyInsert);
+			tupleIDs[i] = (int) uniqueID;
+		}
+
+		int inserted = historyInserts.size();
+		if (inserted > 0) {
+			try {
+				m_databaseInstance.insert(historyInserts);
+			} catch (RGMAPermanentException e) {
+				inserted = e.getNumSuccessfulOps();
+				rejected = e;
+				full = null;
 			}
 		}
+		int stored = inserted;
 
+		/* Bring the LATEST tables up to date, stopping at the first tuple which fails */
 		if (m_details.supportsLatest()) {
-			synchronized (this) {
-				insert.setTable(new TableName(vdbTable.m_latestTableName));
-				UpdateStatement update = createLatestUpdate(vdbTable.m_columns, insert);
-				if (m_databaseInstance.update(update) == 0) {
-					/*
-					 * This can be zero for two reasons: - no tuple with the same primary key exists. - a tuple exists
-					 * with the same private key but a newer timestamp, so no update was made. So must find out which.
-					 */
-					SelectStatement check = new SelectStatement();
-					List<TableReference> from = new ArrayList<TableReference>(1);
-					from.add(new TableReference(insert.getTableName()));
-					check.addFrom(from);
-					List<SelectItem> sis = new ArrayList<SelectItem>(1);
-					sis.add(new SelectItem("*"));
-					check.addSelect(sis);
-					check.addWhere(((Expression) update.getWhere()).getOperand(0));
-					TupleSetWithLastTUID rs = m_databaseInstance.select(check);
-					TupleSet ts = rs.getTupleSet();
-					if (ts.getData().size() == 0) {
-						m_databaseInstance.insert(insert);
-					}
+			for (int i = 0; i < inserted; i++) {
+				try {
+					insertLatest(vdbTables.get(i), inserts.get(i));
+				} catch (RGMAPermanentException e) {
+					rejected = e;
+					full = null;
+					inserted = i;
+					break;
 				}
 			}
 		}
-
-		/* Add extra columns to the history table */
-		List<String> names = insert.getColumnNames();
-		names.add(ReservedColumns.RGMA_INSERT_TIME_COLUMN_NAME);
-		names.add(ReservedColumns.RGMA_TUID_COLUMN_NAME);
-		String dateString = new Timestamp(System.currentTimeMillis()).toString();
-		long uniqueID;
-		synchronized (vdbTable) {
-			uniqueID = ++vdbTable.m_TUID;
+		if (inserted < stored) {
+			stored = removeHistory(vdbTables, tupleIDs, inserted, stored);
 		}
-		List<Constant> values = insert.getColumnValues();
-		values.add(new Constant("'" + dateString + "'", Constant.Type.UNKNOWN));
-		values.add(new Constant(uniqueID + "", Constant.Type.NUMBER));
 
-		insert.setTable(new TableName(vdbTable.m_historyTableName));
-		m_databaseInstance.insert(insert);
-		synchronized (vdbTable) {
-			vdbTable.m_historyCount++;
+		Map<VdbTable, int[]> insertedTUIDs = new HashMap<VdbTable, int[]>();
+		for (int i = 0; i < stored; i++) {
+			VdbTable vdbTable = vdbTables.get(i);
+			vdbTable.m_historyCount.incrementAndGet();
+			pushToCursors(vdbTable, historyInserts.get(i), tupleIDs[i]);
+			int[] range = insertedTUIDs.get(vdbTable);
+			if (range == null) {
+				insertedTUIDs.put(vdbTable, new int[] { tupleIDs[i], tupleIDs[i] });
+			} else {
+				range[1] = tupleIDs[i];
+			}
 		}
-		if (LOG.isInfoEnabled()) {
-			LOG.info("Inserted tuple into [" + m_details + "]");
+		for (Entry<VdbTable, int[]> range : insertedTUIDs.entrySet()) {
+			range.getKey().m_partitions.add(insertTimeMS, range.getValue()[0], range.getValue()[1]);
+		}
+		if (stored > 0) {
+			if (LOG.isInfoEnabled()) {
+				LOG.info("Inserted " + (stored == 1 ? "tuple" : stored + " tuples") + " into [" + m_details + "]");
+			}
+			m_streamingSender.dataAddedToTupleStore(this);
+		}
+		if (rejected != null) {
+			rejected.setNumSuccessfulOps(inserted);
+			throw rejected;
+		}
+		if (full != null) {
+			full.m_numSuccessfulOps = inserted;
+			throw full;
 		}
-		m_streamingSender.dataAddedToTupleStore(this);
 	}
 
 	/**
@@ -608,7 +652,12 @@ public class TupleStore {
 						lastTUID = lt.intValue();
 					}
 				}
-				result = new ContinuousTupleCursor(contQuery, startTimeMS, m_databaseInstance, vdbTableName, lastTUID);
+				ContinuousTupleCursor cursor = new ContinuousTupleCursor(contQuery, startTimeMS, m_databaseInstance, vdbTableName, lastTUID,
+						vdbTable.m_cursorIndex, m_maxPushedTuples);
+				if (cursor.isPushed()) {
+					vdbTable.m_cursorIndex.add(cursor);
+				}
+				result = cursor;
 			} else if (queryProps.isLatest()) {
 				if (!m_details.supportsLatest()) {
 					throw new QueryTypeNotSupportedException(queryProps);
@@ -680,11 +729,7 @@ public class TupleStore {
 	 * @throws RGMAPermanentException
 	 */
 	void cleanUpTables() throws RGMAPermanentException {
-		Set<Entry<String, VdbTable>> vtes;
-		synchronized (m_vdbTables) {
-			vtes = m_vdbTables.entrySet();
-		}
-		for (Entry<String, VdbTable> vte : vtes) {
+		for (Entry<String, VdbTable> vte : m_vdbTables.entrySet()) {
 			String vdbTableName = vte.getKey();
 			VdbTable vdbTable = vte.getValue();
 			int countH = cleanUpHRP(vdbTableName);
@@ -711,6 +756,82 @@ public class TupleStore {
 		return m_details;
 	}
 
+	/**
+	 * Updates the LATEST table with a tuple unless it holds a newer tuple with the same primary key.
+	 */
+	private void insertLatest(VdbTable vdbTable, InsertStatement insert) throws RGMAPermanentException {
+		synchronized (vdbTable.m_latestLock) {
+			m_databaseInstance.upsertLatest(copyInsert(insert, vdbTable.m_latestTableName), vdbTable.m_columns);
+		}
+	}
+
+	/**
+	 * Deletes from the history tables the tuples which are reported as not inserted because the LATEST table could not
+	 * be brought up to date with the first of them, so that a caller which submits them again does not store them
+	 * twice. The RgmaTUIDs of the tuples of each table form one block.
+	 * 
+	 * @param first
+	 *            Index of the first tuple to delete
+	 * @param stored
+	 *            Number of tuples stored in the history tables
+	 * @return The number of tuples left in the history tables
+	 */
+	private int removeHistory(List<VdbTable> vdbTables, int[] tupleIDs, int first, int stored) {
+		Map<VdbTable, int[]> ranges = new HashMap<VdbTable, int[]>();
+		for (int i = first; i < stored; i++) {
+			int[] range = ranges.get(vdbTables.get(i));
+			if (range == null) {
+				ranges.put(vdbTables.get(i), new int[] { tupleIDs[i], tupleIDs[i] });
+			} else {
+				range[1] = tupleIDs[i];
+			}
+		}
+		for (Entry<VdbTable, int[]> range : ranges.entrySet()) {
+			try {
+				m_databaseInstance.deleteByTUID(range.getKey().m_historyTableName, range.getValue()[0], range.getValue()[1]);
+			} catch (RGMAPermanentException e) {
+				LOG.error("Tuples not inserted into LATEST table remain in history table " + range.getKey().m_historyTableName + ": " + e.getMessage());
+				return stored;
+			}
+		}
+		return first;
+	}
+
+	/**
+	 * Returns a copy of an insert statement for a physical table, with its own lists of column names and values.
+	 */
+	private static InsertStatement copyInsert(InsertStatement insert, String physicalTableName) {
+		InsertStatement copy = new InsertStatement(new TableName(physicalTableName));
+		copy.setColumnNames(new ArrayList<String>(insert.getColumnNames()));
+		copy.setColumnValues(new ArrayList<Constant>(insert.getColumnValues()));
+		return copy;
+	}
+
+	/**
+	 * Pushes a tuple which has just been inserted into the history table to the continuous cursors whose queries it may
+	 * satisfy, as found by the index of the table, so that they need not query the table.
+	 */
+	private void pushToCursors(VdbTable vdbTable, InsertStatement insert, int tupleID) {
+		ContinuousQueryIndex index = vdbTable.m_cursorIndex;
+		if (index.isEmpty()) {
+			return;
+		}
+		Object[] row;
+		try {
+			row = index.getTable().makeRow(insert);
+		} catch (RGMAPermanentException e) {
+			/* The cursors will find the tuple in the history table */
+			LOG.warn("Tuple not pushed to continuous cursors: " + e.getMessage());
+			for (ContinuousTupleCursor cursor : index.getCursors()) {
+				cursor.discardPushed();
+			}
+			return;
+		}
+		for (ContinuousTupleCursor cursor : index.find(row)) {
+			cursor.push(row, tupleID);
+		}
+	}
+
 	private SelectStatement addAuthPredicate(SelectStatement q, Expression authPredicate) {
 		if (q.getWhere() != null) {
 			Expression authWhere = new Expression("AND", q.getWhere(), authPredicate);
@@ -722,13 +843,11 @@ public class TupleStore {
 	}
 
 	private VdbTable getVdbTable(String vdbTableName) throws RGMAPermanentException {
-		synchronized (m_vdbTables) {
-			VdbTable vdbTable = m_vdbTables.get(vdbTableName);
-			if (vdbTable == null) {
-				throw new RGMAPermanentException(vdbTableName + " is not known to this tuple store");
-			}
-			return vdbTable;
+		VdbTable vdbTable = m_vdbTables.get(vdbTableName);
+		if (vdbTable == null) {
+			throw new RGMAPermanentException(vdbTableName + " is not known to this tuple store");
 		}
+		return vdbTable;
 	}
 
 	private class VdbTable {
@@ -742,11 +861,17 @@ public class TupleStore {
 		Map<ResourceEndpoint, Integer> m_consumerTUIDs;
 
 		/** Count of tuples in history store. */
-		long m_historyCount;
+		final AtomicLong m_historyCount = new AtomicLong();
 
 		/** Physical history table name */
 		String m_historyTableName;
 
+		/** Partitions of the history table by insert time */
+		HistoryPartitions m_partitions;
+
+		/** Continuous cursors to which inserted tuples are pushed */
+		ContinuousQueryIndex m_cursorIndex;
+
 		/** hrpSecs for the HISTORY table */
 		int m_hrpSecs;
 
@@ -754,7 +879,10 @@ public class TupleStore {
 		String m_latestTableName;
 
 		/** Next TUID to be assigned is one more than this */
-		long m_TUID;
+		final AtomicLong m_TUID = new AtomicLong();
+
+		/** Held while the LATEST table is brought up to date with a tuple */
+		final Object m_latestLock = new Object();
 	}
 
 }
@@ -12,6 +12,7 @@ import java.util.Map;
 
 import javax.naming.ConfigurationException;
 
+import org.glite.rgma.server.services.sql.ColumnDefinition;
 import org.glite.rgma.server.services.sql.CreateIndexStatement;
 import org.glite.rgma.server.services.sql.CreateTableStatement;
 import org.glite.rgma.server.services.sql.InsertStatement;
@@ -63,6 +64,16 @@ public interface TupleStoreDatabase {
 	 */
 	int deleteByHRP(String tableName, int maxAgeSecs, int lastReadTUID) throws RGMAPermanentException;
 
+	/**
+	 * Deletes all tuples of a history table with an RgmaTUID from minTUID to maxTUID. This is used to delete whole
+	 * partitions of the table once they have expired and been streamed to all known consumers, and to remove tuples
+	 * which have been reported as not inserted.
+	 * 
+	 * @return The number of tuples deleted
+	 * @throws RGMAPermanentException
+	 */
+	int deleteByTUID(String tableName, int minTUID, int maxTUID) throws RGMAPermanentException;
+
 	/**
 	 * Deletes all tuples which exceeds LRP secs from the given table
 	 * 
@@ -133,6 +144,31 @@ public interface TupleStoreDatabase {
 	 */
 	void insert(InsertStatement insertStatement) throws RGMAPermanentException;
 
+	/**
+	 * Executes a number of INSERTs on this database in order, with fewer round trips to the RDBMS than executing them
+	 * one at a time. The statements may be for different tables.
+	 * 
+	 * @param insertStatements
+	 *            SQL INSERT statements.
+	 * @throws RGMAPermanentException
+	 *             If an INSERT fails. The number of statements known to have been executed before it is set as the
+	 *             number of successful operations of the exception.
+	 */
+	void insert(List<InsertStatement> insertStatements) throws RGMAPermanentException;
+
+	/**
+	 * Brings a LATEST table up to date with a tuple: inserts it or, if there is already a tuple with the same primary
+	 * key, replaces that one unless its RgmaTimestamp is newer. The caller must stop other threads from changing the
+	 * same table meanwhile.
+	 * 
+	 * @param insert
+	 *            SQL INSERT statement for the LATEST table.
+	 * @param columns
+	 *            Definitions of the columns of the table, giving its primary key.
+	 * @throws RGMAPermanentException
+	 */
+	void upsertLatest(InsertStatement insert, List<ColumnDefinition> columns) throws RGMAPermanentException;
+
 	/**
 	 * Gets a list of permanent tuple stores.
 	 * 
@@ -183,7 +219,20 @@ public interface TupleStoreDatabase {
 
 	void closeTupleStore(List<String> physicalTableNames, boolean permanent) throws RGMAPermanentException;
 
-	TupleSetWithLastTUID getContinuous(SelectStatement select, int maxCount) throws RGMAPermanentException;
+	/**
+	 * Returns the next tuples for a continuous query.
+	 * 
+	 * @param select
+	 *            Query of a continuous cursor, which selects RgmaTUID and is ordered by it. A cursor passes the same
+	 *            statement each time so that an implementation may keep whatever it derives from it.
+	 * @param nextTupleID
+	 *            Lowest RgmaTUID to return.
+	 * @param maxCount
+	 *            Maximum number of tuples to return.
+	 * @return The tuples found with the RgmaTUID of the last.
+	 * @throws RGMAPermanentException
+	 */
+	TupleSetWithLastTUID getContinuous(SelectStatement select, int nextTupleID, int maxCount) throws RGMAPermanentException;
 
 	void shutdown() throws RGMAPermanentException;
 
@@ -8,9 +8,25 @@ package org.glite.rgma.server.services.producer.store;
 
 import java.sql.SQLException;
 import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 import org.apache.log4j.Logger;
+import org.glite.rgma.server.services.sql.ColumnDefinition;
+import org.glite.rgma.server.services.sql.Constant;
 import org.glite.rgma.server.services.sql.DataType;
+import org.glite.rgma.server.services.sql.Expression;
+import org.glite.rgma.server.services.sql.ExpressionOrConstant;
+import org.glite.rgma.server.services.sql.InsertStatement;
+import org.glite.rgma.server.services.sql.SelectItem;
+import org.glite.rgma.server.services.sql.SelectStatement;
+import org.glite.rgma.server.services.sql.TableReference;
+import org.glite.rgma.server.services.sql.UpdateStatement;
 import org.glite.rgma.server.services.sql.DataType.Type;
 import org.glite.rgma.server.system.RGMAPermanentException;
 import org.glite.rgma.server.system.TupleSet;
@@ -43,6 +59,33 @@ public class TupleStoreDatabaseBase {
 	 * @throws RGMAPermanentException
 	 */
 	protected static TupleSetWithLastTUID convertResultSet(java.sql.ResultSet jdbcResultSet) throws SQLException, RGMAPermanentException {
+		return convertResultSet(jdbcResultSet, null);
+	}
+
+	/**
+	 * Converts a JDBC ResultSet to an R-GMA ResultSet, noting the RgmaOneOffTUID of the last row so that a one-time
+	 * cursor can read its next chunk from there.
+	 * 
+	 * @param lastOneOffTUID
+	 *            If not <code>null</code>, its only element is set to the RgmaOneOffTUID of the last row. It is left
+	 *            unchanged if there are no rows.
+	 */
+	protected static TupleSetWithLastTUID convertResultSet(java.sql.ResultSet jdbcResultSet, int[] lastOneOffTUID) throws SQLException,
+			RGMAPermanentException {
+		return convertResultSet(jdbcResultSet, Integer.MAX_VALUE, lastOneOffTUID);
+	}
+
+	/**
+	 * Converts at most <code>maxRows</code> rows of a JDBC ResultSet to an R-GMA ResultSet, leaving the rest to be read
+	 * later.
+	 */
+	protected static TupleSetWithLastTUID convertResultSet(java.sql.ResultSet jdbcResultSet, int maxRows) throws SQLException,
+			RGMAPermanentException {
+		return convertResultSet(jdbcResultSet, maxRows, null);
+	}
+
+	private static TupleSetWithLastTUID convertResultSet(java.sql.ResultSet jdbcResultSet, int maxRows, int[] lastOneOffTUID) throws SQLException,
+			RGMAPermanentException {
 		java.sql.ResultSetMetaData jdbcMetaData = jdbcResultSet.getMetaData();
 		int columnCount = jdbcMetaData.getColumnCount();
 
@@ -65,13 +108,17 @@ public class TupleStoreDatabaseBase {
 
 		TupleSet resultSet = new TupleSet();
 		int lastTUID = 0;
-		while (jdbcResultSet.next()) {
+		while (resultSet.size() < maxRows && jdbcResultSet.next()) {
 			String[] row = new String[newCount];
 			int i = 0;
 			for (int c = 1; c <= columnCount; c++) {
 				if (c == tuidColumnNumber) {
 					lastTUID = jdbcResultSet.getInt(c);
-				} else if (c != insertTimeColumnNumber && c != tuidOneOffColumnNumber) {
+				} else if (c == tuidOneOffColumnNumber) {
+					if (lastOneOffTUID != null) {
+						lastOneOffTUID[0] = jdbcResultSet.getInt(c);
+					}
+				} else if (c != insertTimeColumnNumber) {
 					row[i] = jdbcResultSet.getString(c);
 					if (jdbcResultSet.wasNull()) {
 						row[i] = null;
@@ -149,9 +196,123 @@ public class TupleStoreDatabaseBase {
 		}
 	}
 
+	/**
+	 * Creates a LATEST update statement from the given insert.
+	 * 
+	 * @param insert
+	 *            SQL INSERT statement.
+	 * @return An SQL UPDATE statement.
+	 */
+	protected static UpdateStatement createLatestUpdate(List<ColumnDefinition> columns, InsertStatement insert) {
+		Map<String, Constant> insertMap = null;
+
+		// Set up map
+		insertMap = new HashMap<String, Constant>();
+		Iterator<Constant> valueIter = insert.getColumnValues().iterator();
+		for (String colName : insert.getColumnNames()) {
+			insertMap.put(colName.toUpperCase(), valueIter.next());
+		}
+
+		Map<String, ExpressionOrConstant> set = new HashMap<String, ExpressionOrConstant>();
+		Expression where = null;
+		int colNum = 0;
+
+		for (ColumnDefinition def : columns) {
+			String colName = def.getName().toUpperCase();
+			Constant colValue = insertMap.get(colName);
+			if (colValue == null) {
+				colValue = new Constant("", Constant.Type.NULL);
+			}
+			if (def.isPrimaryKey()) {
+				Expression equalsOp = new Expression("=", new Constant(def.getName(), Constant.Type.COLUMN_NAME), colValue);
+				if (where == null) {
+					where = equalsOp;
+				} else {
+					where = new Expression("AND", where, equalsOp);
+				}
+			} else {
+				set.put(def.getName(), colValue);
+			}
+			colNum++;
+		}
+
+		UpdateStatement update = new UpdateStatement(insert.getTableName());
+		update.setSet(set);
+
+		Constant newTupleTimestamp = insertMap.get(ReservedColumns.RGMA_TIMESTAMP_COLUMN_NAME.toUpperCase());
+
+		Expression timestampPredicate = new Expression(">=", newTupleTimestamp, new Constant(ReservedColumns.RGMA_TIMESTAMP_COLUMN_NAME,
+				Constant.Type.COLUMN_NAME));
+		update.setWhere(new Expression("AND", where, timestampPredicate));
+		return update;
+	}
+
+	/**
+	 * Returns <code>true</code> if the result of a query can be read a chunk at a time as the cursor is popped rather
+	 * than being copied into a cursor table when the cursor is opened. This is so for a query on one table, without
+	 * DISTINCT, GROUP BY, ORDER BY or aggregates, which only selects columns.
+	 */
+	protected static boolean isLazyQuery(SelectStatement select) {
+		List<TableReference> from = select.getFrom();
+		if (from.size() != 1 || from.get(0).isJoin() || select.isDistinct() || select.getGroupBy() != null || select.getOrderBy() != null) {
+			return false;
+		}
+		for (SelectItem item : select.getSelect()) {
+			ExpressionOrConstant e = item.getExpression();
+			if (item.getAggregate() != null || item.isCountDistinct() || !(e instanceof Constant) || ((Constant) e).getType() != Constant.Type.COLUMN_NAME) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Brings a LATEST table up to date with a tuple in up to three steps: an UPDATE of the tuple with the same primary
+	 * key unless that one is newer, a SELECT to find out whether such a tuple exists if nothing was updated, and an
+	 * INSERT if it does not. This is for databases which cannot do it with one statement. The caller must stop other
+	 * threads from changing the tuples with the same primary key meanwhile.
+	 */
+	protected static void upsertLatestInSteps(TupleStoreDatabase db, InsertStatement insert, List<ColumnDefinition> columns)
+			throws RGMAPermanentException {
+		UpdateStatement update = createLatestUpdate(columns, insert);
+		if (db.update(update) == 0) {
+			/*
+			 * This can be zero for two reasons: - no tuple with the same primary key exists. - a tuple exists with the
+			 * same private key but a newer timestamp, so no update was made. So must find out which.
+			 */
+			SelectStatement check = new SelectStatement();
+			List<TableReference> from = new ArrayList<TableReference>(1);
+			from.add(new TableReference(insert.getTableName()));
+			check.addFrom(from);
+			List<SelectItem> sis = new ArrayList<SelectItem>(1);
+			sis.add(new SelectItem("*"));
+			check.addSelect(sis);
+			check.addWhere(((Expression) update.getWhere()).getOperand(0));
+			if (db.select(check).getTupleSet().getData().size() == 0) {
+				db.insert(insert);
+			}
+		}
+	}
+
 	/** Current cursor ID (this will be allocated on next call to nextCursorID()). */
 	protected int m_currentCursorID;
 
+	/** Prepared form of the query of each continuous cursor, dropped once the cursor has gone */
+	private final Map<SelectStatement, PreparedSQL> m_continuousQueries = Collections.synchronizedMap(new WeakHashMap<SelectStatement, PreparedSQL>());
+
+	/**
+	 * Returns the prepared form of the query of a continuous cursor, which is only worked out on the first call for the
+	 * cursor.
+	 */
+	PreparedSQL prepareContinuous(SelectStatement select) {
+		PreparedSQL prepared = m_continuousQueries.get(select);
+		if (prepared == null) {
+			prepared = PreparedSQL.continuous(select);
+			m_continuousQueries.put(select, prepared);
+		}
+		return prepared;
+	}
+
 	/**
 	 * Returns the next cursor ID to use and increments it.
 	 * 
@@ -93,7 +93,7 @@ public class TupleStoreManager {
 	private static final String DATABASE_MANAGER_DB_IMPL = "org.glite.rgma.server.services.producer.store.MySQLTupleStoreDatabase";
 
 	/** Implementation of DatabaseInstance for database tuple store. */
-	private static final String DATABASE_MANAGER_MEM_IMPL = "org.glite.rgma.server.services.producer.store.HSQLDBTupleStoreDatabase";
+	private static final String DATABASE_MANAGER_MEM_IMPL = "org.glite.rgma.server.services.producer.store.MemoryTupleStoreDatabase";
 
 	/** Thread used to asynchronously complete the tuple cleanup process */
 	private Timer m_tupleCleanupThread;
@@ -105,6 +105,9 @@ public class TupleStoreManager {
 	/** When this is exceeded an error is thrown */
 	private long m_maxHistoryTuples;
 
+	/** Maximum number of tuples pushed to each continuous cursor and not yet popped */
+	private int m_maxPushedTuples;
+
 	private StreamingSender m_streamingSender;
 
 	private static PrimaryProducerService s_primaryProducerService;
@@ -178,6 +181,13 @@ public class TupleStoreManager {
 			} else {
 				throw new RGMAPermanentException("Invalid StorageType");
 			}
+			/*
+			 * Pushed tuples are evaluated and formatted as in HSQLDB. MySQL formats numbers and timestamps and compares
+			 * strings differently, so its continuous queries only read from the history tables.
+			 */
+			if (m_databaseInstance instanceof MemoryTupleStoreDatabase) {
+				m_maxPushedTuples = config.getInt(ServerConstants.TUPLESTOREMANAGER_MAX_PUSHED_TUPLES);
+			}
 			m_permanentTupleStores = new HashMap<String, TupleStore>();
 			m_tupleStores = new ArrayList<TupleStore>();
 			m_tupleCleanupThread = new Timer(true);
@@ -256,7 +266,7 @@ public class TupleStoreManager {
 					}
 				}
 				TupleStoreDetails details = new TupleStoreDetails(m_type, logicalName, DN, isLatest, endpoint);
-				TupleStore store = new TupleStore(m_databaseInstance, details, m_maxHistoryTuples, m_streamingSender);
+				TupleStore store = new TupleStore(m_databaseInstance, details, m_maxHistoryTuples, m_streamingSender, m_maxPushedTuples);
 				if (logicalName.length() > 0) {
 					m_permanentTupleStores.put(key, store);
 					if (LOG.isDebugEnabled()) {
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2004.
+ * See http://eu-egee.org/partners/ for details on the copyright holders.
+ * For license conditions see the license file or http://eu-egee.org/license.html
+ */
+
+package org.glite.rgma.server.services.streaming;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+
+/**
+ * Pool of equally sized ByteBuffers used to hold encoded result sets until they have been consumed by the SSL engine.
+ * Buffers are returned to the pool once wrapped so that a busy streaming sender does not allocate a new buffer for
+ * every result set. This class is thread safe.
+ */
+class BufferPool {
+
+	/** Size of each buffer in bytes */
+	private final int m_bufferSize;
+
+	/** If <code>true</code>, buffers are allocated outside the heap */
+	private final boolean m_allocateDirect;
+
+	/** Maximum number of free buffers to keep */
+	private final int m_maxFree;
+
+	/** Free buffers, most recently released first */
+	private final LinkedList<ByteBuffer> m_free = new LinkedList<ByteBuffer>();
+
+	/** Number of buffers handed out and not yet released */
+	private int m_inUse;
+
+	/** Number of calls to acquire */
+	private long m_acquiredCount;
+
+	/** Number of buffers allocated because the pool was empty */
+	private long m_allocatedCount;
+
+	/** Number of buffers released back into the pool */
+	private long m_recycledCount;
+
+	/** Number of buffers released when the pool was already full */
+	private long m_discardedCount;
+
+	BufferPool(int bufferSize, boolean allocateDirect, int maxFree) {
+		m_bufferSize = bufferSize;
+		m_allocateDirect = allocateDirect;
+		m_maxFree = maxFree;
+	}
+
+	/**
+	 * Get an empty buffer, ready to be written to.
+	 */
+	synchronized ByteBuffer acquire() {
+		m_acquiredCount++;
+		m_inUse++;
+		if (m_free.size() > 0) {
+			return m_free.removeFirst();
+		}
+		m_allocatedCount++;
+		return m_allocateDirect ? ByteBuffer.allocateDirect(m_bufferSize) : ByteBuffer.allocate(m_bufferSize);
+	}
+
+	/**
+	 * Return a buffer to the pool. Buffers which did not come from this pool are ignored.
+	 */
+	synchronized void release(ByteBuffer buffer) {
+		if (buffer.capacity() != m_bufferSize || buffer.isDirect() != m_allocateDirect) {
+			return;
+		}
+		m_inUse--;
+		if (m_free.size() < m_maxFree) {
+			buffer.clear();
+			m_free.addFirst(buffer);
+			m_recycledCount++;
+		} else {
+			m_discardedCount++;
+		}
+	}
+
+	int getBufferSize() {
+		return m_bufferSize;
+	}
+
+	synchronized int getFreeCount() {
+		return m_free.size();
+	}
+
+	synchronized int getInUseCount() {
+		return m_inUse;
+	}
+
+	synchronized long getAcquiredCount() {
+		return m_acquiredCount;
+	}
+
+	synchronized long getAllocatedCount() {
+		return m_allocatedCount;
+	}
+
+	synchronized long getRecycledCount() {
+		return m_recycledCount;
+	}
+
+	synchronized long getDiscardedCount() {
+		return m_discardedCount;
+	}
+
+	/**
+	 * Percentage of acquisitions satisfied by a recycled buffer rather than a new allocation.
+	 */
+	synchronized int getRecyclePercent() {
+		if (m_acquiredCount == 0) {
+			return 0;
+		}
+		return (int) (100 * (m_acquiredCount - m_allocatedCount) / m_acquiredCount);
+	}
+
+	int getMaxFree() {
+		return m_maxFree;
+	}
+}
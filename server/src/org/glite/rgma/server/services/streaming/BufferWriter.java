@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2004.
+ * See http://eu-egee.org/partners/ for details on the copyright holders.
+ * For license conditions see the license file or http://eu-egee.org/license.html
+ */
+
+package org.glite.rgma.server.services.streaming;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Writes bytes, UTF-8 encoded strings and length-prefixed frames onto the end of a list of ByteBuffers, taking new
+ * buffers from a BufferPool as each one fills. Strings are encoded directly into the buffers without building
+ * intermediate byte arrays. This class is not thread safe.
+ */
+class BufferWriter {
+
+	private final BufferPool m_pool;
+
+	/** Buffers being written to, in write mode */
+	private List<ByteBuffer> m_buffers;
+
+	/** Last buffer of m_buffers, or null if a new one must be acquired */
+	private ByteBuffer m_current;
+
+	/** Bytes written since the call to start */
+	private int m_count;
+
+	/** Buffer holding the length of the current frame */
+	private ByteBuffer m_frameBuffer;
+
+	/** Position of the length of the current frame */
+	private int m_framePosition;
+
+	/** Value of m_count after the length of the current frame */
+	private int m_frameStart;
+
+	BufferWriter(BufferPool pool) {
+		m_pool = pool;
+	}
+
+	/**
+	 * Start writing onto the end of the list. Any free space in the last buffer of the list is used first.
+	 */
+	void start(List<ByteBuffer> buffers) {
+		m_buffers = buffers;
+		m_current = buffers.size() > 0 ? buffers.get(buffers.size() - 1) : null;
+		m_count = 0;
+	}
+
+	/**
+	 * Return the number of bytes written since the call to start.
+	 */
+	int getCount() {
+		return m_count;
+	}
+
+	private void ensure(int n) {
+		if (m_current == null || m_current.remaining() < n) {
+			m_current = m_pool.acquire();
+			m_buffers.add(m_current);
+		}
+	}
+
+	void putByte(int b) {
+		ensure(1);
+		m_current.put((byte) b);
+		m_count++;
+	}
+
+	/** Write an int as four bytes, most significant first */
+	void putInt(int value) {
+		putByte(value >>> 24);
+		putByte(value >>> 16);
+		putByte(value >>> 8);
+		putByte(value);
+	}
+
+	/** Write bytes from an array */
+	void put(byte[] b, int off, int len) {
+		while (len > 0) {
+			ensure(1);
+			int n = Math.min(len, m_current.remaining());
+			m_current.put(b, off, n);
+			off += n;
+			len -= n;
+			m_count += n;
+		}
+	}
+
+	/** Write an int as an unsigned little-endian base 128 number */
+	void putVarint(int value) {
+		while ((value & ~0x7F) != 0) {
+			putByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		putByte(value);
+	}
+
+	/** Write a string as its UTF-8 length followed by its UTF-8 bytes */
+	void putString(String s) {
+		putVarint(utf8Length(s));
+		append(s);
+	}
+
+	/** Reserve the four byte length and write the frame type */
+	void startFrame(byte type) {
+		ensure(4);
+		m_frameBuffer = m_current;
+		m_framePosition = m_current.position();
+		m_current.position(m_framePosition + 4);
+		m_count += 4;
+		m_frameStart = m_count;
+		putByte(type);
+	}
+
+	/** Fill in the length of the frame started by the last call to startFrame */
+	void endFrame() {
+		m_frameBuffer.putInt(m_framePosition, m_count - m_frameStart);
+	}
+
+	/** Write the UTF-8 encoding of a string */
+	void append(String s) {
+		append(s, 0, s.length());
+	}
+
+	/** Write the UTF-8 encoding of the characters of a string from start up to but excluding end */
+	private void append(String s, int start, int end) {
+		for (int i = start; i < end; i++) {
+			char ch = s.charAt(i);
+			if (ch < 0x80) {
+				putByte(ch);
+			} else if (ch < 0x800) {
+				putByte(0xC0 | (ch >> 6));
+				putByte(0x80 | (ch & 0x3F));
+			} else if (Character.isHighSurrogate(ch) && i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toCodePoint(ch, s.charAt(++i));
+				putByte(0xF0 | (cp >> 18));
+				putByte(0x80 | ((cp >> 12) & 0x3F));
+				putByte(0x80 | ((cp >> 6) & 0x3F));
+				putByte(0x80 | (cp & 0x3F));
+			} else if (Character.isHighSurrogate(ch) || Character.isLowSurrogate(ch)) {
+				/* Unpaired surrogate - replace as String.getBytes would */
+				putByte('?');
+			} else {
+				putByte(0xE0 | (ch >> 12));
+				putByte(0x80 | ((ch >> 6) & 0x3F));
+				putByte(0x80 | (ch & 0x3F));
+			}
+		}
+	}
+
+	/**
+	 * Write a string escaped for inclusion in XML, in the same way as ServletResponseWriter.normalize.
+	 */
+	void appendNormalized(String s) {
+		int len = s.length();
+		int start = 0;
+		for (int i = 0; i < len; i++) {
+			char ch = s.charAt(i);
+			String replacement;
+			switch (ch) {
+			case '<':
+				replacement = "&lt;";
+				break;
+			case '>':
+				replacement = "&gt;";
+				break;
+			case '&':
+				replacement = "&amp;";
+				break;
+			case '"':
+				replacement = "&quot;";
+				break;
+			case '\'':
+				replacement = "&apos;";
+				break;
+			case '\n':
+			case '\t':
+			case '\r':
+				continue;
+			default:
+				if (ch >= ' ') {
+					continue;
+				}
+				replacement = "";
+			}
+			append(s, start, i);
+			append(replacement);
+			start = i + 1;
+		}
+		append(s, start, len);
+	}
+
+	/** Return the number of bytes in the UTF-8 encoding of a string */
+	static int utf8Length(String s) {
+		int len = s.length();
+		int n = 0;
+		for (int i = 0; i < len; i++) {
+			char ch = s.charAt(i);
+			if (ch < 0x80) {
+				n++;
+			} else if (ch < 0x800) {
+				n += 2;
+			} else if (Character.isHighSurrogate(ch) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+				n += 4;
+				i++;
+			} else if (Character.isHighSurrogate(ch) || Character.isLowSurrogate(ch)) {
+				n++;
+			} else {
+				n += 3;
+			}
+		}
+		return n;
+	}
+}
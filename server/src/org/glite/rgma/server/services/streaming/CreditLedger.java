@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2004.
+ * See http://eu-egee.org/partners/ for details on the copyright holders.
+ * For license conditions see the license file or http://eu-egee.org/license.html
+ */
+
+package org.glite.rgma.server.services.streaming;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.glite.rgma.server.services.consumer.Consumable;
+import org.glite.rgma.server.system.ResourceEndpoint;
+
+/**
+ * Grants credit to the streaming connections delivering results to consumables with a limited capacity. For each
+ * consumable and connection the number of tuples received is counted and the sender is told the total number of tuples
+ * it may send, which is the number received plus a share of the free capacity of the consumable. The free capacity is
+ * divided equally between the connections delivering to the consumable. A sender stops sending results for the
+ * consumable when it has sent its allowance, so a slow consumer holds back its producers rather than filling up. This
+ * class is thread safe.
+ */
+class CreditLedger {
+
+	/**
+	 * Credit of one connection for one consumable.
+	 */
+	private static class Account {
+
+		/** Tuples received on the connection */
+		private long m_received;
+
+		/** Total tuples the sender was last told it may send - negative if it has not been told */
+		private long m_granted = -1;
+
+		/** Consumable for which the tuples are received */
+		private Consumable m_consumable;
+	}
+
+	/** Accounts by consumable endpoint and then by connection */
+	private final Map<ResourceEndpoint, Map<StreamingSink, Account>> m_accounts = new HashMap<ResourceEndpoint, Map<StreamingSink, Account>>();
+
+	private long m_grantCount;
+
+	/**
+	 * Record tuples received on a connection for a consumable, granting more credit if its allowance is being used up.
+	 */
+	synchronized void received(StreamingSink sink, Consumable consumable, int count) {
+		int free = consumable.getFreeCapacity();
+		if (free < 0) {
+			return;
+		}
+		ResourceEndpoint endpoint = consumable.getEndpoint();
+		Map<StreamingSink, Account> sinks = m_accounts.get(endpoint);
+		if (sinks == null) {
+			sinks = new HashMap<StreamingSink, Account>();
+			m_accounts.put(endpoint, sinks);
+		}
+		Account account = sinks.get(sink);
+		if (account == null) {
+			account = new Account();
+			sinks.put(sink, account);
+		}
+		account.m_consumable = consumable;
+		account.m_received += count;
+		grant(sink, endpoint, account, free / sinks.size());
+	}
+
+	/**
+	 * Record tuples received on a connection for a consumable which no longer has a reply for them. The sender counted
+	 * them against its allowance, so they must be counted here too or the allowance would never catch up with what it
+	 * has sent.
+	 */
+	synchronized void receivedUnmatched(StreamingSink sink, ResourceEndpoint endpoint, int count) {
+		Map<StreamingSink, Account> sinks = m_accounts.get(endpoint);
+		Account account = sinks == null ? null : sinks.get(sink);
+		if (account == null) {
+			/* No credit has been granted so the sender is not counting */
+			return;
+		}
+		account.m_received += count;
+		int free = account.m_consumable.getFreeCapacity();
+		if (free >= 0) {
+			grant(sink, endpoint, account, free / sinks.size());
+		}
+	}
+
+	/**
+	 * Grant more credit to the connections delivering to a consumable which has room for more tuples.
+	 */
+	synchronized void capacityFreed(Consumable consumable) {
+		Map<StreamingSink, Account> sinks = m_accounts.get(consumable.getEndpoint());
+		if (sinks == null) {
+			return;
+		}
+		int free = consumable.getFreeCapacity();
+		if (free < 0) {
+			return;
+		}
+		int share = free / sinks.size();
+		for (Map.Entry<StreamingSink, Account> entry : sinks.entrySet()) {
+			grant(entry.getKey(), consumable.getEndpoint(), entry.getValue(), share);
+		}
+	}
+
+	/**
+	 * Forget a connection which has been closed.
+	 */
+	synchronized void removeSink(StreamingSink sink) {
+		Iterator<Map<StreamingSink, Account>> iter = m_accounts.values().iterator();
+		while (iter.hasNext()) {
+			Map<StreamingSink, Account> sinks = iter.next();
+			sinks.remove(sink);
+			if (sinks.isEmpty()) {
+				iter.remove();
+			}
+		}
+	}
+
+	/**
+	 * Forget a consumable which has been destroyed.
+	 */
+	synchronized void removeConsumer(ResourceEndpoint endpoint) {
+		m_accounts.remove(endpoint);
+	}
+
+	synchronized int getConsumerCount() {
+		return m_accounts.size();
+	}
+
+	synchronized long getGrantCount() {
+		return m_grantCount;
+	}
+
+	/**
+	 * Send a new allowance if it is at least half a share more than the last one, or if the old one has been used up
+	 * and there is any more room. Small grants are not sent while the sender still has credit, to limit the number of
+	 * messages.
+	 */
+	private void grant(StreamingSink sink, ResourceEndpoint endpoint, Account account, int share) {
+		long allowed = account.m_received + share;
+		if (account.m_granted < 0 || allowed >= account.m_granted + Math.max(1, share / 2)
+				|| (account.m_received >= account.m_granted && allowed > account.m_granted)) {
+			account.m_granted = allowed;
+			sink.grant(endpoint, allowed);
+			m_grantCount++;
+		}
+	}
+}
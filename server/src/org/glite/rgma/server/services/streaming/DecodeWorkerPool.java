@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2004.
+ * See http://eu-egee.org/partners/ for details on the copyright holders.
+ * For license conditions see the license file or http://eu-egee.org/license.html
+ */
+
+package org.glite.rgma.server.services.streaming;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Pool of threads which decode the bytes read by the streaming receiver and push the results to the running replies.
+ * The bytes of each connection are decoded by one thread at a time, in the order in which they were read. The total
+ * number of bytes waiting to be decoded is bounded: once it is exceeded the streaming receiver stops reading until the
+ * workers have caught up.
+ */
+class DecodeWorkerPool {
+
+	private class Worker extends Thread {
+
+		@Override
+		public void run() {
+			while (true) {
+				StreamingSink sink;
+				ByteBuffer chunk;
+				synchronized (DecodeWorkerPool.this) {
+					while (m_active && m_ready.isEmpty()) {
+						try {
+							DecodeWorkerPool.this.wait();
+						} catch (InterruptedException e) {
+							// Check again
+						}
+					}
+					if (!m_active) {
+						break;
+					}
+					sink = m_ready.removeFirst();
+					chunk = sink.pollPending();
+					m_busyCount++;
+				}
+				int length = chunk.remaining();
+				try {
+					sink.decode(chunk);
+				} catch (Throwable t) {
+					LOG.error("Unexpected error decoding streamed results for " + sink, t);
+				}
+				boolean resume = false;
+				synchronized (DecodeWorkerPool.this) {
+					m_busyCount--;
+					m_queuedBytes -= length;
+					if (sink.hasPending()) {
+						m_ready.add(sink);
+					} else {
+						sink.setScheduled(false);
+					}
+					if (m_paused && m_queuedBytes <= m_maxQueuedBytes / 2) {
+						m_paused = false;
+						resume = true;
+					}
+				}
+				if (resume) {
+					m_receiver.resumeReading();
+				}
+			}
+			if (LOG.isDebugEnabled()) {
+				LOG.debug(getName() + " closing down");
+			}
+		}
+	}
+
+	private static final Logger LOG = Logger.getLogger(StreamingConstants.STREAMING_RECEIVER_LOGGER);
+
+	private final StreamingReceiver m_receiver;
+
+	/** Number of queued bytes above which reading is suspended */
+	private final int m_maxQueuedBytes;
+
+	/** Sinks with bytes waiting to be decoded and which are not being decoded by a worker */
+	private final LinkedList<StreamingSink> m_ready = new LinkedList<StreamingSink>();
+
+	private final Worker[] m_workers;
+
+	/** Bytes submitted and not yet decoded */
+	private int m_queuedBytes;
+
+	/** Number of threads currently decoding */
+	private int m_busyCount;
+
+	/** If <code>true</code>, reading has been suspended and the receiver must be told when to resume */
+	private boolean m_paused;
+
+	/** Number of times that reading has been suspended */
+	private long m_pauseCount;
+
+	private boolean m_active;
+
+	DecodeWorkerPool(StreamingReceiver receiver, int threadCount, int maxQueuedBytes) {
+		m_receiver = receiver;
+		m_maxQueuedBytes = maxQueuedBytes;
+		m_workers = new Worker[Math.max(1, threadCount)];
+		m_active = true;
+		for (int i = 0; i < m_workers.length; i++) {
+			m_workers[i] = new Worker();
+			m_workers[i].setName("StreamingDecoder-" + i);
+			m_workers[i].setDaemon(true);
+		}
+	}
+
+	void start() {
+		for (Worker w : m_workers) {
+			w.start();
+		}
+	}
+
+	/**
+	 * Queue bytes read from the connection of a sink to be decoded after any bytes already queued for it.
+	 */
+	synchronized void submit(StreamingSink sink, ByteBuffer chunk) {
+		sink.addPending(chunk);
+		m_queuedBytes += chunk.remaining();
+		if (!sink.isScheduled()) {
+			sink.setScheduled(true);
+			m_ready.add(sink);
+			notify();
+		}
+	}
+
+	/**
+	 * Check whether too many bytes are waiting to be decoded. If so, the receiver will be told to resume reading when
+	 * the workers have caught up.
+	 *
+	 * @return <code>true</code> if reading should be suspended
+	 */
+	synchronized boolean pauseIfFull() {
+		if (m_queuedBytes < m_maxQueuedBytes) {
+			return false;
+		}
+		if (!m_paused) {
+			m_paused = true;
+			m_pauseCount++;
+		}
+		return true;
+	}
+
+	synchronized void shutdown() {
+		m_active = false;
+		m_ready.clear();
+		notifyAll();
+	}
+
+	int getThreadCount() {
+		return m_workers.length;
+	}
+
+	int getMaxQueuedBytes() {
+		return m_maxQueuedBytes;
+	}
+
+	synchronized int getQueuedBytes() {
+		return m_queuedBytes;
+	}
+
+	synchronized int getBusyCount() {
+		return m_busyCount;
+	}
+
+	synchronized int getReadyCount() {
+		return m_ready.size();
+	}
+
+	synchronized long getPauseCount() {
+		return m_pauseCount;
+	}
+}
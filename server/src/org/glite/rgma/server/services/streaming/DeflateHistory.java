@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2004.
+ * See http://eu-egee.org/partners/ for details on the copyright holders.
+ * For license conditions see the license file or http://eu-egee.org/license.html
+ */
+
+package org.glite.rgma.server.services.streaming;
+
+/**
+ * The most recent uncompressed bytes sent on a compressed streaming connection. Each compressed block is deflated with
+ * the history of the blocks before it as a preset dictionary, so repeated host names, states and so on are sent as
+ * back references even when they were last seen in an earlier block. The encoder and decoder must keep identical
+ * histories.
+ */
+class DeflateHistory {
+
+	/** Number of bytes of history used as the dictionary */
+	static final int SIZE = 16 * 1024;
+
+	private final byte[] m_bytes = new byte[SIZE];
+
+	private int m_length;
+
+	/**
+	 * Append bytes to the history, discarding the oldest bytes beyond SIZE.
+	 */
+	void add(byte[] b, int off, int len) {
+		if (len >= SIZE) {
+			System.arraycopy(b, off + len - SIZE, m_bytes, 0, SIZE);
+			m_length = SIZE;
+			return;
+		}
+		int keep = Math.min(m_length, SIZE - len);
+		if (keep < m_length) {
+			System.arraycopy(m_bytes, m_length - keep, m_bytes, 0, keep);
+		}
+		System.arraycopy(b, off, m_bytes, keep, len);
+		m_length = keep + len;
+	}
+
+	byte[] getBytes() {
+		return m_bytes;
+	}
+
+	int getLength() {
+		return m_length;
+	}
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2004.
+ * See http://eu-egee.org/partners/ for details on the copyright holders.
+ * For license conditions see the license file or http://eu-egee.org/license.html
+ */
+
+package org.glite.rgma.server.services.streaming;
+
+import org.glite.rgma.server.system.ResourceEndpoint;
+
+/**
+ * Identifies the stream of result sets for one query: the source and target endpoints and the SQL query.
+ */
+class EnvelopeKey {
+
+	private final ResourceEndpoint m_source;
+
+	private final ResourceEndpoint m_target;
+
+	private final String m_query;
+
+	EnvelopeKey(ResourceEndpoint source, ResourceEndpoint target, String query) {
+		m_source = source;
+		m_target = target;
+		m_query = query;
+	}
+
+	ResourceEndpoint getSource() {
+		return m_source;
+	}
+
+	ResourceEndpoint getTarget() {
+		return m_target;
+	}
+
+	String getQuery() {
+		return m_query;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (obj instanceof EnvelopeKey) {
+			EnvelopeKey k = (EnvelopeKey) obj;
+			return k.m_source.equals(m_source) && k.m_target.equals(m_target) && k.m_query.equals(m_query);
+		}
+		return false;
+	}
+
+	@Override
+	public int hashCode() {
+		return (m_source.hashCode() * 31 + m_target.hashCode()) * 31 + m_query.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return m_source + "->" + m_target + " for " + m_query;
+	}
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2004.
+ * See http://eu-egee.org/partners/ for details on the copyright holders.
+ * For license conditions see the license file or http://eu-egee.org/license.html
+ */
+
+package org.glite.rgma.server.services.streaming;
+
+/**
+ * Counts of values in buckets whose upper bounds double from one bucket to the next, for status information. The last
+ * bucket holds everything too big for the others. This class is thread safe.
+ */
+class Histogram {
+
+	/** Upper bound (exclusive) of the first bucket */
+	private final long m_firstBound;
+
+	private final long[] m_counts;
+
+	Histogram(long firstBound, int bucketCount) {
+		m_firstBound = firstBound;
+		m_counts = new long[bucketCount];
+	}
+
+	synchronized void add(long value) {
+		int i = 0;
+		long bound = m_firstBound;
+		while (value >= bound && i < m_counts.length - 1) {
+			bound <<= 1;
+			i++;
+		}
+		m_counts[i]++;
+	}
+
+	/**
+	 * Returns the non-empty buckets as space separated "&lt;bound:count" entries, with ">=bound:count" for the last
+	 * bucket.
+	 */
+	@Override
+	public synchronized String toString() {
+		StringBuilder sb = new StringBuilder();
+		long bound = m_firstBound;
+		for (int i = 0; i < m_counts.length; i++) {
+			if (m_counts[i] != 0) {
+				if (sb.length() > 0) {
+					sb.append(' ');
+				}
+				if (i < m_counts.length - 1) {
+					sb.append('<').append(bound);
+				} else {
+					sb.append(">=").append(bound >> 1);
+				}
+				sb.append(':').append(m_counts[i]);
+			}
+			bound <<= 1;
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2004.
+ * See http://eu-egee.org/partners/ for details on the copyright holders.
+ * For license conditions see the license file or http://eu-egee.org/license.html
+ */
+
+package org.glite.rgma.server.services.streaming;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.glite.rgma.server.services.consumer.RunningReply;
+import org.glite.rgma.server.services.producer.RunningQuery;
+import org.glite.rgma.server.services.producer.store.TupleStore;
+import org.glite.rgma.server.system.RGMAPermanentException;
+import org.glite.rgma.server.system.StreamingProperties;
+import org.glite.rgma.server.system.TupleSet;
+import org.glite.rgma.server.system.TupleSetEnvelope;
+
+/**
+ * Delivers the results of queries whose consumer is in this server without a streaming connection. Chunks fetched by
+ * the prefetcher are pushed directly to the RunningReply held by the streaming receiver, so they are never encoded,
+ * encrypted or parsed. A single thread delivers the chunks of each query in the order they were fetched and, as on a
+ * streaming connection, a query is dropped once its end of results has been delivered.
+ * <p>
+ * Results are held back while the consumer has no free capacity, as they would be for lack of credit on a streaming
+ * connection. As no grants are received, such queries are retried after a short delay.
+ */
+class LoopbackDelivery extends Thread {
+
+	private static final Logger LOG = Logger.getLogger(StreamingConstants.STREAMING_SENDER_LOGGER);
+
+	/** How long to wait before trying again to deliver results held back for lack of capacity */
+	private static final long CAPACITY_RETRY_MILLIS = 100;
+
+	/** Threads which fetch results from the cursors of the queries */
+	private final QueryPrefetcher m_prefetcher;
+
+	/** Queries being delivered locally */
+	private final LinkedList<RunningQuery> m_queries = new LinkedList<RunningQuery>();
+
+	/** Number of local queries on each tuple store */
+	private final Map<TupleStore, Integer> m_storeCounts = new HashMap<TupleStore, Integer>();
+
+	/** If <code>true</code>, there may be results ready to deliver */
+	private boolean m_dataAdded;
+
+	private boolean m_active;
+
+	private long m_resultSetCount;
+
+	private long m_tupleCount;
+
+	private long m_droppedResultSetCount;
+
+	/** Number of times results were held back because the consumer had no free capacity */
+	private long m_capacityWaitCount;
+
+	/** Set by the delivery thread when results have been held back */
+	private boolean m_heldBack;
+
+	LoopbackDelivery(QueryPrefetcher prefetcher) {
+		m_prefetcher = prefetcher;
+		m_active = true;
+		setName("StreamingLoopback");
+		setDaemon(true);
+	}
+
+	/**
+	 * Add a query whose results are to be delivered locally.
+	 */
+	synchronized void addQuery(RunningQuery query) {
+		m_queries.add(query);
+		Integer count = m_storeCounts.get(query.getTupleStore());
+		m_storeCounts.put(query.getTupleStore(), count == null ? 1 : count + 1);
+		m_prefetcher.prefetch(query);
+		m_dataAdded = true;
+		notify();
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("Added RunningQuery:" + query + " for loopback delivery");
+		}
+	}
+
+	/**
+	 * Wake the delivery thread if any local query uses the tuple store.
+	 */
+	synchronized void dataAddedToTupleStore(TupleStore store) {
+		if (m_storeCounts.containsKey(store)) {
+			m_dataAdded = true;
+			notify();
+		}
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			List<RunningQuery> queries;
+			synchronized (this) {
+				long retryTime = System.currentTimeMillis() + CAPACITY_RETRY_MILLIS;
+				while (m_active && !m_dataAdded) {
+					try {
+						if (m_heldBack) {
+							long delay = retryTime - System.currentTimeMillis();
+							if (delay <= 0) {
+								break;
+							}
+							wait(delay);
+						} else {
+							wait();
+						}
+					} catch (InterruptedException e) {
+						// Check again
+					}
+				}
+				if (!m_active) {
+					break;
+				}
+				m_dataAdded = false;
+				m_heldBack = false;
+				queries = new ArrayList<RunningQuery>(m_queries);
+			}
+			for (RunningQuery query : queries) {
+				try {
+					if (!deliver(query)) {
+						removeQuery(query);
+					}
+				} catch (Throwable t) {
+					LOG.error("Unexpected error delivering results locally for " + query, t);
+				}
+			}
+		}
+		if (LOG.isDebugEnabled()) {
+			LOG.debug(getName() + " closing down");
+		}
+	}
+
+	synchronized void shutdown() {
+		m_active = false;
+		notifyAll();
+	}
+
+	/**
+	 * Adds status information about the local queries.
+	 *
+	 * @param queries
+	 *            List to which a map of status information "parameter name", "value" is added for each query
+	 * @param maxEntries
+	 *            Maximum size of the list
+	 */
+	synchronized void queryInfo(List<Map<String, String>> queries, int maxEntries) {
+		for (RunningQuery query : m_queries) {
+			if (queries.size() >= maxEntries) {
+				break;
+			}
+			StreamingProperties streamingProps = query.getStreamingProperties();
+			Map<String, String> map = new HashMap<String, String>();
+			map.put("ProducerID", String.valueOf(query.getProducer().getResourceID()));
+			map.put("ConsumerID", String.valueOf(query.getConsumer().getResourceID()));
+			map.put("Url", String.valueOf(streamingProps.getStreamingHost()));
+			map.put("Port", String.valueOf(streamingProps.getStreamingPort()));
+			map.put("Loopback", "true");
+			map.put("ReadyQueueDepth", String.valueOf(query.getReadyCount()));
+			map.put("Fetching", String.valueOf(query.isFetching()));
+			map.put("FetchCount", String.valueOf(query.getFetchCount()));
+			map.put("LastFetchMillis", String.valueOf(query.getLastFetchMillis()));
+			map.put("MeanFetchMillis", String.valueOf(query.getMeanFetchMillis()));
+			map.put("MaxFetchMillis", String.valueOf(query.getMaxFetchMillis()));
+			queries.add(map);
+		}
+	}
+
+	synchronized int getQueryCount() {
+		return m_queries.size();
+	}
+
+	synchronized long getResultSetCount() {
+		return m_resultSetCount;
+	}
+
+	synchronized long getTupleCount() {
+		return m_tupleCount;
+	}
+
+	synchronized long getDroppedResultSetCount() {
+		return m_droppedResultSetCount;
+	}
+
+	synchronized long getCapacityWaitCount() {
+		return m_capacityWaitCount;
+	}
+
+	/**
+	 * Push all the fetched chunks of a query to its reply and ask for more.
+	 *
+	 * @return <code>false</code> if the query has finished and should be dropped
+	 */
+	private boolean deliver(RunningQuery query) throws RGMAPermanentException {
+		if (!query.hasResultsToSend()) {
+			return false;
+		}
+		RunningReply reply = StreamingReceiver.getInstance().getReply(new EnvelopeKey(query.getProducer(), query.getConsumer(), query.getConsumerQuery()));
+		try {
+			TupleSetEnvelope results;
+			while (true) {
+				if (reply != null && reply.getConsumable().getFreeCapacity() == 0) {
+					if (query.getReadyCount() > 0) {
+						synchronized (this) {
+							m_heldBack = true;
+							m_capacityWaitCount++;
+						}
+					}
+					break;
+				}
+				results = query.pollReady();
+				if (results == null) {
+					break;
+				}
+				TupleSet ts = results.getTupleSet();
+				if (LOG.isDebugEnabled()) {
+					LOG.debug(ts.size() + " tuples for " + query + (ts.isEndOfResults() ? " *EOF*" : "") + " delivered locally");
+				}
+				push(results);
+				if (ts.isEndOfResults()) {
+					return false;
+				}
+			}
+		} catch (RGMAPermanentException e) {
+			LOG.warn("Failed to pop tuples from store for " + query + ". " + e.getMessage() + " - results will be discarded");
+			/* stop this happening again */
+			query.abort();
+			return false;
+		}
+		m_prefetcher.prefetch(query);
+		return true;
+	}
+
+	/**
+	 * Push a result set to the reply expecting it, as a streaming sink would on receiving it.
+	 */
+	private void push(TupleSetEnvelope results) throws RGMAPermanentException {
+		RunningReply reply = StreamingReceiver.getInstance().getReply(new EnvelopeKey(results.getSource(), results.getTarget(), results.getQuery()));
+		TupleSet ts = results.getTupleSet();
+		if (reply != null) {
+			reply.push(ts);
+			synchronized (this) {
+				m_resultSetCount++;
+				m_tupleCount += ts.size();
+			}
+		} else {
+			/*
+			 * As for streamed results, the consumer may have gone away without the producer being told yet.
+			 */
+			LOG.debug("No matching reply found for local results " + results.getSource() + "->" + results.getTarget() + " for " + results.getQuery());
+			synchronized (this) {
+				m_droppedResultSetCount++;
+			}
+		}
+	}
+
+	private synchronized void removeQuery(RunningQuery query) {
+		if (m_queries.remove(query)) {
+			TupleStore store = query.getTupleStore();
+			Integer count = m_storeCounts.get(store);
+			if (count != null && count > 1) {
+				m_storeCounts.put(store, count - 1);
+			} else {
+				m_storeCounts.remove(store);
+			}
+		}
+	}
+}
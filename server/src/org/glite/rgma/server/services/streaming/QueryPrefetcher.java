@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2004.
+ * See http://eu-egee.org/partners/ for details on the copyright holders.
+ * For license conditions see the license file or http://eu-egee.org/license.html
+ */
+
+package org.glite.rgma.server.services.streaming;
+
+import java.util.LinkedList;
+
+import org.apache.log4j.Logger;
+import org.glite.rgma.server.services.producer.RunningQuery;
+
+/**
+ * Pool of threads which read chunks of results from the cursors of RunningQueries ahead of the streaming sender. The
+ * selector threads of the streaming sender only take chunks which are already fetched, so a slow database query holds
+ * up the streams of that query alone.
+ */
+class QueryPrefetcher {
+
+	private class Worker extends Thread {
+
+		@Override
+		public void run() {
+			while (true) {
+				RunningQuery query;
+				synchronized (QueryPrefetcher.this) {
+					while (m_active && m_pending.isEmpty()) {
+						try {
+							QueryPrefetcher.this.wait();
+						} catch (InterruptedException e) {
+							// Check again
+						}
+					}
+					if (!m_active) {
+						break;
+					}
+					query = m_pending.removeFirst();
+					m_busyCount++;
+				}
+				try {
+					query.prefetch();
+				} catch (Throwable t) {
+					LOG.error("Unexpected Throwable prefetching results for " + query, t);
+				} finally {
+					synchronized (QueryPrefetcher.this) {
+						m_busyCount--;
+					}
+				}
+			}
+			if (LOG.isDebugEnabled()) {
+				LOG.debug(getName() + " closing down");
+			}
+		}
+	}
+
+	private static final Logger LOG = Logger.getLogger(StreamingConstants.STREAMING_SENDER_LOGGER);
+
+	/** Maximum number of chunks to hold for each query */
+	private final int m_queueSize;
+
+	/** Queries waiting for a thread to fetch their next chunk */
+	private final LinkedList<RunningQuery> m_pending = new LinkedList<RunningQuery>();
+
+	private final Worker[] m_workers;
+
+	/** Number of threads currently fetching */
+	private int m_busyCount;
+
+	private boolean m_active;
+
+	QueryPrefetcher(int threadCount, int queueSize) {
+		m_queueSize = Math.max(1, queueSize);
+		m_workers = new Worker[Math.max(1, threadCount)];
+		m_active = true;
+		for (int i = 0; i < m_workers.length; i++) {
+			m_workers[i] = new Worker();
+			m_workers[i].setName("StreamingPrefetcher-" + i);
+			m_workers[i].setDaemon(true);
+		}
+	}
+
+	void start() {
+		for (Worker w : m_workers) {
+			w.start();
+		}
+	}
+
+	/**
+	 * Arrange for the next chunk of the query to be fetched if there is room for it and no fetch is already running.
+	 */
+	void prefetch(RunningQuery query) {
+		if (query.startPrefetch(m_queueSize)) {
+			synchronized (this) {
+				m_pending.add(query);
+				notify();
+			}
+		}
+	}
+
+	synchronized void shutdown() {
+		m_active = false;
+		m_pending.clear();
+		notifyAll();
+	}
+
+	int getQueueSize() {
+		return m_queueSize;
+	}
+
+	int getThreadCount() {
+		return m_workers.length;
+	}
+
+	synchronized int getPendingCount() {
+		return m_pending.size();
+	}
+
+	synchronized int getBusyCount() {
+		return m_busyCount;
+	}
+}
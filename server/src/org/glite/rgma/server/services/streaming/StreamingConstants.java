@@ -9,4 +9,16 @@ public class StreamingConstants {
 	
 	/** The name of the logger used for logging of streaming receiver operations */
 	public static final String STREAMING_RECEIVER_LOGGER = "rgma.services.streaming.receiver";
+
+	/** Original streaming protocol with verbose XML result sets */
+	public static final int OLD_XML_STREAMING_PROTOCOL = 1;
+
+	/** Streaming protocol with compact XML result sets */
+	public static final int XML_STREAMING_PROTOCOL = 2;
+
+	/** Streaming protocol with length-prefixed binary columnar frames */
+	public static final int BINARY_STREAMING_PROTOCOL = 3;
+
+	/** Streaming protocol with the binary frames of version 3 sent in Deflate compressed blocks */
+	public static final int COMPRESSED_STREAMING_PROTOCOL = 4;
 }
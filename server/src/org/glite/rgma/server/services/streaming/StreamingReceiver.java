@@ -23,15 +23,17 @@ import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.naming.ConfigurationException;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.SSLEngineResult.HandshakeStatus;
 
 import org.apache.log4j.Logger;
@@ -81,13 +83,10 @@ public class StreamingReceiver extends StreamingEndpoint {
 				 * modification exception. So we create a list of replies to remove and iterate over a copy of the list.
 				 * Note also that the m_replies must not be locked while ping is called - to avoid deadlocks.
 				 */
-				ArrayList<RunningReply> toCheck = null;
-				synchronized (m_replies) {
-					if (LOG.isDebugEnabled()) {
-						LOG.debug("Checking " + m_replies.size() + "  replies - looking for stale ones");
-					}
-					toCheck = new ArrayList<RunningReply>(m_replies);
+				if (LOG.isDebugEnabled()) {
+					LOG.debug("Checking " + m_replies.size() + "  replies - looking for stale ones");
 				}
+				ArrayList<RunningReply> toCheck = new ArrayList<RunningReply>(m_replies.values());
 				ArrayList<RunningReply> toRemove = new ArrayList<RunningReply>();
 				for (RunningReply reply : toCheck) {
 					Consumable consumable = reply.getConsumable();
@@ -109,8 +108,8 @@ public class StreamingReceiver extends StreamingEndpoint {
 						}
 					}
 				}
-				synchronized (m_replies) {
-					m_replies.removeAll(toRemove);
+				for (RunningReply reply : toRemove) {
+					removeReply(reply);
 				}
 				synchronized (m_status) {
 					m_status.m_timeSinceLastCleanupMillis = System.currentTimeMillis();
@@ -187,7 +186,8 @@ public class StreamingReceiver extends StreamingEndpoint {
 	/** Port number the streaming receiver listens on. */
 	private final int m_port;
 
-	private List<RunningReply> m_replies;
+	/** Running replies to receive results, by the source, target and query of the results they accept */
+	private final ConcurrentMap<EnvelopeKey, RunningReply> m_replies;
 
 	/** Selector for multiplexed I/O. */
 	private Selector m_selector;
@@ -215,6 +215,21 @@ public class StreamingReceiver extends StreamingEndpoint {
 
 	private SSLContext m_sslContext;
 
+	/** Workers which decode the bytes read and push the results to the replies */
+	private final DecodeWorkerPool m_decodePool;
+
+	/** Keys whose READ interest was dropped because too many bytes were waiting to be decoded */
+	private final List<SelectionKey> m_pausedKeys = new ArrayList<SelectionKey>();
+
+	/** Set by a decode worker when the paused keys should read again */
+	private volatile boolean m_resumeReading;
+
+	/** Decides the credit granted to senders for consumers with limited space */
+	private final CreditLedger m_ledger = new CreditLedger();
+
+	/** Keys of connections with credit grants to write */
+	private final List<SelectionKey> m_writeWanted = new ArrayList<SelectionKey>();
+
 	private boolean m_allocateDirect;
 
 	/**
@@ -232,9 +247,11 @@ public class StreamingReceiver extends StreamingEndpoint {
 		m_cleanupIntervalMillis = config.getLong(ServerConstants.STREAMING_RECEIVER_CLEANUP_INTERVAL_SECS) * 1000;
 		m_port = port;
 		m_numConnections = 0;
-		m_replies = new LinkedList<RunningReply>();
+		m_replies = new ConcurrentHashMap<EnvelopeKey, RunningReply>();
 		m_validHosts = new HashSet<String>();
 		m_allocateDirect = config.getBoolean(ServerConstants.STREAMING_ALLOCATE_DIRECT);
+		m_decodePool = new DecodeWorkerPool(this, config.getInt(ServerConstants.STREAMING_RECEIVER_DECODE_THREADS), config
+				.getInt(ServerConstants.STREAMING_RECEIVER_MAX_QUEUED_BYTES));
 		setName("StreamingReceiver");
 		try {
 			m_serverChannel = ServerSocketChannel.open();
@@ -273,6 +290,13 @@ public class StreamingReceiver extends StreamingEndpoint {
 		m_cleanout = null;
 
 		m_sslContext = RGMAContextWrapper.getInstance().getContext();
+		/* Cache sessions so that senders reconnecting after a failure can resume them */
+		SSLSessionContext sessions = m_sslContext.getServerSessionContext();
+		if (sessions != null) {
+			sessions.setSessionCacheSize(config.getInt(ServerConstants.STREAMING_SSL_SESSION_CACHE_SIZE));
+			sessions.setSessionTimeout(config.getInt(ServerConstants.STREAMING_SSL_SESSION_TIMEOUT_SECS));
+		}
+		m_decodePool.start();
 
 		LOG.debug("StreamingReceiver Started");
 	}
@@ -287,8 +311,9 @@ public class StreamingReceiver extends StreamingEndpoint {
 	 */
 	public void addReply(RunningReply reply) {
 		PlanEntry planEntry = reply.getPlanEntry();
-		synchronized (m_replies) {
-			m_replies.add(reply);
+		RunningReply old = m_replies.put(getKey(reply), reply);
+		if (old != null && old != reply) {
+			LOG.warn("Reply " + old + " replaced by " + reply + " for the same query");
 		}
 		ResourceEndpoint producerEndpoint = planEntry.getProducer().getEndpoint();
 		try {
@@ -310,9 +335,37 @@ public class StreamingReceiver extends StreamingEndpoint {
 	 * Remove a running reply from the streaming receiver. No further tuples will be pushed to the reply.
 	 */
 	public void removeReply(RunningReply reply) {
-		synchronized (m_replies) {
-			m_replies.remove(reply);
-		}
+		m_replies.remove(getKey(reply), reply);
+	}
+
+	/**
+	 * Return the reply accepting results with the source, target and query of the key, or <code>null</code> if there is
+	 * none.
+	 */
+	RunningReply getReply(EnvelopeKey key) {
+		return m_replies.get(key);
+	}
+
+	/**
+	 * Called by a consumer when it has room for more tuples, so that the senders may be granted more credit.
+	 */
+	public void capacityFreed(Consumable consumable) {
+		m_ledger.capacityFreed(consumable);
+	}
+
+	/**
+	 * Called by a consumer when it is destroyed, to forget its credit.
+	 */
+	public void removeConsumer(ResourceEndpoint endpoint) {
+		m_ledger.removeConsumer(endpoint);
+	}
+
+	/**
+	 * Return the key under which a reply is held: the producer and consumer endpoints and the query.
+	 */
+	private static EnvelopeKey getKey(RunningReply reply) {
+		PlanEntry planEntry = reply.getPlanEntry();
+		return new EnvelopeKey(planEntry.getProducer().getEndpoint(), reply.getConsumable().getEndpoint(), planEntry.getSelect().toString());
 	}
 
 	/**
@@ -323,30 +376,28 @@ public class StreamingReceiver extends StreamingEndpoint {
 	public List<Map<String, String>> replyInfo(int maxEntries) {
 		List<Map<String, String>> replies = new ArrayList<Map<String, String>>();
 
-		synchronized (m_replies) {
-			int n = 0;
-			for (RunningReply reply : m_replies) {
-				Map<String, String> map = new HashMap<String, String>();
-				map.put("ConsumerID", String.valueOf(reply.getConsumable().getEndpoint().getResourceID()));
-
-				if (reply instanceof RunningReply) {
-					ProducerDetails producer = reply.getPlanEntry().getProducer();
-					map.put("ProducerURL", String.valueOf(producer.getEndpoint().getURL()));
-					map.put("ProducerID", String.valueOf(producer.getEndpoint().getResourceID()));
-					if (producer.getTables() == null) {
-						map.put("Table", "Not known - directed query");
-					} else {
-						map.put("Table", String.valueOf(producer.getTables().keySet().toArray()[0]));
-					}
+		int n = 0;
+		for (RunningReply reply : m_replies.values()) {
+			Map<String, String> map = new HashMap<String, String>();
+			map.put("ConsumerID", String.valueOf(reply.getConsumable().getEndpoint().getResourceID()));
+
+			if (reply instanceof RunningReply) {
+				ProducerDetails producer = reply.getPlanEntry().getProducer();
+				map.put("ProducerURL", String.valueOf(producer.getEndpoint().getURL()));
+				map.put("ProducerID", String.valueOf(producer.getEndpoint().getResourceID()));
+				if (producer.getTables() == null) {
+					map.put("Table", "Not known - directed query");
 				} else {
-					map.put("ProducerURL", "None");
-					map.put("ProducerID", "None");
-					map.put("Table", "None");
+					map.put("Table", String.valueOf(producer.getTables().keySet().toArray()[0]));
 				}
-				replies.add(map);
-				if (++n >= maxEntries)
-					break;
+			} else {
+				map.put("ProducerURL", "None");
+				map.put("ProducerID", "None");
+				map.put("Table", "None");
 			}
+			replies.add(map);
+			if (++n >= maxEntries)
+				break;
 		}
 		return replies;
 	}
@@ -362,6 +413,22 @@ public class StreamingReceiver extends StreamingEndpoint {
 				synchronized (m_selectorCount) {
 					m_selectorCount = m_selector.keys().size();
 				}
+				if (m_resumeReading) {
+					m_resumeReading = false;
+					resumePausedKeys();
+				}
+				synchronized (m_writeWanted) {
+					for (SelectionKey key : m_writeWanted) {
+						try {
+							if (key.isValid()) {
+								key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+							}
+						} catch (CancelledKeyException e) {
+							LOG.warn("CancelledKeyException trapped adding WRITE interest for " + key.attachment());
+						}
+					}
+					m_writeWanted.clear();
+				}
 				Set<SelectionKey> selectedKeys = m_selector.selectedKeys();
 				try {
 					for (SelectionKey key : selectedKeys) {
@@ -370,6 +437,13 @@ public class StreamingReceiver extends StreamingEndpoint {
 						}
 						if (key.isReadable()) {
 							readData(key);
+							if (key.isValid() && m_decodePool.pauseIfFull()) {
+								key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+								m_pausedKeys.add(key);
+								if (LOG.isDebugEnabled()) {
+									LOG.debug("Too many bytes waiting to be decoded - stop reading for " + key.attachment());
+								}
+							}
 						}
 						if (key.isWritable()) {
 							writeData(key);
@@ -391,6 +465,7 @@ public class StreamingReceiver extends StreamingEndpoint {
 				LOG.error("Unexpected error in StreamingReceiver ", t);
 			}
 		}
+		m_decodePool.shutdown();
 		try {
 			m_selector.close();
 			m_serverChannel.close();
@@ -400,6 +475,43 @@ public class StreamingReceiver extends StreamingEndpoint {
 		}
 	}
 
+	/**
+	 * Called by a decode worker when the bytes waiting to be decoded have fallen far enough for reading to resume.
+	 */
+	void resumeReading() {
+		m_resumeReading = true;
+		m_selector.wakeup();
+	}
+
+	/**
+	 * Called when a connection has credit grants to write.
+	 */
+	void wantWrite(SelectionKey key) {
+		synchronized (m_writeWanted) {
+			m_writeWanted.add(key);
+		}
+		m_selector.wakeup();
+	}
+
+	/**
+	 * Restore READ interest for keys paused because too many bytes were waiting to be decoded.
+	 */
+	private void resumePausedKeys() {
+		for (SelectionKey key : m_pausedKeys) {
+			try {
+				if (key.isValid()) {
+					key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+				}
+			} catch (CancelledKeyException e) {
+				LOG.warn("CancelledKeyException trapped resuming reading for " + key.attachment());
+			}
+		}
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("Resumed reading for " + m_pausedKeys.size() + " connections");
+		}
+		m_pausedKeys.clear();
+	}
+
 	public void setConsumer(ConsumerService consumer) {
 		m_cservice = consumer;
 		startTimer();
@@ -419,9 +531,7 @@ public class StreamingReceiver extends StreamingEndpoint {
 		Map<String, String> map = new HashMap<String, String>();
 		map.put("Active", String.valueOf(s_active));
 		map.put("Port", String.valueOf(m_port));
-		synchronized (m_replies) {
-			map.put("RunningRepliesCount", String.valueOf(m_replies.size()));
-		}
+		map.put("RunningRepliesCount", String.valueOf(m_replies.size()));
 		synchronized (m_numConnections) {
 			map.put("ConnectionCount", String.valueOf(m_numConnections));
 		}
@@ -429,6 +539,14 @@ public class StreamingReceiver extends StreamingEndpoint {
 			map.put("SelectorKeyCount", String.valueOf(m_selectorCount));
 		}
 		map.put("CleanupIntervalMillis", String.valueOf(m_cleanupIntervalMillis));
+		map.put("DecodeThreadCount", String.valueOf(m_decodePool.getThreadCount()));
+		map.put("DecodeBusyThreadCount", String.valueOf(m_decodePool.getBusyCount()));
+		map.put("DecodeWaitingConnectionsCount", String.valueOf(m_decodePool.getReadyCount()));
+		map.put("DecodeQueuedBytes", String.valueOf(m_decodePool.getQueuedBytes()));
+		map.put("DecodeMaxQueuedBytes", String.valueOf(m_decodePool.getMaxQueuedBytes()));
+		map.put("ReadPauseCount", String.valueOf(m_decodePool.getPauseCount()));
+		map.put("CreditConsumersCount", String.valueOf(m_ledger.getConsumerCount()));
+		map.put("CreditGrantsCount", String.valueOf(m_ledger.getGrantCount()));
 		synchronized (m_status) {
 			map.put("TimeSinceLastCleanupMillis", String.valueOf(System.currentTimeMillis() - m_status.m_timeSinceLastCleanupMillis));
 		}
@@ -465,9 +583,10 @@ public class StreamingReceiver extends StreamingEndpoint {
 			}
 			channel.configureBlocking(false);
 			/*
-			 * No need to synchronize on m_replies - but the StreamingSink must do so when it uses it
+			 * m_replies is a concurrent map so it may be shared with the StreamingSink without synchronization
 			 */
-			key = channel.register(m_selector, SelectionKey.OP_READ, new StreamingSink(m_replies, m_sslContext, m_allocateDirect));
+			StreamingSink sink = new StreamingSink(m_replies, m_decodePool, m_ledger, this, m_sslContext, m_allocateDirect);
+			sink.setKey(channel.register(m_selector, SelectionKey.OP_READ, sink));
 		} else {
 			if (LOG.isDebugEnabled()) {
 				LOG.debug("Unexpected IP address " + remoteHostAddress + " contacted streaming receiver - closing channel.");
@@ -572,9 +691,9 @@ public class StreamingReceiver extends StreamingEndpoint {
 				LOG.warn("Data available but no bytes written, so closed channel");
 			}
 		} else {
-			key.interestOps(SelectionKey.OP_READ);
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
 			if (LOG.isDebugEnabled()) {
-				LOG.debug("No data written for key with " + key.attachment() + " set to READ interest only");
+				LOG.debug("No data written for key with " + key.attachment() + " WRITE interest removed");
 			}
 		}
 	}
@@ -593,5 +712,6 @@ public class StreamingReceiver extends StreamingEndpoint {
 	@Override
 	protected void clearKey(SelectionKey key) throws RGMAPermanentException {
 		closeChannel((SocketChannel) key.channel());
+		m_ledger.removeSink((StreamingSink) key.attachment());
 	}
 }
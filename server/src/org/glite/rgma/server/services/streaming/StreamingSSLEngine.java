@@ -35,8 +35,16 @@ public abstract class StreamingSSLEngine {
 
 	protected int m_bytesSinceHandshake;
 
+	/** Application bytes consumed by the SSL engine since it was created */
+	protected long m_bytesWrapped;
+
 	public abstract void pushBytes() throws RGMAPermanentException;
 
+	/**
+	 * Called when a write buffer has been completely consumed by the SSL engine and removed from m_writeBuffers.
+	 */
+	protected void releaseWriteBuffer(ByteBuffer buffer) {}
+
 	private void processTasks(SSLEngineResult result) {
 		m_handshakeStatus = result.getHandshakeStatus();
 		m_engineOpStatus = result.getStatus();
@@ -100,11 +108,13 @@ public abstract class StreamingSSLEngine {
 		ewb2 = m_encryptedWriteBuffer.remaining();
 		try {
 			SSLEngineResult result = m_sslEngine.wrap(m_writeBuffers.toArray(new ByteBuffer[0]), m_encryptedWriteBuffer);
+			m_bytesWrapped += result.bytesConsumed();
 			Iterator<ByteBuffer> iter = m_writeBuffers.iterator();
 			while (iter.hasNext()) {
 				ByteBuffer b = iter.next();
 				if (b.remaining() == 0) {
 					iter.remove();
+					releaseWriteBuffer(b);
 				} else {
 					toWrite = toWrite -= b.remaining();
 					b.compact();
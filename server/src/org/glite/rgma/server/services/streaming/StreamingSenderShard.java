@@ -0,0 +1,789 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2004.
+ * See http://eu-egee.org/partners/ for details on the copyright holders.
+ * For license conditions see the license file or http://eu-egee.org/license.html
+ */
+
+package org.glite.rgma.server.services.streaming;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+
+import org.apache.log4j.Logger;
+import org.glite.rgma.server.services.producer.RunningQuery;
+import org.glite.rgma.server.services.producer.store.TupleStore;
+import org.glite.rgma.server.system.RGMAPermanentException;
+import org.glite.rgma.server.system.StreamingProperties;
+
+/**
+ * One of the threads of the StreamingSender. Each shard has its own Selector and its own set of StreamingSources, and
+ * connects, encodes and writes for those sources only.
+ */
+final class StreamingSenderShard extends StreamingEndpoint {
+
+	private class Status {
+
+		public Set<StreamingSource> m_registeredKeySources;
+
+		public List<StreamingSource> m_sources;
+
+		public Set<StreamingSource> m_sourcesToConnect;
+
+		public String m_status;
+
+		public long m_timeSinceLastCleanupMillis;
+
+		public Set<StreamingSource> m_unregisteredKeySources;
+
+		private Status() {
+			m_registeredKeySources = m_sourcesToConnect = m_unregisteredKeySources = new HashSet<StreamingSource>();
+			m_sources = new ArrayList<StreamingSource>();
+			m_timeSinceLastCleanupMillis = System.currentTimeMillis();
+		}
+	}
+
+	/** If <code>true</code>, streaming sender thread is active. */
+	private boolean m_active;
+
+	/** When the next sanity check should run */
+	private long m_checkTime;
+
+	private long m_cleanupIntervalMillis;
+
+	/** For synchronization of access to the m_registeredKeys set */
+	private final Object m_keyLock = new Object();
+
+	/** List of registered keys at last loop */
+	private Set<SelectionKey> m_registeredKeys = new HashSet<SelectionKey>();
+
+	/** Selector for multiplexed I/O. */
+	private Selector m_selector;
+
+	/**
+	 * The set is added to when a new connection is made and removed when a connection is closed.
+	 */
+	private final Set<StreamingSource> m_sources = new HashSet<StreamingSource>();
+
+	/** Sources to be connected ASAP by the run loop */
+	private final List<StreamingSource> m_sourcesToConnect = new LinkedList<StreamingSource>();
+
+	/** Unregistered (READ only) keys, by the source attached to the key */
+	private final Map<StreamingSource, SelectionKey> m_unregisteredKeys = new HashMap<StreamingSource, SelectionKey>();
+
+	/** Unregistered keys whose sources are holding back data to coalesce it - only used by the shard thread */
+	private final Set<SelectionKey> m_heldKeys = new LinkedHashSet<SelectionKey>();
+
+	/** The sources of this shard with queries on each tuple store */
+	private final TupleStoreIndex m_storeIndex = new TupleStoreIndex();
+
+	/** Status information for the inspector */
+	private final Status m_status = new Status();
+
+	/**
+	 * Tuples stores to which data has been added. This is cleared when it has been processed in each loop through the
+	 * run method
+	 */
+	private final Set<TupleStore> m_tupleStores = new HashSet<TupleStore>();
+
+	/** Optimal packet size for NIO. */
+	private final int m_optimalPacketSize;
+
+	private SSLContext m_sslContext;
+
+	private boolean m_allocateDirect;
+
+	/** Buffers for encoded result sets, shared by all sources of this shard */
+	private final BufferPool m_bufferPool;
+
+	private long m_periodToKeepRedundantSourceMillis;
+
+	/** Deflate compression level offered to receivers which accept compression - 0 for none */
+	private final int m_compressionLevel;
+
+	/** Share of a connection given to each continuous query relative to each one-time query */
+	private final int m_continuousWeight;
+
+	/** Longest time a source may hold back less than a packet of data */
+	private final long m_coalesceMillis;
+
+	/** Threads fetching results for the queries of all shards */
+	private final QueryPrefetcher m_prefetcher;
+
+	/** Timer shared by all shards for delayed reconnection */
+	private final Timer m_timer;
+
+	/** Delay before the first attempt to reconnect a failed source */
+	private final long m_reconnectMinDelayMillis;
+
+	/** Longest delay before an attempt to reconnect a source */
+	private final long m_reconnectMaxDelayMillis;
+
+	/** For jitter in the reconnection delays - only used by the shard thread */
+	private final Random m_random = new Random();
+
+	StreamingSenderShard(int shardNumber, int optimalPacketSize, long cleanupIntervalMillis, boolean allocateDirect, int maxPooledBuffers,
+			long periodToKeepRedundantSourceMillis, int compressionLevel, int continuousWeight, long coalesceMillis, long reconnectMinDelayMillis, long reconnectMaxDelayMillis, SSLContext sslContext,
+			QueryPrefetcher prefetcher, Timer timer) throws RGMAPermanentException {
+		LOG = Logger.getLogger(StreamingConstants.STREAMING_SENDER_LOGGER);
+		m_optimalPacketSize = optimalPacketSize;
+		m_cleanupIntervalMillis = cleanupIntervalMillis;
+		m_checkTime = System.currentTimeMillis() + m_cleanupIntervalMillis;
+		m_allocateDirect = allocateDirect;
+		m_periodToKeepRedundantSourceMillis = periodToKeepRedundantSourceMillis;
+		m_compressionLevel = compressionLevel;
+		m_continuousWeight = continuousWeight;
+		m_coalesceMillis = coalesceMillis;
+		m_reconnectMinDelayMillis = reconnectMinDelayMillis;
+		m_reconnectMaxDelayMillis = reconnectMaxDelayMillis;
+		m_bufferPool = new BufferPool(m_optimalPacketSize, m_allocateDirect, maxPooledBuffers);
+		try {
+			m_selector = Selector.open();
+		} catch (IOException e) {
+			throw new RGMAPermanentException("Failed to create selector for streaming sender", e);
+		}
+		m_active = true;
+		setName("StreamingSender-" + shardNumber);
+		m_sslContext = sslContext;
+		m_prefetcher = prefetcher;
+		m_timer = timer;
+	}
+
+	/**
+	 * Add a new query. Note that there is no removeQuery operation. Instead, if the RunningQuery is aborted, the
+	 * StreamingSource will forget about it.
+	 * 
+	 * @param query
+	 *            RunningQuery whose results should be streamed.
+	 * @throws RGMAPermanentException
+	 */
+	void addQuery(RunningQuery query) throws RGMAPermanentException {
+		StreamingProperties streamingProps = query.getStreamingProperties();
+		StreamingSource source = getExistingSource(streamingProps);
+		if (source != null) {
+			if (source.addQuery(query)) {
+				dataAddedToTupleStore(query.getTupleStore());
+				return;
+			}
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("StreamingSource has been closed - will need to create a new one");
+			}
+		}
+
+		/* If no current source - or it has been closed */
+		source = new StreamingSource(streamingProps, m_optimalPacketSize, m_sslContext, m_allocateDirect, m_bufferPool, m_prefetcher, m_storeIndex,
+				m_compressionLevel, m_continuousWeight, m_coalesceMillis, m_periodToKeepRedundantSourceMillis);
+		synchronized (m_sources) {
+			m_sources.add(source);
+		}
+		source.addQuery(query);
+		synchronized (m_sourcesToConnect) {
+			m_sourcesToConnect.add(source);
+		}
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("New query - wake up thread with selector to deal with it");
+		}
+		m_selector.wakeup();
+	}
+
+	/**
+	 * Adds the status info about connections of this shard.
+	 * 
+	 * @param connections
+	 *            List to which a map of status information "parameter name", "value" is added for each connection
+	 */
+	void connectionInfo(List<Map<String, String>> connections) {
+		String shard = getName();
+		synchronized (m_status) {
+			for (StreamingSource source : m_status.m_sources) {
+				Map<String, String> map = new HashMap<String, String>();
+				StreamingProperties sourceProps = source.getStreamingProperties();
+				String status = "";
+				if (m_status.m_registeredKeySources.contains(source)) {
+					status = status + " " + "Registered";
+				}
+				if (m_status.m_unregisteredKeySources.contains(source)) {
+					status = status + " " + "Unregistered";
+				}
+				if (m_status.m_sourcesToConnect.contains(source)) {
+					status = status + " " + "ToConnect";
+				}
+				map.put("Url", String.valueOf(sourceProps.getStreamingHost()));
+				map.put("Port", String.valueOf(sourceProps.getStreamingPort()));
+				map.put("StreamingProtocol", String.valueOf(sourceProps.getStreamingProtocol()));
+				map.put("ProtocolInUse", String.valueOf(source.getProtocol()));
+				if (source.getProtocol() == StreamingConstants.COMPRESSED_STREAMING_PROTOCOL) {
+					long uncompressed = source.getUncompressedBytes();
+					long compressed = source.getCompressedBytes();
+					map.put("UncompressedBytes", String.valueOf(uncompressed));
+					map.put("CompressedBytes", String.valueOf(compressed));
+					map.put("CompressionRatio", compressed == 0 ? "0" : String.format("%.2f", (double) uncompressed / compressed));
+					map.put("CompressionCpuMillis", String.valueOf(source.getCompressionNanos() / 1000000));
+				}
+				source.schedulingInfo(map);
+				map.put("CreditGrantsCount", String.valueOf(source.getCreditGrantsCount()));
+				map.put("CreditWaitsCount", String.valueOf(source.getCreditWaitsCount()));
+				map.put("HandshakeCount", String.valueOf(source.getHandshakeCount()));
+				map.put("ResumedHandshakeCount", String.valueOf(source.getResumedHandshakeCount()));
+				map.put("ConsecutiveFailureCount", String.valueOf(source.getFailureCount()));
+				map.put("UnsentResultSetsCount", String.valueOf(source.getUnsentCount()));
+				map.put("ResentResultSetsCount", String.valueOf(source.getResentResultSetsCount()));
+				map.put("DroppedResultSetsCount", String.valueOf(source.getDroppedResultSetsCount()));
+				map.put("Status", status.trim());
+				map.put("Shard", shard);
+				connections.add(map);
+			}
+		}
+	}
+
+	/*
+	 * wakeup() is only called if the TupleStore is not already in the m_tupleStores set and if the m_unregisteredKeys
+	 * map is not empty. This map is added to at the top of the run loop and then elements may be removed later before
+	 * it goes round again and into the select call.
+	 */
+	void dataAddedToTupleStore(TupleStore store) {
+		synchronized (m_tupleStores) {
+			if (m_tupleStores.add(store)) {
+				synchronized (m_unregisteredKeys) {
+					if (!m_unregisteredKeys.isEmpty()) {
+						m_selector.wakeup();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Main thread loop.
+	 */
+	@Override
+	public void run() {
+		if (LOG.isDebugEnabled()) {
+			LOG.debug(getName() + " thread started");
+		}
+		while (m_active) {
+			try {
+				/* The timeout is to make sure that the cleanup thread is run */
+				setStatus("Selecting");
+				long timeout = m_cleanupIntervalMillis - System.currentTimeMillis() + m_status.m_timeSinceLastCleanupMillis;
+				for (SelectionKey key : m_heldKeys) {
+					long flushTime = ((StreamingSource) key.attachment()).getFlushTime();
+					if (flushTime > 0) {
+						timeout = Math.min(timeout, flushTime - System.currentTimeMillis());
+					}
+				}
+				m_selector.select(Math.max(1, timeout));
+
+				/* Deal with selected keys */
+				setStatus("Processing Keys");
+				processKeys(m_selector.selectedKeys());
+
+				/* Restore WRITE interest for sources which have held back data for long enough */
+				setStatus("Flushing held data");
+				flushHeldKeys();
+				synchronized (m_keyLock) {
+					m_registeredKeys = m_selector.keys();
+				}
+
+				/*
+				 * From this point on in the loop, entries may be removed from the m_unregisteredKeys map but nothing
+				 * will be added
+				 */
+
+				/*
+				 * Deal with new data added to a tuple store by re-registering the unregistered keys of the sources with
+				 * queries on that store.
+				 */
+				setStatus("Dealing with unregistered keys");
+				synchronized (m_tupleStores) {
+					synchronized (m_unregisteredKeys) {
+						if (!m_unregisteredKeys.isEmpty()) {
+							for (TupleStore t : m_tupleStores) {
+								for (StreamingSource source : m_storeIndex.getSources(t)) {
+									SelectionKey key = m_unregisteredKeys.remove(source);
+									if (key == null) {
+										continue;
+									}
+									try {
+										if (LOG.isDebugEnabled()) {
+											LOG.debug("Data has been added to " + t + " so restore WRITE interest with " + source);
+										}
+										key.interestOps(SelectionKey.OP_WRITE + SelectionKey.OP_READ);
+									} catch (CancelledKeyException e) {
+										LOG.warn("CancelledKeyException trapped while dealing with unregistered keys " + source);
+									}
+								}
+							}
+						}
+					}
+					m_tupleStores.clear();
+				}
+
+				/*
+				 * Periodically make a check that the right set of StreamingSources is known to the selector
+				 */
+				if (System.currentTimeMillis() > m_checkTime) {
+					setStatus("Checking sources");
+					/* "Re-register" any unregisteredKeys so that they are tried again */
+					for (SelectionKey key : m_unregisteredKeys.values()) {
+						try {
+							key.interestOps(SelectionKey.OP_WRITE + SelectionKey.OP_READ);
+						} catch (CancelledKeyException e) {
+							LOG.warn("CancelledKeyException trapped looping over unregistered keys " + key.attachment());
+						} catch (Throwable t) {
+							LOG.error("Unexpected Throwable in StreamingSender looping over unregistered keys", t);
+						}
+					}
+					synchronized (m_unregisteredKeys) {
+						m_unregisteredKeys.clear();
+					}
+					synchronized (m_status) {
+						m_status.m_timeSinceLastCleanupMillis = System.currentTimeMillis();
+					}
+					m_checkTime = System.currentTimeMillis() + m_cleanupIntervalMillis;
+				}
+
+				/* Deal with new connections */
+				setStatus("Dealing with new connections");
+				synchronized (m_sourcesToConnect) {
+					Iterator<StreamingSource> iter = m_sourcesToConnect.iterator();
+					while (iter.hasNext()) {
+						StreamingSource s = iter.next();
+						SocketChannel c = openChannel(s);
+						if (c != null) {
+							try {
+								c.register(m_selector, SelectionKey.OP_CONNECT, s);
+								iter.remove();
+								if (LOG.isDebugEnabled()) {
+									LOG.debug("Registered key for new connection for " + s + " to " + c);
+								}
+							} catch (ClosedChannelException e) {
+								LOG.warn("Error registering channel source will be left to connect later " + e.getMessage());
+								closeChannel(c);
+							}
+						}
+					}
+				}
+
+				/* Store stats for the inspector */
+				setStatus("Updating status");
+				synchronized (m_status) {
+
+					synchronized (m_sources) {
+						m_status.m_sources = new ArrayList<StreamingSource>(m_sources);
+					}
+
+					m_status.m_registeredKeySources = new HashSet<StreamingSource>();
+					for (SelectionKey key : m_registeredKeys) {
+						m_status.m_registeredKeySources.add((StreamingSource) key.attachment());
+					}
+
+					m_status.m_unregisteredKeySources = new HashSet<StreamingSource>();
+					for (SelectionKey key : m_unregisteredKeys.values()) {
+						m_status.m_unregisteredKeySources.add((StreamingSource) key.attachment());
+					}
+
+					synchronized (m_sourcesToConnect) {
+						m_status.m_sourcesToConnect = new HashSet<StreamingSource>(m_sourcesToConnect);
+					}
+				}
+			} catch (ClosedSelectorException e) {
+				LOG.debug("StreamingSender's Selector closed");
+			} catch (IOException e) {
+				LOG.error("Unexpected IOException in StreamingSender", e);
+			} catch (Throwable t) {
+				LOG.error("Unexpected Throwable in StreamingSender", t);
+			}
+		}
+
+		try {
+			m_selector.close();
+		} catch (IOException e) {
+			LOG.warn("Error shutting down streaming sender: " + e);
+		}
+		if (LOG.isInfoEnabled()) {
+			LOG.info(getName() + " closing down");
+		}
+	}
+
+	/**
+	 * Adds the status info about queries of this shard.
+	 * 
+	 * @param queries
+	 *            List to which a map of status information "parameter name", "value" is added for each query
+	 * @param maxEntries
+	 *            Maximum size of the list
+	 */
+	void queryInfo(List<Map<String, String>> queries, int maxEntries) {
+		List<StreamingSource> sources;
+		synchronized (m_sources) {
+			sources = new ArrayList<StreamingSource>(m_sources);
+		}
+		for (StreamingSource source : sources) {
+			source.queryInfo(queries, maxEntries);
+		}
+	}
+
+	/**
+	 * Adds the status info for this shard to the totals for the streaming sender.
+	 * 
+	 * @param totals
+	 *            Totals being accumulated over all shards
+	 */
+	void addStatus(StreamingSender.ShardTotals totals) {
+		synchronized (m_status) {
+			totals.m_sourcesCount += m_status.m_sources.size();
+			totals.m_registeredKeysCount += m_status.m_registeredKeySources.size();
+			totals.m_unregisteredKeysCount += m_status.m_unregisteredKeySources.size();
+			totals.m_sourcesToConnectCount += m_status.m_sourcesToConnect.size();
+			totals.m_timeSinceLastCleanupMillis = Math.max(totals.m_timeSinceLastCleanupMillis, System.currentTimeMillis()
+					- m_status.m_timeSinceLastCleanupMillis);
+			totals.addShardStatus(m_status.m_sources.size(), m_status.m_status);
+		}
+		totals.m_indexedTupleStoresCount += m_storeIndex.getStoreCount();
+		totals.m_active |= m_active;
+		totals.m_bufferPoolFreeCount += m_bufferPool.getFreeCount();
+		totals.m_bufferPoolMaxFreeCount += m_bufferPool.getMaxFree();
+		totals.m_bufferPoolInUseCount += m_bufferPool.getInUseCount();
+		totals.m_bufferPoolAcquiredCount += m_bufferPool.getAcquiredCount();
+		totals.m_bufferPoolAllocatedCount += m_bufferPool.getAllocatedCount();
+		totals.m_bufferPoolRecycledCount += m_bufferPool.getRecycledCount();
+		totals.m_bufferPoolDiscardedCount += m_bufferPool.getDiscardedCount();
+	}
+
+	/**
+	 * Closes the channel (including input, output and socket).
+	 * 
+	 * @param channel
+	 *            Channel to close.
+	 */
+	private void closeChannel(SocketChannel channel) {
+		/*
+		 * Shutdown input and output to make sure that all sockets are closed properly. Without this, Linux can leave
+		 * socket in CLOSE_WAIT state as child processes (other threads) have a file descriptor for the socket.
+		 */
+		try {
+			channel.socket().shutdownInput();
+		} catch (IOException e) {
+			LOG.warn("Error trying to shut down input: " + e.getMessage());
+		}
+
+		try {
+			channel.socket().shutdownOutput();
+		} catch (IOException e) {
+			LOG.warn("Error trying to shut down output: " + e.getMessage());
+		}
+
+		try {
+			channel.socket().close();
+		} catch (IOException e) {
+			LOG.warn("Error trying to close socket: " + e.getMessage());
+		}
+
+		try {
+			channel.close();
+		} catch (IOException e) {
+			LOG.warn("Error trying to close socket channel: " + e.getMessage());
+		}
+		m_selector.wakeup();
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("Closed channel and woke up main thread");
+		}
+	}
+
+	/**
+	 * Get the StreamingSource object for a specified streaming endpoint and streaming protocol.
+	 * 
+	 * @param streamingProps
+	 *            StreamingProperties object containing streaming endpoint and protocol.
+	 * @return A StreamingSource object with the corresponding endpoint and protocol, or <code>null</code> if no
+	 *         corresponding StreamingSource is available.
+	 */
+	private StreamingSource getExistingSource(StreamingProperties streamingProps) {
+		synchronized (m_sources) {
+			for (StreamingSource source : m_sources) {
+				StreamingProperties sourceProps = source.getStreamingProperties();
+				if (sourceProps.getStreamingHost().equals(streamingProps.getStreamingHost())
+						&& sourceProps.getStreamingPort() == streamingProps.getStreamingPort()
+						&& sourceProps.getStreamingProtocol() == streamingProps.getStreamingProtocol()) {
+					return source;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Create a new channel for a StreamingSource.
+	 * 
+	 * @param source
+	 *            StreamingSource object to open a connection for.
+	 * @return SocketChannel for the connection, with an associated StreamingSource object. <code>query</code> is
+	 *         automatically added to the StreamingSource object.
+	 */
+	private SocketChannel openChannel(StreamingSource source) {
+		StreamingProperties streamingProps = source.getStreamingProperties();
+		InetSocketAddress address = new InetSocketAddress(streamingProps.getStreamingHost(), streamingProps.getStreamingPort());
+		SocketChannel channel = null;
+		try {
+			channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			channel.connect(address);
+			return channel;
+		} catch (IOException e) {
+			if (channel != null) {
+				closeChannel(channel);
+				LOG.warn("IOException " + e.getMessage() + " No connection created");
+			}
+		} catch (SecurityException e) {
+			if (channel != null) {
+				closeChannel(channel);
+				LOG.warn("SecurityException " + e.getMessage() + " No connection created");
+			}
+		}
+		return null;
+	}
+
+	protected void clearKey(SelectionKey key) throws RGMAPermanentException {
+		closeChannel((SocketChannel) key.channel());
+		resetSource((StreamingSource) key.attachment());
+	}
+
+	/**
+	 * Deal with selected keys
+	 * 
+	 * @throws RGMAPermanentException
+	 */
+	private void processKeys(Set<SelectionKey> selectedKeys) throws RGMAPermanentException {
+		try {
+			for (SelectionKey key : selectedKeys) {
+				try {
+					SocketChannel c = (SocketChannel) key.channel();
+					if (key.isConnectable()) {
+						try {
+							if (c.finishConnect()) {
+								key.interestOps(SelectionKey.OP_WRITE + SelectionKey.OP_READ);
+								if (LOG.isDebugEnabled()) {
+									LOG.debug("Channel connected for " + key.attachment());
+								}
+							}
+						} catch (IOException e) {
+							LOG.warn("Channel connection failed - will reopen " + key.attachment() + " " + e.getMessage());
+							clearKey(key);
+							/* The key is no longer usable as the channel has been closed */
+							continue;
+						}
+					}
+					if (key.isWritable()) {
+						writeData(key);
+					}
+					if (key.isReadable()) {
+						readData(key);
+						StreamingSource source = (StreamingSource) key.attachment();
+						if (source.takeCreditGranted() && key.isValid()) {
+							/* Results held back for lack of credit may now be sent */
+							key.interestOps(SelectionKey.OP_WRITE + SelectionKey.OP_READ);
+							synchronized (m_unregisteredKeys) {
+								m_unregisteredKeys.remove(source);
+							}
+						}
+					}
+					if (LOG.isDebugEnabled()) {
+						int ki = key.interestOps();
+						LOG.debug(key.attachment() + " has interest" + (((ki & SelectionKey.OP_READ) != 0) ? " READ" : "")
+								+ (((ki & SelectionKey.OP_WRITE) != 0) ? " WRITE" : "") + (((ki & SelectionKey.OP_CONNECT) != 0) ? " CONNECT" : "")
+								+ (((ki & SelectionKey.OP_ACCEPT) != 0) ? " ACCEPT" : "") + " before going to select call");
+					}
+				} catch (CancelledKeyException e) {
+					LOG.warn("CancelledKeyException trapped in process keys " + key.attachment());
+					break;
+				}
+			}
+		} finally {
+			selectedKeys.clear();
+		}
+	}
+	
+	private class SourceConnectionTask extends TimerTask {
+
+		private StreamingSource m_source;
+
+		public SourceConnectionTask(StreamingSource source) {
+			m_source = source;
+		}
+
+		@Override
+		public void run() {
+			synchronized (m_sourcesToConnect) {
+				m_sourcesToConnect.add(m_source);
+			}		
+		}
+	}
+	
+	/**
+	 * Restore WRITE interest for the keys of sources whose coalescing window has expired, so that the data they hold
+	 * back is sent.
+	 */
+	private void flushHeldKeys() {
+		long now = System.currentTimeMillis();
+		Iterator<SelectionKey> iter = m_heldKeys.iterator();
+		while (iter.hasNext()) {
+			SelectionKey key = iter.next();
+			StreamingSource source = (StreamingSource) key.attachment();
+			long flushTime = source.getFlushTime();
+			if (flushTime > now) {
+				continue;
+			}
+			iter.remove();
+			if (flushTime == 0 || !key.isValid()) {
+				continue;
+			}
+			synchronized (m_unregisteredKeys) {
+				if (m_unregisteredKeys.remove(source) == null) {
+					continue;
+				}
+			}
+			try {
+				key.interestOps(SelectionKey.OP_WRITE + SelectionKey.OP_READ);
+			} catch (CancelledKeyException e) {
+				LOG.warn("CancelledKeyException trapped while flushing held data " + source);
+			}
+		}
+	}
+
+	/**
+	 * Reset the source and add it to the m_sourcesToConnect list after a delay. The delay doubles with each consecutive
+	 * failure of the source up to a maximum and is randomly reduced by up to a half, so that the many sources broken by
+	 * a network problem do not all reconnect at the same moment.
+	 */
+	private void resetSource(StreamingSource source) throws RGMAPermanentException {
+		int failures = source.reset();
+		long delay = m_reconnectMinDelayMillis << Math.min(failures - 1, 30);
+		if (delay <= 0 || delay > m_reconnectMaxDelayMillis) {
+			delay = m_reconnectMaxDelayMillis;
+		}
+		delay -= (long) (m_random.nextDouble() * (delay / 2));
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("Reconnecting " + source + " in " + delay + " ms after " + failures + " consecutive failures");
+		}
+		m_timer.schedule(new SourceConnectionTask(source), delay);
+	}
+
+	private void setStatus(String msg) {
+		synchronized (m_status) {
+			m_status.m_status = msg;
+		}
+	}
+
+	/**
+	 * Shut down the thread of this shard. No interrupt is necessary as the selector notices!
+	 */
+	void shutdown() {
+		m_active = false;
+		try {
+			m_selector.close();
+		} catch (IOException e) {
+			LOG.warn("Error shutting down streaming sender: " + e);
+		}
+	}
+
+	/**
+	 * Write data to a streaming connection.
+	 * 
+	 * @param unregisteredKeys
+	 * @return Status of the connection.
+	 * @throws RGMAPermanentException
+	 */
+	private void writeData(SelectionKey key) throws RGMAPermanentException {
+		SocketChannel channel = (SocketChannel) key.channel();
+		if (!channel.isOpen()) {
+			// Channel could be closed, but not yet deregistered.
+			LOG.warn("writeData called on closed channel");
+			return;
+		}
+		StreamingSource source = (StreamingSource) key.attachment();
+		ByteBuffer encryptedWriteBuffer = source.popBytes();
+		if (encryptedWriteBuffer != null) {
+			if (encryptedWriteBuffer.position() > 0) {
+				int bytesWritten = 0;
+				try {
+					encryptedWriteBuffer.flip();
+					bytesWritten = channel.write(encryptedWriteBuffer);
+					if (source.getHandshakeStatus() == HandshakeStatus.NEED_UNWRAP && encryptedWriteBuffer.remaining() == 0) {
+						key.interestOps(SelectionKey.OP_READ);
+						synchronized (m_unregisteredKeys) {
+							m_unregisteredKeys.put(source, key);
+						}
+						if (LOG.isDebugEnabled()) {
+							LOG.debug("Key with " + source + " NEEDS_UNWRAP and all date sent so set to READ interest only");
+						}
+					}
+					encryptedWriteBuffer.compact();
+					if (encryptedWriteBuffer.position() == 0) {
+						source.allWritten();
+					}
+				} catch (IOException e) {
+					closeChannel(channel);
+					resetSource(source);
+					LOG.warn("Error writing to channel so closed it and made a new one for " + source + " " + e.getMessage());
+					return;
+				}
+				if (bytesWritten > 0) {
+					if (LOG.isDebugEnabled()) {
+						LOG.debug(bytesWritten + " bytes written to channel from " + source);
+					}
+				} else {
+					/* Re-open connection for streaming source */
+					closeChannel(channel);
+					resetSource(source);
+					LOG.warn("Data available but no bytes written, so closed channel and made a new one");
+				}
+			} else {
+				key.interestOps(SelectionKey.OP_READ);
+				synchronized (m_unregisteredKeys) {
+					m_unregisteredKeys.put(source, key);
+				}
+				if (source.getFlushTime() > 0) {
+					m_heldKeys.add(key);
+				}
+				if (LOG.isDebugEnabled()) {
+					LOG.debug("No data written for key with " + key.attachment() + " set to READ interest only");
+				}
+			}
+		} else {
+			/*
+			 * popBytes has returned null to indicate that the StreamingSource is no longer needed
+			 */
+			closeChannel(channel);
+			synchronized (m_sources) {
+				if (!m_sources.remove(source)) {
+					LOG.error(source + " not present in list of sources");
+				}
+			}
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("Reached the end of the streaming source, closed channel");
+			}
+		}
+	}
+}
@@ -6,8 +6,13 @@
 
 package org.glite.rgma.server.services.streaming;
 
+import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 import javax.net.ssl.SSLContext;
 
@@ -30,9 +35,17 @@ import org.glite.rgma.server.system.TupleSetEnvelope;
  * with the old 'classic' R-GMA streaming protocol.
  * <p>
  * If the header integer is negative, it is treated as a streaming protocol version number and an
- * appropriate TupleDecoder is created to decode subsequent bytes into result sets. For each
- * complete result set, the list of RunningReply objects is traversed to find the one which matches
- * the source and target endpoints and the SQL query from the result set.
+ * appropriate TupleDecoder is created to decode subsequent bytes into result sets. Each complete
+ * result set is passed to the RunningReply found in the map of replies by the source and target
+ * endpoints and the SQL query from the result set.
+ * <p>
+ * Decoding and dispatch are done by a DecodeWorkerPool thread rather than the streaming receiver
+ * thread, which only reads and unwraps the bytes.
+ * <p>
+ * On connections using a binary protocol, the sink sends credit back to the sender for consumers
+ * with a limited capacity, as decided by the CreditLedger. Each grant is a frame of an int holding
+ * the length of the rest of the frame, the int resource ID of the consumer, the long total number
+ * of tuples for the consumer that may be sent on the connection and the UTF-8 URL of the consumer.
  */
 public class StreamingSink extends StreamingSSLEngine {
 
@@ -42,8 +55,32 @@ public class StreamingSink extends StreamingSSLEngine {
 	/** Buffer to store leading integer from streaming message */
 	private final ByteBuffer m_header;
 
-	/** List of running replies to receive results */
-	private final List<RunningReply> m_replies;
+	/** Workers which decode the bytes read from the connection */
+	private final DecodeWorkerPool m_decodePool;
+
+	/** Bytes read and not yet decoded - guarded by the decode pool */
+	private final LinkedList<ByteBuffer> m_pending = new LinkedList<ByteBuffer>();
+
+	/** If <code>true</code>, this sink is queued for, or being served by, a decode worker - guarded by the decode pool */
+	private boolean m_scheduled;
+
+	/** Running replies to receive results, by source, target and query */
+	private final Map<EnvelopeKey, RunningReply> m_replies;
+
+	/** Decides the credit to grant to the sender */
+	private final CreditLedger m_ledger;
+
+	/** The streaming receiver, to be told when there are grants to send */
+	private final StreamingReceiver m_receiver;
+
+	/** Key of the connection - set when it has been registered */
+	private volatile SelectionKey m_key;
+
+	/** If <code>true</code>, the sender understands credit grants */
+	private boolean m_credit;
+
+	/** Allowances waiting to be sent, by consumer */
+	private final Map<ResourceEndpoint, Long> m_grants = new LinkedHashMap<ResourceEndpoint, Long>();
 
 	/**
 	 * Constructor.
@@ -51,13 +88,19 @@ public class StreamingSink extends StreamingSSLEngine {
 	 * @param protocolFactory
 	 *            Factory for retrieving streaming protocol implementations.
 	 * @param replies
-	 *            RunningReply objects to receive results. Access to this list must be synchronized
-	 *            on the list object since although the streaming receiver operates in a single
-	 *            thread, Consumers may call <code>addReply</code> from other threads.
+	 *            RunningReply objects to receive results. This must be a concurrent map since
+	 *            although the streaming receiver operates in a single thread, Consumers may call
+	 *            <code>addReply</code> from other threads.
+	 * @param decodePool
+	 *            Workers to decode the bytes read.
+	 * @param ledger
+	 *            Decides the credit to grant to the sender.
+	 * @param receiver
+	 *            Streaming receiver to write the grants.
 	 * @param context
 	 */
-	public StreamingSink(List<RunningReply> replies, SSLContext sslContext, boolean allocateDirect)
-			throws RGMAPermanentException {
+	public StreamingSink(Map<EnvelopeKey, RunningReply> replies, DecodeWorkerPool decodePool, CreditLedger ledger, StreamingReceiver receiver,
+			SSLContext sslContext, boolean allocateDirect) throws RGMAPermanentException {
 		LOG = Logger.getLogger(StreamingConstants.STREAMING_RECEIVER_LOGGER);
 		m_sslEngine = sslContext.createSSLEngine();
 		m_handshakeStatus = m_sslEngine.getHandshakeStatus();
@@ -76,28 +119,78 @@ public class StreamingSink extends StreamingSSLEngine {
 		m_readBuffer = ByteBuffer.allocate(appBS);
 
 		m_replies = replies;
+		m_decodePool = decodePool;
+		m_ledger = ledger;
+		m_receiver = receiver;
 		m_header = ByteBuffer.allocate(4);
 		m_decoder = null;
 	}
 
 	/**
-	 * Process streaming data.
-	 * 
-	 * @param bytes
-	 *            Streaming data buffer.
+	 * Process streaming data. The unwrapped bytes are copied and queued to be decoded by the decode pool.
 	 */
 	public void pushBytes() throws RGMAPermanentException {
 		unwrap();
 		m_readBuffer.flip();
+		if (m_readBuffer.hasRemaining()) {
+			ByteBuffer chunk = ByteBuffer.allocate(m_readBuffer.remaining());
+			chunk.put(m_readBuffer);
+			chunk.flip();
+			m_decodePool.submit(this, chunk);
+		}
+		m_readBuffer.compact();
+	}
+
+	/**
+	 * Decode bytes read from the connection and dispatch the results. This is called by one decode worker at a time, in
+	 * the order the bytes were read.
+	 */
+	void decode(ByteBuffer bytes) throws RGMAPermanentException {
 		if (m_decoder == null) {
 			// We are reading the header
-			readHeader(m_readBuffer);
+			readHeader(bytes);
 		}
 		if (m_decoder != null) {
 			// We are reading results
-			readResults(m_readBuffer);
+			readResults(bytes);
 		}
-		m_readBuffer.compact();
+	}
+
+	void addPending(ByteBuffer chunk) {
+		m_pending.add(chunk);
+	}
+
+	ByteBuffer pollPending() {
+		return m_pending.removeFirst();
+	}
+
+	boolean hasPending() {
+		return m_pending.size() > 0;
+	}
+
+	void setKey(SelectionKey key) {
+		m_key = key;
+	}
+
+	/**
+	 * Queue a new allowance of tuples for a consumer to be sent to the sender, replacing any not yet sent.
+	 */
+	void grant(ResourceEndpoint consumer, long allowed) {
+		synchronized (m_grants) {
+			m_grants.put(consumer, allowed);
+		}
+		SelectionKey key = m_key;
+		if (key != null) {
+			m_receiver.wantWrite(key);
+		}
+	}
+
+	boolean isScheduled() {
+		return m_scheduled;
+	}
+
+	void setScheduled(boolean scheduled) {
+		m_scheduled = scheduled;
 	}
 
 	@Override
@@ -124,6 +217,7 @@ public class StreamingSink extends StreamingSSLEngine {
 			m_header.flip();
 			int headerInt = m_header.getInt();
 			m_decoder = new TupleDecoder(headerInt);
+			m_credit = headerInt == StreamingConstants.BINARY_STREAMING_PROTOCOL || headerInt == StreamingConstants.COMPRESSED_STREAMING_PROTOCOL;
 			if (LOG.isDebugEnabled()) {
 				LOG.debug("Created decoder of type " + headerInt);
 			}
@@ -145,32 +239,57 @@ public class StreamingSink extends StreamingSSLEngine {
 			ResourceEndpoint target = rs.getTarget();
 			String query = rs.getQuery();
 
-			synchronized (m_replies) {
-				boolean foundReply = false;
-				
-				for (RunningReply reply : m_replies) {
-					if (reply.matches(source, target, query)) {
-						reply.push(rs.getTupleSet());
-						foundReply = true;
-						if (LOG.isDebugEnabled()) {
-							LOG.debug("Pushed " + reply);
-						}
-						break;
-					}
+			RunningReply reply = m_replies.get(new EnvelopeKey(source, target, query));
+			if (reply != null) {
+				reply.push(rs.getTupleSet());
+				if (m_credit) {
+					m_ledger.received(this, reply.getConsumable(), rs.getTupleSet().size());
+				}
+				if (LOG.isDebugEnabled()) {
+					LOG.debug("Pushed " + reply);
 				}
-				if (!foundReply) {
-					/*
-					 * Can't find a reply for this result set. Not a very serious error as producer
-					 * may not be aware the consumer has died or been aborted. It will find out soon
-					 * enough. Just log it.
-					 */
-					LOG.debug("No matching reply found for streamed results " + source + "->" + target + " for " + query);
+			} else {
+				/*
+				 * Can't find a reply for this result set. Not a very serious error as producer
+				 * may not be aware the consumer has died or been aborted. It will find out soon
+				 * enough. Just log it. The tuples still count as received for the credit of the consumer.
+				 */
+				if (m_credit) {
+					m_ledger.receivedUnmatched(this, target, rs.getTupleSet().size());
 				}
+				LOG.debug("No matching reply found for streamed results " + source + "->" + target + " for " + query);
 			}
 		}
 	}
 
+	/**
+	 * Pop bytes to be sent to the sender: handshake data and any credit grants.
+	 */
 	public ByteBuffer popBytes() throws RGMAPermanentException {
+		synchronized (m_grants) {
+			for (Map.Entry<ResourceEndpoint, Long> grant : m_grants.entrySet()) {
+				m_writeBuffers.add(encodeGrant(grant.getKey(), grant.getValue()));
+			}
+			m_grants.clear();
+		}
 		return wrap();
 	}
+
+	/**
+	 * Encode a credit grant frame into a new buffer in write mode.
+	 */
+	private static ByteBuffer encodeGrant(ResourceEndpoint consumer, long allowed) throws RGMAPermanentException {
+		byte[] url;
+		try {
+			url = consumer.getURL().toString().getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RGMAPermanentException(e);
+		}
+		ByteBuffer frame = ByteBuffer.allocate(16 + url.length);
+		frame.putInt(12 + url.length);
+		frame.putInt(consumer.getResourceID());
+		frame.putLong(allowed);
+		frame.put(url);
+		return frame;
+	}
 }
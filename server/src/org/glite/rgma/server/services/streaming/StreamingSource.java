@@ -6,16 +6,26 @@
 
 package org.glite.rgma.server.services.streaming;
 
+import java.io.UnsupportedEncodingException;
+import java.net.MalformedURLException;
+import java.net.URL;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
-import java.util.Queue;
+import java.util.List;
+import java.util.Map;
 
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
 
 import org.apache.log4j.Logger;
 import org.glite.rgma.server.services.producer.RunningQuery;
-import org.glite.rgma.server.services.producer.store.TupleStore;
 import org.glite.rgma.server.system.RGMAPermanentException;
+import org.glite.rgma.server.system.ResourceEndpoint;
 import org.glite.rgma.server.system.StreamingProperties;
 import org.glite.rgma.server.system.TupleSet;
 import org.glite.rgma.server.system.TupleSetEnvelope;
@@ -33,7 +43,53 @@ import org.glite.rgma.server.system.TupleSetEnvelope;
 
 public class StreamingSource extends StreamingSSLEngine {
 
-	private static final int PROTNUM = 2;
+	/**
+	 * A result set which has been encoded but not yet completely written to the socket.
+	 */
+	private static class UnsentResults {
+
+		private final TupleSetEnvelope m_results;
+
+		/** Number of application bytes queued on the connection up to the end of this result set */
+		private long m_endOffset;
+
+		/** Number of connections the result set has been encoded for */
+		private int m_sendCount;
+
+		private UnsentResults(TupleSetEnvelope results, long endOffset) {
+			m_results = results;
+			m_endOffset = endOffset;
+			m_sendCount = 1;
+		}
+	}
+
+	/**
+	 * A query of this source with its state for the scheduler.
+	 */
+	private static class ScheduledQuery {
+
+		private final RunningQuery m_query;
+
+		/** Bytes the query may still send in its turn - negative if its last result set took it over its quantum */
+		private long m_deficit;
+
+		private long m_bytesSent;
+
+		private long m_resultSetsSent;
+
+		/** Set by popBytes while the connection is backed up, and cleared once the chunk size has been reduced */
+		private boolean m_shrinkChunks;
+
+		private ScheduledQuery(RunningQuery query) {
+			m_query = query;
+		}
+	}
+
+	/** Maximum number of connections on which to try to send the same result set */
+	private static final int MAX_SEND_COUNT = 3;
+
+	/** Number of calls of popBytes in a row finding data not yet taken by the socket for the connection to be backed up */
+	private static final int BACKED_UP_CALLS = 3;
 
 	/** If <code>true</code>, this streaming source will accept new queries. */
 	private boolean m_active;
@@ -41,11 +97,81 @@ public class StreamingSource extends StreamingSSLEngine {
 	/** ByteBuffer containing the header bytes for the streaming protocol. */
 	private ByteBuffer m_header;
 
+	/** Streaming protocol version used on the connection */
+	private final int m_protocol;
+
+	/** Encoder for the current connection - replaced when the connection is reset */
+	private TupleEncoder m_encoder;
+
+	/** Deflate compression level used if the receiver accepts compression - 0 for none */
+	private final int m_compressionLevel;
+
+	/** Bytes encoded by earlier encoders of this source before compression */
+	private long m_uncompressedBytes;
+
+	/** Bytes encoded by earlier encoders of this source after compression */
+	private long m_compressedBytes;
+
+	/** Time spent compressing by earlier encoders of this source */
+	private long m_compressionNanos;
+
+	/** Pool supplying the buffers that encoded result sets are written to */
+	private final BufferPool m_bufferPool;
+
+	/** Threads which fetch results from the cursors of the queries */
+	private final QueryPrefetcher m_prefetcher;
+
+	/** Context for SSL engines - it also caches sessions so that they can be resumed */
+	private final SSLContext m_sslContext;
+
+	/** Result sets encoded on the current connection and not yet known to be written, oldest first */
+	private final LinkedList<UnsentResults> m_unsent = new LinkedList<UnsentResults>();
+
+	/** Application bytes queued on the current connection, including the header */
+	private long m_bytesQueued;
+
+	/** Number of consecutive connections which failed before any data was written */
+	private int m_failureCount;
+
+	/** If <code>true</code>, the handshake of the current connection has been counted */
+	private boolean m_handshakeCounted;
+
+	/** Id of the SSL session of the last connection */
+	private byte[] m_sessionId;
+
+	private long m_handshakeCount;
+
+	private long m_resumedHandshakeCount;
+
+	private long m_resentResultSetsCount;
+
+	private long m_droppedResultSetsCount;
+
+	/** Index of the tuple stores used by the queries of this and other sources */
+	private final TupleStoreIndex m_storeIndex;
+
 	/** If <code>true</code>, header bytes have been sent. */
 	private boolean m_headerWritten;
 
-	/** LinkedList of queries whose results are to be sent using this StreamingSource. */
-	private final Queue<RunningQuery> m_queries;
+	/** Continuous queries whose results are to be sent using this StreamingSource, in the order they will be served */
+	private final LinkedList<ScheduledQuery> m_continuous = new LinkedList<ScheduledQuery>();
+
+	/** One-time queries whose results are to be sent using this StreamingSource, in the order they will be served */
+	private final LinkedList<ScheduledQuery> m_oneTime = new LinkedList<ScheduledQuery>();
+
+	/** Bytes added to the deficit of a one-time query on each turn */
+	private final int m_quantumBytes;
+
+	/** Multiple of the quantum added to the deficit of a continuous query on each turn */
+	private final int m_continuousWeight;
+
+	/** Bytes of result sets encoded since the source was created */
+	private long m_bytesSent;
+
+	/** Number of calls of popBytes in a row which found that the socket did not take all the data last time */
+	private int m_backedUpCalls;
+
+	private long m_backedUpCount;
 
 	private final StreamingProperties m_streamingProps;
 
@@ -55,9 +181,35 @@ public class StreamingSource extends StreamingSSLEngine {
 
 	private long m_periodToKeepRedundantSourceMillis;
 
-	/* This read buffer is shared because it is never actually used */
+	/** Longest time to hold back less than a packet of data in the hope of filling it - 0 to send at once */
+	private final long m_coalesceMillis;
+
+	/** Time at which data first started to be held back - 0 if none is held */
+	private long m_holdStartMillis;
+
+	/** Sizes of the batches of data passed to the SSL engine to be sent as records */
+	private final Histogram m_recordSizes = new Histogram(256, 12);
+
+	/** Time that each batch of data was held back before being passed to the SSL engine */
+	private final Histogram m_coalesceDelays = new Histogram(1, 12);
+
+	/* This read buffer is shared by sources using the XML protocols because it is never actually used */
 	private static ByteBuffer s_readBuffer;
 
+	/** Total tuples which may be sent on this connection for each consumer granted credit by the receiver */
+	private final Map<ResourceEndpoint, Long> m_allowed = new HashMap<ResourceEndpoint, Long>();
+
+	/** Tuples sent on this connection for each consumer granted credit */
+	private final Map<ResourceEndpoint, Long> m_sent = new HashMap<ResourceEndpoint, Long>();
+
+	/** If <code>true</code>, credit has been granted since the last call to {@link #takeCreditGranted()} */
+	private boolean m_creditGranted;
+
+	private long m_creditGrantsCount;
+
+	/** Number of times a query with results ready was passed over for lack of credit */
+	private long m_creditWaitsCount;
+
 	/**
 	 * Constructor.
 	 * 
@@ -70,14 +222,28 @@ public class StreamingSource extends StreamingSSLEngine {
 	 * @param odpservice
 	 * @param sslContext
 	 * @param allocateDirect
+	 * @param bufferPool
+	 *            pool of buffers for encoded result sets, shared by all sources of the sender.
+	 * @param prefetcher
+	 *            threads which fetch results from the cursors of the queries.
+	 * @param storeIndex
+	 *            index to be kept up to date with the tuple stores used by the queries.
+	 * @param compressionLevel
+	 *            Deflate compression level to use if the receiver accepts compression - 0 for none.
+	 * @param continuousWeight
+	 *            Share of the connection given to each continuous query relative to each one-time query.
+	 * @param coalesceMillis
+	 *            Longest time to hold back less than a packet of data in the hope of filling it - 0 to send at once.
 	 * @param currentResultSetRetry
 	 */
 	public StreamingSource(StreamingProperties streamingProps, int optimalPacketSize, SSLContext sslContext, boolean allocateDirect,
-			long periodToKeepRedundantSourceMillis) throws RGMAPermanentException {
+			BufferPool bufferPool, QueryPrefetcher prefetcher, TupleStoreIndex storeIndex,
+			int compressionLevel, int continuousWeight, long coalesceMillis, long periodToKeepRedundantSourceMillis) throws RGMAPermanentException {
 		LOG = Logger.getLogger(StreamingConstants.STREAMING_SENDER_LOGGER);
-		m_sslEngine = sslContext.createSSLEngine(streamingProps.getStreamingHost(), streamingProps.getStreamingPort());
+		m_sslContext = sslContext;
+		m_streamingProps = streamingProps;
+		m_sslEngine = createSSLEngine();
 		m_handshakeStatus = m_sslEngine.getHandshakeStatus();
-		m_sslEngine.setUseClientMode(true);
 
 		int netBS = m_sslEngine.getSession().getPacketBufferSize();
 		if (allocateDirect) {
@@ -87,21 +253,40 @@ public class StreamingSource extends StreamingSSLEngine {
 		}
 		m_encryptedReadBuffer = ByteBuffer.allocate(netBS);
 
-		/* This read buffer must be of the approved size though it is never used */
-		int appBS = m_sslEngine.getSession().getApplicationBufferSize();
-		if (s_readBuffer == null) {
-			s_readBuffer = ByteBuffer.allocate(appBS);
-		} else if (appBS > s_readBuffer.capacity()) {
-			s_readBuffer = ByteBuffer.allocate(appBS);
-		}
-		m_readBuffer = s_readBuffer;
-
 		m_optimalPackeSize = optimalPacketSize;
-		m_streamingProps = streamingProps;
 		m_periodToKeepRedundantSourceMillis = periodToKeepRedundantSourceMillis;
-		m_queries = new LinkedList<RunningQuery>();
+		m_quantumBytes = Math.max(1, optimalPacketSize / 4);
+		m_continuousWeight = continuousWeight;
+		m_coalesceMillis = coalesceMillis;
 		m_headerWritten = false;
-		m_header = new TupleEncoder(PROTNUM).getHeader();
+		/* The receiver advertises the best protocol it understands. Older receivers advertise 1 but accept 2. */
+		if (streamingProps.getStreamingProtocol() >= StreamingConstants.COMPRESSED_STREAMING_PROTOCOL && compressionLevel > 0) {
+			m_protocol = StreamingConstants.COMPRESSED_STREAMING_PROTOCOL;
+		} else if (streamingProps.getStreamingProtocol() >= StreamingConstants.BINARY_STREAMING_PROTOCOL) {
+			m_protocol = StreamingConstants.BINARY_STREAMING_PROTOCOL;
+		} else {
+			m_protocol = StreamingConstants.XML_STREAMING_PROTOCOL;
+		}
+
+		/* The read buffer must be of the approved size. It is only used with the binary protocols, for credit grants. */
+		int appBS = m_sslEngine.getSession().getApplicationBufferSize();
+		if (m_protocol >= StreamingConstants.BINARY_STREAMING_PROTOCOL) {
+			m_readBuffer = ByteBuffer.allocate(appBS);
+		} else {
+			synchronized (StreamingSource.class) {
+				if (s_readBuffer == null || appBS > s_readBuffer.capacity()) {
+					s_readBuffer = ByteBuffer.allocate(appBS);
+				}
+				m_readBuffer = s_readBuffer;
+			}
+		}
+
+		m_bufferPool = bufferPool;
+		m_prefetcher = prefetcher;
+		m_storeIndex = storeIndex;
+		m_compressionLevel = compressionLevel;
+		m_encoder = new TupleEncoder(m_protocol, bufferPool, compressionLevel);
+		m_header = m_encoder.getHeader();
 		m_bytesSinceHandshake = 0;
 		m_active = true;
 	}
@@ -114,7 +299,9 @@ public class StreamingSource extends StreamingSSLEngine {
 	 */
 	public synchronized boolean addQuery(RunningQuery query) {
 		if (m_active) {
-			m_queries.add(query);
+			(query.isContinuous() ? m_continuous : m_oneTime).add(new ScheduledQuery(query));
+			m_storeIndex.add(query.getTupleStore(), this);
+			m_prefetcher.prefetch(query);
 			if (LOG.isDebugEnabled()) {
 				LOG.debug("Added RunningQuery:" + query + " to StreamingSource with status " + m_engineOpStatus + " " + m_handshakeStatus);
 			}
@@ -128,17 +315,9 @@ public class StreamingSource extends StreamingSSLEngine {
 		return m_streamingProps;
 	}
 
-	public synchronized boolean isTupleStoreUsed(TupleStore store) {
-		for (RunningQuery q : m_queries) {
-			if (q.getTupleStore() == store) {
-				return true;
-			}
-		}
-		return false;
-	}
-
 	/**
-	 * Pop bytes to be sent on the streaming connection.
+	 * Pop bytes to be sent on the streaming connection. Only results which have already been fetched by the prefetcher
+	 * are sent, so this never waits for the database.
 	 * 
 	 * @return buffer Buffer containing bytes to be sent on the streaming connection, positioned to be written from the
 	 *         current position, or <code>null</code> if this streaming source has completed sending all of its queries
@@ -146,14 +325,14 @@ public class StreamingSource extends StreamingSSLEngine {
 	 * @throws RGMAPermanentException
 	 */
 	public synchronized ByteBuffer popBytes() throws RGMAPermanentException {
-		RunningQuery query = null;
 		if (!m_active && m_sslEngine.isOutboundDone() && m_encryptedWriteBuffer.position() == 0) {
 			if (LOG.isDebugEnabled()) {
 				LOG.debug(this + " is closing down");
 			}
+			m_encoder.close();
 			return null;
 		}
-		boolean active = m_queries.size() > 0 || m_writeBuffers.size() > 0;
+		boolean active = m_continuous.size() > 0 || m_oneTime.size() > 0 || m_writeBuffers.size() > 0;
 		if (active) {
 			m_dropTime = 0;
 		} else {
@@ -175,69 +354,225 @@ public class StreamingSource extends StreamingSSLEngine {
 			}
 		}
 		if (!m_headerWritten) {
-			m_writeBuffers.add(m_header);
-			m_headerWritten = true;
+			writeHeader();
 		}
-		boolean dataFound = false;
-		RunningQuery sentinel = null; /* Will be used to detect once round the queue */
-		int bytesToWrite = 0;
+		if (m_encryptedWriteBuffer.position() > 0) {
+			m_backedUpCount++;
+			m_backedUpCalls++;
+		} else {
+			m_backedUpCalls = 0;
+		}
+		/* The chunk size of each query is reduced at most once per call, and only if the connection stays backed up */
+		boolean backedUp = m_backedUpCalls >= BACKED_UP_CALLS;
+		for (ScheduledQuery sq : m_continuous) {
+			sq.m_shrinkChunks = backedUp;
+		}
+		for (ScheduledQuery sq : m_oneTime) {
+			sq.m_shrinkChunks = backedUp;
+		}
+		int queuedBytes = 0;
 		for (ByteBuffer b : m_writeBuffers) {
-			bytesToWrite += b.position();
+			queuedBytes += b.position();
 		}
-		while (bytesToWrite < m_optimalPackeSize) {
-			query = m_queries.poll();
-			if (query == null) {
-				break;
+		/* Continuous queries first, then one-time queries - which get at least one quantum even if the packet is full */
+		int bytesToWrite = schedule(m_continuous, m_continuousWeight, queuedBytes, m_optimalPackeSize);
+		bytesToWrite = schedule(m_oneTime, 1, bytesToWrite, Math.max(m_optimalPackeSize, bytesToWrite + m_quantumBytes));
+		if (bytesToWrite > 0) {
+			long now = System.currentTimeMillis();
+			if (holdBack(queuedBytes, bytesToWrite, now)) {
+				return m_encryptedWriteBuffer;
 			}
-			boolean atSentinel = false;
-			if (sentinel == null) {
-				sentinel = query;
-				atSentinel = true;
-			} else if (sentinel == query) {
-				if (!dataFound) {
-					m_queries.add(query);
-					break;
-				}
-				dataFound = false;
-				atSentinel = true;
+			m_recordSizes.add(bytesToWrite);
+			m_coalesceDelays.add(m_holdStartMillis == 0 ? 0 : now - m_holdStartMillis);
+			m_holdStartMillis = 0;
+		}
+		return wrap();
+	}
+
+	/**
+	 * Decide whether to hold back data in the hope that more will arrive to fill a packet, so that a table with many
+	 * small inserts does not produce a tiny SSL record for each tuple. Data is only held while the connection is idle
+	 * and handshaking is complete, and for no more than the coalescing window from when it was first held. Data left
+	 * over from the last wrap is never held.
+	 */
+	private boolean holdBack(int queuedBytes, int bytesToWrite, long now) {
+		if (m_coalesceMillis <= 0 || bytesToWrite >= m_optimalPackeSize || !m_active || m_encryptedWriteBuffer.position() > 0
+				|| m_handshakeStatus != HandshakeStatus.NOT_HANDSHAKING) {
+			return false;
+		}
+		if (m_holdStartMillis == 0) {
+			if (queuedBytes > 0) {
+				return false;
 			}
-			if (query.isActive()) {
+			m_holdStartMillis = now;
+		}
+		return now - m_holdStartMillis < m_coalesceMillis;
+	}
+
+	/**
+	 * Returns the time at which data being held back must be sent, or 0 if none is held.
+	 */
+	public synchronized long getFlushTime() {
+		return m_holdStartMillis == 0 ? 0 : m_holdStartMillis + m_coalesceMillis;
+	}
+
+	/**
+	 * Encode results from the queries of one class by deficit round robin. On each turn a query has a quantum of bytes
+	 * added to its deficit and sends result sets while its deficit is positive. A result set may take the deficit
+	 * below zero, in which case the query has to wait for later turns to pay off the excess. A query with nothing ready
+	 * does not save its deficit for later. The queries are served in rounds until the limit is reached or there is
+	 * nothing more which can be sent, so a query with big result sets gets no more than its share of the packets while
+	 * others have results ready.
+	 * 
+	 * @param ring
+	 *            Queries in the order in which they are to be served. Queries are moved to the end after their turn.
+	 * @param weight
+	 *            Multiple of the quantum given to each query on each turn.
+	 * @param bytesToWrite
+	 *            Bytes already waiting to be written.
+	 * @param limit
+	 *            Number of bytes waiting to be written at which to stop.
+	 * @return the new number of bytes waiting to be written
+	 */
+	private int schedule(LinkedList<ScheduledQuery> ring, int weight, int bytesToWrite, int limit) {
+		long quantum = (long) m_quantumBytes * weight;
+		boolean more = true;
+		while (more && bytesToWrite < limit && ring.size() > 0) {
+			more = false;
+			int n = ring.size();
+			for (int i = 0; i < n && bytesToWrite < limit; i++) {
+				ScheduledQuery sq = ring.removeFirst();
+				RunningQuery query = sq.m_query;
+				if (!query.hasResultsToSend()) {
+					m_storeIndex.remove(query.getTupleStore(), this);
+					continue;
+				}
+				sq.m_deficit = Math.min(sq.m_deficit + quantum, quantum);
+				boolean finished = false;
 				try {
-					TupleSetEnvelope results = query.pop();
-					TupleSet ts = results.getTupleSet();
-					boolean eof = ts.isEndOfResults();
-					if (ts.size() != 0 || eof) {
+					while (sq.m_deficit > 0 && bytesToWrite < limit) {
+						if (!hasCredit(query.getConsumer())) {
+							if (query.getReadyCount() > 0) {
+								m_creditWaitsCount++;
+							}
+							break;
+						}
+						TupleSetEnvelope results = query.pollReady();
+						if (results == null) {
+							break;
+						}
+						TupleSet ts = results.getTupleSet();
+						boolean eof = ts.isEndOfResults();
 						if (LOG.isDebugEnabled()) {
 							LOG.debug(ts.size() + " tuples for " + query + (eof ? " *EOF*" : ""));
 						}
-						ByteBuffer currentResultSet = new TupleEncoder(PROTNUM).encode(results);
-						bytesToWrite += currentResultSet.position();
-						m_writeBuffers.add(currentResultSet);
-						if (ts.size() != 0) {
-							dataFound = true;
-						}
+						long start = System.nanoTime();
+						int bytes = m_encoder.encode(results, m_writeBuffers);
+						query.chunkEncoded(ts.size(), bytes, System.nanoTime() - start, sq.m_shrinkChunks);
+						sq.m_shrinkChunks = false;
+						bytesToWrite += bytes;
+						m_bytesQueued += bytes;
+						m_bytesSent += bytes;
+						m_unsent.add(new UnsentResults(results, m_bytesQueued));
+						addSent(results);
+						sq.m_deficit -= bytes;
+						sq.m_bytesSent += bytes;
+						sq.m_resultSetsSent++;
+						more = true;
 						if (eof) {
-							query = null;
+							finished = true;
+							break;
 						}
 					}
+					if (!finished) {
+						m_prefetcher.prefetch(query);
+					}
 				} catch (RGMAPermanentException e) {
 					LOG.warn("Failed to pop tuples from store for " + query + ". " + e.getMessage() + " - results will be discarded");
 					/* stop this happening again */
 					query.abort();
-					query = null;
+					finished = true;
 				}
-				if (query != null) {
-					m_queries.add(query);
-				} else if (atSentinel) {
-					/* Need a new sentinel */
-					sentinel = null;
+				if (finished) {
+					m_storeIndex.remove(query.getTupleStore(), this);
+				} else {
+					if (query.getReadyCount() == 0) {
+						sq.m_deficit = Math.min(sq.m_deficit, 0);
+					} else if (sq.m_deficit <= 0 && hasCredit(query.getConsumer())) {
+						/* Results are waiting for the query to pay off its excess */
+						more = true;
+					}
+					ring.add(sq);
 				}
-			} else if (atSentinel) {
-				/* Need a new sentinel */
-				sentinel = null;
 			}
 		}
-		return wrap();
+		return bytesToWrite;
+	}
+
+	/**
+	 * Adds status information about the scheduling of the queries of this source.
+	 * 
+	 * @param map
+	 *            Map of status information "parameter name", "value" for the connection
+	 */
+	public synchronized void schedulingInfo(Map<String, String> map) {
+		long maxQueueMillis = 0;
+		long totalQueueMillis = 0;
+		List<ScheduledQuery> scheduled = new ArrayList<ScheduledQuery>(m_continuous);
+		scheduled.addAll(m_oneTime);
+		for (ScheduledQuery sq : scheduled) {
+			maxQueueMillis = Math.max(maxQueueMillis, sq.m_query.getMaxQueueMillis());
+			totalQueueMillis += sq.m_query.getMeanQueueMillis();
+		}
+		map.put("ContinuousQueriesCount", String.valueOf(m_continuous.size()));
+		map.put("OneTimeQueriesCount", String.valueOf(m_oneTime.size()));
+		map.put("BytesSent", String.valueOf(m_bytesSent));
+		map.put("BackedUpCount", String.valueOf(m_backedUpCount));
+		map.put("RecordSizeHistogram", m_recordSizes.toString());
+		map.put("CoalesceMillisHistogram", m_coalesceDelays.toString());
+		map.put("MeanQueueMillis", String.valueOf(scheduled.size() == 0 ? 0 : totalQueueMillis / scheduled.size()));
+		map.put("MaxQueueMillis", String.valueOf(maxQueueMillis));
+	}
+
+	/**
+	 * Adds status information about the queries of this source.
+	 * 
+	 * @param queries
+	 *            List to which a map of status information "parameter name", "value" is added for each query
+	 * @param maxEntries
+	 *            Maximum size of the list
+	 */
+	public synchronized void queryInfo(List<Map<String, String>> queries, int maxEntries) {
+		List<ScheduledQuery> scheduled = new ArrayList<ScheduledQuery>(m_continuous);
+		scheduled.addAll(m_oneTime);
+		for (ScheduledQuery sq : scheduled) {
+			if (queries.size() >= maxEntries) {
+				break;
+			}
+			RunningQuery query = sq.m_query;
+			Map<String, String> map = new HashMap<String, String>();
+			map.put("ProducerID", String.valueOf(query.getProducer().getResourceID()));
+			map.put("ConsumerID", String.valueOf(query.getConsumer().getResourceID()));
+			map.put("Url", String.valueOf(m_streamingProps.getStreamingHost()));
+			map.put("Port", String.valueOf(m_streamingProps.getStreamingPort()));
+			map.put("ReadyQueueDepth", String.valueOf(query.getReadyCount()));
+			map.put("Fetching", String.valueOf(query.isFetching()));
+			map.put("FetchCount", String.valueOf(query.getFetchCount()));
+			map.put("LastFetchMillis", String.valueOf(query.getLastFetchMillis()));
+			map.put("MeanFetchMillis", String.valueOf(query.getMeanFetchMillis()));
+			map.put("MaxFetchMillis", String.valueOf(query.getMaxFetchMillis()));
+			map.put("Continuous", String.valueOf(query.isContinuous()));
+			map.put("BytesSent", String.valueOf(sq.m_bytesSent));
+			map.put("ResultSetsSent", String.valueOf(sq.m_resultSetsSent));
+			map.put("DeficitBytes", String.valueOf(sq.m_deficit));
+			map.put("ChunkSize", String.valueOf(query.getChunkSize()));
+			map.put("ChunkGrowCount", String.valueOf(query.getChunkGrowCount()));
+			map.put("ChunkShrinkCount", String.valueOf(query.getChunkShrinkCount()));
+			map.put("LastQueueMillis", String.valueOf(query.getLastQueueMillis()));
+			map.put("MeanQueueMillis", String.valueOf(query.getMeanQueueMillis()));
+			map.put("MaxQueueMillis", String.valueOf(query.getMaxQueueMillis()));
+			queries.add(map);
+		}
 	}
 
 	/**
@@ -245,25 +580,241 @@ public class StreamingSource extends StreamingSSLEngine {
 	 * sender is forced to recreate the socket connection. The streaming source must discard any partially complete
 	 * result sets it has sent and re-send the complete result set. It must also re-send the header bytes. However we
 	 * must not keep retrying the same resultSet - so watch the number of retrys
+	 * <p>
+	 * The result sets not completely written are kept and encoded again for the new connection, so nothing has to be
+	 * read again from the tuple store. A result set which was written just before the connection failed may be
+	 * received twice. A new SSL engine is created which, if the receiver still has the session cached, resumes the
+	 * session of the last connection rather than doing a full handshake.
 	 * 
+	 * @return the number of consecutive connections which have failed, including this one
 	 * @throws RGMAPermanentException
 	 */
-	public synchronized void reset() throws RGMAPermanentException {
+	public synchronized int reset() throws RGMAPermanentException {
+		for (ByteBuffer b : m_writeBuffers) {
+			m_bufferPool.release(b);
+		}
 		m_writeBuffers.clear();
 		m_encryptedWriteBuffer.clear();
 		m_readBuffer.clear();
 		m_encryptedReadBuffer.clear();
-		m_headerWritten = false;
-		m_header = new TupleEncoder(PROTNUM).getHeader();
+		m_sslEngine = createSSLEngine();
+		m_handshakeStatus = m_sslEngine.getHandshakeStatus();
+		m_engineOpStatus = null;
+		m_bytesSinceHandshake = 0;
+		m_bytesWrapped = 0;
+		m_handshakeCounted = false;
+		m_holdStartMillis = 0;
+		addEncoderStatistics();
+		m_encoder.close();
+		m_encoder = new TupleEncoder(m_protocol, m_bufferPool, m_compressionLevel);
+		m_header = m_encoder.getHeader();
+		m_bytesQueued = 0;
+		m_allowed.clear();
+		m_sent.clear();
+		writeHeader();
+		Iterator<UnsentResults> iter = m_unsent.iterator();
+		while (iter.hasNext()) {
+			UnsentResults u = iter.next();
+			if (u.m_sendCount >= MAX_SEND_COUNT) {
+				LOG.warn("Dropping result set for " + u.m_results.getTarget() + " from " + this + " after " + u.m_sendCount + " failed connections");
+				iter.remove();
+				m_droppedResultSetsCount++;
+			} else {
+				m_bytesQueued += m_encoder.encode(u.m_results, m_writeBuffers);
+				u.m_endOffset = m_bytesQueued;
+				u.m_sendCount++;
+				addSent(u.m_results);
+				m_resentResultSetsCount++;
+			}
+		}
+		if (LOG.isDebugEnabled()) {
+			LOG.debug(this + " reset with " + m_unsent.size() + " result sets to resend");
+		}
+		return ++m_failureCount;
+	}
+
+	/**
+	 * Called when everything wrapped by the SSL engine has been written to the socket. The result sets wholly written
+	 * are forgotten. On the first call for a connection, the handshake is counted and the connection is taken to be
+	 * working.
+	 */
+	public synchronized void allWritten() {
+		while (m_unsent.size() > 0 && m_unsent.getFirst().m_endOffset <= m_bytesWrapped) {
+			m_unsent.removeFirst();
+		}
+		if (!m_handshakeCounted && m_bytesWrapped > 0 && m_handshakeStatus == HandshakeStatus.NOT_HANDSHAKING) {
+			m_handshakeCounted = true;
+			m_failureCount = 0;
+			byte[] sessionId = m_sslEngine.getSession().getId();
+			m_handshakeCount++;
+			if (m_sessionId != null && Arrays.equals(sessionId, m_sessionId)) {
+				m_resumedHandshakeCount++;
+				if (LOG.isDebugEnabled()) {
+					LOG.debug("SSL session resumed for " + this);
+				}
+			}
+			m_sessionId = sessionId;
+		}
+	}
+
+	public int getProtocol() {
+		return m_protocol;
+	}
+
+	/**
+	 * Return <code>true</code> if credit has been granted since the last call, so that the source should be given the
+	 * chance to write.
+	 */
+	public synchronized boolean takeCreditGranted() {
+		boolean granted = m_creditGranted;
+		m_creditGranted = false;
+		return granted;
+	}
+
+	public synchronized long getCreditGrantsCount() {
+		return m_creditGrantsCount;
+	}
+
+	public synchronized long getCreditWaitsCount() {
+		return m_creditWaitsCount;
+	}
+
+	/** Number of connections on which data has been written */
+	public synchronized long getHandshakeCount() {
+		return m_handshakeCount;
+	}
+
+	/** Number of connections which resumed the SSL session of the connection before */
+	public synchronized long getResumedHandshakeCount() {
+		return m_resumedHandshakeCount;
+	}
+
+	/** Number of consecutive connections which have failed before any data was written */
+	public synchronized int getFailureCount() {
+		return m_failureCount;
+	}
+
+	/** Number of result sets encoded and not yet known to be written */
+	public synchronized int getUnsentCount() {
+		return m_unsent.size();
+	}
+
+	public synchronized long getResentResultSetsCount() {
+		return m_resentResultSetsCount;
+	}
+
+	/** Number of result sets abandoned after failing on too many connections */
+	public synchronized long getDroppedResultSetsCount() {
+		return m_droppedResultSetsCount;
+	}
+
+	/** Bytes encoded before compression since the source was created - 0 unless compressed */
+	public synchronized long getUncompressedBytes() {
+		return m_uncompressedBytes + m_encoder.getUncompressedBytes();
+	}
+
+	/** Bytes encoded after compression since the source was created - 0 unless compressed */
+	public synchronized long getCompressedBytes() {
+		return m_compressedBytes + m_encoder.getCompressedBytes();
+	}
+
+	/** Time spent compressing since the source was created */
+	public synchronized long getCompressionNanos() {
+		return m_compressionNanos + m_encoder.getCompressionNanos();
+	}
+
+	/**
+	 * Create a client SSL engine for the streaming host and port. Giving the peer allows the session cache of the
+	 * context to offer the session of an earlier connection to the same receiver.
+	 */
+	private SSLEngine createSSLEngine() {
+		SSLEngine engine = m_sslContext.createSSLEngine(m_streamingProps.getStreamingHost(), m_streamingProps.getStreamingPort());
+		engine.setUseClientMode(true);
+		return engine;
+	}
+
+	/**
+	 * Return <code>true</code> if more results may be sent for the consumer. There is no limit until the receiver has
+	 * granted credit for the consumer. Credit is checked before each result set so the allowance may be exceeded by up
+	 * to one chunk.
+	 */
+	private boolean hasCredit(ResourceEndpoint consumer) {
+		Long allowed = m_allowed.get(consumer);
+		if (allowed == null) {
+			return true;
+		}
+		Long sent = m_sent.get(consumer);
+		return sent == null || sent < allowed;
+	}
+
+	private void addSent(TupleSetEnvelope results) {
+		Long sent = m_sent.get(results.getTarget());
+		m_sent.put(results.getTarget(), (sent == null ? 0 : sent) + results.getTupleSet().size());
+	}
+
+	/**
+	 * Read the credit grant frames received from the streaming sink. The format is described in StreamingSink.
+	 */
+	private void readGrants() throws RGMAPermanentException {
+		m_readBuffer.flip();
+		while (m_readBuffer.remaining() >= 4) {
+			int length = m_readBuffer.getInt(m_readBuffer.position());
+			if (length < 12 || length > m_readBuffer.capacity() - 4) {
+				throw new RGMAPermanentException("Invalid credit grant of length " + length + " from " + m_streamingProps);
+			}
+			if (m_readBuffer.remaining() < 4 + length) {
+				break;
+			}
+			m_readBuffer.getInt();
+			int resourceId = m_readBuffer.getInt();
+			long allowed = m_readBuffer.getLong();
+			byte[] url = new byte[length - 12];
+			m_readBuffer.get(url);
+			ResourceEndpoint consumer;
+			try {
+				consumer = new ResourceEndpoint(new URL(new String(url, "UTF-8")), resourceId);
+			} catch (MalformedURLException e) {
+				throw new RGMAPermanentException("Invalid consumer URL in credit grant from " + m_streamingProps);
+			} catch (UnsupportedEncodingException e) {
+				throw new RGMAPermanentException(e);
+			}
+			m_allowed.put(consumer, allowed);
+			m_creditGranted = true;
+			m_creditGrantsCount++;
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("Credit for " + allowed + " tuples in total granted for " + consumer + " on " + this);
+			}
+		}
+		m_readBuffer.compact();
+	}
+
+	private void writeHeader() {
+		m_writeBuffers.add(m_header);
+		m_bytesQueued += m_header.position();
+		m_headerWritten = true;
+	}
+
+	private void addEncoderStatistics() {
+		m_uncompressedBytes += m_encoder.getUncompressedBytes();
+		m_compressedBytes += m_encoder.getCompressedBytes();
+		m_compressionNanos += m_encoder.getCompressionNanos();
 	}
 
 	@Override
 	public synchronized String toString() {
-		return "Source for " + m_streamingProps.toString() + " has " + m_queries.size() + " queries and " + m_writeBuffers.size() + " write buffers bytes open";
+		return "Source for " + m_streamingProps.toString() + " has " + (m_continuous.size() + m_oneTime.size()) + " queries and " + m_writeBuffers.size() + " write buffers bytes open";
 	}
 
 	@Override
-	public void pushBytes() throws RGMAPermanentException {
+	public synchronized void pushBytes() throws RGMAPermanentException {
 		unwrap();
+		if (m_protocol >= StreamingConstants.BINARY_STREAMING_PROTOCOL) {
+			readGrants();
+		}
+	}
+
+	@Override
+	protected void releaseWriteBuffer(ByteBuffer buffer) {
+		m_bufferPool.release(buffer);
 	}
 }
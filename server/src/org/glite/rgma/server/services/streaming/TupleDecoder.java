@@ -6,44 +6,39 @@
 
 package org.glite.rgma.server.services.streaming;
 
-import java.io.IOException;
-import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
-import java.nio.charset.Charset;
-import java.nio.charset.CharsetDecoder;
-import java.nio.charset.CoderResult;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
-
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParserFactory;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 import org.glite.rgma.server.system.RGMAPermanentException;
 import org.glite.rgma.server.system.ResourceEndpoint;
 import org.glite.rgma.server.system.TupleSet;
 import org.glite.rgma.server.system.TupleSetEnvelope;
-import org.xml.sax.Attributes;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
-import org.xml.sax.XMLReader;
-import org.xml.sax.helpers.DefaultHandler;
 
 /**
- * Tuple decoder for the StandardStreamingProtocol. This class is not thread safe. Only one thread may access either of
- * the <code>pushBytes</code> and <code>popResults</code> methods at a time.
+ * Tuple decoder for the StandardStreamingProtocol. The XML protocol versions (1 and 2), the binary protocol (version
+ * 3) and the compressed binary protocol (version 4) described in {@link TupleEncoder} are supported. Bytes are decoded incrementally as they are pushed so
+ * that a result set is never held as a whole string, and the parsers are created once for the connection. Source and
+ * target endpoints are shared between result sets rather than being created for each one. This class is not thread
+ * safe. Only one thread may access either of the <code>pushBytes</code> and <code>popResults</code> methods at a
+ * time.
  */
 public class TupleDecoder {
 
-	/** Charset for encoding the streaming message */
+	/** Charset for decoding the streaming message */
 	private static final String CHARSET_NAME = "UTF-8";
 
 	/**
-	 * A SAX parser which parses the XML result set.
+	 * A parser for the compact XML result sets of protocol version 2.
 	 */
-	private class XmlResultSetParser extends DefaultHandler {
+	private class XmlResultSetParser extends XmlScanner {
 
 		/** The ResultSet parsed from the XML. */
 		private TupleSet m_resultSet;
@@ -56,7 +51,11 @@ public class TupleDecoder {
 
 		private String m_query;
 
-		private StringBuilder m_currentCol = new StringBuilder();
+		/** Text of the current value, or <code>null</code> if there has been none */
+		private String m_currentCol;
+
+		/** If <code>true</code>, a <code>v</code> element is open */
+		private boolean m_inValue;
 
 		private int m_numCols;
 
@@ -65,12 +64,18 @@ public class TupleDecoder {
 		private List<String[]> m_data;
 
 		@Override
-		public void characters(char[] ch, int start, int length) {
-			m_currentCol.append(new String(ch, start, length));
+		protected void text(String text) {
+			m_currentCol = m_currentCol == null ? text : m_currentCol + text;
+		}
+
+		@Override
+		protected boolean isTextWanted() {
+			return m_inValue;
 		}
 
-		public void endElement(String uri, String localName, String qName) {
-			char q = qName.charAt(0);
+		@Override
+		protected void endElement(byte[] name, int length) {
+			byte q = name[0];
 			if (q == 'v' || q == 'n') {
 				if (m_curCol == m_numCols) {
 					m_rowData = new String[m_numCols];
@@ -78,28 +83,35 @@ public class TupleDecoder {
 					m_curCol = 0;
 				}
 				if (q == 'v') {
-					m_rowData[m_curCol++] = m_currentCol.toString();
+					m_rowData[m_curCol++] = m_currentCol == null ? "" : m_currentCol;
+					m_inValue = false;
 				} else {
 					m_rowData[m_curCol++] = null;
 				}
 			}
 		}
 
-		/**
-		 * Returns the first (or only) ResultSet parsed.
-		 * 
-		 * @return A ResultSet created from the XML
-		 */
-		public TupleSetEnvelope getResultSet() {
-			return new TupleSetEnvelope(m_resultSet, m_source, m_target, m_query);
+		@Override
+		protected void endDocument() throws RGMAPermanentException {
+			if (m_resultSet == null) {
+				throw new RGMAPermanentException("No result sets found in streamed XML result set");
+			}
+			m_results.add(new TupleSetEnvelope(m_resultSet, m_source, m_target, m_query));
+			reset();
+		}
+
+		@Override
+		protected void reset() {
+			m_resultSet = null;
+			m_data = null;
+			m_rowData = null;
+			m_inValue = false;
 		}
 
-		public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
+		@Override
+		protected void startElement(byte[] name, int length, TagAttributes attributes) throws RGMAPermanentException {
+			byte q = length == 1 ? name[0] : (byte) ' ';
 			try {
-				char q = qName.charAt(0);
-				if (qName.length() != 1) {
-					q = ' ';
-				}
 				if (q == 'r') {
 					String numCols = attributes.getValue("c");
 					if (numCols != null) {
@@ -117,31 +129,30 @@ public class TupleDecoder {
 					m_curCol = m_numCols;
 					m_resultSet.setWarning(attributes.getValue("m"));
 					m_query = attributes.getValue("q");
-					m_source = new ResourceEndpoint(new URL(attributes.getValue("su")), Integer.parseInt(attributes.getValue("si")));
-					m_target = new ResourceEndpoint(new URL(attributes.getValue("tu")), Integer.parseInt(attributes.getValue("ti")));
+					m_source = getEndpoint(attributes.getValue("su"), Integer.parseInt(attributes.getValue("si")));
+					m_target = getEndpoint(attributes.getValue("tu"), Integer.parseInt(attributes.getValue("ti")));
+				} else if (m_resultSet == null) {
+					throw new RGMAPermanentException("Unexpected tag " + XmlScanner.toName(name, length) + " before result set in streamed XML");
 				} else if (q == 'v') {
-					m_currentCol.setLength(0);
-				} else if (q == 'e' && m_resultSet != null) {
+					m_currentCol = null;
+					m_inValue = true;
+				} else if (q == 'e') {
 					m_resultSet.setEndOfResults(true);
 				} else if (q == 'n') {
 					// Nothing to do
 				} else {
-					throw new SAXException("Unexpected tag " + qName + " in streamed XML from server.");
+					throw new RGMAPermanentException("Unexpected tag " + XmlScanner.toName(name, length) + " in streamed XML from server.");
 				}
 			} catch (NumberFormatException e) {
-				throw new SAXException(e.getMessage());
-			} catch (RGMAPermanentException e) {
-				throw new SAXException(e.getMessage());
-			} catch (MalformedURLException e) {
-				throw new SAXException(e.getMessage());
+				throw new RGMAPermanentException(e.getMessage());
 			}
 		}
 	}
 
 	/**
-	 * A SAX parser which parses the XML result set.
+	 * A parser for the verbose XML result sets of protocol version 1.
 	 */
-	private class OldXmlResultSetParser extends DefaultHandler {
+	private class OldXmlResultSetParser extends XmlScanner {
 
 		private static final String ELE_ROOT = "rs";
 
@@ -215,28 +226,45 @@ public class TupleDecoder {
 		/**
 		 * Process characters
 		 * 
-		 * @param ch
-		 *            Array of characters
-		 * @param start
-		 *            Start index
-		 * @param length
-		 *            Number of chars.
+		 * @param text
+		 *            Character data
 		 */
-		public void characters(char[] ch, int start, int length) {
-			m_chars.append(ch, start, length);
+		@Override
+		protected void text(String text) {
+			m_chars.append(text);
+		}
+
+		@Override
+		protected boolean isTextWanted() {
+			return true;
+		}
+
+		@Override
+		protected void endDocument() throws RGMAPermanentException {
+			if (m_resultSet == null) {
+				throw new RGMAPermanentException("No result sets found in streamed XML result set");
+			}
+			m_results.add(getResultSet());
+			reset();
+		}
+
+		@Override
+		protected void reset() {
+			m_mode = Mode.START;
+			m_resultSet = null;
 		}
 
 		/**
 		 * Process end tag.
 		 * 
-		 * @param uri
-		 *            URI of tag
-		 * @param localName
-		 *            Local name
-		 * @param qName
-		 *            Fully qualified name
+		 * @param name
+		 *            Bytes of the element name
+		 * @param length
+		 *            Length of the element name
 		 */
-		public void endElement(String uri, String localName, String qName) throws SAXException {
+		@Override
+		protected void endElement(byte[] name, int length) throws RGMAPermanentException {
+			String qName = XmlScanner.toName(name, length);
 			if (qName.equals(ELE_ROOT)) {
 				m_resultSet = new TupleSet();
 				for (List<String> row : m_rows) {
@@ -269,22 +297,10 @@ public class TupleDecoder {
 			} else if (qName.equals(ELE_TABLE)) {
 				m_mode = Mode.COL_METADATA;
 			} else if (qName.equals(ELE_SOURCE)) {
-				try {
-					m_source = new ResourceEndpoint(new URL(m_url), m_id);
-				} catch (MalformedURLException e) {
-					throw new SAXException("Source URL: " + m_url + " is not a valid URL");
-				} catch (RGMAPermanentException e) {
-					throw new SAXException("Unexpected RGMAPermanentException ", e);
-				}
+				m_source = getEndpoint(m_url, m_id);
 				m_mode = Mode.METADATA;
 			} else if (qName.equals(ELE_TARGET)) {
-				try {
-					m_target = new ResourceEndpoint(new URL(m_url), m_id);
-				} catch (MalformedURLException e) {
-					throw new SAXException("Target URL: " + m_url + " is not a valid URL");
-				} catch (RGMAPermanentException e) {
-					throw new SAXException("Unexpected RGMAPermanentException ", e);
-				}
+				m_target = getEndpoint(m_url, m_id);
 				m_mode = Mode.METADATA;
 			} else if (qName.equals(ELE_URL)) {
 				m_url = m_chars.toString();
@@ -297,7 +313,7 @@ public class TupleDecoder {
 				try {
 					m_id = Integer.parseInt(m_chars.toString());
 				} catch (NumberFormatException e) {
-					throw new SAXException("Resource ID " + m_chars + " is not an integer");
+					throw new RGMAPermanentException("Resource ID " + m_chars + " is not an integer");
 				}
 				if (m_mode == Mode.SOURCE_ID_METADATA) {
 					m_mode = Mode.SOURCE_METADATA;
@@ -328,16 +344,16 @@ public class TupleDecoder {
 		/**
 		 * Process start tag
 		 * 
-		 * @param uri
-		 *            URI of tag
-		 * @param localName
-		 *            Local name
-		 * @param qName
-		 *            Fully qualified name
+		 * @param name
+		 *            Bytes of the element name
+		 * @param length
+		 *            Length of the element name
 		 * @param attributes
 		 *            Attributes of tag
 		 */
-		public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
+		@Override
+		protected void startElement(byte[] name, int length, TagAttributes attributes) throws RGMAPermanentException {
+			String qName = XmlScanner.toName(name, length);
 			if (qName.equals(ELE_ROOT)) {
 				if (m_mode != Mode.START) {
 					unexpectedElement(qName);
@@ -425,8 +441,8 @@ public class TupleDecoder {
 			m_chars.setLength(0);
 		}
 
-		private void unexpectedElement(String element) throws SAXException {
-			throw new SAXException("Got unexpected element '" + element + "' in mode " + m_mode);
+		private void unexpectedElement(String element) throws RGMAPermanentException {
+			throw new RGMAPermanentException("Got unexpected element '" + element + "' in mode " + m_mode);
 		}
 	}
 
@@ -434,22 +450,45 @@ public class TupleDecoder {
 		START, ROOT, METADATA, COL_METADATA, COL_NAME_METADATA, COL_TYPE_METADATA, COL_TABLE_METADATA, SOURCE_METADATA, SOURCE_URL_METADATA, SOURCE_ID_METADATA, TARGET_METADATA, TARGET_URL_METADATA, TARGET_ID_METADATA, QUERY_METADATA, ROW, COL, WARNING
 	}
 
-	/** Size of character buffer. */
-	private static final int CHAR_BUFFER_SIZE = 4096;
+	/** Initial size of the buffer holding incomplete binary frames. */
+	private static final int FRAME_BUFFER_SIZE = 4096;
+
+	/** Largest binary frame accepted - anything bigger indicates a corrupt stream. */
+	private static final int MAX_FRAME_BYTES = 64 * 1024 * 1024;
+
+	/** Number of distinct endpoints to remember before the endpoint cache is cleared. */
+	private static final int MAX_CACHED_ENDPOINTS = 1000;
 
 	/** List of result sets that have been decoded but not yet popped. */
 	private List<TupleSetEnvelope> m_results;
 
-	/** A string buffer containing XML for the current result set */
-	private StringBuffer m_currentXml;
+	private int m_headerInt;
+
+	/** Parser for the XML protocols - not used by the binary protocol */
+	private XmlScanner m_xmlParser;
 
-	/** Buffer containing characters decoded from the byte stream */
-	private CharBuffer m_charBuffer;
+	/** Bytes of binary frames not yet decoded, ready for writing */
+	private ByteBuffer m_frameBuffer;
 
-	/** Converts bytes into characters. */
-	private CharsetDecoder m_decoder;
+	/** Bytes of compressed blocks not yet decompressed, ready for writing - only used by the compressed protocol */
+	private ByteBuffer m_blockBuffer;
 
-	private int m_headerInt;
+	/** Decompressor - only used by the compressed protocol */
+	private Inflater m_inflater;
+
+	/** Uncompressed bytes recently received - only used by the compressed protocol */
+	private DeflateHistory m_history;
+
+	/** Output of the decompressor for the current block */
+	private byte[] m_inflated;
+
+	/** Envelopes defined so far on this connection, by envelope number - only used by the binary protocol */
+	private Map<Integer, EnvelopeKey> m_envelopes;
+
+	/** Endpoints already seen on this connection, by URL and resource ID */
+	private final Map<String, Map<Integer, ResourceEndpoint>> m_endpoints;
+
+	private int m_endpointCount;
 
 	/**
 	 * Decodes a byte stream from a streaming connection into ResultSets. Since the bytes may arrive in chunks of any
@@ -460,14 +499,21 @@ public class TupleDecoder {
 	 */
 	public TupleDecoder(int headerInt) throws RGMAPermanentException {
 		m_results = new ArrayList<TupleSetEnvelope>();
-		m_currentXml = new StringBuffer();
-		m_charBuffer = ByteBuffer.allocateDirect(CHAR_BUFFER_SIZE).asCharBuffer();
 		m_headerInt = headerInt;
-		Charset cs = Charset.availableCharsets().get(CHARSET_NAME);
-		if (cs == null) {
-			throw new RGMAPermanentException(CHARSET_NAME + " charset is not available");
+		m_endpoints = new HashMap<String, Map<Integer, ResourceEndpoint>>();
+		if (headerInt == StreamingConstants.BINARY_STREAMING_PROTOCOL || headerInt == StreamingConstants.COMPRESSED_STREAMING_PROTOCOL) {
+			m_frameBuffer = ByteBuffer.allocate(FRAME_BUFFER_SIZE);
+			m_envelopes = new HashMap<Integer, EnvelopeKey>();
+			if (headerInt == StreamingConstants.COMPRESSED_STREAMING_PROTOCOL) {
+				m_blockBuffer = ByteBuffer.allocate(FRAME_BUFFER_SIZE);
+				m_inflater = new Inflater();
+				m_history = new DeflateHistory();
+				m_inflated = new byte[FRAME_BUFFER_SIZE];
+			}
+		} else if (headerInt == StreamingConstants.OLD_XML_STREAMING_PROTOCOL) {
+			m_xmlParser = new OldXmlResultSetParser();
 		} else {
-			m_decoder = cs.newDecoder();
+			m_xmlParser = new XmlResultSetParser();
 		}
 	}
 
@@ -499,85 +545,262 @@ public class TupleDecoder {
 	 *             logged instead when tuples may have been lost.
 	 */
 	public void pushBytes(ByteBuffer bytes) throws RGMAPermanentException {
-		while (bytes.remaining() > 0) {
-			CoderResult result = m_decoder.decode(bytes, m_charBuffer, false);
-			if (result.isOverflow()) {
-				// Not enough room in the output buffer
-				m_charBuffer.flip();
-				flush();
+		if (m_blockBuffer != null) {
+			pushBlockBytes(bytes);
+		} else if (m_frameBuffer != null) {
+			pushFrameBytes(bytes);
+		} else {
+			m_xmlParser.scan(bytes);
+		}
+	}
+
+	/**
+	 * Return the endpoint for a URL and resource ID, reusing the object from an earlier result set if possible.
+	 */
+	private ResourceEndpoint getEndpoint(String url, int id) throws RGMAPermanentException {
+		if (url == null) {
+			throw new RGMAPermanentException("Missing endpoint URL in streamed result set");
+		}
+		Map<Integer, ResourceEndpoint> byId = m_endpoints.get(url);
+		if (byId == null) {
+			byId = new HashMap<Integer, ResourceEndpoint>();
+			m_endpoints.put(url, byId);
+		}
+		ResourceEndpoint ep = byId.get(id);
+		if (ep == null) {
+			if (m_endpointCount >= MAX_CACHED_ENDPOINTS) {
+				m_endpoints.clear();
+				m_endpointCount = 0;
+				m_endpoints.put(url, byId);
+				byId.clear();
 			}
+			try {
+				ep = new ResourceEndpoint(new URL(url), id);
+			} catch (MalformedURLException e) {
+				throw new RGMAPermanentException("Endpoint URL: " + url + " is not a valid URL");
+			}
+			byId.put(id, ep);
+			m_endpointCount++;
 		}
+		return ep;
+	}
 
-		// Parse any remaining results in the char buffer
-		m_charBuffer.flip();
-		flush();
+	/**
+	 * Append bytes to the block buffer and decompress all complete blocks, decoding the frames they contain.
+	 */
+	private void pushBlockBytes(ByteBuffer bytes) throws RGMAPermanentException {
+		if (m_blockBuffer.remaining() < bytes.remaining()) {
+			ByteBuffer bigger = ByteBuffer.allocate(Math.max(m_blockBuffer.capacity() * 2, m_blockBuffer.position() + bytes.remaining()));
+			m_blockBuffer.flip();
+			bigger.put(m_blockBuffer);
+			m_blockBuffer = bigger;
+		}
+		m_blockBuffer.put(bytes);
+		m_blockBuffer.flip();
+		while (m_blockBuffer.remaining() >= 8) {
+			int start = m_blockBuffer.position();
+			int length = m_blockBuffer.getInt(start);
+			int compressedLength = m_blockBuffer.getInt(start + 4);
+			if (length < 1 || length > MAX_FRAME_BYTES || compressedLength < 1 || compressedLength > MAX_FRAME_BYTES) {
+				throw new RGMAPermanentException("Invalid compressed block length " + length + "/" + compressedLength + " in streamed result set");
+			}
+			if (m_blockBuffer.remaining() < 8 + compressedLength) {
+				break;
+			}
+			inflate(m_blockBuffer.array(), m_blockBuffer.arrayOffset() + start + 8, compressedLength, length);
+			m_blockBuffer.position(start + 8 + compressedLength);
+			pushFrameBytes(ByteBuffer.wrap(m_inflated, 0, length));
+		}
+		m_blockBuffer.compact();
 	}
 
 	/**
-	 * Flush the data in the current character buffer into a string buffer, parsing any complete result sets.
+	 * Decompress one block into m_inflated and add it to the history.
 	 */
-	private void flush() throws RGMAPermanentException {
-		String currentChars = m_charBuffer.toString();
-		int separatorIndex;
-
-		while ((separatorIndex = currentChars.indexOf(0)) >= 0) {
-			// Have found an end-of-result-set marker.
-			// First, append the final characters to the XML buffer, then parse it.
-			m_currentXml.append(currentChars.substring(0, separatorIndex));
-			TupleSetEnvelope rs = parse(m_currentXml.toString());
-			m_results.add(rs);
-			// Remove the consumed characters
-			if (separatorIndex == currentChars.length() - 1) {
-				currentChars = "";
-			} else {
-				currentChars = currentChars.substring(separatorIndex + 1);
+	private void inflate(byte[] b, int off, int len, int length) throws RGMAPermanentException {
+		if (m_inflated.length < length) {
+			m_inflated = new byte[Math.max(m_inflated.length * 2, length)];
+		}
+		Inflater inflater = m_inflater;
+		inflater.reset();
+		inflater.setInput(b, off, len);
+		int n = 0;
+		try {
+			while (n < length) {
+				int k = inflater.inflate(m_inflated, n, length - n);
+				if (k == 0) {
+					if (inflater.needsDictionary()) {
+						inflater.setDictionary(m_history.getBytes(), 0, m_history.getLength());
+					} else if (inflater.finished() || inflater.needsInput()) {
+						break;
+					}
+				}
+				n += k;
 			}
-			m_currentXml.setLength(0);
+		} catch (DataFormatException e) {
+			throw new RGMAPermanentException("Error decompressing streamed result set: " + e.getMessage());
+		} catch (IllegalArgumentException e) {
+			/* Dictionary does not match */
+			throw new RGMAPermanentException("Error decompressing streamed result set: " + e.getMessage());
+		}
+		if (n != length) {
+			throw new RGMAPermanentException("Compressed block holds " + n + " bytes rather than " + length);
 		}
+		m_history.add(m_inflated, 0, length);
+	}
 
-		// Append any remaining characters that were not part of a complete result set to the
-		// XML buffer.
-		m_currentXml.append(currentChars);
+	/**
+	 * Append bytes to the frame buffer and decode all complete binary frames.
+	 */
+	private void pushFrameBytes(ByteBuffer bytes) throws RGMAPermanentException {
+		if (m_frameBuffer.remaining() < bytes.remaining()) {
+			ByteBuffer bigger = ByteBuffer.allocate(Math.max(m_frameBuffer.capacity() * 2, m_frameBuffer.position() + bytes.remaining()));
+			m_frameBuffer.flip();
+			bigger.put(m_frameBuffer);
+			m_frameBuffer = bigger;
+		}
+		m_frameBuffer.put(bytes);
+		m_frameBuffer.flip();
+		while (m_frameBuffer.remaining() >= 4) {
+			int start = m_frameBuffer.position();
+			int length = m_frameBuffer.getInt(start);
+			if (length < 1 || length > MAX_FRAME_BYTES) {
+				throw new RGMAPermanentException("Invalid binary frame length " + length + " in streamed result set");
+			}
+			if (m_frameBuffer.remaining() < 4 + length) {
+				break;
+			}
+			m_frameBuffer.position(start + 4);
+			try {
+				decodeFrame(m_frameBuffer);
+			} catch (RuntimeException e) {
+				/* BufferUnderflowException and friends from a truncated or corrupt frame */
+				throw new RGMAPermanentException("Error decoding streamed binary frame", e);
+			}
+			if (m_frameBuffer.position() != start + 4 + length) {
+				throw new RGMAPermanentException("Binary frame length " + length + " does not match its content");
+			}
+		}
+		m_frameBuffer.compact();
+	}
 
-		m_charBuffer.clear();
+	/**
+	 * Decode one binary frame, which must be completely contained in the buffer.
+	 */
+	private void decodeFrame(ByteBuffer frame) throws RGMAPermanentException {
+		byte type = frame.get();
+		if (type == TupleEncoder.FRAME_ENVELOPE) {
+			int envelopeId = getVarint(frame);
+			ResourceEndpoint source = getEndpoint(frame);
+			ResourceEndpoint target = getEndpoint(frame);
+			String query = getString(frame);
+			m_envelopes.put(envelopeId, new EnvelopeKey(source, target, query));
+		} else if (type == TupleEncoder.FRAME_RESULTS) {
+			int envelopeId = getVarint(frame);
+			EnvelopeKey envelope = m_envelopes.get(envelopeId);
+			if (envelope == null) {
+				throw new RGMAPermanentException("Result frame refers to undefined envelope " + envelopeId);
+			}
+			int flags = frame.get();
+			String warning = null;
+			if ((flags & TupleEncoder.FLAG_WARNING) != 0) {
+				warning = getString(frame);
+			}
+			int nrow = getVarint(frame);
+			int ncol = getVarint(frame);
+			/* Each column has a flags byte and each cell at least a byte or a bit of the null bitmap */
+			if (nrow < 0 || ncol < 0 || (nrow > 0 && ncol == 0) || (long) ncol * (1 + (nrow + 7L) / 8) > frame.remaining()) {
+				throw new RGMAPermanentException("Result frame of " + nrow + " rows and " + ncol + " columns exceeds streamed frame");
+			}
+			TupleSet ts = new TupleSet(nrow);
+			List<String[]> data = ts.getData();
+			for (int r = 0; r < nrow; r++) {
+				data.add(new String[ncol]);
+			}
+			for (int c = 0; c < ncol; c++) {
+				getColumn(frame, data, c);
+			}
+			ts.setWarning(warning);
+			ts.setEndOfResults((flags & TupleEncoder.FLAG_END) != 0);
+			m_results.add(new TupleSetEnvelope(ts, envelope.getSource(), envelope.getTarget(), envelope.getQuery()));
+		} else {
+			throw new RGMAPermanentException("Unexpected binary frame type " + type + " in streamed result set");
+		}
 	}
 
 	/**
-	 * Parse XML to return a result set object.
+	 * Decode one column of a result frame into the rows already allocated.
 	 */
-	private TupleSetEnvelope parse(String xml) throws RGMAPermanentException {
-		if (xml.trim().equals("")) {
-			throw new RGMAPermanentException("No content found in streamed XML result set");
+	private void getColumn(ByteBuffer frame, List<String[]> data, int c) throws RGMAPermanentException {
+		int nrow = data.size();
+		int flags = frame.get();
+		boolean[] nulls = null;
+		if ((flags & TupleEncoder.COL_NULLS) != 0) {
+			nulls = new boolean[nrow];
+			int bits = 0;
+			for (int r = 0; r < nrow; r++) {
+				if ((r & 7) == 0) {
+					bits = frame.get();
+				}
+				nulls[r] = (bits & (1 << (r & 7))) != 0;
+			}
 		}
-		TupleSetEnvelope resultSet = null;
-		SAXParserFactory saxFactory = SAXParserFactory.newInstance();
-		try {
-			XMLReader xmlReader = saxFactory.newSAXParser().getXMLReader();
-			if (m_headerInt == 1) {
-				OldXmlResultSetParser parser = new OldXmlResultSetParser();
-				xmlReader.setContentHandler(parser);
-				xmlReader.setErrorHandler(parser);
-				xmlReader.parse(new InputSource(new StringReader(xml)));
-				resultSet = parser.getResultSet();
-			} else {
-				XmlResultSetParser parser = new XmlResultSetParser();
-				xmlReader.setContentHandler(parser);
-				xmlReader.setErrorHandler(parser);
-				xmlReader.parse(new InputSource(new StringReader(xml)));
-				resultSet = parser.getResultSet();
+		if ((flags & TupleEncoder.COL_DICTIONARY) != 0) {
+			int size = getVarint(frame);
+			if (size < 0 || size > frame.remaining()) {
+				throw new RGMAPermanentException("Dictionary size " + size + " exceeds streamed frame");
 			}
+			String[] entries = new String[size];
+			for (int i = 0; i < size; i++) {
+				entries[i] = getString(frame);
+			}
+			for (int r = 0; r < nrow; r++) {
+				if (nulls == null || !nulls[r]) {
+					int index = getVarint(frame);
+					if (index < 0 || index >= size) {
+						throw new RGMAPermanentException("Dictionary index " + index + " out of range in streamed result set");
+					}
+					data.get(r)[c] = entries[index];
+				}
+			}
+		} else {
+			for (int r = 0; r < nrow; r++) {
+				if (nulls == null || !nulls[r]) {
+					data.get(r)[c] = getString(frame);
+				}
+			}
+		}
+	}
 
-			if (resultSet != null) {
-				return resultSet;
-			} else {
-				throw new RGMAPermanentException("No result sets found in streamed XML result set");
+	private ResourceEndpoint getEndpoint(ByteBuffer frame) throws RGMAPermanentException {
+		String url = getString(frame);
+		return getEndpoint(url, getVarint(frame));
+	}
+
+	/** Read an unsigned little-endian base 128 number as written by the encoder */
+	private static int getVarint(ByteBuffer frame) throws RGMAPermanentException {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			byte b = frame.get();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
 			}
-		} catch (SAXException e) {
-			throw new RGMAPermanentException("Error parsing streamed XML result set", e);
-		} catch (IOException e) {
-			throw new RGMAPermanentException("IO error parsing streamed XML result set", e);
-		} catch (ParserConfigurationException e) {
-			throw new RGMAPermanentException("Parser error parsing streamed XML result set", e);
+		}
+		throw new RGMAPermanentException("Malformed variable length integer in streamed result set");
+	}
+
+	private static String getString(ByteBuffer frame) throws RGMAPermanentException {
+		int length = getVarint(frame);
+		if (length < 0 || length > frame.remaining()) {
+			throw new RGMAPermanentException("String length " + length + " exceeds streamed frame");
+		}
+		int start = frame.position();
+		frame.position(start + length);
+		try {
+			return new String(frame.array(), frame.arrayOffset() + start, length, CHARSET_NAME);
+		} catch (UnsupportedEncodingException e) {
+			throw new RGMAPermanentException(CHARSET_NAME + " encoding not supported by JVM");
 		}
 	}
 }
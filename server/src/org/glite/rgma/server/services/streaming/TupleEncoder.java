@@ -6,9 +6,12 @@
 
 package org.glite.rgma.server.services.streaming;
 
-import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
 
 import org.glite.rgma.server.servlets.ServletResponseWriter;
 import org.glite.rgma.server.system.RGMAPermanentException;
@@ -17,16 +20,22 @@ import org.glite.rgma.server.system.TupleSet;
 import org.glite.rgma.server.system.TupleSetEnvelope;
 
 /**
- * Tuple encoder for the StandardStreamingProtocol.
+ * Tuple encoder for the StandardStreamingProtocol. Protocol versions 1 and 2 send each result set as XML terminated
+ * by a null byte. Version 3 sends length-prefixed binary frames; an envelope frame carrying the source, target and
+ * query is sent the first time a query is seen on the connection and later result frames refer to it by number. An
+ * encoder therefore holds state for one connection and must be replaced when the connection is re-opened.
+ * <p>
+ * Version 4 sends the frames of version 3 in Deflate compressed blocks, one block for each result set. A block is an
+ * int holding the uncompressed length, an int holding the compressed length and then the zlib data. The most recent
+ * uncompressed bytes of the connection (see {@link DeflateHistory}) are the preset dictionary of each block.
+ * <p>
+ * Result sets are encoded as UTF-8 directly onto the end of a list of ByteBuffers taken from a BufferPool.
  */
 public class TupleEncoder {
 
 	/** Byte token used as a result set separator */
 	private static final byte NULL = 0;
 
-	/** Charset for encoding the streaming message */
-	private static final String CHARSET_NAME = "UTF-8";
-
 	private static final String ELE_ROOT = "rs";
 
 	private static final String ATTR_END = "e";
@@ -63,10 +72,89 @@ public class TupleEncoder {
 
 	private static final String VAL_FALSE = "f";
 
+	/** Binary frame type defining an envelope of source, target and query */
+	static final byte FRAME_ENVELOPE = 'E';
+
+	/** Binary frame type carrying a result set for a previously defined envelope */
+	static final byte FRAME_RESULTS = 'R';
+
+	/** Result frame flag set when the result set is the last for the query */
+	static final int FLAG_END = 1;
+
+	/** Result frame flag set when a warning string follows the flags */
+	static final int FLAG_WARNING = 2;
+
+	/** Column flag set when a null bitmap precedes the column values */
+	static final int COL_NULLS = 1;
+
+	/** Column flag set when the column values are coded through a dictionary */
+	static final int COL_DICTIONARY = 2;
+
+	/** Size of the buffers holding frames before they are compressed */
+	private static final int PLAIN_BUFFER_SIZE = 4096;
+
 	private int m_protVersion;
 
-	public TupleEncoder(int protVersion) {
+	/** Envelope numbers already sent on this connection - only used by the binary protocol */
+	private final Map<EnvelopeKey, Integer> m_envelopeIds;
+
+	/** Writes onto the buffers passed to encode */
+	private final BufferWriter m_out;
+
+	/** Distinct values of the column being encoded, reused for each column */
+	private final Map<String, Integer> m_dictionary;
+
+	/** Distinct values of the column being encoded in order of first appearance, reused for each column */
+	private final List<String> m_entries;
+
+	/** Compressor - only used by the compressed protocol */
+	private Deflater m_deflater;
+
+	/** Uncompressed bytes recently sent - only used by the compressed protocol */
+	private DeflateHistory m_history;
+
+	/** Heap buffers for frames waiting to be compressed - only used by the compressed protocol */
+	private BufferPool m_plainPool;
+
+	/** Writes frames waiting to be compressed - only used by the compressed protocol */
+	private BufferWriter m_plainOut;
+
+	/** Frames waiting to be compressed */
+	private List<ByteBuffer> m_plainBuffers;
+
+	/** Output of the compressor for the current block */
+	private byte[] m_deflated;
+
+	private long m_uncompressedBytes;
+
+	private long m_compressedBytes;
+
+	private long m_compressionNanos;
+
+	/**
+	 * Create an encoder for one connection.
+	 * 
+	 * @param protVersion
+	 *            streaming protocol version
+	 * @param pool
+	 *            pool supplying the buffers to encode into
+	 * @param compressionLevel
+	 *            Deflate compression level from 1 to 9 - only used by the compressed protocol
+	 */
+	public TupleEncoder(int protVersion, BufferPool pool, int compressionLevel) {
 		m_protVersion = protVersion;
+		m_envelopeIds = new HashMap<EnvelopeKey, Integer>();
+		m_out = new BufferWriter(pool);
+		m_dictionary = new HashMap<String, Integer>();
+		m_entries = new ArrayList<String>();
+		if (protVersion == StreamingConstants.COMPRESSED_STREAMING_PROTOCOL) {
+			m_deflater = new Deflater(compressionLevel);
+			m_history = new DeflateHistory();
+			m_plainPool = new BufferPool(PLAIN_BUFFER_SIZE, false, 16);
+			m_plainOut = new BufferWriter(m_plainPool);
+			m_plainBuffers = new ArrayList<ByteBuffer>();
+			m_deflated = new byte[PLAIN_BUFFER_SIZE];
+		}
 	}
 
 	/**
@@ -74,27 +162,30 @@ public class TupleEncoder {
 	 * 
 	 * @param results
 	 *            containing tuples to encode.
-	 * @return ByteBuffer containing the encoded result set, with position set to the beginning, ready to read.
+	 * @param buffers
+	 *            list of buffers in write mode. The encoded result set is written after the data in the last buffer,
+	 *            and further buffers are taken from the pool and added to the list as needed.
+	 * @return the number of bytes written.
 	 * @throws RGMAPermanentException
 	 *             If the result set could not be encoded.
 	 */
-	public ByteBuffer encode(TupleSetEnvelope results) throws RGMAPermanentException {
-		byte[] bytes;
-		try {
-			if (m_protVersion ==1) {
-				bytes = oldToXML(results).getBytes(CHARSET_NAME);
+	public int encode(TupleSetEnvelope results, List<ByteBuffer> buffers) throws RGMAPermanentException {
+		m_out.start(buffers);
+		if (m_protVersion == StreamingConstants.BINARY_STREAMING_PROTOCOL) {
+			toBinary(results, m_out);
+		} else if (m_protVersion == StreamingConstants.COMPRESSED_STREAMING_PROTOCOL) {
+			m_plainOut.start(m_plainBuffers);
+			toBinary(results, m_plainOut);
+			compress(m_plainOut.getCount());
+		} else {
+			if (m_protVersion == StreamingConstants.OLD_XML_STREAMING_PROTOCOL) {
+				m_out.append(oldToXML(results));
 			} else {
-				bytes = toXML(results).getBytes(CHARSET_NAME);
+				toXML(results);
 			}
-			
-		} catch (UnsupportedEncodingException e) {
-			throw new RGMAPermanentException(CHARSET_NAME + " encoding not supported by JVM");
+			m_out.putByte(NULL);
 		}
-
-		ByteBuffer ret = ByteBuffer.allocate(bytes.length + 1);
-		ret.put(bytes);
-		ret.put(NULL);
-		return ret;
+		return m_out.getCount();
 	}
 
 	/**
@@ -111,58 +202,248 @@ public class TupleEncoder {
 		return header;
 	}
 
+	/**
+	 * Release resources held by the encoder. It must not be used afterwards.
+	 */
+	public void close() {
+		if (m_deflater != null) {
+			m_deflater.end();
+		}
+	}
+
+	public long getUncompressedBytes() {
+		return m_uncompressedBytes;
+	}
+
+	public long getCompressedBytes() {
+		return m_compressedBytes;
+	}
+
+	/** Time spent compressing in nanoseconds */
+	public long getCompressionNanos() {
+		return m_compressionNanos;
+	}
 
 	/**
-	 * Convert a result set into XML format.
+	 * Compress the frames in m_plainBuffers into one block written to m_out, and return the plain buffers to their
+	 * pool.
+	 */
+	private void compress(int length) {
+		long start = System.nanoTime();
+		Deflater deflater = m_deflater;
+		deflater.reset();
+		if (m_history.getLength() > 0) {
+			deflater.setDictionary(m_history.getBytes(), 0, m_history.getLength());
+		}
+		int n = 0;
+		for (ByteBuffer b : m_plainBuffers) {
+			b.flip();
+			deflater.setInput(b.array(), b.arrayOffset() + b.position(), b.remaining());
+			while (!deflater.needsInput()) {
+				n = deflate(n);
+			}
+			m_history.add(b.array(), b.arrayOffset() + b.position(), b.remaining());
+			m_plainPool.release(b);
+		}
+		m_plainBuffers.clear();
+		deflater.finish();
+		while (!deflater.finished()) {
+			n = deflate(n);
+		}
+		m_out.putInt(length);
+		m_out.putInt(n);
+		m_out.put(m_deflated, 0, n);
+		m_uncompressedBytes += length;
+		m_compressedBytes += n + 8;
+		m_compressionNanos += System.nanoTime() - start;
+	}
+
+	/** Deflate into m_deflated after the first n bytes, enlarging it if full, and return the new number of bytes */
+	private int deflate(int n) {
+		if (n == m_deflated.length) {
+			byte[] bigger = new byte[m_deflated.length * 2];
+			System.arraycopy(m_deflated, 0, bigger, 0, n);
+			m_deflated = bigger;
+		}
+		return n + m_deflater.deflate(m_deflated, n, m_deflated.length - n);
+	}
+
+	/**
+	 * Convert a result set into binary frames. An envelope frame is written first if the query has not been seen
+	 * before on this connection.
 	 */
-	private String toXML(TupleSetEnvelope results) throws RGMAPermanentException {
+	private void toBinary(TupleSetEnvelope results, BufferWriter out) {
+		EnvelopeKey key = new EnvelopeKey(results.getSource(), results.getTarget(), results.getQuery());
+		Integer envelopeId = m_envelopeIds.get(key);
+		if (envelopeId == null) {
+			envelopeId = m_envelopeIds.size();
+			m_envelopeIds.put(key, envelopeId);
+			out.startFrame(FRAME_ENVELOPE);
+			out.putVarint(envelopeId);
+			out.putString(results.getSource().getURL().toString());
+			out.putVarint(results.getSource().getResourceID());
+			out.putString(results.getTarget().getURL().toString());
+			out.putVarint(results.getTarget().getResourceID());
+			out.putString(results.getQuery());
+			out.endFrame();
+		}
+
 		TupleSet ts = results.getTupleSet();
-		
-		ResourceEndpoint ep = results.getSource();
-		String surl = ServletResponseWriter.normalize(ep.getURL().toString());
-		int sid = ep.getResourceID();
-		ep = results.getTarget();
-		String turl = ServletResponseWriter.normalize(ep.getURL().toString());
-		int tid = ep.getResourceID();
-		
-		StringBuilder buffer = new StringBuilder("<r" + " q=\"" + ServletResponseWriter.normalize(results.getQuery()) + "\""   + " si=\"" + sid + "\"" + " su=\"" + surl + "\"" + " ti=\"" + tid + "\"" + " tu=\"" + turl + "\"");
+		List<String[]> data = ts.getData();
+		int nrow = data.size();
+		int ncol = nrow > 0 ? data.get(0).length : 0;
 		String warning = ts.getWarning();
+		int flags = 0;
+		if (ts.isEndOfResults()) {
+			flags |= FLAG_END;
+		}
+		if (warning != null) {
+			flags |= FLAG_WARNING;
+		}
+		out.startFrame(FRAME_RESULTS);
+		out.putVarint(envelopeId);
+		out.putByte(flags);
 		if (warning != null) {
-			buffer.append(" m=\"" + warning + "\"");
+			out.putString(warning);
+		}
+		out.putVarint(nrow);
+		out.putVarint(ncol);
+		for (int c = 0; c < ncol; c++) {
+			putColumn(out, data, c);
+		}
+		out.endFrame();
+	}
+
+	/**
+	 * Write one column: a flags byte, a null bitmap if there are any nulls, then the non-null values either as
+	 * strings or as indices into a dictionary of the distinct values when at least half of them are repeats.
+	 */
+	private void putColumn(BufferWriter out, List<String[]> data, int c) {
+		int nrow = data.size();
+		int nonNull = 0;
+		Map<String, Integer> dictionary = m_dictionary;
+		List<String> entries = m_entries;
+		dictionary.clear();
+		entries.clear();
+		for (String[] row : data) {
+			String value = row[c];
+			if (value != null) {
+				nonNull++;
+				if (!dictionary.containsKey(value)) {
+					dictionary.put(value, entries.size());
+					entries.add(value);
+				}
+			}
+		}
+		boolean useDictionary = entries.size() * 2 <= nonNull;
+		int flags = 0;
+		if (nonNull != nrow) {
+			flags |= COL_NULLS;
+		}
+		if (useDictionary) {
+			flags |= COL_DICTIONARY;
+		}
+		out.putByte(flags);
+		if (nonNull != nrow) {
+			int bits = 0;
+			int r = 0;
+			for (String[] row : data) {
+				if (row[c] == null) {
+					bits |= 1 << (r & 7);
+				}
+				if ((++r & 7) == 0) {
+					out.putByte(bits);
+					bits = 0;
+				}
+			}
+			if ((r & 7) != 0) {
+				out.putByte(bits);
+			}
+		}
+		if (useDictionary) {
+			out.putVarint(entries.size());
+			for (String entry : entries) {
+				out.putString(entry);
+			}
+			for (String[] row : data) {
+				if (row[c] != null) {
+					out.putVarint(dictionary.get(row[c]));
+				}
+			}
+		} else {
+			for (String[] row : data) {
+				if (row[c] != null) {
+					out.putString(row[c]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write a result set in XML format.
+	 */
+	private void toXML(TupleSetEnvelope results) {
+		BufferWriter out = m_out;
+		TupleSet ts = results.getTupleSet();
+
+		ResourceEndpoint source = results.getSource();
+		ResourceEndpoint target = results.getTarget();
+		out.append("<r q=\"");
+		out.appendNormalized(results.getQuery());
+		out.append("\" si=\"");
+		out.append(String.valueOf(source.getResourceID()));
+		out.append("\" su=\"");
+		out.appendNormalized(source.getURL().toString());
+		out.append("\" ti=\"");
+		out.append(String.valueOf(target.getResourceID()));
+		out.append("\" tu=\"");
+		out.appendNormalized(target.getURL().toString());
+		out.append("\"");
+		String warning = ts.getWarning();
+		if (warning != null) {
+			out.append(" m=\"");
+			out.append(warning);
+			out.append("\"");
 		}
 		List<String[]> data = ts.getData();
 		int nrow = data.size();
 		int ncol = 0;
 		if (nrow > 0) {
-			ncol = data.get(0).length;	
+			ncol = data.get(0).length;
 		}
 		if (ncol != 1) {
-			buffer.append(" c=\"" + ncol + "\"");
+			out.append(" c=\"");
+			out.append(String.valueOf(ncol));
+			out.append("\"");
 		}
 		if (nrow != 1) {
-			buffer.append(" r=\"" + nrow + "\"");
+			out.append(" r=\"");
+			out.append(String.valueOf(nrow));
+			out.append("\"");
 		}
 		if (ts.isEndOfResults()) {
-			buffer.append("><e/>\n");
+			out.append("><e/>\n");
 		} else {
-			buffer.append(">\n");
+			out.append(">\n");
 		}
 
 		for (String[] thisRow : data) {
 			for (int i = 0; i < ncol; i++) {
 				String colValue = thisRow[i];
 				if (colValue != null) {
-					buffer.append("<v>" + ServletResponseWriter.normalize(colValue) + "</v>");
+					out.append("<v>");
+					out.appendNormalized(colValue);
+					out.append("</v>");
 				} else {
-					buffer.append("<n/>");
+					out.append("<n/>");
 				}
 			}
-			buffer.append("\n");
+			out.append("\n");
 		}
-		
-		return buffer.append("</r>\n").toString();
+
+		out.append("</r>\n");
 	}
-	
+
 	/**
 	 * Convert a result set into XML format.
 	 */
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2004.
+ * See http://eu-egee.org/partners/ for details on the copyright holders.
+ * For license conditions see the license file or http://eu-egee.org/license.html
+ */
+
+package org.glite.rgma.server.services.streaming;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.glite.rgma.server.services.producer.store.TupleStore;
+
+/**
+ * Index from each TupleStore to the StreamingSources with queries on it, so that the streaming sender can find the
+ * connections affected by an insert without asking every source. A source is counted once for each of its queries on
+ * the store. A <code>null</code> store is allowed. This class is thread safe.
+ */
+class TupleStoreIndex {
+
+	private final Map<TupleStore, Map<StreamingSource, Integer>> m_index = new HashMap<TupleStore, Map<StreamingSource, Integer>>();
+
+	/**
+	 * Record that the source has another query on the store.
+	 */
+	synchronized void add(TupleStore store, StreamingSource source) {
+		Map<StreamingSource, Integer> sources = m_index.get(store);
+		if (sources == null) {
+			sources = new HashMap<StreamingSource, Integer>();
+			m_index.put(store, sources);
+		}
+		Integer count = sources.get(source);
+		sources.put(source, count == null ? 1 : count + 1);
+	}
+
+	/**
+	 * Record that one of the queries of the source on the store has finished.
+	 */
+	synchronized void remove(TupleStore store, StreamingSource source) {
+		Map<StreamingSource, Integer> sources = m_index.get(store);
+		if (sources == null) {
+			return;
+		}
+		Integer count = sources.get(source);
+		if (count == null) {
+			return;
+		}
+		if (count > 1) {
+			sources.put(source, count - 1);
+		} else {
+			sources.remove(source);
+			if (sources.isEmpty()) {
+				m_index.remove(store);
+			}
+		}
+	}
+
+	/**
+	 * Return the sources with at least one query on the store.
+	 */
+	synchronized List<StreamingSource> getSources(TupleStore store) {
+		Map<StreamingSource, Integer> sources = m_index.get(store);
+		if (sources == null) {
+			return Collections.emptyList();
+		}
+		return new ArrayList<StreamingSource>(sources.keySet());
+	}
+
+	synchronized int getStoreCount() {
+		return m_index.size();
+	}
+}
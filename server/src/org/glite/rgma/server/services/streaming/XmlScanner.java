@@ -0,0 +1,487 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2004.
+ * See http://eu-egee.org/partners/ for details on the copyright holders.
+ * For license conditions see the license file or http://eu-egee.org/license.html
+ */
+
+package org.glite.rgma.server.services.streaming;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.glite.rgma.server.system.RGMAPermanentException;
+
+/**
+ * Incremental scanner for the XML result sets of streaming protocols 1 and 2. Bytes are scanned as they arrive,
+ * however they are split, and each result set is terminated by a null byte. Only the subset of XML written by
+ * TupleEncoder is understood: elements, attributes, character data and the predefined and numeric entity references.
+ * Processing instructions, comments and declarations are skipped.
+ * <p>
+ * Element names are passed to subclasses as bytes and character data is only turned into a String when the subclass
+ * asks for it, so that no objects need be created for the markup. If a result set is malformed the rest of it is
+ * skipped and a warning logged. This class is not thread safe.
+ */
+abstract class XmlScanner {
+
+	/**
+	 * Attributes of the element being started. The same object is reused for each element.
+	 */
+	static class TagAttributes {
+
+		private final List<String> m_names = new ArrayList<String>();
+
+		private final List<String> m_values = new ArrayList<String>();
+
+		/**
+		 * Return the value of the named attribute or <code>null</code> if it is not present.
+		 */
+		String getValue(String name) {
+			for (int i = 0; i < m_names.size(); i++) {
+				if (m_names.get(i).equals(name)) {
+					return m_values.get(i);
+				}
+			}
+			return null;
+		}
+
+		private void add(String name, String value) {
+			m_names.add(name);
+			m_values.add(value);
+		}
+
+		private void clear() {
+			m_names.clear();
+			m_values.clear();
+		}
+	}
+
+	private enum State {
+		TEXT, TAG_OPEN, TAG_NAME, IN_TAG, ATTR_NAME, AFTER_ATTR_NAME, BEFORE_ATTR_VALUE, ATTR_VALUE, EMPTY_TAG_END, END_TAG_NAME, AFTER_END_TAG_NAME, DECLARATION, ENTITY, SKIP
+	}
+
+	/** Charset for decoding character data */
+	private static final String CHARSET_NAME = "UTF-8";
+
+	/** Longest entity reference accepted, excluding the '&' and ';' */
+	private static final int MAX_ENTITY_LENGTH = 10;
+
+	private final Logger LOG = Logger.getLogger(StreamingConstants.STREAMING_RECEIVER_LOGGER);
+
+	private State m_state = State.TEXT;
+
+	/** State to return to at the end of an entity reference */
+	private State m_entityReturn;
+
+	/** Element or attribute name being read */
+	private byte[] m_name = new byte[16];
+
+	private int m_nameLength;
+
+	/** Name of the attribute whose value is being read */
+	private String m_attrName;
+
+	/** Quote character delimiting the attribute value being read */
+	private byte m_quote;
+
+	/** Character data or attribute value being read, as UTF-8 */
+	private byte[] m_value = new byte[256];
+
+	private int m_valueLength;
+
+	/** If <code>true</code>, character data is being collected for the subclass */
+	private boolean m_collectText;
+
+	/** If <code>true</code>, the last character collected was a carriage return */
+	private boolean m_lastCR;
+
+	private final byte[] m_entity = new byte[MAX_ENTITY_LENGTH];
+
+	private int m_entityLength;
+
+	/** Depth of element nesting */
+	private int m_depth;
+
+	private final TagAttributes m_attributes = new TagAttributes();
+
+	/**
+	 * Called for each start tag, and for each empty element tag before the matching call to endElement.
+	 */
+	protected abstract void startElement(byte[] name, int length, TagAttributes attributes) throws RGMAPermanentException;
+
+	/**
+	 * Called for each end tag and after startElement for an empty element tag.
+	 */
+	protected abstract void endElement(byte[] name, int length) throws RGMAPermanentException;
+
+	/**
+	 * Called with character data collected since the last tag, when it was wanted.
+	 */
+	protected abstract void text(String text);
+
+	/**
+	 * Return <code>true</code> if character data following the tag just processed should be passed to text.
+	 */
+	protected abstract boolean isTextWanted();
+
+	/**
+	 * Called at the null byte ending a well formed result set.
+	 */
+	protected abstract void endDocument() throws RGMAPermanentException;
+
+	/**
+	 * Called when a malformed result set is being skipped so that the subclass can discard partial results.
+	 */
+	protected abstract void reset();
+
+	/**
+	 * Return an element name as a String - for subclasses which are not concerned with speed.
+	 */
+	static String toName(byte[] name, int length) {
+		char[] chars = new char[length];
+		for (int i = 0; i < length; i++) {
+			chars[i] = (char) (name[i] & 0xFF);
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * Scan all remaining bytes of the buffer.
+	 */
+	void scan(ByteBuffer bytes) {
+		while (bytes.hasRemaining()) {
+			byte b = bytes.get();
+			if (b == 0) {
+				if (m_state == State.SKIP) {
+					LOG.warn("Malformed streamed result set discarded");
+				} else if (m_state != State.TEXT || m_depth != 0) {
+					LOG.warn("Incomplete streamed result set discarded");
+					reset();
+				} else {
+					try {
+						endDocument();
+					} catch (RGMAPermanentException e) {
+						LOG.warn("Streamed result set discarded: " + e.getMessage());
+						reset();
+					}
+				}
+				m_state = State.TEXT;
+				m_depth = 0;
+				m_valueLength = 0;
+				m_collectText = false;
+				continue;
+			}
+			try {
+				scanByte(b);
+			} catch (RGMAPermanentException e) {
+				LOG.warn("Error scanning streamed result set - skipping to the next one: " + e.getMessage());
+				reset();
+				m_state = State.SKIP;
+			}
+		}
+	}
+
+	private void scanByte(byte b) throws RGMAPermanentException {
+		switch (m_state) {
+		case TEXT:
+			if (b == '<') {
+				if (m_collectText) {
+					text(valueString());
+				}
+				m_state = State.TAG_OPEN;
+			} else if (b == '&') {
+				startEntity(State.TEXT);
+			} else if (m_collectText) {
+				appendTextByte(b);
+			}
+			break;
+		case TAG_OPEN:
+			if (b == '/') {
+				m_nameLength = 0;
+				m_state = State.END_TAG_NAME;
+			} else if (b == '?' || b == '!') {
+				m_state = State.DECLARATION;
+			} else if (isNameByte(b)) {
+				m_nameLength = 0;
+				appendName(b);
+				m_attributes.clear();
+				m_state = State.TAG_NAME;
+			} else {
+				throw new RGMAPermanentException("Unexpected character after '<'");
+			}
+			break;
+		case TAG_NAME:
+			if (isNameByte(b)) {
+				appendName(b);
+			} else if (isSpace(b)) {
+				m_state = State.IN_TAG;
+			} else if (b == '>') {
+				start();
+			} else if (b == '/') {
+				m_state = State.EMPTY_TAG_END;
+			} else {
+				throw new RGMAPermanentException("Unexpected character in element name");
+			}
+			break;
+		case IN_TAG:
+			if (b == '>') {
+				start();
+			} else if (b == '/') {
+				m_state = State.EMPTY_TAG_END;
+			} else if (isNameByte(b)) {
+				startAttributeName(b);
+			} else if (!isSpace(b)) {
+				throw new RGMAPermanentException("Unexpected character in tag");
+			}
+			break;
+		case ATTR_NAME:
+			if (isNameByte(b)) {
+				appendValueByte(b);
+			} else if (b == '=') {
+				m_attrName = valueString();
+				m_state = State.BEFORE_ATTR_VALUE;
+			} else if (isSpace(b)) {
+				m_attrName = valueString();
+				m_state = State.AFTER_ATTR_NAME;
+			} else {
+				throw new RGMAPermanentException("Unexpected character in attribute name");
+			}
+			break;
+		case AFTER_ATTR_NAME:
+			if (b == '=') {
+				m_state = State.BEFORE_ATTR_VALUE;
+			} else if (!isSpace(b)) {
+				throw new RGMAPermanentException("Expected '=' after attribute name");
+			}
+			break;
+		case BEFORE_ATTR_VALUE:
+			if (b == '"' || b == '\'') {
+				m_quote = b;
+				m_valueLength = 0;
+				m_lastCR = false;
+				m_state = State.ATTR_VALUE;
+			} else if (!isSpace(b)) {
+				throw new RGMAPermanentException("Expected quoted attribute value");
+			}
+			break;
+		case ATTR_VALUE:
+			if (b == m_quote) {
+				m_attributes.add(m_attrName, valueString());
+				m_state = State.IN_TAG;
+			} else if (b == '&') {
+				startEntity(State.ATTR_VALUE);
+			} else if (b == '<') {
+				throw new RGMAPermanentException("Unexpected '<' in attribute value");
+			} else if (b == '\r') {
+				/* Attribute value normalization: each line end or white space character becomes a space */
+				appendValueByte((byte) ' ');
+				m_lastCR = true;
+			} else if (b == '\n') {
+				if (!m_lastCR) {
+					appendValueByte((byte) ' ');
+				}
+				m_lastCR = false;
+			} else if (b == '\t') {
+				appendValueByte((byte) ' ');
+				m_lastCR = false;
+			} else {
+				appendValueByte(b);
+				m_lastCR = false;
+			}
+			break;
+		case EMPTY_TAG_END:
+			if (b != '>') {
+				throw new RGMAPermanentException("Expected '>' after '/'");
+			}
+			startElement(m_name, m_nameLength, m_attributes);
+			endElement(m_name, m_nameLength);
+			afterTag();
+			break;
+		case END_TAG_NAME:
+			if (isNameByte(b)) {
+				appendName(b);
+			} else if (b == '>') {
+				end();
+			} else if (isSpace(b)) {
+				m_state = State.AFTER_END_TAG_NAME;
+			} else {
+				throw new RGMAPermanentException("Unexpected character in end tag");
+			}
+			break;
+		case AFTER_END_TAG_NAME:
+			if (b == '>') {
+				end();
+			} else if (!isSpace(b)) {
+				throw new RGMAPermanentException("Unexpected character in end tag");
+			}
+			break;
+		case DECLARATION:
+			if (b == '>') {
+				m_state = State.TEXT;
+			}
+			break;
+		case ENTITY:
+			if (b == ';') {
+				endEntity();
+			} else if (m_entityLength < MAX_ENTITY_LENGTH) {
+				m_entity[m_entityLength++] = b;
+			} else {
+				throw new RGMAPermanentException("Entity reference too long");
+			}
+			break;
+		case SKIP:
+			break;
+		}
+	}
+
+	private void startAttributeName(byte b) {
+		m_valueLength = 0;
+		appendValueByte(b);
+		m_state = State.ATTR_NAME;
+	}
+
+	private void start() throws RGMAPermanentException {
+		m_depth++;
+		startElement(m_name, m_nameLength, m_attributes);
+		afterTag();
+	}
+
+	private void end() throws RGMAPermanentException {
+		if (--m_depth < 0) {
+			throw new RGMAPermanentException("Unbalanced end tag");
+		}
+		endElement(m_name, m_nameLength);
+		afterTag();
+	}
+
+	private void afterTag() {
+		m_collectText = isTextWanted();
+		m_valueLength = 0;
+		m_lastCR = false;
+		m_state = State.TEXT;
+	}
+
+	private void startEntity(State returnState) {
+		m_entityReturn = returnState;
+		m_entityLength = 0;
+		m_state = State.ENTITY;
+	}
+
+	/**
+	 * Resolve the entity reference and append its character to the value.
+	 */
+	private void endEntity() throws RGMAPermanentException {
+		String entity = toName(m_entity, m_entityLength);
+		int ch;
+		if (entity.equals("lt")) {
+			ch = '<';
+		} else if (entity.equals("gt")) {
+			ch = '>';
+		} else if (entity.equals("amp")) {
+			ch = '&';
+		} else if (entity.equals("quot")) {
+			ch = '"';
+		} else if (entity.equals("apos")) {
+			ch = '\'';
+		} else if (entity.startsWith("#x")) {
+			ch = parseCodePoint(entity.substring(2), 16);
+		} else if (entity.startsWith("#")) {
+			ch = parseCodePoint(entity.substring(1), 10);
+		} else {
+			throw new RGMAPermanentException("Unknown entity reference &" + entity + ";");
+		}
+		m_state = m_entityReturn;
+		m_lastCR = false;
+		if (m_state == State.ATTR_VALUE || m_collectText) {
+			appendCodePoint(ch);
+		}
+	}
+
+	private int parseCodePoint(String digits, int radix) throws RGMAPermanentException {
+		try {
+			int cp = Integer.parseInt(digits, radix);
+			if (cp >= 0 && cp <= Character.MAX_CODE_POINT) {
+				return cp;
+			}
+		} catch (NumberFormatException e) {
+			/* Drop through to the exception */
+		}
+		throw new RGMAPermanentException("Invalid character reference " + digits);
+	}
+
+	private void appendCodePoint(int cp) {
+		if (cp < 0x80) {
+			appendValueByte((byte) cp);
+		} else if (cp < 0x800) {
+			appendValueByte((byte) (0xC0 | (cp >> 6)));
+			appendValueByte((byte) (0x80 | (cp & 0x3F)));
+		} else if (cp < 0x10000) {
+			appendValueByte((byte) (0xE0 | (cp >> 12)));
+			appendValueByte((byte) (0x80 | ((cp >> 6) & 0x3F)));
+			appendValueByte((byte) (0x80 | (cp & 0x3F)));
+		} else {
+			appendValueByte((byte) (0xF0 | (cp >> 18)));
+			appendValueByte((byte) (0x80 | ((cp >> 12) & 0x3F)));
+			appendValueByte((byte) (0x80 | ((cp >> 6) & 0x3F)));
+			appendValueByte((byte) (0x80 | (cp & 0x3F)));
+		}
+	}
+
+	/**
+	 * Append a byte of character data, normalizing line ends to a single line feed as an XML parser would.
+	 */
+	private void appendTextByte(byte b) {
+		if (b == '\r') {
+			appendValueByte((byte) '\n');
+			m_lastCR = true;
+		} else {
+			if (b != '\n' || !m_lastCR) {
+				appendValueByte(b);
+			}
+			m_lastCR = false;
+		}
+	}
+
+	private void appendValueByte(byte b) {
+		if (m_valueLength == m_value.length) {
+			byte[] value = new byte[m_value.length * 2];
+			System.arraycopy(m_value, 0, value, 0, m_valueLength);
+			m_value = value;
+		}
+		m_value[m_valueLength++] = b;
+	}
+
+	private void appendName(byte b) {
+		if (m_nameLength == m_name.length) {
+			byte[] name = new byte[m_name.length * 2];
+			System.arraycopy(m_name, 0, name, 0, m_nameLength);
+			m_name = name;
+		}
+		m_name[m_nameLength++] = b;
+	}
+
+	/**
+	 * Return the collected value as a String and start collecting a new one.
+	 */
+	private String valueString() throws RGMAPermanentException {
+		String s;
+		try {
+			s = new String(m_value, 0, m_valueLength, CHARSET_NAME);
+		} catch (UnsupportedEncodingException e) {
+			throw new RGMAPermanentException(CHARSET_NAME + " charset is not available");
+		}
+		m_valueLength = 0;
+		return s;
+	}
+
+	private static boolean isSpace(byte b) {
+		return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+	}
+
+	/** Bytes of multi-byte UTF-8 characters are treated as name characters */
+	private static boolean isNameByte(byte b) {
+		return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') || b == '_' || b == '-' || b == '.' || b == ':' || b < 0;
+	}
+}
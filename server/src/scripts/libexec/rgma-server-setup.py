@@ -133,6 +133,7 @@ class properties:
         database.add('connection.pool.maxIdle', '2', 'The maximum number of idle connections the pool will have')	
         database.add('connection.pool.maxWait.secs', '300', 'The maximum time to wait for a connection before throwing an exception -1 means wait indefinitely')	
         database.add('log.width', '500', 'The width of the security log of database accesses')    
+        database.add('maxPreparedStatements', '200', 'The maximum number of prepared statements kept for each database connection')
     
         memory = section("memory", self)
         memory.add('database.location.url', 'jdbc:hsqldb:mem:_RGMA_', 'The URL location of the database')
@@ -143,7 +144,8 @@ class properties:
         primaryproducer.add('cleanupIntervalSecs', '60', 'Interval for cleaning up waiting producer for consumer')
     
         producer = section("producer", self)
-        producer.add('maxTupleCountPerStreamedChunk', '50', 'Maximum number of tuples to send in each streaming chunk')	
+        producer.add('maxTupleCountPerStreamedChunk', '50', 'Number of tuples to send in the first streaming chunk of a query - later chunks are sized to suit the query')
+        producer.add('maxBytesPerStreamedChunk', '65536', 'Maximum size in bytes of an encoded streaming chunk')
         
         registry = section("registry", self)
         registry.add('cleanupthread.interval.secs', '60', 'Registry cleanup thread interval time to wait in seconds')
@@ -190,14 +192,28 @@ class properties:
         streamingreceiver = section("streamingreceiver", self)
         streamingreceiver.add('cleanupIntervalSecs', '600', 'The frequency to check for and cleanup dead RunningReplies')
         streamingreceiver.add('port', '8088', 'Port number for the streaming receiver to listen on')
+        streamingreceiver.add('decodeThreads', '4', 'Number of threads decoding streamed results and pushing them to replies.')
+        streamingreceiver.add('maxQueuedBytes', '16777216', 'Number of bytes waiting to be decoded above which the streaming receiver stops reading.')
     
         streamingsender = section("streamingsender", self)
         streamingsender.add('cleanupIntervalSecs', '600', 'The frequency to check for and cleanup StreamingSources')
         streamingsender.add('optimalPacketSizeBytes', '4096', 'Optimal NIO packet size in bytes.')    
         streamingsender.add('periodToKeepRedundantSource', '900', 'How long to keep a source alive when it has no queries (seconds as integer).')      
+        streamingsender.add('maxPooledBuffers', '1024', 'Maximum number of free write buffers to keep for reuse.')
+        streamingsender.add('shards', '0', 'Number of streaming sender threads, each with its own selector - 0 for one per processor.')
+        streamingsender.add('prefetchThreads', '4', 'Number of threads reading results from tuple stores for the streaming sender.')
+        streamingsender.add('prefetchQueueSize', '4', 'Maximum number of chunks of results to read ahead for each query.')
+        streamingsender.add('compressionLevel', '1', 'Deflate compression level (1 to 9) for connections to receivers which accept compression - 0 to disable.')
+        streamingsender.add('continuousQueryWeight', '4', 'Share of a streaming connection given to each continuous query relative to each one-time query.')
+        streamingsender.add('coalesceMillis', '5', 'Longest time in milliseconds to hold back less than a packet of data in the hope of filling it - 0 to send at once.')
+        streamingsender.add('loopback', 'true', 'Whether results for consumers in the same server are delivered directly rather than by a streaming connection.')
+        streamingsender.add('reconnectMinDelayMillis', '1000', 'Delay before the first attempt to reconnect a failed streaming connection (milliseconds).')
+        streamingsender.add('reconnectMaxDelaySecs', '300', 'Longest delay between attempts to reconnect a failed streaming connection (seconds).')
         
         streaming = section("streaming", self)
         streaming.add('allocateDirect', 'True', 'Set True to use direct buffers for I/O')
+        streaming.add('sslSessionCacheSize', '1000', 'Number of SSL sessions to cache for resumption by streaming connections - 0 for no limit.')
+        streaming.add('sslSessionTimeoutSecs', '86400', 'How long a cached SSL session may be resumed by streaming connections (seconds) - 0 for no limit.')
         
         taskmanager = section("taskmanager", self)
         taskmanager.add('threadsInPool', '20', 'The number TaskInvocators, one TaskInvocators per thread')
@@ -211,6 +227,7 @@ class properties:
         tuplestoremanager.add('db.maxHistoryTuples', '1000000000000', 'Maximum number of tuples to he held in a history tuple store for DB storage')
         tuplestoremanager.add('mem.cleanupIntervalSecs', '300', 'How often the TupleStoreManager runs the tuple cleanup operation for MEM storage')
         tuplestoremanager.add('mem.maxHistoryTuples', '10000', 'Maximum number of tuples to he held in a history tuple store for MEM storage')
+        tuplestoremanager.add('maxPushedTuples', '1000', 'Maximum number of tuples pushed to a continuous query as they are inserted and not yet streamed (memory tuple stores only)')
         
         vdb = section("vdb", self)
         vdb.add('configuration.directory', os.path.join(serverVarDir, 'vdb'), '')